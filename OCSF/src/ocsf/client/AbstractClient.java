@@ -6,6 +6,13 @@ package ocsf.client;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.common.*;
 
 /**
  * The <code> AbstractClient </code> contains all the methods necessary to set
@@ -16,6 +23,10 @@ import java.net.*;
  * Method <code> handleMessageFromServer </code> must be defined by a concrete
  * subclass. Several other hook methods may also be overriden.
  * <p>
+ * Besides messages, which go one way, a client can send requests, to which
+ * the server replies: <code>request</code> returns a future completed by the
+ * reply, and any number of requests can wait for theirs at once.
+ * <p>
  * Several public service methods are provided to application that use this
  * framework.
  * <p>
@@ -30,6 +41,18 @@ import java.net.*;
  */
 public abstract class AbstractClient implements Runnable {
 
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of messages kept while reconnecting, unless another is set.
+	 */
+	public static final int		DEFAULT_SEND_QUEUE_CAPACITY	= 1000;
+
+	/**
+	 * How long a request waits for its reply, unless another timeout is set.
+	 */
+	public static final long	DEFAULT_REQUEST_TIMEOUT_MILLIS	= 30000;
+
 	// INSTANCE VARIABLES ***********************************************
 
 	/**
@@ -41,14 +64,9 @@ public abstract class AbstractClient implements Runnable {
 	private Socket				clientSocket;
 
 	/**
-	 * The stream to handle data going to the server.
-	 */
-	private ObjectOutputStream	output;
-
-	/**
-	 * The stream to handle data from the server.
+	 * The stream to handle data exchanged with the server.
 	 */
-	private ObjectInputStream	input;
+	private MessageStream		stream;
 
 	/**
 	 * The thread created to read data from the server.
@@ -71,6 +89,180 @@ public abstract class AbstractClient implements Runnable {
 	 */
 	private int					port;
 
+	/**
+	 * The codecs offered to the server for the next connection, most
+	 * preferred first. Empty by default, meaning a classic object stream.
+	 */
+	private FrameCodec[]		codecs		= new FrameCodec[0];
+
+	/**
+	 * The kind of thread that reads data from the server.
+	 */
+	private final ThreadMode	threadMode;
+
+	/**
+	 * The TCP options applied to the socket of the next connection.
+	 */
+	private final SocketSettings	socketSettings	= new SocketSettings();
+
+	/**
+	 * Decides when messages sent to the server leave the socket. Every
+	 * message is written at once by default.
+	 */
+	private FlushPolicy			flushPolicy	= FlushPolicy.immediate();
+
+	/**
+	 * Decides when the object stream to the server is reset, so that neither
+	 * end keeps every message ever sent reachable.
+	 */
+	private volatile ResetPolicy	resetPolicy	= ResetPolicy.defaultPolicy();
+
+	/**
+	 * The metrics of this client, over all its connections.
+	 */
+	private final MetricsRegistry	metrics		= new MetricsRegistry();
+
+	private final Counter			connects	= metrics.counter("ocsf_client_connects_total",
+			"Connections opened to the server.");
+	private final Counter			disconnects	= metrics.counter("ocsf_client_disconnects_total",
+			"Connections to the server closed.");
+	private final Counter			messagesReceived	= metrics.counter("ocsf_client_messages_received_total",
+			"Messages received from the server.");
+	private final Counter			bytesReceived		= metrics.counter("ocsf_client_bytes_received_total",
+			"Bytes received from the server.");
+	private final Counter			messagesSent		= metrics.counter("ocsf_client_messages_sent_total",
+			"Messages sent to the server.");
+	private final Counter			bytesSent			= metrics.counter("ocsf_client_bytes_sent_total",
+			"Bytes sent to the server.");
+	private final LatencyHistogram	handleLatency		= metrics.histogram("ocsf_client_handle_seconds",
+			"Time spent in handleMessageFromServer.");
+	private final LatencyHistogram	sendLatency			= metrics.histogram("ocsf_client_send_seconds",
+			"Time spent in sendToServer.");
+
+	/**
+	 * The work done compressing and inflating frames.
+	 */
+	private final Compression.Stats	compressionStats	= new Compression.Stats(metrics, "ocsf_client");
+
+	/**
+	 * The compression asked for when the next connection opens, or null, the
+	 * default, for none.
+	 */
+	private Compression				compression;
+
+	/**
+	 * Decides whether and when a lost connection is reopened. Never, by
+	 * default.
+	 */
+	private volatile ReconnectPolicy	reconnectPolicy	= ReconnectPolicy.never();
+
+	/**
+	 * True from the loss of a connection until it is reopened and the
+	 * messages sent meanwhile are resent, or the policy gives up. Guarded by
+	 * <code>pending</code> when set.
+	 */
+	private volatile boolean		reconnecting;
+
+	/**
+	 * The thread waiting to reconnect, or null.
+	 */
+	private volatile Thread			reconnector;
+
+	/**
+	 * Held while the reconnecting thread opens a connection, so that closing
+	 * the client cannot interleave with it.
+	 */
+	private final Object			connectLock	= new Object();
+
+	/**
+	 * The messages sent while reconnecting, oldest first.
+	 */
+	private final ArrayDeque<Object>	pending		= new ArrayDeque<Object>();
+
+	private int						sendQueueCapacity	= DEFAULT_SEND_QUEUE_CAPACITY;
+
+	private final Counter			reconnectAttempts	= metrics.counter("ocsf_client_reconnect_attempts_total",
+			"Attempts to reopen a lost connection.");
+
+	/**
+	 * How often a heartbeat goes to the server when nothing else was sent, in
+	 * milliseconds, or 0 for never, the default.
+	 */
+	private volatile long			heartbeatInterval;
+
+	/**
+	 * How long the server may send nothing before the connection is taken
+	 * for lost, in milliseconds, or 0 for ever, the default.
+	 */
+	private volatile long			serverTimeout;
+
+	/**
+	 * Set when something arrives from the server, and cleared by each check
+	 * of the server timeout.
+	 */
+	private volatile boolean		receivedSinceCheck;
+
+	/**
+	 * Set when a message is sent, and cleared each time a heartbeat is due.
+	 */
+	private volatile boolean		sentSinceHeartbeat;
+
+	/**
+	 * Set when the connection is closed for the server timeout, so that the
+	 * reader reports why.
+	 */
+	private volatile boolean		timedOut;
+
+	/**
+	 * Set while a heartbeat waits to be written, so that a stalled socket
+	 * does not pile them up.
+	 */
+	private final AtomicBoolean		heartbeatQueued		= new AtomicBoolean();
+
+	/**
+	 * The next heartbeat and the next check of the server timeout, on the
+	 * shared timer wheel, or null if they are not enabled.
+	 */
+	private volatile TimerWheel.Timeout	heartbeatTimeout;
+	private volatile TimerWheel.Timeout	serverTimeoutCheck;
+
+	/**
+	 * When the last check found that something had arrived. Only used by the
+	 * checks.
+	 */
+	private long					lastActiveNanos;
+
+	private final Counter			heartbeatsSent		= metrics.counter("ocsf_client_heartbeats_sent_total",
+			"Heartbeats sent to the server when nothing else was.");
+	private final Counter			heartbeatsReceived	= metrics.counter("ocsf_client_heartbeats_received_total",
+			"Heartbeats received from the server.");
+	private final Counter			serverTimeouts		= metrics.counter("ocsf_client_server_timeouts_total",
+			"Connections closed for receiving nothing from the server for the server timeout.");
+
+	/**
+	 * The requests waiting for their reply, by identifier.
+	 */
+	private final Map<Long, Request>	requests		= new ConcurrentHashMap<Long, Request>();
+
+	/**
+	 * The identifier of the last request sent.
+	 */
+	private final AtomicLong		lastRequestId		= new AtomicLong();
+
+	/**
+	 * How long a request waits for its reply, in milliseconds, or 0 for ever.
+	 */
+	private volatile long			requestTimeout		= DEFAULT_REQUEST_TIMEOUT_MILLIS;
+
+	private final Counter			requestsSent		= metrics.counter("ocsf_client_requests_total",
+			"Requests sent to the server.");
+	private final Counter			requestTimeouts		= metrics.counter("ocsf_client_request_timeouts_total",
+			"Requests given up for not being replied to in time.");
+	private final Counter			requestsFailed		= metrics.counter("ocsf_client_request_failures_total",
+			"Requests lost with their connection, or never sent.");
+	private final LatencyHistogram	requestLatency		= metrics.histogram("ocsf_client_request_seconds",
+			"Time from sending a request to receiving its reply.");
+
 	// CONSTRUCTORS *****************************************************
 
 	/**
@@ -82,9 +274,32 @@ public abstract class AbstractClient implements Runnable {
 	 *            the port number.
 	 */
 	public AbstractClient(String host, int port) {
+		this(host, port, ThreadMode.PLATFORM);
+	}
+
+	/**
+	 * Constructs the client with the given kind of reader thread. With
+	 * <code>ThreadMode.VIRTUAL</code>, the loop waiting for messages from the
+	 * server runs on a virtual thread, so that a process can hold many
+	 * thousands of mostly idle sessions.
+	 * 
+	 * @param host
+	 *            the server's host name.
+	 * @param port
+	 *            the port number.
+	 * @param threadMode
+	 *            the kind of thread that reads data from the server.
+	 */
+	public AbstractClient(String host, int port, ThreadMode threadMode) {
 		// Initialize variables
 		this.host = host;
 		this.port = port;
+		this.threadMode = threadMode;
+
+		metrics.gauge("ocsf_client_send_queue_depth", "Messages waiting for a lost connection to be reopened.",
+				this::getSendQueueDepth);
+		metrics.gauge("ocsf_client_requests_in_flight", "Requests waiting for their reply.",
+				this::getRequestsInFlight);
 	}
 
 	// INSTANCE METHODS *************************************************
@@ -103,9 +318,13 @@ public abstract class AbstractClient implements Runnable {
 
 		// Create the sockets and the data streams
 		try {
-			clientSocket = new Socket(host, port);
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-     		input = new ObjectInputStream(clientSocket.getInputStream());
+			clientSocket = new Socket();
+			socketSettings.applyTo(clientSocket);
+			clientSocket.connect(new InetSocketAddress(host, port));
+			stream = Handshake.openClientSide(clientSocket.getInputStream(),
+					new CoalescingOutputStream(clientSocket.getOutputStream(), flushPolicy), codecs,
+					compression);
+			stream.setResetPolicy(resetPolicy);
 		} catch (IOException ex)
 		// All three of the above must be closed when there is a failure
 		// to create any of them
@@ -118,25 +337,145 @@ public abstract class AbstractClient implements Runnable {
 			throw ex; // Rethrow the exception.
 		}
 
-		clientReader = new Thread(this); // Create the data reader thread
+		connects.increment();
+		clientReader = threadMode.newThread(this, "OCSF client reader"); // Create the data reader thread
 		readyToStop = false;
+		startTimers(stream);
 		clientReader.start(); // Start the thread
 	}
 
+	/**
+	 * Opens the connection in the background, the way a lost connection is
+	 * reopened: the reconnect policy decides when each attempt is made and
+	 * when to give up, in which case <code>reconnectFailed</code> is called.
+	 * Messages sent meanwhile are kept until the connection opens. If the
+	 * connection is already open or being opened, this call has no effect.
+	 */
+	final public void openConnectionInBackground() {
+		synchronized (connectLock) {
+			if (isConnected())
+				return;
+			synchronized (pending) {
+				if (reconnecting)
+					return;
+				reconnecting = true;
+			}
+			startReconnecting(new ConnectException("not connected yet"));
+		}
+	}
+
 	/**
 	 * Sends an object to the server. This is the only way that methods should
 	 * communicate with the server.
+	 * <p>
+	 * While a lost connection is being reopened, the message is kept and sent
+	 * once it is, after whatever <code>connectionEstablished</code> sends.
 	 * 
 	 * @param msg
 	 *            The message to be sent.
 	 * @exception IOException
-	 *                if an I/O error occurs when sending
+	 *                if an I/O error occurs when sending, or if too many
+	 *                messages are already kept while reconnecting.
 	 */
 	final public void sendToServer(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
+		send(msg);
+	}
+
+	/**
+	 * Sends a request to the server, which answers it in its
+	 * <code>handleRequestFromClient</code> hook. The future returned is
+	 * completed with the reply, which does not go through
+	 * <code>handleMessageFromServer</code>. Requests do not wait for each
+	 * other: many can be in flight at once over the connection, and their
+	 * replies can come back in any order.
+	 * <p>
+	 * The future fails with a <code>TimeoutException</code> if no reply
+	 * arrives within the request timeout, and with the cause if the request
+	 * cannot be sent or its connection is lost before the reply arrives. A
+	 * request made while a lost connection is being reopened is sent once it
+	 * is, like any message. Actions chained to the future run on the thread
+	 * that reads from the server; waiting on the future from that thread,
+	 * for instance in <code>handleMessageFromServer</code>, would keep the
+	 * reply from being read.
+	 * 
+	 * @param msg
+	 *            the request.
+	 * @return the future reply.
+	 */
+	final public CompletableFuture<Object> request(Object msg) {
+		return request(msg, requestTimeout);
+	}
+
+	/**
+	 * Sends a request to the server with its own timeout. See
+	 * {@link #request(Object)}.
+	 * 
+	 * @param msg
+	 *            the request.
+	 * @param timeoutMillis
+	 *            how long to wait for the reply, in milliseconds, or 0 for
+	 *            ever.
+	 * @return the future reply.
+	 */
+	final public CompletableFuture<Object> request(Object msg, long timeoutMillis) {
+		if (timeoutMillis < 0)
+			throw new IllegalArgumentException("negative timeout");
+
+		long id = lastRequestId.incrementAndGet();
+		Request request = new Request(id);
+		requests.put(id, request);
+		if (timeoutMillis > 0)
+			request.timeout = TimerWheel.shared().schedule(() -> expireRequest(request, timeoutMillis),
+					timeoutMillis, TimeUnit.MILLISECONDS);
+
+		requestsSent.increment();
+		try {
+			MessageStream written = send(Envelope.request(id, msg));
+			request.stream = written;
+			// Lost before it could be told about the request
+			if (written != null && written != stream)
+				failRequest(request, new SocketException("connection lost"));
+		} catch (IOException ex) {
+			failRequest(request, ex);
+		}
+		return request.future;
+	}
+
+	/**
+	 * Writes a message to the server, or keeps it while reconnecting.
+	 * 
+	 * @return the stream it was written to, or null if it was kept.
+	 */
+	private MessageStream send(Object msg) throws IOException {
+		// The reader of a new connection sends directly, so the hook can log
+		// in again before the kept messages go
+		if (reconnecting && (Thread.currentThread() != clientReader || stream == null)) {
+			synchronized (pending) {
+				if (reconnecting) {
+					if (pending.size() >= sendQueueCapacity)
+						throw new SocketException("too many messages waiting for the connection to reopen");
+					pending.add(msg);
+					return null;
+				}
+			}
+		}
+
+		MessageStream current = stream;
+		if (clientSocket == null || current == null)
 			throw new SocketException("socket does not exist");
 
-		output.writeObject(msg);
+		long start = System.nanoTime();
+		// Heartbeats are written by another thread
+		synchronized (current) {
+			long before = current.getBytesWritten();
+			current.writeMessage(msg);
+			bytesSent.add(current.getBytesWritten() - before);
+		}
+		if (!sentSinceHeartbeat)
+			sentSinceHeartbeat = true;
+		messagesSent.increment();
+		sendLatency.recordSince(start);
+		return current;
 	}
 
 	/**
@@ -145,19 +484,42 @@ public abstract class AbstractClient implements Runnable {
     * in some circumstances when Java refuses to send data that it thinks has been sent.
 	 */
 	final public void forceResetAfterSend() throws IOException {
-      output.reset();
+      stream.reset();
+	}
+
+	/**
+	 * Writes any message held back by the flush policy now.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occurs when sending
+	 */
+	final public void flush() throws IOException {
+		MessageStream current = stream;
+		if (current != null)
+			current.flush();
 	}
 
 	/**
-	 * Closes the connection to the server.
+	 * Closes the connection to the server. Messages held back by the flush
+	 * policy are sent first.
 	 * 
 	 * @exception IOException
 	 *                if an I/O error occurs when closing.
 	 */
 	final public void closeConnection() throws IOException {
+		// Stop reconnecting first: a connection it opens meanwhile is closed
+		// below like any other
+		stopReconnecting();
+		failRequests(null, new SocketException("connection closed"));
+
 		// Prevent the thread from looping any more
 		readyToStop = true;
 
+		try {
+			flush();
+		} catch (IOException ex) {
+		}
+
 		try {
 			closeAll();
 		} finally {
@@ -175,6 +537,87 @@ public abstract class AbstractClient implements Runnable {
 		return clientReader != null && clientReader.isAlive();
 	}
 
+	/**
+	 * @return true if a lost connection is being reopened, in which case
+	 *         messages sent are kept until it is.
+	 */
+	final public boolean isReconnecting() {
+		return reconnecting;
+	}
+
+	/**
+	 * @return the policy deciding whether a lost connection is reopened.
+	 */
+	final public ReconnectPolicy getReconnectPolicy() {
+		return reconnectPolicy;
+	}
+
+	/**
+	 * Sets whether, and after how long, a connection lost other than by
+	 * <code>closeConnection</code> is reopened. Once it is,
+	 * <code>connectionEstablished</code> is called again, which is where a
+	 * client logs in again, then the messages sent meanwhile are sent. If the
+	 * policy gives up, those messages are dropped and
+	 * <code>reconnectFailed</code> is called.
+	 * 
+	 * @param policy
+	 *            the reconnect policy.
+	 */
+	final public void setReconnectPolicy(ReconnectPolicy policy) {
+		this.reconnectPolicy = policy;
+	}
+
+	/**
+	 * Sets the most messages kept while reconnecting. Sending more fails.
+	 * 
+	 * @param capacity
+	 *            the number of messages, at least 1.
+	 */
+	final public void setSendQueueCapacity(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity < 1");
+		synchronized (pending) {
+			sendQueueCapacity = capacity;
+		}
+	}
+
+	/**
+	 * @return the number of messages waiting for the connection to reopen.
+	 */
+	final public int getSendQueueDepth() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * @return the number of requests waiting for their reply.
+	 */
+	final public int getRequestsInFlight() {
+		return requests.size();
+	}
+
+	/**
+	 * @return how long a request waits for its reply, in milliseconds, or 0
+	 *         for ever.
+	 */
+	final public long getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	/**
+	 * Sets how long requests made from now on wait for their reply before
+	 * failing with a <code>TimeoutException</code>.
+	 * 
+	 * @param millis
+	 *            the timeout in milliseconds, or 0 to wait for ever.
+	 */
+	final public void setRequestTimeout(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("negative timeout");
+		requestTimeout = millis;
+	}
+
 	/**
 	 * @return the port number.
 	 */
@@ -193,6 +636,222 @@ public abstract class AbstractClient implements Runnable {
 		this.port = port;
 	}
 
+	/**
+	 * @return the codecs offered to the server, most preferred first.
+	 */
+	final public FrameCodec[] getCodecs() {
+		return codecs.clone();
+	}
+
+	/**
+	 * Sets the codecs offered to the server when the next connection opens,
+	 * most preferred first. The server picks one and every message is then
+	 * framed in that codec's format, as a server running the NIO engine
+	 * requires. With no codec, the default, the connection uses a classic
+	 * object stream, which any OCSF server accepts. The change only takes
+	 * effect at the time of the next call to openConnection().
+	 * 
+	 * @param codecs
+	 *            the codecs offered, possibly none.
+	 */
+	final public void setCodecs(FrameCodec... codecs) {
+		this.codecs = codecs.clone();
+	}
+
+	/**
+	 * Asks the server to compress the frames of the next connection, in both
+	 * directions. Payloads of at least <code>threshold</code> bytes are then
+	 * deflated, primed with the dictionary, which must be the one the server
+	 * uses (see <code>AbstractServer.setCompression</code>); if it is not, or
+	 * the server does not compress, frames are sent as they are. Only
+	 * applies to connections that negotiate a codec. The change only takes
+	 * effect at the time of the next call to openConnection().
+	 * 
+	 * @param threshold
+	 *            the payload size from which payloads are compressed.
+	 * @param dictionary
+	 *            the preset dictionary, possibly empty.
+	 */
+	final public void setCompression(int threshold, byte[] dictionary) {
+		compression = new Compression(threshold, dictionary, compressionStats);
+	}
+
+	/**
+	 * Stops asking for compression when the next connection opens.
+	 */
+	final public void disableCompression() {
+		compression = null;
+	}
+
+	/**
+	 * @return true if the current connection compresses its frames.
+	 */
+	final public boolean isCompressed() {
+		MessageStream current = stream;
+		return current instanceof FramedMessageStream
+				&& Compression.isCompressing(((FramedMessageStream) current).getCodec());
+	}
+
+	/**
+	 * Has a heartbeat, an empty message that never reaches
+	 * <code>handleMessageFromClient</code>, sent to the server whenever
+	 * nothing else was sent for the interval, so that a server with an idle
+	 * timeout keeps the connection. The change only takes effect at the time
+	 * of the next call to openConnection().
+	 * 
+	 * @param millis
+	 *            the interval in milliseconds, or 0 to send none.
+	 */
+	final public void setHeartbeatInterval(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("negative interval");
+		heartbeatInterval = millis;
+	}
+
+	/**
+	 * Has the connection taken for lost when nothing, neither messages nor
+	 * heartbeats, arrives from the server for the timeout. A server that
+	 * crashed or became unreachable without closing the connection is then
+	 * noticed: <code>connectionException</code> is called with a
+	 * <code>SocketTimeoutException</code> and the reconnect policy applies.
+	 * Set the timeout to a few times the heartbeat interval of the server.
+	 * The timeout is checked every quarter of it. The change only takes
+	 * effect at the time of the next call to openConnection().
+	 * 
+	 * @param millis
+	 *            the timeout in milliseconds, or 0 to wait for ever.
+	 */
+	final public void setServerTimeout(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("negative timeout");
+		serverTimeout = millis;
+	}
+
+	/**
+	 * @return the policy deciding when messages leave the socket.
+	 */
+	final public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	/**
+	 * Sets when messages sent to the server leave the socket: as soon as
+	 * each is written, or held back until enough bytes or enough time have
+	 * accumulated, trading latency for fewer system calls and packets. The
+	 * change only takes effect at the time of the next call to
+	 * openConnection().
+	 * 
+	 * @param policy
+	 *            the flush policy.
+	 */
+	final public void setFlushPolicy(FlushPolicy policy) {
+		if (policy == null)
+			throw new NullPointerException("policy");
+		this.flushPolicy = policy;
+	}
+
+	/**
+	 * @return the policy deciding when the stream to the server is reset.
+	 */
+	final public ResetPolicy getResetPolicy() {
+		return resetPolicy;
+	}
+
+	/**
+	 * Sets when the object stream to the server is reset: after a number of
+	 * messages, a number of bytes, or some time. A reset lets both ends forget
+	 * the objects already sent, which otherwise stay reachable for as long as
+	 * the connection lasts. Applies to the current connection as well. Has no
+	 * effect on connections that negotiated a codec.
+	 * 
+	 * @param policy
+	 *            the reset policy.
+	 */
+	final public void setResetPolicy(ResetPolicy policy) {
+		if (policy == null)
+			throw new NullPointerException("policy");
+		this.resetPolicy = policy;
+		MessageStream current = stream;
+		if (current != null)
+			current.setResetPolicy(policy);
+	}
+
+	/**
+	 * Returns the number of objects and class descriptors the stream to the
+	 * server remembers, as of the last message sent. Stays at 0 on
+	 * connections that negotiated a codec.
+	 * 
+	 * @return the handle table size.
+	 */
+	final public int getHandleTableSize() {
+		MessageStream current = stream;
+		return current == null ? 0 : current.getHandleTableSize();
+	}
+
+	/**
+	 * Enables or disables <code>TCP_NODELAY</code>, that is, disables or
+	 * enables Nagle's algorithm. The change only takes effect at the time of
+	 * the next call to openConnection().
+	 * 
+	 * @param on
+	 *            true to send small segments without delay.
+	 */
+	final public void setTcpNoDelay(boolean on) {
+		socketSettings.setTcpNoDelay(on);
+	}
+
+	/**
+	 * Sets the size requested for the socket's send buffer. The change only
+	 * takes effect at the time of the next call to openConnection().
+	 * 
+	 * @param size
+	 *            the size in bytes.
+	 */
+	final public void setSendBufferSize(int size) {
+		socketSettings.setSendBufferSize(size);
+	}
+
+	/**
+	 * Sets the size requested for the socket's receive buffer. The change
+	 * only takes effect at the time of the next call to openConnection().
+	 * 
+	 * @param size
+	 *            the size in bytes.
+	 */
+	final public void setReceiveBufferSize(int size) {
+		socketSettings.setReceiveBufferSize(size);
+	}
+
+	/**
+	 * Enables or disables <code>SO_KEEPALIVE</code>. The change only takes
+	 * effect at the time of the next call to openConnection().
+	 * 
+	 * @param on
+	 *            true to probe idle connections.
+	 */
+	final public void setKeepAlive(boolean on) {
+		socketSettings.setKeepAlive(on);
+	}
+
+	/**
+	 * Returns the metrics of this client: connections, messages and bytes in
+	 * each direction, and the time spent sending and handling messages. The
+	 * registry can be printed or exported with a
+	 * <code>MetricsExporter</code>.
+	 * 
+	 * @return the metrics registry.
+	 */
+	final public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the kind of thread that reads data from the server.
+	 */
+	final public ThreadMode getThreadMode() {
+		return threadMode;
+	}
+
 	/**
 	 * @return the host name.
 	 */
@@ -227,23 +886,44 @@ public abstract class AbstractClient implements Runnable {
 	 * <code>handleMessageFromServer()</code>. Not to be explicitly called.
 	 */
 	final public void run() {
-		connectionEstablished();
-
-		// The message from the server
-		Object msg;
+		// The exception that closed the connection, if it was lost
+		Exception lost = null;
+		MessageStream lostStream = stream;
 
 		// Loop waiting for data
 
 		try {
+			connectionEstablished();
+			resendPending();
+
+			// The message from the server
+			Object msg;
+
 			while (!readyToStop) {
 				// Get data from Server and send it to the handler
 				// The thread waits indefinitely at the following
 				// statement until something is received from the server
-				msg = input.readObject();
+				MessageStream current = stream;
+				long before = current.getBytesRead();
+				msg = current.readMessage();
+				bytesReceived.add(current.getBytesRead() - before);
+				if (!receivedSinceCheck)
+					receivedSinceCheck = true;
+				if (msg == Heartbeat.INSTANCE) {
+					heartbeatsReceived.increment();
+					continue;
+				}
+				messagesReceived.increment();
+				if (msg instanceof Envelope && ((Envelope) msg).isReply()) {
+					completeRequest((Envelope) msg);
+					continue;
+				}
 
 				// Concrete subclasses do what they want with the
 				// msg by implementing the following method
+				long start = System.nanoTime();
 				handleMessageFromServer(msg);
+				handleLatency.recordSince(start);
 			}
 		} catch (Exception exception) {
 			if (!readyToStop) {
@@ -252,10 +932,25 @@ public abstract class AbstractClient implements Runnable {
 				} catch (Exception ex) {
 				}
 
+				if (timedOut)
+					exception = new SocketTimeoutException("nothing received from the server for " + serverTimeout
+							+ " ms");
+				lost = exception;
+				if (reconnectPolicy.reconnects()) {
+					// From here on, what is sent waits for the next connection
+					synchronized (pending) {
+						reconnecting = true;
+					}
+				}
+				// Requests still kept for the next connection keep waiting
+				failRequests(lostStream, exception);
 				connectionException(exception);
 			}
 		} finally {
+			disconnects.increment();
 			clientReader = null;
+			if (lost != null && reconnecting && !readyToStop)
+				startReconnecting(lost);
 		}
 	}
 
@@ -282,13 +977,26 @@ public abstract class AbstractClient implements Runnable {
 	}
 
 	/**
-	 * Hook method called after a connection has been established. The default
-	 * implementation does nothing. It may be overridden by subclasses to do
-	 * anything they wish.
+	 * Hook method called after a connection has been established, including
+	 * each time a lost connection is reopened. The default implementation
+	 * does nothing. It may be overridden by subclasses to do anything they
+	 * wish.
 	 */
 	protected void connectionEstablished() {
 	}
 
+	/**
+	 * Hook method called when the reconnect policy gives up reopening a lost
+	 * connection. The messages sent meanwhile have been dropped. The default
+	 * implementation does nothing.
+	 * 
+	 * @param exception
+	 *            why the last attempt failed, or why the connection was lost
+	 *            if there was no attempt.
+	 */
+	protected void reconnectFailed(Exception exception) {
+	}
+
 	/**
 	 * Handles a message sent from the server to this client. This MUST be
 	 * implemented by subclasses, who should respond to messages.
@@ -300,6 +1008,237 @@ public abstract class AbstractClient implements Runnable {
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Sends the messages kept while reconnecting, on the reader thread of the
+	 * new connection. A message whose sending fails stays first in line for
+	 * the next connection.
+	 */
+	private void resendPending() throws IOException {
+		synchronized (pending) {
+			while (!pending.isEmpty()) {
+				Object msg = pending.peek();
+				MessageStream written = send(msg);
+				if (msg instanceof Envelope) {
+					Request request = requests.get(((Envelope) msg).getId());
+					if (request != null)
+						request.stream = written;
+				}
+				pending.poll();
+			}
+			reconnecting = false;
+		}
+	}
+
+	/**
+	 * Starts a thread reopening a lost connection as the policy says.
+	 */
+	private void startReconnecting(Exception lost) {
+		Thread thread = threadMode.newThread(() -> reconnect(lost), "OCSF client reconnect");
+		reconnector = thread;
+		thread.start();
+	}
+
+	/**
+	 * Waits and tries to reopen the connection until it opens, the client is
+	 * closed, or the policy gives up.
+	 */
+	private void reconnect(Exception lost) {
+		Exception last = lost;
+		try {
+			for (int attempt = 0;; attempt++) {
+				long delay = reconnectPolicy.delayMillis(attempt);
+				if (delay < 0)
+					break;
+				Thread.sleep(delay);
+
+				synchronized (connectLock) {
+					// Closed, or opened by someone else, meanwhile
+					if (!reconnecting || isConnected())
+						return;
+					reconnectAttempts.increment();
+					try {
+						openConnection();
+						return;
+					} catch (IOException ex) {
+						last = ex;
+					}
+				}
+			}
+		} catch (InterruptedException ex) {
+			return; // closed
+		} finally {
+			if (reconnector == Thread.currentThread())
+				reconnector = null;
+		}
+
+		synchronized (pending) {
+			if (!reconnecting)
+				return;
+			reconnecting = false;
+			pending.clear();
+		}
+		failRequests(null, last);
+		reconnectFailed(last);
+	}
+
+	/**
+	 * Stops reopening a lost connection and drops the messages kept
+	 * meanwhile.
+	 */
+	private void stopReconnecting() {
+		synchronized (connectLock) {
+			synchronized (pending) {
+				reconnecting = false;
+				pending.clear();
+			}
+			Thread thread = reconnector;
+			if (thread != null)
+				thread.interrupt();
+		}
+	}
+
+	/**
+	 * Completes the request a reply answers. A reply to a request no longer
+	 * waiting, because it timed out, is dropped.
+	 */
+	private void completeRequest(Envelope reply) {
+		Request request = requests.remove(reply.getId());
+		if (request == null)
+			return;
+		if (request.timeout != null)
+			request.timeout.cancel();
+		requestLatency.recordSince(request.startNanos);
+		request.future.complete(reply.getPayload());
+	}
+
+	/**
+	 * Fails a request for not being replied to in time. Runs on the timer
+	 * wheel, so the future, whose actions may block, is failed on another
+	 * thread.
+	 */
+	private void expireRequest(Request request, long millis) {
+		if (!requests.remove(request.id, request))
+			return;
+		requestTimeouts.increment();
+		TimerWheel.blockingExecutor().execute(() -> request.future.completeExceptionally(
+				new TimeoutException("no reply to request " + request.id + " in " + millis + " ms")));
+	}
+
+	private void failRequest(Request request, Exception cause) {
+		if (!requests.remove(request.id, request))
+			return;
+		if (request.timeout != null)
+			request.timeout.cancel();
+		requestsFailed.increment();
+		request.future.completeExceptionally(cause);
+	}
+
+	/**
+	 * Fails the requests written to a lost connection, or every request if
+	 * the stream is null.
+	 */
+	private void failRequests(MessageStream lostStream, Exception cause) {
+		for (Request request : requests.values()) {
+			if (lostStream == null || request.stream == lostStream)
+				failRequest(request, cause);
+		}
+	}
+
+	/**
+	 * Schedules the first heartbeat and check of the server timeout of a new
+	 * connection, if asked for.
+	 */
+	private void startTimers(MessageStream current) {
+		timedOut = false;
+		receivedSinceCheck = false;
+		sentSinceHeartbeat = false;
+		long heartbeatMillis = heartbeatInterval;
+		if (heartbeatMillis > 0)
+			heartbeatTimeout = TimerWheel.shared().schedule(() -> heartbeat(current, heartbeatMillis),
+					heartbeatMillis, TimeUnit.MILLISECONDS);
+
+		long timeoutMillis = serverTimeout;
+		if (timeoutMillis > 0) {
+			lastActiveNanos = System.nanoTime();
+			serverTimeoutCheck = TimerWheel.shared().schedule(() -> checkServer(current, timeoutMillis),
+					checkPeriod(timeoutMillis), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void cancelTimers() {
+		TimerWheel.Timeout timeout = heartbeatTimeout;
+		if (timeout != null)
+			timeout.cancel();
+		timeout = serverTimeoutCheck;
+		if (timeout != null)
+			timeout.cancel();
+	}
+
+	/**
+	 * Has a heartbeat written unless a message was sent since the last one,
+	 * then schedules the next. Runs on the timer wheel, so the write, which
+	 * may block, is handed to another thread.
+	 */
+	private void heartbeat(MessageStream current, long millis) {
+		if (stream != current)
+			return; // the connection was closed
+
+		if (!sentSinceHeartbeat && heartbeatQueued.compareAndSet(false, true)) {
+			TimerWheel.blockingExecutor().execute(() -> {
+				try {
+					synchronized (current) {
+						long before = current.getBytesWritten();
+						current.writeMessage(Heartbeat.INSTANCE);
+						bytesSent.add(current.getBytesWritten() - before);
+					}
+					heartbeatsSent.increment();
+				} catch (IOException ex) {
+					// The reader notices the loss
+				} finally {
+					heartbeatQueued.set(false);
+				}
+			});
+		}
+		sentSinceHeartbeat = false;
+		heartbeatTimeout = TimerWheel.shared().schedule(() -> heartbeat(current, millis), millis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Closes the socket if nothing arrived from the server for the timeout,
+	 * and otherwise schedules the next check. The reader then fails, and
+	 * reports the timeout as the cause.
+	 */
+	private void checkServer(MessageStream current, long millis) {
+		if (stream != current)
+			return;
+
+		long now = System.nanoTime();
+		if (receivedSinceCheck) {
+			receivedSinceCheck = false;
+			lastActiveNanos = now;
+		} else if (now - lastActiveNanos >= TimeUnit.MILLISECONDS.toNanos(millis)) {
+			Socket socket = clientSocket;
+			if (socket != null) {
+				serverTimeouts.increment();
+				timedOut = true;
+				TimerWheel.blockingExecutor().execute(() -> {
+					try {
+						socket.close();
+					} catch (IOException ex) {
+					}
+				});
+			}
+			return;
+		}
+		serverTimeoutCheck = TimerWheel.shared().schedule(() -> checkServer(current, millis), checkPeriod(millis),
+				TimeUnit.MILLISECONDS);
+	}
+
+	private static long checkPeriod(long timeoutMillis) {
+		return Math.max(timeoutMillis / 4, 1);
+	}
+
 	/**
 	 * Closes all aspects of the connection to the server.
 	 * 
@@ -307,27 +1246,49 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when closing.
 	 */
 	private void closeAll() throws IOException {
+		cancelTimers();
 		try {
 			// Close the socket
 			if (clientSocket != null)
 				clientSocket.close();
 
-			// Close the output stream
-			if (output != null)
-				output.close();
-
-			// Close the input stream
-			if (input != null)
-				input.close();
+			// Close the message stream
+			if (stream != null)
+				stream.close();
 		} finally {
 			// Set the streams and the sockets to NULL no matter what
 			// Doing so allows, but does not require, any finalizers
 			// of these objects to reclaim system resources if and
 			// when they are garbage collected.
-			output = null;
-			input = null;
+			stream = null;
 			clientSocket = null;
 		}
 	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A request waiting for its reply.
+	 */
+	private static final class Request {
+		final long						id;
+		final CompletableFuture<Object>	future		= new CompletableFuture<Object>();
+		final long						startNanos	= System.nanoTime();
+
+		/**
+		 * The timeout failing the request, or null if it waits for ever.
+		 */
+		volatile TimerWheel.Timeout		timeout;
+
+		/**
+		 * The stream the request was written to, or null while it is kept
+		 * for a connection being reopened.
+		 */
+		volatile MessageStream			stream;
+
+		Request(long id) {
+			this.id = id;
+		}
+	}
 }
 // end of AbstractClient class
\ No newline at end of file
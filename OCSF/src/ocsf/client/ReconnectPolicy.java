@@ -0,0 +1,134 @@
+package ocsf.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether, and when, a client whose connection was lost reconnects.
+ * Attempts are spaced by an exponential backoff: the wait before each one is
+ * drawn at random between zero and a cap that doubles with every failed
+ * attempt, up to a maximum. The randomness spreads the clients of a server
+ * that restarts over the whole wait, rather than having all of them
+ * reconnect at the same moment and again at every retry.
+ * <p>
+ * Policies are immutable and may be shared by any number of clients.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class ReconnectPolicy {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The cap on the first wait of the default backoff, in milliseconds.
+	 */
+	public static final long				DEFAULT_INITIAL_MILLIS	= 500;
+
+	/**
+	 * The largest cap on a wait of the default backoff, in milliseconds.
+	 */
+	public static final long				DEFAULT_MAX_MILLIS		= 30000;
+
+	/**
+	 * Never reconnects, as OCSF did before reconnect policies existed.
+	 */
+	private static final ReconnectPolicy	NEVER					= new ReconnectPolicy("never", 0, 0, -1);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final String					kind;
+	private final long						initialMillis;
+	private final long						maxMillis;
+
+	/**
+	 * The number of attempts before giving up, 0 for no limit, or -1 for
+	 * none at all.
+	 */
+	private final int						maxAttempts;
+
+	// CONSTRUCTORS *****************************************************
+
+	private ReconnectPolicy(String kind, long initialMillis, long maxMillis, int maxAttempts) {
+		this.kind = kind;
+		this.initialMillis = initialMillis;
+		this.maxMillis = maxMillis;
+		this.maxAttempts = maxAttempts;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns the policy used unless another one is chosen: a lost
+	 * connection stays closed.
+	 *
+	 * @return the policy that never reconnects.
+	 */
+	public static ReconnectPolicy never() {
+		return NEVER;
+	}
+
+	/**
+	 * Returns a policy that keeps trying, with waits capped from
+	 * {@link #DEFAULT_INITIAL_MILLIS} up to {@link #DEFAULT_MAX_MILLIS}.
+	 *
+	 * @return the default backoff.
+	 */
+	public static ReconnectPolicy defaultBackoff() {
+		return exponentialBackoff(DEFAULT_INITIAL_MILLIS, DEFAULT_MAX_MILLIS, 0);
+	}
+
+	/**
+	 * Returns a policy with jittered exponential backoff.
+	 *
+	 * @param initialMillis
+	 *            the cap on the wait before the first attempt.
+	 * @param maxMillis
+	 *            the largest cap on any wait.
+	 * @param maxAttempts
+	 *            the number of attempts before giving up, or 0 for no limit.
+	 * @return the backoff policy.
+	 */
+	public static ReconnectPolicy exponentialBackoff(long initialMillis, long maxMillis, int maxAttempts) {
+		if (initialMillis < 1)
+			throw new IllegalArgumentException("initialMillis < 1");
+		if (maxMillis < initialMillis)
+			throw new IllegalArgumentException("maxMillis < initialMillis");
+		if (maxAttempts < 0)
+			throw new IllegalArgumentException("maxAttempts < 0");
+		return new ReconnectPolicy("exponentialBackoff", initialMillis, maxMillis, maxAttempts);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return true if a lost connection is reopened at all.
+	 */
+	public boolean reconnects() {
+		return maxAttempts >= 0;
+	}
+
+	/**
+	 * Returns how long to wait before an attempt.
+	 *
+	 * @param attempt
+	 *            the number of attempts already failed since the connection
+	 *            was lost.
+	 * @return the wait in milliseconds, or -1 to give up.
+	 */
+	public long delayMillis(int attempt) {
+		if (maxAttempts < 0 || (maxAttempts > 0 && attempt >= maxAttempts))
+			return -1;
+
+		long cap = initialMillis << Math.min(attempt, 30);
+		if (cap > maxMillis || cap <= 0)
+			cap = maxMillis;
+		return ThreadLocalRandom.current().nextLong(cap + 1);
+	}
+
+	public String toString() {
+		if (maxAttempts < 0)
+			return kind;
+		return kind + "(" + initialMillis + "ms.." + maxMillis + "ms, "
+				+ (maxAttempts == 0 ? "unlimited" : maxAttempts + " attempts") + ")";
+	}
+}
+// End of ReconnectPolicy class
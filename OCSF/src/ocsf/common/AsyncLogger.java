@@ -0,0 +1,473 @@
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A logger that keeps writing out of the threads that log. Logging a record
+ * stores its level, time, template and arguments in a bounded ring buffer,
+ * without locking and without building the text; a background thread drains
+ * the buffer, formats the records and writes them in batches, flushing once
+ * per batch rather than once per record.
+ * <p>
+ * When the writer falls behind and the buffer is full, new records are
+ * dropped and counted rather than slowing down the threads that log. The
+ * counts of written and dropped records are available for monitoring.
+ * <p>
+ * Templates mark where arguments go with <code>{}</code>. Arguments are
+ * turned into text by the writer thread, after the call returns, so they
+ * should be immutable, like strings and numbers. A <code>Throwable</code>
+ * argument not used by the template has its stack trace written after the
+ * record.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class AsyncLogger implements Closeable {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of records buffered, unless told otherwise.
+	 */
+	public static final int		DEFAULT_CAPACITY	= 8192;
+
+	/**
+	 * The most records written between two flushes.
+	 */
+	private static final int	BATCH_SIZE			= 256;
+
+	/**
+	 * How long the writer sleeps at most when there is nothing to write.
+	 */
+	private static final long	IDLE_PARK_NANOS		= 100000000L;
+
+	/**
+	 * Stands for a missing argument, since null is a valid one.
+	 */
+	private static final Object	NO_ARG				= new Object();
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Where the text goes. Only used by the writer thread.
+	 */
+	private final Writer		out;
+
+	/**
+	 * Whether closing the logger closes <code>out</code>.
+	 */
+	private final boolean		ownsOutput;
+
+	private volatile LogLevel	level;
+
+	/**
+	 * The ring: slot <code>i</code> of each array holds one record. A
+	 * slot's sequence tells whose turn it is: equal to a position, the slot
+	 * is free for the producer claiming that position; one more, it holds the
+	 * record published at that position.
+	 */
+	private final int			mask;
+	private final AtomicLongArray	sequences;
+	private final long[]		times;
+	private final LogLevel[]	levels;
+	private final String[]		templates;
+	private final Object[]		firstArgs;
+	private final Object[]		secondArgs;
+
+	/**
+	 * The next position to claim, shared by the producers.
+	 */
+	private final AtomicLong	tail				= new AtomicLong();
+
+	/**
+	 * The next position to write. Only used by the writer thread.
+	 */
+	private long				head;
+
+	private final Counter		written				= new Counter();
+	private final Counter		dropped				= new Counter();
+
+	/**
+	 * Formats the record times to the second. Only used by the writer
+	 * thread, which reuses the text for every record of the same second.
+	 */
+	private final SimpleDateFormat	dateFormat		= new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+	private final Thread		writer;
+
+	/**
+	 * Closes the logger when the program exits, unless it was closed before,
+	 * which unregisters it.
+	 */
+	private final Thread		shutdownHook;
+
+	/**
+	 * Set by the writer before it parks, so that producers know to wake it.
+	 */
+	private volatile boolean	idle;
+
+	private volatile boolean	closed;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a logger and starts its writer thread.
+	 *
+	 * @param out
+	 *            where the records are written.
+	 * @param ownsOutput
+	 *            whether closing the logger closes <code>out</code>.
+	 * @param level
+	 *            the least important level written.
+	 * @param capacity
+	 *            the number of records buffered; rounded up to a power of
+	 *            two.
+	 */
+	public AsyncLogger(Writer out, boolean ownsOutput, LogLevel level, int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity < 1");
+		int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+
+		this.out = out;
+		this.ownsOutput = ownsOutput;
+		this.level = level;
+		this.mask = size - 1;
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+		this.times = new long[size];
+		this.levels = new LogLevel[size];
+		this.templates = new String[size];
+		this.firstArgs = new Object[size];
+		this.secondArgs = new Object[size];
+
+		// Loading the locale data takes long enough to fill the buffer if the
+		// writer did it while the first records pour in
+		dateFormat.format(new Date());
+
+		writer = new Thread(this::drain, "OCSF log writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		// Whatever is still buffered when the program exits gets written
+		shutdownHook = new Thread(this::close, "OCSF log shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns a logger writing to standard output, which it does not close.
+	 * The stream is the one <code>System.out</code> refers to at the time of
+	 * the call.
+	 *
+	 * @param level
+	 *            the least important level written.
+	 * @return the new logger.
+	 */
+	public static AsyncLogger toConsole(LogLevel level) {
+		return new AsyncLogger(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), false, level,
+				DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Returns a logger appending to a file.
+	 *
+	 * @param file
+	 *            the file, created if needed.
+	 * @param level
+	 *            the least important level written.
+	 * @return the new logger.
+	 * @exception IOException
+	 *                if the file cannot be opened.
+	 */
+	public static AsyncLogger toFile(File file, LogLevel level) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+				StandardCharsets.UTF_8), 64 * 1024);
+		return new AsyncLogger(out, true, level, DEFAULT_CAPACITY);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the least important level written.
+	 */
+	public LogLevel getLevel() {
+		return level;
+	}
+
+	/**
+	 * Changes the least important level written. Takes effect for the
+	 * records logged from then on.
+	 *
+	 * @param level
+	 *            the new level; <code>LogLevel.OFF</code> writes nothing.
+	 */
+	public void setLevel(LogLevel level) {
+		this.level = level;
+	}
+
+	/**
+	 * @return true if records of a level are written.
+	 */
+	public boolean isEnabled(LogLevel level) {
+		return level != LogLevel.OFF && level.compareTo(this.level) >= 0;
+	}
+
+	/**
+	 * @return the number of records written so far.
+	 */
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	/**
+	 * @return the number of records dropped because the buffer was full.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Logs a message.
+	 *
+	 * @return false if the record was dropped because the buffer was full.
+	 *         Records filtered out by level count as logged.
+	 */
+	public boolean log(LogLevel level, String message) {
+		return log(level, message, NO_ARG, NO_ARG);
+	}
+
+	/**
+	 * Logs a message with one argument.
+	 *
+	 * @return false if the record was dropped because the buffer was full.
+	 */
+	public boolean log(LogLevel level, String template, Object arg) {
+		return log(level, template, arg, NO_ARG);
+	}
+
+	/**
+	 * Logs a message with two arguments.
+	 *
+	 * @return false if the record was dropped because the buffer was full.
+	 */
+	public boolean log(LogLevel level, String template, Object arg1, Object arg2) {
+		if (!isEnabled(level))
+			return true;
+		if (closed) {
+			dropped.increment();
+			return false;
+		}
+
+		long position;
+		int slot;
+		while (true) {
+			position = tail.get();
+			slot = (int) position & mask;
+			long sequence = sequences.get(slot);
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1))
+					break;
+			} else if (sequence < position) {
+				// The writer has not freed this slot yet: the ring is full
+				dropped.increment();
+				return false;
+			}
+			// Otherwise another producer claimed it first; try the next one
+		}
+
+		times[slot] = System.currentTimeMillis();
+		levels[slot] = level;
+		templates[slot] = template;
+		firstArgs[slot] = arg1;
+		secondArgs[slot] = arg2;
+		// A full fence, so that this store cannot pass the read of idle
+		sequences.set(slot, position + 1);
+
+		if (idle)
+			LockSupport.unpark(writer);
+		return true;
+	}
+
+	public void debug(String message) {
+		log(LogLevel.DEBUG, message, NO_ARG, NO_ARG);
+	}
+
+	public void debug(String template, Object arg) {
+		log(LogLevel.DEBUG, template, arg, NO_ARG);
+	}
+
+	public void debug(String template, Object arg1, Object arg2) {
+		log(LogLevel.DEBUG, template, arg1, arg2);
+	}
+
+	public void info(String message) {
+		log(LogLevel.INFO, message, NO_ARG, NO_ARG);
+	}
+
+	public void info(String template, Object arg) {
+		log(LogLevel.INFO, template, arg, NO_ARG);
+	}
+
+	public void info(String template, Object arg1, Object arg2) {
+		log(LogLevel.INFO, template, arg1, arg2);
+	}
+
+	public void warn(String message) {
+		log(LogLevel.WARN, message, NO_ARG, NO_ARG);
+	}
+
+	public void warn(String template, Object arg) {
+		log(LogLevel.WARN, template, arg, NO_ARG);
+	}
+
+	public void warn(String template, Object arg1, Object arg2) {
+		log(LogLevel.WARN, template, arg1, arg2);
+	}
+
+	public void error(String message) {
+		log(LogLevel.ERROR, message, NO_ARG, NO_ARG);
+	}
+
+	public void error(String template, Object arg) {
+		log(LogLevel.ERROR, template, arg, NO_ARG);
+	}
+
+	public void error(String template, Object arg1, Object arg2) {
+		log(LogLevel.ERROR, template, arg1, arg2);
+	}
+
+	/**
+	 * Writes the buffered records and stops the writer thread. Records
+	 * logged afterwards are dropped. Closing twice has no effect.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(5000);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		// The hook would keep a closed logger, and its buffer, alive until
+		// the program exits
+		if (Thread.currentThread() != shutdownHook) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException ex) {
+				// Closed while the program exits; the hook runs anyway
+			}
+		}
+	}
+
+	// WRITER THREAD ****************************************************
+
+	/**
+	 * Writes batches of records until the logger is closed and emptied.
+	 */
+	private void drain() {
+		StringBuilder line = new StringBuilder(256);
+		Date date = new Date();
+		long second = Long.MIN_VALUE;
+		String secondText = null;
+
+		while (true) {
+			int batch = 0;
+			try {
+				while (batch < BATCH_SIZE) {
+					int slot = (int) head & mask;
+					if (sequences.get(slot) != head + 1)
+						break;
+
+					long time = times[slot];
+					if (Math.floorDiv(time, 1000) != second) {
+						second = Math.floorDiv(time, 1000);
+						date.setTime(second * 1000);
+						secondText = dateFormat.format(date);
+					}
+					int millis = (int) Math.floorMod(time, 1000);
+					line.setLength(0);
+					line.append(secondText).append('.');
+					line.append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10))
+							.append((char) ('0' + millis % 10)).append(' ');
+					line.append(levels[slot]).append(levels[slot].name().length() == 4 ? "  " : " ");
+					Throwable thrown = format(line, templates[slot], firstArgs[slot], secondArgs[slot]);
+					line.append(System.lineSeparator());
+
+					templates[slot] = null;
+					firstArgs[slot] = null;
+					secondArgs[slot] = null;
+					sequences.lazySet(slot, head + mask + 1);
+					head++;
+
+					out.write(line.toString());
+					if (thrown != null) {
+						StringWriter trace = new StringWriter();
+						thrown.printStackTrace(new PrintWriter(trace));
+						out.write(trace.toString());
+					}
+					written.increment();
+					batch++;
+				}
+				if (batch > 0)
+					out.flush();
+			} catch (IOException ex) {
+				// Nowhere to report it; the records are lost like dropped ones
+				dropped.increment();
+			}
+
+			if (batch == 0) {
+				if (closed && tail.get() == head)
+					break;
+				idle = true;
+				if (sequences.get((int) head & mask) != head + 1 && !closed)
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				idle = false;
+			}
+		}
+
+		try {
+			if (ownsOutput)
+				out.close();
+			else
+				out.flush();
+		} catch (IOException ex) {
+		}
+	}
+
+	/**
+	 * Appends a template with its placeholders replaced by the arguments.
+	 *
+	 * @return an argument that is a throwable not used by the template, or
+	 *         null.
+	 */
+	private static Throwable format(StringBuilder line, String template, Object arg1, Object arg2) {
+		int args = arg1 == NO_ARG ? 0 : arg2 == NO_ARG ? 1 : 2;
+		int used = 0;
+		int from = 0;
+		if (template == null)
+			template = "null";
+		while (used < args) {
+			int at = template.indexOf("{}", from);
+			if (at < 0)
+				break;
+			line.append(template, from, at).append(used == 0 ? arg1 : arg2);
+			from = at + 2;
+			used++;
+		}
+		line.append(template, from, template.length());
+
+		Object unused = used == 0 ? arg1 : used == 1 ? arg2 : null;
+		return unused instanceof Throwable ? (Throwable) unused : null;
+	}
+}
+// End of AsyncLogger class
@@ -0,0 +1,82 @@
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A compact payload format. The first byte of a payload is a tag; strings,
+ * which are what chat applications exchange, follow as plain UTF-8 bytes and
+ * are encoded and decoded without reflection. Any other serializable message
+ * falls back to Java serialization after its tag.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+final class BinaryCodec implements FrameCodec {
+	// CLASS VARIABLES **************************************************
+
+	static final int	TAG_NULL		= 0;
+	static final int	TAG_STRING		= 1;
+	static final int	TAG_REQUEST		= 2;
+	static final int	TAG_REPLY		= 3;
+	static final int	TAG_SERIALIZED	= 0x7F;
+
+	// INSTANCE METHODS *************************************************
+
+	public byte getId() {
+		return 2;
+	}
+
+	public String getName() {
+		return "binary";
+	}
+
+	public void encode(Object msg, OutputStream out) throws IOException {
+		if (msg == null) {
+			out.write(TAG_NULL);
+		} else if (msg instanceof String) {
+			out.write(TAG_STRING);
+			out.write(((String) msg).getBytes(StandardCharsets.UTF_8));
+		} else if (msg instanceof Envelope) {
+			Envelope envelope = (Envelope) msg;
+			out.write(envelope.isReply() ? TAG_REPLY : TAG_REQUEST);
+			long id = envelope.getId();
+			for (int shift = 56; shift >= 0; shift -= 8)
+				out.write((int) (id >>> shift));
+			encode(envelope.getPayload(), out);
+		} else {
+			out.write(TAG_SERIALIZED);
+			SERIALIZATION.encode(msg, out);
+		}
+	}
+
+	public Object decode(byte[] buffer, int offset, int length) throws IOException, ClassNotFoundException {
+		if (length < 1)
+			throw new StreamCorruptedException("empty payload");
+
+		switch (buffer[offset]) {
+		case TAG_NULL:
+			return null;
+		case TAG_STRING:
+			return new String(buffer, offset + 1, length - 1, StandardCharsets.UTF_8);
+		case TAG_REQUEST:
+		case TAG_REPLY:
+			if (length < 1 + 8 + 1)
+				throw new StreamCorruptedException("truncated envelope");
+			long id = 0;
+			for (int i = 1; i <= 8; i++)
+				id = id << 8 | buffer[offset + i] & 0xFF;
+			Object payload = decode(buffer, offset + 9, length - 9);
+			return buffer[offset] == TAG_REPLY ? Envelope.reply(id, payload) : Envelope.request(id, payload);
+		case TAG_SERIALIZED:
+			return SERIALIZATION.decode(buffer, offset + 1, length - 1);
+		default:
+			throw new StreamCorruptedException("unknown payload tag " + buffer[offset]);
+		}
+	}
+
+	public String toString() {
+		return getName();
+	}
+}
+// End of BinaryCodec class
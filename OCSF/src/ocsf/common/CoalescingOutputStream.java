@@ -0,0 +1,180 @@
+package ocsf.common;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers the bytes written to a socket and writes them according to a
+ * {@link FlushPolicy}. Message streams call {@link #endMessage()} after each
+ * message; the policy then decides whether the buffer is written right away,
+ * or held back so that several small messages leave in a single system call
+ * and as few packets as possible. Held back bytes are written once the
+ * policy's delay has passed, by a timeout on the shared {@link TimerWheel}.
+ * <p>
+ * Unlike <code>endMessage</code>, {@link #flush()} always writes the buffer,
+ * as the handshake requires.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class CoalescingOutputStream extends OutputStream {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The smallest buffer used, so that even the immediate policy writes each
+	 * message with one call rather than one per piece.
+	 */
+	private static final int	MIN_BUFFER_SIZE	= 8192;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The socket's stream.
+	 */
+	private final OutputStream	output;
+
+	/**
+	 * The policy deciding when bytes are written.
+	 */
+	private final FlushPolicy	policy;
+
+	/**
+	 * Bytes not yet written, from 0 to <code>count</code>.
+	 */
+	private final byte[]		buffer;
+
+	private int					count;
+
+	/**
+	 * The pending timed write, or null.
+	 */
+	private TimerWheel.Timeout	timedFlush;
+
+	/**
+	 * The failure of a timed write, reported to the next caller.
+	 */
+	private IOException			failure;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a stream over a socket's output stream.
+	 *
+	 * @param output
+	 *            the socket's output stream.
+	 * @param policy
+	 *            the policy deciding when bytes are written.
+	 */
+	public CoalescingOutputStream(OutputStream output, FlushPolicy policy) {
+		this.output = output;
+		this.policy = policy;
+		this.buffer = new byte[Math.max(MIN_BUFFER_SIZE, policy.getThreshold())];
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	public synchronized void write(int b) throws IOException {
+		checkFailure();
+		if (count == buffer.length)
+			writeBuffer();
+		buffer[count++] = (byte) b;
+	}
+
+	public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+		checkFailure();
+		if (length > buffer.length - count)
+			writeBuffer();
+
+		if (length >= buffer.length) {
+			// Too big to be worth copying
+			output.write(bytes, offset, length);
+		} else {
+			System.arraycopy(bytes, offset, buffer, count, length);
+			count += length;
+		}
+	}
+
+	/**
+	 * Marks the end of a message. Writes the buffer if the policy says so,
+	 * and otherwise makes sure it will be written once the policy's delay has
+	 * passed.
+	 *
+	 * @exception IOException
+	 *                if writing fails, now or during an earlier timed write.
+	 */
+	public synchronized void endMessage() throws IOException {
+		checkFailure();
+		if (count == 0)
+			return;
+
+		if (policy.isImmediate() || count >= policy.getThreshold()) {
+			flush();
+		} else if (timedFlush == null) {
+			// Writing may block, which the wheel's thread must not
+			timedFlush = TimerWheel.shared().schedule(
+					() -> TimerWheel.blockingExecutor().execute(this::timedFlush), policy.getMaxDelayMillis(),
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Writes every buffered byte now, whatever the policy.
+	 */
+	public synchronized void flush() throws IOException {
+		checkFailure();
+		cancelTimedFlush();
+		writeBuffer();
+		output.flush();
+	}
+
+	/**
+	 * Closes the socket's stream. Bytes still held back are discarded, since
+	 * the socket is usually closed first; call {@link #flush()} beforehand to
+	 * deliver them.
+	 */
+	public synchronized void close() throws IOException {
+		cancelTimedFlush();
+		count = 0;
+		output.close();
+	}
+
+	/**
+	 * @return the policy deciding when bytes are written.
+	 */
+	public FlushPolicy getPolicy() {
+		return policy;
+	}
+
+	private synchronized void timedFlush() {
+		timedFlush = null;
+		if (failure != null)
+			return;
+		try {
+			writeBuffer();
+			output.flush();
+		} catch (IOException exception) {
+			failure = exception;
+		}
+	}
+
+	private void writeBuffer() throws IOException {
+		if (count > 0) {
+			int length = count;
+			count = 0;
+			output.write(buffer, 0, length);
+		}
+	}
+
+	private void cancelTimedFlush() {
+		if (timedFlush != null) {
+			timedFlush.cancel();
+			timedFlush = null;
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null)
+			throw failure;
+	}
+}
+// End of CoalescingOutputStream class
@@ -0,0 +1,320 @@
+package ocsf.common;
+
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * Compresses the payloads of a framed connection with deflate, primed with a
+ * preset dictionary. Messages of one application repeat the same words, such
+ * as the prefixes a chat server puts before every line; with those words in
+ * the dictionary, even a short message refers back to them instead of
+ * spelling them out. Both ends must use the same dictionary, which the
+ * handshake checks (see {@link Handshake}).
+ * <p>
+ * Payloads smaller than the threshold are sent as they are, since
+ * compressing them costs more time than it saves bandwidth, and so are
+ * payloads that do not shrink. Every frame is compressed on its own, so a
+ * compressed frame can be written to any number of connections: a broadcast
+ * wrapped in an {@link EncodedMessage} is compressed once, however many
+ * clients receive it.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class Compression {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The payload size, in bytes, from which payloads are compressed by
+	 * default.
+	 */
+	public static final int		DEFAULT_THRESHOLD	= 128;
+
+	/**
+	 * The first byte of a payload of a compressing codec: what follows is the
+	 * payload of the wrapped codec, either as it is or deflated after its
+	 * length.
+	 */
+	static final int			PLAIN				= 0;
+	static final int			DEFLATED			= 1;
+
+	/**
+	 * The length of the header of a deflated payload: the mark and the
+	 * length of the payload once inflated.
+	 */
+	private static final int	DEFLATED_HEADER		= 5;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final int			threshold;
+
+	private final byte[]		dictionary;
+
+	/**
+	 * The Adler-32 checksum of the dictionary, compared during the handshake.
+	 */
+	private final int			dictionaryId;
+
+	private final Stats			stats;
+
+	/**
+	 * A deflater and an inflater per thread, reset before each frame: they
+	 * hold native buffers too costly to allocate per message.
+	 */
+	private final ThreadLocal<Deflater>	deflaters	= ThreadLocal.withInitial(Deflater::new);
+	private final ThreadLocal<Inflater>	inflaters	= ThreadLocal.withInitial(Inflater::new);
+
+	/**
+	 * The compressing codecs made so far, indexed by the identifier of the
+	 * codec they wrap.
+	 */
+	private final FrameCodec[]	codecs				= new FrameCodec[128];
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a compression setting.
+	 *
+	 * @param threshold
+	 *            the payload size, in bytes, from which payloads are
+	 *            compressed.
+	 * @param dictionary
+	 *            the preset dictionary, the most frequent strings last; may be
+	 *            empty.
+	 * @param stats
+	 *            where the work done is counted.
+	 */
+	public Compression(int threshold, byte[] dictionary, Stats stats) {
+		if (threshold < 0)
+			throw new IllegalArgumentException("negative threshold");
+		this.threshold = threshold;
+		this.dictionary = dictionary.clone();
+		this.stats = stats;
+
+		Adler32 checksum = new Adler32();
+		checksum.update(this.dictionary, 0, this.dictionary.length);
+		dictionaryId = (int) checksum.getValue();
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return true if the codec was made by {@link #wrap(FrameCodec)}.
+	 */
+	public static boolean isCompressing(FrameCodec codec) {
+		return codec instanceof CompressingCodec;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the payload size from which payloads are compressed.
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return the checksum identifying the dictionary.
+	 */
+	public int getDictionaryId() {
+		return dictionaryId;
+	}
+
+	/**
+	 * Returns a codec writing the payloads of another, compressed. The same
+	 * codec is returned for every call with the same argument, so frames it
+	 * encodes are shared by every connection using it.
+	 *
+	 * @param codec
+	 *            the codec negotiated for the connection.
+	 * @return the compressing codec.
+	 */
+	public synchronized FrameCodec wrap(FrameCodec codec) {
+		int id = codec.getId();
+		if (codecs[id] == null)
+			codecs[id] = new CompressingCodec(codec);
+		return codecs[id];
+	}
+
+	/**
+	 * Writes a payload, deflated if it is big enough and shrinks.
+	 */
+	private void compress(byte[] payload, int length, OutputStream out) throws IOException {
+		if (length >= threshold) {
+			long start = System.nanoTime();
+			Deflater deflater = deflaters.get();
+			deflater.reset();
+			if (dictionary.length > 0)
+				deflater.setDictionary(dictionary);
+			deflater.setInput(payload, 0, length);
+			deflater.finish();
+
+			// Only worth sending if smaller, header included
+			byte[] packed = new byte[Math.max(length - DEFLATED_HEADER, 0)];
+			int size = 0;
+			while (!deflater.finished() && size < packed.length)
+				size += deflater.deflate(packed, size, packed.length - size);
+			stats.compressTime.recordSince(start);
+
+			if (deflater.finished()) {
+				stats.compressedFrames.increment();
+				stats.bytesIn.add(length);
+				stats.bytesOut.add(DEFLATED_HEADER + size);
+				out.write(DEFLATED);
+				out.write(length >>> 24);
+				out.write(length >>> 16);
+				out.write(length >>> 8);
+				out.write(length);
+				out.write(packed, 0, size);
+				return;
+			}
+		}
+		stats.plainFrames.increment();
+		out.write(PLAIN);
+		out.write(payload, 0, length);
+	}
+
+	/**
+	 * Restores a deflated payload.
+	 */
+	private byte[] decompress(byte[] buffer, int offset, int length) throws IOException {
+		if (length < DEFLATED_HEADER)
+			throw new StreamCorruptedException("truncated compressed payload");
+		int size = ((buffer[offset + 1] & 0xFF) << 24) | ((buffer[offset + 2] & 0xFF) << 16)
+				| ((buffer[offset + 3] & 0xFF) << 8) | (buffer[offset + 4] & 0xFF);
+		Frames.checkLength(size);
+
+		long start = System.nanoTime();
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(buffer, offset + DEFLATED_HEADER, length - DEFLATED_HEADER);
+
+		byte[] payload = new byte[size];
+		int done = 0;
+		try {
+			while (done < size) {
+				int count = inflater.inflate(payload, done, size - done);
+				if (count == 0) {
+					if (!inflater.needsDictionary())
+						throw new StreamCorruptedException("truncated compressed payload");
+					inflater.setDictionary(dictionary);
+				}
+				done += count;
+			}
+		} catch (DataFormatException | IllegalArgumentException ex) {
+			// A wrong dictionary is reported as an illegal argument
+			throw new StreamCorruptedException("invalid compressed payload: " + ex.getMessage());
+		}
+		stats.decompressTime.recordSince(start);
+		return payload;
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * The metrics of compression, registered once by the server or client
+	 * that owns them and shared by every compression setting it uses.
+	 */
+	public static final class Stats {
+		final Counter			compressedFrames;
+		final Counter			plainFrames;
+		final Counter			bytesIn;
+		final Counter			bytesOut;
+		final LatencyHistogram	compressTime;
+		final LatencyHistogram	decompressTime;
+
+		/**
+		 * Registers the metrics of compression.
+		 *
+		 * @param metrics
+		 *            the registry of the owner.
+		 * @param prefix
+		 *            the start of every metric name, such as
+		 *            <code>ocsf_server</code>.
+		 */
+		public Stats(MetricsRegistry metrics, String prefix) {
+			compressedFrames = metrics.counter(prefix + "_compressed_frames_total",
+					"Frames whose payload was compressed.");
+			plainFrames = metrics.counter(prefix + "_uncompressed_frames_total",
+					"Frames of compressed connections sent as they are, being too small or not shrinking.");
+			bytesIn = metrics.counter(prefix + "_compression_input_bytes_total",
+					"Bytes of the payloads compressed, before compression.");
+			bytesOut = metrics.counter(prefix + "_compression_output_bytes_total",
+					"Bytes of the payloads compressed, after compression.");
+			metrics.gauge(prefix + "_compression_saved_percent",
+					"Share of the bytes of the payloads compressed that compression saved.", this::getSavedPercent);
+			compressTime = metrics.histogram(prefix + "_compress_seconds", "Time spent compressing a payload.");
+			decompressTime = metrics.histogram(prefix + "_decompress_seconds", "Time spent inflating a payload.");
+		}
+
+		/**
+		 * @return the share of the bytes of compressed payloads that was
+		 *         saved, in percent.
+		 */
+		public long getSavedPercent() {
+			long in = bytesIn.get();
+			return in == 0 ? 0 : 100 - bytesOut.get() * 100 / in;
+		}
+	}
+
+	/**
+	 * Wraps the payloads of a codec in the compressed format. Its identifier,
+	 * which is never sent, sets the high bit of the wrapped one, so that an
+	 * {@link EncodedMessage} keeps its frames apart from plain ones.
+	 */
+	private final class CompressingCodec implements FrameCodec {
+		private final FrameCodec	codec;
+
+		CompressingCodec(FrameCodec codec) {
+			this.codec = codec;
+		}
+
+		public byte getId() {
+			return (byte) (codec.getId() | 0x80);
+		}
+
+		public String getName() {
+			return codec.getName() + "+deflate";
+		}
+
+		public void encode(Object msg, OutputStream out) throws IOException {
+			Payload payload = new Payload();
+			codec.encode(msg, payload);
+			compress(payload.bytes(), payload.size(), out);
+		}
+
+		public Object decode(byte[] buffer, int offset, int length) throws IOException, ClassNotFoundException {
+			if (length < 1)
+				throw new StreamCorruptedException("empty payload");
+
+			switch (buffer[offset]) {
+			case PLAIN:
+				return codec.decode(buffer, offset + 1, length - 1);
+			case DEFLATED:
+				byte[] payload = decompress(buffer, offset, length);
+				return codec.decode(payload, 0, payload.length);
+			default:
+				throw new StreamCorruptedException("unknown compression mark " + buffer[offset]);
+			}
+		}
+
+		public String toString() {
+			return getName();
+		}
+	}
+
+	/**
+	 * A byte array stream whose bytes can be read without a copy.
+	 */
+	private static final class Payload extends ByteArrayOutputStream {
+		Payload() {
+			super(256);
+		}
+
+		byte[] bytes() {
+			return buf;
+		}
+	}
+}
+// End of Compression class
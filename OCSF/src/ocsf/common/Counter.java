@@ -0,0 +1,49 @@
+package ocsf.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up, such as messages or bytes sent. Cheap to update
+ * from many threads at once.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.MetricsRegistry
+ */
+public final class Counter {
+	// INSTANCE VARIABLES ***********************************************
+
+	private final LongAdder	count	= new LongAdder();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Adds one to the count.
+	 */
+	public void increment() {
+		count.increment();
+	}
+
+	/**
+	 * Adds to the count.
+	 *
+	 * @param amount
+	 *            the amount added, not negative.
+	 */
+	public void add(long amount) {
+		count.add(amount);
+	}
+
+	/**
+	 * @return the count.
+	 */
+	public long get() {
+		return count.sum();
+	}
+
+	public String toString() {
+		return Long.toString(get());
+	}
+}
+// End of Counter class
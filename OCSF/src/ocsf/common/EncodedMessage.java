@@ -0,0 +1,117 @@
+package ocsf.common;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A message that is encoded once per codec and then written as the same bytes
+ * to any number of connections using that codec. Sending an <code>EncodedMessage</code> delivers the
+ * wrapped message: the receiver reads the original object, not this wrapper.
+ * <p>
+ * <code>AbstractServer.sendToAllClients</code> wraps its argument this way,
+ * so a broadcast costs one serialization however many clients receive it. A
+ * server that sends the same message to several clients one by one can do the
+ * same by wrapping it itself.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class EncodedMessage {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Offset in a serialization frame of the first object of the stream, past
+	 * the frame length and the stream header.
+	 */
+	static final int		BODY_OFFSET	= Frames.HEADER_LENGTH + 4;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The message itself.
+	 */
+	private final Object	message;
+
+	/**
+	 * The frames encoding the message, indexed by codec identifier. A frame
+	 * is null until first needed. Replaced, never modified, when a codec is
+	 * added.
+	 */
+	private volatile Frame[]	frames	= new Frame[0];
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Wraps a message. It is encoded the first time it is written.
+	 *
+	 * @param message
+	 *            the message to send.
+	 */
+	public EncodedMessage(Object message) {
+		this.message = message;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the wrapped message.
+	 */
+	public Object getMessage() {
+		return message;
+	}
+
+	/**
+	 * Returns the message encoded as a frame for the given codec. The frame
+	 * of {@link FrameCodec#SERIALIZATION} holds a complete serialization
+	 * stream, whose objects, past the stream header, are also what an object
+	 * stream writes. The array is shared and must not be modified.
+	 *
+	 * @param codec
+	 *            the codec of the connection.
+	 * @return the frame bytes.
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	public byte[] getFrame(FrameCodec codec) throws IOException {
+		int id = codec.getId() & 0xFF;
+		Frame[] cached = frames;
+		if (id < cached.length && cached[id] != null && cached[id].codec == codec)
+			return cached[id].bytes;
+
+		byte[] frame = Frames.encodeFrame(codec, message);
+		synchronized (this) {
+			Frame[] current = frames;
+			// Two compression settings can wrap the same codec: the first
+			// keeps the slot, and the other encodes each time
+			if (id < current.length && current[id] != null)
+				return frame;
+			current = Arrays.copyOf(current, Math.max(current.length, id + 1));
+			current[id] = new Frame(codec, frame);
+			frames = current;
+		}
+		return frame;
+	}
+
+	/**
+	 * Returns a description of the wrapped message.
+	 */
+	public String toString() {
+		return String.valueOf(message);
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A frame and the codec that encoded it.
+	 */
+	private static final class Frame {
+		final FrameCodec	codec;
+		final byte[]		bytes;
+
+		Frame(FrameCodec codec, byte[] bytes) {
+			this.codec = codec;
+			this.bytes = bytes;
+		}
+	}
+}
+// End of EncodedMessage class
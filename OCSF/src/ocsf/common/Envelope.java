@@ -0,0 +1,101 @@
+package ocsf.common;
+
+import java.io.Serializable;
+
+/**
+ * A message carrying a correlation identifier: a request a client expects an
+ * answer to, or the reply that answers it. The client picks the identifier,
+ * unique among its requests still waiting, and the server copies it into the
+ * reply, so that any number of requests can be in flight on one connection
+ * and their replies can come back in any order.
+ * <p>
+ * Envelopes are unwrapped by the framework: a server receives the request's
+ * payload in <code>handleRequestFromClient</code>, and a reply completes the
+ * future returned by <code>AbstractClient.request</code> without reaching
+ * <code>handleMessageFromServer</code>.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class Envelope implements Serializable {
+	// CLASS VARIABLES **************************************************
+
+	private static final long	serialVersionUID	= 1L;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The correlation identifier.
+	 */
+	private final long			id;
+
+	/**
+	 * True for a reply, false for a request.
+	 */
+	private final boolean		reply;
+
+	/**
+	 * The message itself.
+	 */
+	private final Object		payload;
+
+	// CONSTRUCTORS *****************************************************
+
+	private Envelope(long id, boolean reply, Object payload) {
+		this.id = id;
+		this.reply = reply;
+		this.payload = payload;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @param id
+	 *            the identifier the reply will carry.
+	 * @param payload
+	 *            the message asking for a reply.
+	 * @return a request.
+	 */
+	public static Envelope request(long id, Object payload) {
+		return new Envelope(id, false, payload);
+	}
+
+	/**
+	 * @param id
+	 *            the identifier of the request answered.
+	 * @param payload
+	 *            the answer.
+	 * @return a reply.
+	 */
+	public static Envelope reply(long id, Object payload) {
+		return new Envelope(id, true, payload);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the correlation identifier.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return true for a reply, false for a request.
+	 */
+	public boolean isReply() {
+		return reply;
+	}
+
+	/**
+	 * @return the message carried.
+	 */
+	public Object getPayload() {
+		return payload;
+	}
+
+	public String toString() {
+		return (reply ? "reply " : "request ") + id + ": " + payload;
+	}
+}
+// End of Envelope class
@@ -0,0 +1,134 @@
+package ocsf.common;
+
+/**
+ * Decides when the bytes of written messages actually leave a
+ * {@link CoalescingOutputStream}. Writing every message as soon as it is
+ * complete gives the lowest latency; holding small messages back until enough
+ * bytes or enough time have accumulated sends fewer, fuller packets and costs
+ * fewer system calls, at the price of some delay.
+ * <p>
+ * Policies are immutable and may be shared by any number of connections.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class FlushPolicy {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * How long a size-triggered policy holds back bytes that never reach its
+	 * threshold, unless told otherwise.
+	 */
+	public static final long			DEFAULT_MAX_DELAY_MILLIS	= 5;
+
+	/**
+	 * How many bytes a time-window policy accumulates before writing them
+	 * without waiting for the end of the window.
+	 */
+	public static final int				WINDOW_BUFFER_SIZE			= 64 * 1024;
+
+	/**
+	 * Writes every message as soon as it is complete. The default.
+	 */
+	private static final FlushPolicy	IMMEDIATE					= new FlushPolicy("immediate", 0, 0);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final String				kind;
+	private final int					threshold;
+	private final long					maxDelayMillis;
+
+	// CONSTRUCTORS *****************************************************
+
+	private FlushPolicy(String kind, int threshold, long maxDelayMillis) {
+		this.kind = kind;
+		this.threshold = threshold;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns the policy that writes every message as soon as it is complete.
+	 *
+	 * @return the immediate policy.
+	 */
+	public static FlushPolicy immediate() {
+		return IMMEDIATE;
+	}
+
+	/**
+	 * Returns a policy that writes once the given number of bytes is waiting,
+	 * and otherwise after {@link #DEFAULT_MAX_DELAY_MILLIS}.
+	 *
+	 * @param bytes
+	 *            the number of bytes that triggers a write.
+	 * @return the size-triggered policy.
+	 */
+	public static FlushPolicy size(int bytes) {
+		return size(bytes, DEFAULT_MAX_DELAY_MILLIS);
+	}
+
+	/**
+	 * Returns a policy that writes once the given number of bytes is waiting,
+	 * and otherwise when the oldest of them has waited the given delay.
+	 *
+	 * @param bytes
+	 *            the number of bytes that triggers a write.
+	 * @param maxDelayMillis
+	 *            the longest a byte may wait, in milliseconds.
+	 * @return the size-triggered policy.
+	 */
+	public static FlushPolicy size(int bytes, long maxDelayMillis) {
+		if (bytes < 1)
+			throw new IllegalArgumentException("bytes < 1");
+		if (maxDelayMillis < 1)
+			throw new IllegalArgumentException("maxDelayMillis < 1");
+		return new FlushPolicy("size", bytes, maxDelayMillis);
+	}
+
+	/**
+	 * Returns a policy that writes everything that accumulated during a window
+	 * opened by the first byte held back. Bytes are only written earlier when
+	 * {@link #WINDOW_BUFFER_SIZE} of them are waiting.
+	 *
+	 * @param millis
+	 *            the length of the window, in milliseconds.
+	 * @return the time-window policy.
+	 */
+	public static FlushPolicy timeWindow(long millis) {
+		if (millis < 1)
+			throw new IllegalArgumentException("millis < 1");
+		return new FlushPolicy("timeWindow", WINDOW_BUFFER_SIZE, millis);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return true if every message is written as soon as it is complete.
+	 */
+	public boolean isImmediate() {
+		return threshold == 0;
+	}
+
+	/**
+	 * @return the number of waiting bytes that triggers a write, or 0 for
+	 *         the immediate policy.
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return the longest bytes are held back, in milliseconds, or 0 for the
+	 *         immediate policy.
+	 */
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+	public String toString() {
+		return isImmediate() ? kind : kind + "(" + threshold + " bytes, " + maxDelayMillis + " ms)";
+	}
+}
+// End of FlushPolicy class
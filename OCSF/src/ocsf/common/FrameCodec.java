@@ -0,0 +1,69 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * Turns messages into frame payloads and back. A codec is chosen for each
+ * connection when it opens (see {@link Handshake}); every frame on that
+ * connection is then a four byte length followed by a payload in the codec's
+ * format. Codecs keep no per-connection state, so one instance serves every
+ * connection.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public interface FrameCodec {
+	// CONSTANTS ********************************************************
+
+	/**
+	 * Java serialization of each message as a self-contained stream.
+	 */
+	FrameCodec	SERIALIZATION	= new SerializationCodec();
+
+	/**
+	 * A compact format with a fast path for strings.
+	 */
+	FrameCodec	BINARY			= new BinaryCodec();
+
+	// METHODS **********************************************************
+
+	/**
+	 * @return the identifier sent during negotiation. Between 1 and 127.
+	 */
+	byte getId();
+
+	/**
+	 * @return a readable name for the codec.
+	 */
+	String getName();
+
+	/**
+	 * Writes the payload encoding a message.
+	 *
+	 * @param msg
+	 *            the message.
+	 * @param out
+	 *            where the payload is written.
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	void encode(Object msg, OutputStream out) throws IOException;
+
+	/**
+	 * Decodes a payload.
+	 *
+	 * @param buffer
+	 *            the buffer holding the payload.
+	 * @param offset
+	 *            where the payload starts.
+	 * @param length
+	 *            the payload length.
+	 * @return the message.
+	 * @exception IOException
+	 *                if the payload is malformed.
+	 * @exception ClassNotFoundException
+	 *                if the payload names an unknown class.
+	 */
+	Object decode(byte[] buffer, int offset, int length) throws IOException, ClassNotFoundException;
+}
+// End of FrameCodec interface
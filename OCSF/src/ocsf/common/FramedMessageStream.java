@@ -0,0 +1,111 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * A message stream using the length-prefixed format of {@link Frames}, with
+ * payloads in the format of a {@link FrameCodec}. This is the format spoken by
+ * the NIO server engine, and by any connection that negotiated a codec.
+ * An empty frame is a {@link Heartbeat}.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class FramedMessageStream extends MessageStream {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Stream used to read frames. Buffered, since a frame header is read a
+	 * byte at a time.
+	 */
+	private DataInputStream	input;
+
+	/**
+	 * Stream used to write frames. Each frame is written with a single call,
+	 * then handed over as a complete message.
+	 */
+	private OutputStream	output;
+
+	/**
+	 * The codec of every payload.
+	 */
+	private FrameCodec		codec;
+
+	/**
+	 * Bytes read and written so far, frame headers included.
+	 */
+	private long			bytesRead;
+	private long			bytesWritten;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a framed stream over a connected socket's streams.
+	 *
+	 * @param codec
+	 *            the codec negotiated for the connection.
+	 * @param input
+	 *            the socket's input stream.
+	 * @param output
+	 *            the socket's output stream.
+	 */
+	public FramedMessageStream(FrameCodec codec, InputStream input, OutputStream output) {
+		this.codec = codec;
+		this.input = new DataInputStream(new BufferedInputStream(input));
+		this.output = output;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	public Object readMessage() throws IOException, ClassNotFoundException {
+		int length = input.readInt();
+		Frames.checkLength(length);
+		if (length == 0) {
+			bytesRead += Frames.HEADER_LENGTH;
+			return Heartbeat.INSTANCE;
+		}
+
+		byte[] payload = new byte[length];
+		input.readFully(payload);
+		bytesRead += Frames.HEADER_LENGTH + length;
+		return codec.decode(payload, 0, length);
+	}
+
+	public void writeMessage(Object msg) throws IOException {
+		byte[] frame;
+		if (msg == Heartbeat.INSTANCE)
+			frame = Heartbeat.FRAME;
+		else if (msg instanceof EncodedMessage)
+			frame = ((EncodedMessage) msg).getFrame(codec);
+		else
+			frame = Frames.encodeFrame(codec, msg);
+		output.write(frame);
+		bytesWritten += frame.length;
+		endMessage(output);
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public FrameCodec getCodec() {
+		return codec;
+	}
+
+	public void flush() throws IOException {
+		output.flush();
+	}
+
+	public void close() throws IOException {
+		try {
+			output.close();
+		} finally {
+			input.close();
+		}
+	}
+}
+// End of FramedMessageStream class
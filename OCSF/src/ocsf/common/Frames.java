@@ -0,0 +1,74 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * Builds and checks frames: a four byte big-endian length followed by a
+ * payload in the format of the connection's {@link FrameCodec}. Unlike the
+ * long-lived object streams of classic connections, every frame can be
+ * decoded on its own, which lets a non-blocking reader find message
+ * boundaries without dedicating a thread to each connection.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class Frames {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Number of bytes in the length prefix of a frame.
+	 */
+	public static final int	HEADER_LENGTH		= 4;
+
+	/**
+	 * The largest payload accepted. Anything bigger is treated as a corrupt
+	 * stream rather than an allocation request.
+	 */
+	public static final int	MAX_FRAME_LENGTH	= 16 * 1024 * 1024;
+
+	// CONSTRUCTORS *****************************************************
+
+	private Frames() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Encodes a message into a complete frame, length prefix included.
+	 *
+	 * @param codec
+	 *            the codec producing the payload.
+	 * @param msg
+	 *            the message to encode.
+	 * @return the frame bytes.
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	public static byte[] encodeFrame(FrameCodec codec, Object msg) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		bytes.write(new byte[HEADER_LENGTH]); // reserve room for the length
+		codec.encode(msg, bytes);
+
+		byte[] frame = bytes.toByteArray();
+		int length = frame.length - HEADER_LENGTH;
+		checkLength(length);
+		frame[0] = (byte) (length >>> 24);
+		frame[1] = (byte) (length >>> 16);
+		frame[2] = (byte) (length >>> 8);
+		frame[3] = (byte) length;
+		return frame;
+	}
+
+	/**
+	 * Checks a payload length read from (or about to be written to) a frame
+	 * header.
+	 *
+	 * @exception StreamCorruptedException
+	 *                if the length is negative or too large.
+	 */
+	public static void checkLength(int length) throws StreamCorruptedException {
+		if (length < 0 || length > MAX_FRAME_LENGTH)
+			throw new StreamCorruptedException("invalid frame length " + length);
+	}
+}
+// End of Frames class
@@ -0,0 +1,249 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * Negotiates the wire format of a connection as it opens.
+ * <p>
+ * A client that prefers framed messages starts with a hello: the magic number
+ * <code>OCSF</code>, a version byte, a flags byte, a count and the
+ * identifiers of the codecs it accepts, most preferred first. The server
+ * answers with the magic number, its version, its flags and the identifier of
+ * the first of those codecs it also supports, or 0 if there is none, in which
+ * case it closes the connection. Frames in the chosen codec follow.
+ * <p>
+ * A client that wants its frames compressed sets
+ * {@link #FLAG_COMPRESSION} in its flags and follows the codec identifiers
+ * with the identifier of its compression dictionary (see
+ * {@link Compression}). The server sets the same flag in its answer if it
+ * compresses too, with the same dictionary; frames in both directions are
+ * then in the compressed format of the chosen codec.
+ * <p>
+ * A client that sends no hello opens a classic object stream instead, whose
+ * header the server recognizes. Java serialization over a long-lived object
+ * stream thus remains the default, and older clients keep working with the
+ * classic engine.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class Handshake {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The first four bytes of a hello and of its answer: "OCSF".
+	 */
+	public static final int		MAGIC				= 0x4F435346;
+
+	/**
+	 * The version of the negotiation.
+	 */
+	public static final int		VERSION				= 1;
+
+	/**
+	 * The flag asking for, and agreeing to, compression.
+	 */
+	public static final int		FLAG_COMPRESSION	= 0x01;
+
+	/**
+	 * The length of the dictionary identifier following the codec
+	 * identifiers of a hello asking for compression.
+	 */
+	public static final int		DICTIONARY_ID_LENGTH	= 4;
+
+	/**
+	 * The length of a hello before the codec identifiers: magic, version,
+	 * flags and count.
+	 */
+	public static final int		HELLO_HEADER_LENGTH	= 7;
+
+	/**
+	 * The length of the server's answer.
+	 */
+	public static final int		REPLY_LENGTH		= 7;
+
+	/**
+	 * The first four bytes written by an <code>ObjectOutputStream</code>.
+	 */
+	public static final int		OBJECT_STREAM_MAGIC	= 0xACED0005;
+
+	// CONSTRUCTORS *****************************************************
+
+	private Handshake() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Opens the client side of a connection. With no preferred codec, a
+	 * classic object stream is opened and nothing is negotiated.
+	 *
+	 * @param input
+	 *            the socket's input stream.
+	 * @param output
+	 *            the socket's output stream.
+	 * @param preferred
+	 *            the codecs accepted, most preferred first.
+	 * @param compression
+	 *            the compression asked for, or null.
+	 * @return the stream for the connection.
+	 * @exception IOException
+	 *                if the server does not negotiate or shares no codec.
+	 */
+	public static MessageStream openClientSide(InputStream input, OutputStream output, FrameCodec[] preferred,
+			Compression compression) throws IOException {
+		if (preferred.length == 0)
+			return ObjectMessageStream.openClientSide(input, output);
+
+		output.write(hello(preferred, compression));
+		output.flush();
+
+		// Not buffered: nothing past the answer may be consumed here
+		DataInputStream answer = new DataInputStream(input);
+		if (answer.readInt() != MAGIC)
+			throw new StreamCorruptedException("server does not negotiate codecs");
+		answer.readUnsignedByte(); // version
+		int flags = answer.readUnsignedByte();
+		int id = answer.readUnsignedByte();
+
+		for (FrameCodec codec : preferred) {
+			if (codec.getId() != id)
+				continue;
+			if (compression != null && (flags & FLAG_COMPRESSION) != 0)
+				codec = compression.wrap(codec);
+			return new FramedMessageStream(codec, input, output);
+		}
+		throw new IOException("no codec in common with the server");
+	}
+
+	/**
+	 * Opens the server side of a connection, answering a hello if the client
+	 * sent one and falling back to a classic object stream otherwise.
+	 *
+	 * @param input
+	 *            the socket's input stream.
+	 * @param output
+	 *            the socket's output stream.
+	 * @param supported
+	 *            the codecs the server accepts.
+	 * @param compression
+	 *            the compression the server agrees to, or null.
+	 * @return the stream for the connection.
+	 * @exception IOException
+	 *                if the client speaks neither protocol or shares no codec.
+	 */
+	public static MessageStream openServerSide(InputStream input, OutputStream output, FrameCodec[] supported,
+			Compression compression) throws IOException {
+		PushbackInputStream pushback = new PushbackInputStream(input, 4);
+		DataInputStream hello = new DataInputStream(pushback);
+		int magic = hello.readInt();
+
+		if (magic == OBJECT_STREAM_MAGIC) {
+			pushback.unread(new byte[] { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 });
+			return ObjectMessageStream.openServerSide(pushback, output);
+		}
+		if (magic != MAGIC)
+			throw new StreamCorruptedException("unknown protocol");
+
+		hello.readUnsignedByte(); // version
+		int flags = hello.readUnsignedByte();
+		byte[] offered = new byte[hello.readUnsignedByte()];
+		hello.readFully(offered);
+		boolean compressed = (flags & FLAG_COMPRESSION) != 0 && agreesOn(compression, hello.readInt());
+
+		FrameCodec codec = chooseCodec(offered, supported);
+		output.write(reply(codec, compressed));
+		output.flush();
+		if (codec == null)
+			throw new IOException("no codec in common with the client");
+
+		return new FramedMessageStream(compressed ? compression.wrap(codec) : codec, pushback, output);
+	}
+
+	/**
+	 * Builds the hello a client sends.
+	 *
+	 * @param preferred
+	 *            the codecs accepted, most preferred first.
+	 * @param compression
+	 *            the compression asked for, or null.
+	 * @return the hello bytes.
+	 */
+	public static byte[] hello(FrameCodec[] preferred, Compression compression) {
+		int end = HELLO_HEADER_LENGTH + preferred.length;
+		byte[] hello = new byte[end + (compression == null ? 0 : DICTIONARY_ID_LENGTH)];
+		putMagic(hello);
+		hello[4] = VERSION;
+		hello[5] = (byte) (compression == null ? 0 : FLAG_COMPRESSION);
+		hello[6] = (byte) preferred.length;
+		for (int i = 0; i < preferred.length; i++)
+			hello[HELLO_HEADER_LENGTH + i] = preferred[i].getId();
+		if (compression != null) {
+			int id = compression.getDictionaryId();
+			hello[end] = (byte) (id >>> 24);
+			hello[end + 1] = (byte) (id >>> 16);
+			hello[end + 2] = (byte) (id >>> 8);
+			hello[end + 3] = (byte) id;
+		}
+		return hello;
+	}
+
+	/**
+	 * Builds the server's answer.
+	 *
+	 * @param chosen
+	 *            the chosen codec, or null if there is none.
+	 * @param compressed
+	 *            true if the server agrees to compression.
+	 * @return the answer bytes.
+	 */
+	public static byte[] reply(FrameCodec chosen, boolean compressed) {
+		byte[] reply = new byte[REPLY_LENGTH];
+		putMagic(reply);
+		reply[4] = VERSION;
+		reply[5] = (byte) (compressed ? FLAG_COMPRESSION : 0);
+		reply[6] = chosen == null ? 0 : chosen.getId();
+		return reply;
+	}
+
+	/**
+	 * Picks the first offered codec that is also supported.
+	 *
+	 * @param offered
+	 *            the identifiers offered by the client, most preferred first.
+	 * @param supported
+	 *            the codecs the server accepts.
+	 * @return the chosen codec, or null if there is none.
+	 */
+	public static FrameCodec chooseCodec(byte[] offered, FrameCodec[] supported) {
+		for (byte id : offered) {
+			for (FrameCodec codec : supported) {
+				if (codec.getId() == id)
+					return codec;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Decides whether the server agrees to compress a connection.
+	 *
+	 * @param compression
+	 *            the compression of the server, or null if it does not
+	 *            compress.
+	 * @param dictionaryId
+	 *            the identifier of the client's dictionary.
+	 * @return true if both ends compress with the same dictionary.
+	 */
+	public static boolean agreesOn(Compression compression, int dictionaryId) {
+		return compression != null && compression.getDictionaryId() == dictionaryId;
+	}
+
+	private static void putMagic(byte[] bytes) {
+		bytes[0] = (byte) (MAGIC >>> 24);
+		bytes[1] = (byte) (MAGIC >>> 16);
+		bytes[2] = (byte) (MAGIC >>> 8);
+		bytes[3] = (byte) MAGIC;
+	}
+}
+// End of Handshake class
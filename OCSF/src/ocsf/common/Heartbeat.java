@@ -0,0 +1,61 @@
+package ocsf.common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * The message that tells the other end of a connection that this end is
+ * still there while it has nothing else to say. Heartbeats are consumed by
+ * the framework: they count as activity for idle timeouts but never reach
+ * <code>handleMessageFromClient</code> or
+ * <code>handleMessageFromServer</code>.
+ * <p>
+ * On a framed connection a heartbeat is an empty frame, which no codec ever
+ * produces; on a classic object stream it is this object.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class Heartbeat implements Serializable {
+	// CLASS VARIABLES **************************************************
+
+	private static final long		serialVersionUID	= 1L;
+
+	/**
+	 * The only heartbeat.
+	 */
+	public static final Heartbeat	INSTANCE			= new Heartbeat();
+
+	/**
+	 * A heartbeat as a frame: a zero length and nothing else.
+	 */
+	static final byte[]				FRAME				= new byte[Frames.HEADER_LENGTH];
+
+	// CONSTRUCTORS *****************************************************
+
+	private Heartbeat() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return a new buffer over the frame of a heartbeat, for the NIO engine.
+	 */
+	public static ByteBuffer frame() {
+		return ByteBuffer.wrap(FRAME).asReadOnlyBuffer();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Keeps deserialization from making a second heartbeat.
+	 */
+	private Object readResolve() {
+		return INSTANCE;
+	}
+
+	public String toString() {
+		return "heartbeat";
+	}
+}
+// End of Heartbeat class
@@ -0,0 +1,126 @@
+package ocsf.common;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A histogram of durations in nanoseconds. Durations fall in buckets whose
+ * bounds are powers of two, so recording one is a few instructions and never
+ * allocates, and percentiles are known to within a factor of two.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.MetricsRegistry
+ */
+public final class LatencyHistogram {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * One bucket per bit of a long: bucket <code>i</code> holds durations
+	 * below <code>2^(i+1)</code> nanoseconds and at least <code>2^i</code>.
+	 */
+	private static final int	BUCKETS	= 64;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final AtomicLongArray	buckets	= new AtomicLongArray(BUCKETS);
+	private final LongAdder			count	= new LongAdder();
+	private final LongAdder			sum		= new LongAdder();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos
+	 *            the duration in nanoseconds; negative durations count as 0.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets.incrementAndGet(bucketOf(nanos));
+		count.increment();
+		sum.add(nanos);
+	}
+
+	/**
+	 * Records the time elapsed since a start time.
+	 *
+	 * @param startNanos
+	 *            a start time obtained from <code>System.nanoTime()</code>.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @return the number of durations recorded.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the sum of the durations recorded, in nanoseconds.
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Returns the number of durations recorded below a bound.
+	 *
+	 * @param bucket
+	 *            the bucket, from 0 to 63, whose upper bound is
+	 *            <code>2^(bucket+1)</code> nanoseconds.
+	 * @return the cumulative count.
+	 */
+	public long getCountBelow(int bucket) {
+		long below = 0;
+		for (int i = 0; i <= bucket; i++)
+			below += buckets.get(i);
+		return below;
+	}
+
+	/**
+	 * Returns an upper bound of a percentile.
+	 *
+	 * @param fraction
+	 *            the percentile as a fraction, such as 0.99.
+	 * @return a duration in nanoseconds that at least that fraction of the
+	 *         recorded durations do not exceed, or 0 if none was recorded.
+	 */
+	public long getPercentile(double fraction) {
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			total += counts[i] = buckets.get(i);
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return upperBound(i);
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return the upper bound of a bucket, in nanoseconds.
+	 */
+	static long upperBound(int bucket) {
+		return bucket >= BUCKETS - 2 ? Long.MAX_VALUE : 1L << (bucket + 1);
+	}
+
+	private static int bucketOf(long nanos) {
+		return nanos == 0 ? 0 : BUCKETS - 1 - Long.numberOfLeadingZeros(nanos);
+	}
+
+	public String toString() {
+		return "count=" + getCount() + " p50=" + getPercentile(0.5) + "ns p99=" + getPercentile(0.99) + "ns";
+	}
+}
+// End of LatencyHistogram class
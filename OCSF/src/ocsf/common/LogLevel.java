@@ -0,0 +1,37 @@
+package ocsf.common;
+
+/**
+ * The importance of a log record. An {@link AsyncLogger} writes the records
+ * at or above its level and discards the others before they reach its
+ * buffer.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public enum LogLevel {
+	/**
+	 * Details only useful when chasing a problem, such as every message.
+	 */
+	DEBUG,
+
+	/**
+	 * Normal events, such as clients connecting.
+	 */
+	INFO,
+
+	/**
+	 * Something went wrong but the program carries on.
+	 */
+	WARN,
+
+	/**
+	 * Something failed.
+	 */
+	ERROR,
+
+	/**
+	 * As a logger's level: nothing is written.
+	 */
+	OFF
+}
+// End of LogLevel enum
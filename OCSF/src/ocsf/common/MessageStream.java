@@ -0,0 +1,127 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * A bidirectional stream of messages over a connected socket. Hides the wire
+ * format from the classes that read and write messages, so that the classic
+ * object stream and the framed format used by the NIO engine can be chosen at
+ * connection time.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public abstract class MessageStream {
+
+	/**
+	 * Blocks until the next message arrives and returns it.
+	 *
+	 * @exception IOException
+	 *                if an I/O error occurs or the stream is closed.
+	 * @exception ClassNotFoundException
+	 *                if the class of a received object is unknown.
+	 */
+	public abstract Object readMessage() throws IOException, ClassNotFoundException;
+
+	/**
+	 * Writes a message to the stream. An {@link EncodedMessage} is written
+	 * from its encoded bytes, and read by the other side as the message it
+	 * wraps.
+	 *
+	 * @param msg
+	 *            the message to be sent.
+	 * @exception IOException
+	 *                if an I/O error occurs when sending.
+	 */
+	public abstract void writeMessage(Object msg) throws IOException;
+
+	/**
+	 * Returns the codec whose frames this stream writes for an
+	 * {@link EncodedMessage}.
+	 *
+	 * @return the codec.
+	 */
+	public abstract FrameCodec getCodec();
+
+	/**
+	 * Forgets every object already written, for formats that keep such state.
+	 * The default implementation does nothing.
+	 *
+	 * @exception IOException
+	 *                if an I/O error occurs when resetting.
+	 */
+	public void reset() throws IOException {
+	}
+
+	/**
+	 * Returns the number of bytes read from the socket so far. Streams that
+	 * read ahead may count bytes of a message before it is returned.
+	 *
+	 * @return the bytes read.
+	 */
+	public abstract long getBytesRead();
+
+	/**
+	 * Returns the number of bytes written so far, including those a flush
+	 * policy still holds back.
+	 *
+	 * @return the bytes written.
+	 */
+	public abstract long getBytesWritten();
+
+	/**
+	 * Sets when the stream resets itself, for formats that keep state about
+	 * the objects already written. The default implementation does nothing.
+	 *
+	 * @param policy
+	 *            the reset policy.
+	 */
+	public void setResetPolicy(ResetPolicy policy) {
+	}
+
+	/**
+	 * Returns the number of entries in the table of objects already written,
+	 * for formats that keep one. The default implementation returns 0.
+	 *
+	 * @return the handle table size.
+	 */
+	public int getHandleTableSize() {
+		return 0;
+	}
+
+	/**
+	 * Writes any message held back by the flush policy of the underlying
+	 * stream. The default implementation does nothing.
+	 *
+	 * @exception IOException
+	 *                if an I/O error occurs when writing.
+	 */
+	public void flush() throws IOException {
+	}
+
+	/**
+	 * Called by subclasses once a message is completely written. A
+	 * {@link CoalescingOutputStream} then applies its flush policy; any other
+	 * stream is flushed.
+	 *
+	 * @param output
+	 *            the stream the message was written to.
+	 * @exception IOException
+	 *                if an I/O error occurs when writing.
+	 */
+	protected static void endMessage(OutputStream output) throws IOException {
+		if (output instanceof CoalescingOutputStream)
+			((CoalescingOutputStream) output).endMessage();
+		else
+			output.flush();
+	}
+
+	/**
+	 * Closes both directions of the stream.
+	 *
+	 * @exception IOException
+	 *                if an I/O error occurs when closing.
+	 */
+	public abstract void close() throws IOException;
+}
+// End of MessageStream class
@@ -0,0 +1,103 @@
+package ocsf.common;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Serves the metrics of one or more registries over HTTP, in the Prometheus
+ * text format, at <code>/metrics</code>. The endpoint only listens on the
+ * loopback interface: a Prometheus agent on the same host, or a tunnel, is
+ * expected to scrape it.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class MetricsExporter {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The registries exported, one after the other.
+	 */
+	private final MetricsRegistry[]	registries;
+
+	/**
+	 * The HTTP server, or null when not started.
+	 */
+	private HttpServer				http;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs an exporter. Nothing is served until {@link #start(int)} is
+	 * called.
+	 *
+	 * @param registries
+	 *            the registries exported.
+	 */
+	public MetricsExporter(MetricsRegistry... registries) {
+		this.registries = registries.clone();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Starts serving the metrics. If already started, this call has no
+	 * effect.
+	 *
+	 * @param port
+	 *            the local port, or 0 for any free port.
+	 * @exception IOException
+	 *                if the port cannot be bound.
+	 */
+	public synchronized void start(int port) throws IOException {
+		if (http != null)
+			return;
+
+		http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		http.createContext("/metrics", this::handle);
+		http.start();
+	}
+
+	/**
+	 * Stops serving the metrics.
+	 */
+	public synchronized void stop() {
+		if (http != null) {
+			http.stop(0);
+			http = null;
+		}
+	}
+
+	/**
+	 * @return the port the metrics are served on, or -1 when not started.
+	 */
+	public synchronized int getPort() {
+		return http == null ? -1 : http.getAddress().getPort();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			StringWriter text = new StringWriter();
+			for (MetricsRegistry registry : registries)
+				registry.writePrometheus(text);
+
+			byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+}
+// End of MetricsExporter class
@@ -0,0 +1,175 @@
+package ocsf.common;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.LongSupplier;
+
+/**
+ * A named set of metrics: counters, gauges and latency histograms. Servers
+ * and clients each keep one, which can be printed for people with
+ * {@link #format()} or scraped by Prometheus through a
+ * {@link MetricsExporter}.
+ * <p>
+ * Metric names follow the Prometheus conventions: counters end with
+ * <code>_total</code> and histograms, whose durations are recorded in
+ * nanoseconds, are exported in seconds.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class MetricsRegistry {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The smallest and largest histogram buckets exported, from about a
+	 * microsecond to about a minute.
+	 */
+	private static final int			FIRST_EXPORTED_BUCKET	= 9;
+	private static final int			LAST_EXPORTED_BUCKET	= 35;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The metrics, in registration order.
+	 */
+	private final Map<String, Metric>	metrics					= new LinkedHashMap<String, Metric>();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Registers a counter.
+	 *
+	 * @param name
+	 *            the name, unique in this registry.
+	 * @param help
+	 *            what is counted.
+	 * @return the new counter.
+	 */
+	public Counter counter(String name, String help) {
+		Counter counter = new Counter();
+		register(new Metric(name, help, "counter", counter));
+		return counter;
+	}
+
+	/**
+	 * Registers a latency histogram.
+	 *
+	 * @param name
+	 *            the name, unique in this registry.
+	 * @param help
+	 *            what is timed.
+	 * @return the new histogram.
+	 */
+	public LatencyHistogram histogram(String name, String help) {
+		LatencyHistogram histogram = new LatencyHistogram();
+		register(new Metric(name, help, "histogram", histogram));
+		return histogram;
+	}
+
+	/**
+	 * Registers a gauge, whose value is read whenever the metrics are.
+	 *
+	 * @param name
+	 *            the name, unique in this registry.
+	 * @param help
+	 *            what is measured.
+	 * @param value
+	 *            supplies the current value.
+	 */
+	public void gauge(String name, String help, LongSupplier value) {
+		register(new Metric(name, help, "gauge", value));
+	}
+
+	/**
+	 * Writes every metric in the Prometheus text exposition format.
+	 *
+	 * @param out
+	 *            where the metrics are written.
+	 * @exception IOException
+	 *                if writing fails.
+	 */
+	public void writePrometheus(Writer out) throws IOException {
+		for (Metric metric : metrics()) {
+			out.write("# HELP " + metric.name + " " + metric.help + "\n");
+			out.write("# TYPE " + metric.name + " " + metric.type + "\n");
+
+			if (metric.value instanceof LatencyHistogram) {
+				LatencyHistogram histogram = (LatencyHistogram) metric.value;
+				for (int i = FIRST_EXPORTED_BUCKET; i <= LAST_EXPORTED_BUCKET; i++) {
+					out.write(metric.name + "_bucket{le=\"" + seconds(LatencyHistogram.upperBound(i)) + "\"} "
+							+ histogram.getCountBelow(i) + "\n");
+				}
+				out.write(metric.name + "_bucket{le=\"+Inf\"} " + histogram.getCount() + "\n");
+				out.write(metric.name + "_sum " + seconds(histogram.getSum()) + "\n");
+				out.write(metric.name + "_count " + histogram.getCount() + "\n");
+			} else {
+				out.write(metric.name + " " + valueOf(metric) + "\n");
+			}
+		}
+	}
+
+	/**
+	 * Returns every metric on a line of its own, for people to read.
+	 * Histograms show their count and percentiles.
+	 *
+	 * @return the formatted metrics.
+	 */
+	public String format() {
+		StringBuilder text = new StringBuilder();
+		for (Metric metric : metrics()) {
+			text.append(metric.name).append(' ');
+			if (metric.value instanceof LatencyHistogram) {
+				LatencyHistogram histogram = (LatencyHistogram) metric.value;
+				text.append("count=").append(histogram.getCount());
+				text.append(" p50<=").append(micros(histogram.getPercentile(0.5)));
+				text.append(" p99<=").append(micros(histogram.getPercentile(0.99)));
+				text.append(" p99.9<=").append(micros(histogram.getPercentile(0.999)));
+			} else {
+				text.append(valueOf(metric));
+			}
+			text.append('\n');
+		}
+		return text.toString();
+	}
+
+	private synchronized void register(Metric metric) {
+		if (metrics.containsKey(metric.name))
+			throw new IllegalArgumentException("duplicate metric " + metric.name);
+		metrics.put(metric.name, metric);
+	}
+
+	private synchronized List<Metric> metrics() {
+		return new ArrayList<Metric>(metrics.values());
+	}
+
+	private static long valueOf(Metric metric) {
+		if (metric.value instanceof Counter)
+			return ((Counter) metric.value).get();
+		return ((LongSupplier) metric.value).getAsLong();
+	}
+
+	private static String seconds(long nanos) {
+		return Double.toString(nanos / 1e9);
+	}
+
+	private static String micros(long nanos) {
+		return nanos == Long.MAX_VALUE ? "inf" : (nanos / 1000) + "us";
+	}
+
+	// INNER CLASSES ****************************************************
+
+	private static final class Metric {
+		final String	name;
+		final String	help;
+		final String	type;
+		final Object	value;
+
+		Metric(String name, String help, String type, Object value) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.value = value;
+		}
+	}
+}
+// End of MetricsRegistry class
@@ -0,0 +1,288 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * The classic OCSF wire format: one long-lived <code>ObjectOutputStream</code>
+ * and <code>ObjectInputStream</code> per connection. The output stream is
+ * reset according to a {@link ResetPolicy}, which also empties the handle
+ * table of the input stream at the other end.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class ObjectMessageStream extends MessageStream {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Stream used to read messages.
+	 */
+	private ObjectInputStream	input;
+
+	/**
+	 * The stream under <code>input</code>. Counts the bytes read.
+	 */
+	private ByteCountingInputStream	rawInput;
+
+	/**
+	 * Stream used to write messages.
+	 */
+	private HandleCountingOutputStream	output;
+
+	/**
+	 * The stream under <code>output</code>, where pre-encoded messages are
+	 * written directly. Counts the bytes written.
+	 */
+	private ByteCountingOutputStream	rawOutput;
+
+	/**
+	 * Decides when <code>output</code> is reset.
+	 */
+	private ResetPolicy					resetPolicy	= ResetPolicy.never();
+
+	/**
+	 * Messages written since the last reset.
+	 */
+	private long						messagesSinceReset;
+
+	/**
+	 * The <code>System.nanoTime()</code> of the last reset.
+	 */
+	private long						lastReset	= System.nanoTime();
+
+	/**
+	 * The size of the handle table after the last message, for other
+	 * threads to read.
+	 */
+	private volatile int				handleTableSize;
+
+	// CONSTRUCTORS *****************************************************
+
+	private ObjectMessageStream(ObjectInputStream input, ByteCountingInputStream rawInput,
+			HandleCountingOutputStream output, ByteCountingOutputStream rawOutput) {
+		this.input = input;
+		this.rawInput = rawInput;
+		this.output = output;
+		this.rawOutput = rawOutput;
+		rawOutput.count = 0; // the stream header is not a message
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Opens the client side of a connection: the output stream is created
+	 * first, and flushed, so that its header reaches the server before the
+	 * client waits for the server's header.
+	 *
+	 * @param input
+	 *            the socket's input stream.
+	 * @param output
+	 *            the socket's output stream.
+	 * @exception IOException
+	 *                if the stream header cannot be exchanged.
+	 */
+	public static ObjectMessageStream openClientSide(InputStream input, OutputStream output) throws IOException {
+		ByteCountingOutputStream rawOutput = new ByteCountingOutputStream(output);
+		HandleCountingOutputStream objectOutput = new HandleCountingOutputStream(rawOutput);
+		objectOutput.flush();
+		ByteCountingInputStream rawInput = new ByteCountingInputStream(input);
+		ObjectInputStream objectInput = new ObjectInputStream(rawInput);
+		return new ObjectMessageStream(objectInput, rawInput, objectOutput, rawOutput);
+	}
+
+	/**
+	 * Opens the server side of a connection: the client's header is read
+	 * before the server's is written.
+	 *
+	 * @param input
+	 *            the socket's input stream.
+	 * @param output
+	 *            the socket's output stream.
+	 * @exception IOException
+	 *                if the stream header cannot be exchanged.
+	 */
+	public static ObjectMessageStream openServerSide(InputStream input, OutputStream output) throws IOException {
+		ByteCountingInputStream rawInput = new ByteCountingInputStream(input);
+		ObjectInputStream objectInput = new ObjectInputStream(rawInput);
+		ByteCountingOutputStream rawOutput = new ByteCountingOutputStream(output);
+		HandleCountingOutputStream objectOutput = new HandleCountingOutputStream(rawOutput);
+		objectOutput.flush();
+		return new ObjectMessageStream(objectInput, rawInput, objectOutput, rawOutput);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	public Object readMessage() throws IOException, ClassNotFoundException {
+		return input.readObject();
+	}
+
+	public void writeMessage(Object msg) throws IOException {
+		if (msg instanceof EncodedMessage) {
+			writeEncoded((EncodedMessage) msg);
+		} else {
+			output.writeObject(msg);
+			if (resetPolicy.isDue(++messagesSinceReset, rawOutput.count, lastReset))
+				resetOutput();
+		}
+		handleTableSize = output.handles;
+
+		// An object stream hands over everything once an object is written
+		endMessage(rawOutput);
+	}
+
+	/**
+	 * Writes the bytes of a pre-encoded message as if it had been written by
+	 * <code>output</code>. Object streams number the objects they carry; the
+	 * encoded bytes were numbered from zero, so both sides forget the objects
+	 * already sent before, and again after, the encoded bytes. A reset leaves
+	 * nothing buffered in <code>output</code>, so the bytes land in order.
+	 */
+	private void writeEncoded(EncodedMessage msg) throws IOException {
+		byte[] frame = msg.getFrame(FrameCodec.SERIALIZATION);
+
+		resetOutput();
+		rawOutput.write(frame, EncodedMessage.BODY_OFFSET, frame.length - EncodedMessage.BODY_OFFSET);
+		resetOutput();
+	}
+
+	/**
+	 * Resets <code>output</code> and starts counting towards the next reset.
+	 */
+	private void resetOutput() throws IOException {
+		output.reset();
+		output.handles = 0;
+		messagesSinceReset = 0;
+		rawOutput.count = 0;
+		lastReset = System.nanoTime();
+	}
+
+	public FrameCodec getCodec() {
+		return FrameCodec.SERIALIZATION;
+	}
+
+	public void reset() throws IOException {
+		resetOutput();
+		handleTableSize = 0;
+		endMessage(rawOutput);
+	}
+
+	public long getBytesRead() {
+		return rawInput.total;
+	}
+
+	public long getBytesWritten() {
+		return rawOutput.total;
+	}
+
+	public void setResetPolicy(ResetPolicy policy) {
+		this.resetPolicy = policy;
+	}
+
+	/**
+	 * Returns the number of objects and class descriptors the output stream
+	 * remembers, as of the last message written.
+	 */
+	public int getHandleTableSize() {
+		return handleTableSize;
+	}
+
+	public void flush() throws IOException {
+		// Every message has already left the object stream's own buffer
+		rawOutput.flush();
+	}
+
+	public void close() throws IOException {
+		try {
+			output.close();
+		} finally {
+			input.close();
+		}
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * An object output stream that counts the entries of its handle table.
+	 * Each object it has not written before is passed to
+	 * <code>replaceObject</code>, and each new class descriptor to
+	 * <code>annotateClass</code>, once.
+	 */
+	private static final class HandleCountingOutputStream extends ObjectOutputStream {
+		int	handles;
+
+		HandleCountingOutputStream(OutputStream output) throws IOException {
+			super(output);
+			enableReplaceObject(true);
+		}
+
+		protected Object replaceObject(Object obj) {
+			handles++;
+			return obj;
+		}
+
+		protected void annotateClass(Class<?> cl) {
+			handles++;
+		}
+
+		protected void annotateProxyClass(Class<?> cl) {
+			handles++;
+		}
+	}
+
+	/**
+	 * Counts the bytes on their way to the socket, in total and since the
+	 * last reset.
+	 */
+	private static final class ByteCountingOutputStream extends FilterOutputStream {
+		long	count;
+		long	total;
+
+		ByteCountingOutputStream(OutputStream output) {
+			super(output);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+			total++;
+		}
+
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+			count += length;
+			total += length;
+		}
+	}
+
+	/**
+	 * Counts the bytes read from the socket.
+	 */
+	private static final class ByteCountingInputStream extends FilterInputStream {
+		long	total;
+
+		ByteCountingInputStream(InputStream input) {
+			super(input);
+		}
+
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0)
+				total++;
+			return b;
+		}
+
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			int n = in.read(bytes, offset, length);
+			if (n > 0)
+				total += n;
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			total += skipped;
+			return skipped;
+		}
+	}
+}
+// End of ObjectMessageStream class
@@ -0,0 +1,151 @@
+package ocsf.common;
+
+/**
+ * Decides when a connection's object stream is reset. An
+ * <code>ObjectOutputStream</code> remembers every object it has written, so
+ * that it can send a reference rather than a copy when the same object is
+ * written again, and the <code>ObjectInputStream</code> at the other end
+ * remembers every object it has read. On a long-lived connection both tables
+ * keep growing, and keep every message ever sent reachable. A reset empties
+ * both.
+ * <p>
+ * A policy resets the stream after a number of messages, a number of bytes,
+ * or a time since the last reset. The time is checked when a message is
+ * written, since the tables only grow then. Connections that negotiated a
+ * codec keep no such tables and ignore their policy.
+ * <p>
+ * Policies are immutable and may be shared by any number of connections.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class ResetPolicy {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of messages between resets of the default policy.
+	 */
+	public static final int				DEFAULT_MESSAGES	= 1000;
+
+	/**
+	 * Never resets, as OCSF did before reset policies existed.
+	 */
+	private static final ResetPolicy	NEVER				= new ResetPolicy("never", Long.MAX_VALUE,
+			Long.MAX_VALUE, Long.MAX_VALUE);
+
+	/**
+	 * Resets every {@link #DEFAULT_MESSAGES} messages.
+	 */
+	private static final ResetPolicy	DEFAULT				= afterMessages(DEFAULT_MESSAGES);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final String				kind;
+	private final long					messages;
+	private final long					bytes;
+	private final long					nanos;
+
+	// CONSTRUCTORS *****************************************************
+
+	private ResetPolicy(String kind, long messages, long bytes, long nanos) {
+		this.kind = kind;
+		this.messages = messages;
+		this.bytes = bytes;
+		this.nanos = nanos;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns the policy used unless another one is chosen: a reset every
+	 * {@link #DEFAULT_MESSAGES} messages.
+	 *
+	 * @return the default policy.
+	 */
+	public static ResetPolicy defaultPolicy() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns the policy that never resets. Only resets requested with
+	 * <code>forceResetAfterSend</code> then take place.
+	 *
+	 * @return the policy that never resets.
+	 */
+	public static ResetPolicy never() {
+		return NEVER;
+	}
+
+	/**
+	 * Returns a policy that resets after the given number of messages.
+	 *
+	 * @param messages
+	 *            the number of messages between resets.
+	 * @return the count-triggered policy.
+	 */
+	public static ResetPolicy afterMessages(int messages) {
+		if (messages < 1)
+			throw new IllegalArgumentException("messages < 1");
+		return new ResetPolicy("afterMessages", messages, Long.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Returns a policy that resets once the given number of bytes has been
+	 * written since the last reset.
+	 *
+	 * @param bytes
+	 *            the number of bytes between resets.
+	 * @return the volume-triggered policy.
+	 */
+	public static ResetPolicy afterBytes(long bytes) {
+		if (bytes < 1)
+			throw new IllegalArgumentException("bytes < 1");
+		return new ResetPolicy("afterBytes", Long.MAX_VALUE, bytes, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Returns a policy that resets on the first message written once the
+	 * given time has passed since the last reset.
+	 *
+	 * @param millis
+	 *            the time between resets, in milliseconds.
+	 * @return the time-triggered policy.
+	 */
+	public static ResetPolicy afterMillis(long millis) {
+		if (millis < 1)
+			throw new IllegalArgumentException("millis < 1");
+		return new ResetPolicy("afterMillis", Long.MAX_VALUE, Long.MAX_VALUE, millis * 1000000);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Tells whether a stream is due for a reset.
+	 *
+	 * @param messages
+	 *            the messages written since the last reset.
+	 * @param bytes
+	 *            the bytes written since the last reset.
+	 * @param lastReset
+	 *            the <code>System.nanoTime()</code> of the last reset.
+	 * @return true if the stream should be reset now.
+	 */
+	public boolean isDue(long messages, long bytes, long lastReset) {
+		return messages >= this.messages || bytes >= this.bytes
+				|| (nanos != Long.MAX_VALUE && System.nanoTime() - lastReset >= nanos);
+	}
+
+	public String toString() {
+		switch (kind) {
+		case "afterMessages":
+			return kind + "(" + messages + ")";
+		case "afterBytes":
+			return kind + "(" + bytes + ")";
+		case "afterMillis":
+			return kind + "(" + nanos / 1000000 + ")";
+		default:
+			return kind;
+		}
+	}
+}
+// End of ResetPolicy class
@@ -0,0 +1,38 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * Encodes each message as a complete Java serialization stream. Accepts any
+ * serializable message, at the price of a stream header and class descriptors
+ * in every frame.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+final class SerializationCodec implements FrameCodec {
+
+	public byte getId() {
+		return 1;
+	}
+
+	public String getName() {
+		return "serialization";
+	}
+
+	public void encode(Object msg, OutputStream out) throws IOException {
+		ObjectOutputStream output = new ObjectOutputStream(out);
+		output.writeObject(msg);
+		output.flush();
+	}
+
+	public Object decode(byte[] buffer, int offset, int length) throws IOException, ClassNotFoundException {
+		ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(buffer, offset, length));
+		return input.readObject();
+	}
+
+	public String toString() {
+		return getName();
+	}
+}
+// End of SerializationCodec class
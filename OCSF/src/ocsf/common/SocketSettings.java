@@ -0,0 +1,104 @@
+package ocsf.common;
+
+import java.net.*;
+
+/**
+ * The TCP options applied to the sockets of a client or a server. An option
+ * left unset keeps the operating system's default.
+ * <p>
+ * <code>TCP_NODELAY</code> decides whether small segments are sent at once or
+ * held back by Nagle's algorithm; with a coalescing {@link FlushPolicy} the
+ * framework already batches small messages, so disabling Nagle is then usually
+ * the right choice. Larger send and receive buffers let more data be in flight
+ * on fast links with long round trips.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class SocketSettings {
+	// INSTANCE VARIABLES ***********************************************
+
+	private volatile Boolean	tcpNoDelay;
+	private volatile Integer	sendBufferSize;
+	private volatile Integer	receiveBufferSize;
+	private volatile Boolean	keepAlive;
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @param on
+	 *            true to disable Nagle's algorithm.
+	 */
+	public void setTcpNoDelay(boolean on) {
+		tcpNoDelay = on;
+	}
+
+	/**
+	 * @param size
+	 *            the requested <code>SO_SNDBUF</code>, in bytes.
+	 */
+	public void setSendBufferSize(int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("size < 1");
+		sendBufferSize = size;
+	}
+
+	/**
+	 * @param size
+	 *            the requested <code>SO_RCVBUF</code>, in bytes.
+	 */
+	public void setReceiveBufferSize(int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("size < 1");
+		receiveBufferSize = size;
+	}
+
+	/**
+	 * @param on
+	 *            true to enable <code>SO_KEEPALIVE</code>.
+	 */
+	public void setKeepAlive(boolean on) {
+		keepAlive = on;
+	}
+
+	/**
+	 * Applies the options that are set to a socket. The receive buffer size
+	 * should be applied before the socket connects, for the operating system
+	 * to offer a large window during the TCP handshake.
+	 *
+	 * @param socket
+	 *            the socket.
+	 * @exception SocketException
+	 *                if an option cannot be set.
+	 */
+	public void applyTo(Socket socket) throws SocketException {
+		if (tcpNoDelay != null)
+			socket.setTcpNoDelay(tcpNoDelay);
+		if (sendBufferSize != null)
+			socket.setSendBufferSize(sendBufferSize);
+		if (receiveBufferSize != null)
+			socket.setReceiveBufferSize(receiveBufferSize);
+		if (keepAlive != null)
+			socket.setKeepAlive(keepAlive);
+	}
+
+	/**
+	 * Applies the receive buffer size to a server socket, which passes it on
+	 * to the sockets it accepts. Must be called before the socket is bound.
+	 *
+	 * @param socket
+	 *            the server socket.
+	 * @exception SocketException
+	 *                if the option cannot be set.
+	 */
+	public void applyTo(ServerSocket socket) throws SocketException {
+		if (receiveBufferSize != null)
+			socket.setReceiveBufferSize(receiveBufferSize);
+	}
+
+	public String toString() {
+		return "tcpNoDelay=" + tcpNoDelay + ", sendBufferSize=" + sendBufferSize + ", receiveBufferSize="
+				+ receiveBufferSize + ", keepAlive=" + keepAlive;
+	}
+}
+// End of SocketSettings class
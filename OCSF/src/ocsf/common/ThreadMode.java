@@ -0,0 +1,96 @@
+package ocsf.common;
+
+import java.lang.reflect.Method;
+
+/**
+ * Selects the kind of thread that runs a blocking read loop. Platform threads
+ * are the classic choice; virtual threads let the same blocking code serve
+ * many thousands of mostly idle connections, since a virtual thread blocked on
+ * a socket does not hold an operating system thread.
+ * <p>
+ * Virtual threads need a JDK that provides them (21 or later). The framework
+ * is compiled for older releases, so they are created reflectively; on a JDK
+ * without them, {@link #VIRTUAL} falls back to platform threads. Use
+ * {@link #isVirtualSupported()} to find out which one applies.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public enum ThreadMode {
+	/**
+	 * One operating system thread per read loop.
+	 */
+	PLATFORM,
+
+	/**
+	 * One virtual thread per read loop, when the JDK supports them.
+	 */
+	VIRTUAL;
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * <code>Thread.ofVirtual()</code>, or null when not available.
+	 */
+	private static final Method	OF_VIRTUAL;
+
+	/**
+	 * <code>Thread.Builder.name(String)</code>.
+	 */
+	private static final Method	BUILDER_NAME;
+
+	/**
+	 * <code>Thread.Builder.unstarted(Runnable)</code>.
+	 */
+	private static final Method	BUILDER_UNSTARTED;
+
+	static {
+		Method ofVirtual = null, name = null, unstarted = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+		} catch (ReflectiveOperationException ex) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = name;
+		BUILDER_UNSTARTED = unstarted;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Creates an unstarted thread of this kind. Platform threads behave as
+	 * they always have in OCSF; virtual threads are always daemons.
+	 *
+	 * @param task
+	 *            the code to run.
+	 * @param name
+	 *            the thread's name.
+	 * @return the new thread.
+	 */
+	public Thread newThread(Runnable task, String name) {
+		if (this == VIRTUAL && OF_VIRTUAL != null) {
+			try {
+				Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+			} catch (ReflectiveOperationException ex) {
+				// Fall through to a platform thread
+			}
+		}
+
+		return new Thread(task, name);
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return true if the running JDK provides virtual threads.
+	 */
+	public static boolean isVirtualSupported() {
+		return OF_VIRTUAL != null;
+	}
+}
+// End of ThreadMode enum
@@ -0,0 +1,350 @@
+package ocsf.common;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs tasks after a delay, for any number of connections, with a single
+ * thread. Timeouts are kept in a hashed wheel: a ring of buckets, one per
+ * tick, in which a timeout due several turns of the ring ahead waits with a
+ * count of the turns left. Scheduling and cancelling take constant time, and
+ * each tick visits a single bucket, so heartbeats and idle deadlines for tens
+ * of thousands of connections cost little more than for a few.
+ * <p>
+ * Timeouts fire up to one tick late. Tasks run on the wheel's thread, one at
+ * a time, and must not block; a task with blocking work to do hands it to
+ * another thread. The thread sleeps through the ticks whose buckets are
+ * empty, waking for the next one holding a timeout or for a timeout
+ * scheduled meanwhile, and when no timeout is pending it sleeps until one
+ * is scheduled. Connections whose only timeouts are heartbeats seconds
+ * apart thus cost a wakeup per heartbeat, not one per tick.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class TimerWheel {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The tick of the shared wheel, in milliseconds, small enough for the
+	 * delays of flush policies.
+	 */
+	public static final long	DEFAULT_TICK_MILLIS	= 1;
+
+	/**
+	 * The number of buckets of the shared wheel: a turn takes about four
+	 * seconds.
+	 */
+	public static final int		DEFAULT_BUCKETS		= 4096;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final long			tickNanos;
+
+	/**
+	 * The buckets, each a doubly linked list of timeouts. Only touched by the
+	 * wheel's thread.
+	 */
+	private final Timeout[]		heads;
+	private final int			mask;
+
+	/**
+	 * Timeouts scheduled or cancelled by other threads, for the wheel's
+	 * thread to file or remove on its next tick.
+	 */
+	private final Queue<Timeout>	added		= new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout>	cancelled	= new ConcurrentLinkedQueue<Timeout>();
+
+	/**
+	 * The number of timeouts neither expired nor removed.
+	 */
+	private final AtomicLong	pending		= new AtomicLong();
+
+	private final Thread		thread;
+
+	private final AtomicBoolean	started		= new AtomicBoolean();
+
+	/**
+	 * The time the wheel was made, from which ticks are counted.
+	 */
+	private final long			startNanos	= System.nanoTime();
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a wheel. Its thread, a daemon, starts with the first
+	 * timeout.
+	 *
+	 * @param name
+	 *            the name of the thread.
+	 * @param tickMillis
+	 *            the length of a tick, in milliseconds.
+	 * @param buckets
+	 *            the number of buckets, rounded up to a power of two.
+	 */
+	public TimerWheel(String name, long tickMillis, int buckets) {
+		if (tickMillis < 1)
+			throw new IllegalArgumentException("tickMillis < 1");
+		if (buckets < 1 || buckets > 1 << 20)
+			throw new IllegalArgumentException("buckets out of range");
+
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		int size = Integer.highestOneBit(buckets);
+		if (size < buckets)
+			size <<= 1;
+		heads = new Timeout[size];
+		mask = size - 1;
+
+		thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns the wheel shared by every server and client of the process,
+	 * with a tick of {@link #DEFAULT_TICK_MILLIS}.
+	 *
+	 * @return the shared wheel.
+	 */
+	public static TimerWheel shared() {
+		return Shared.INSTANCE;
+	}
+
+	/**
+	 * Returns the threads to which timeouts hand work that may block, such as
+	 * writing to a socket: a pool of daemon threads created as needed and
+	 * discarded once idle.
+	 *
+	 * @return the executor for blocking work.
+	 */
+	public static Executor blockingExecutor() {
+		return Shared.BLOCKING;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Schedules a task.
+	 *
+	 * @param task
+	 *            the task, run on the wheel's thread.
+	 * @param delay
+	 *            the delay before the task runs.
+	 * @param unit
+	 *            the unit of the delay.
+	 * @return the timeout, which can be cancelled.
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		if (started.compareAndSet(false, true))
+			thread.start();
+
+		long deadline = System.nanoTime() - startNanos + Math.max(unit.toNanos(delay), 0);
+		Timeout timeout = new Timeout(task, deadline);
+		pending.incrementAndGet();
+		added.add(timeout);
+		LockSupport.unpark(thread);
+		return timeout;
+	}
+
+	/**
+	 * @return the number of timeouts that have neither fired nor been
+	 *         removed after being cancelled.
+	 */
+	public long getPendingCount() {
+		return pending.get();
+	}
+
+	private void run() {
+		long tick = (System.nanoTime() - startNanos) / tickNanos;
+		while (true) {
+			if (pending.get() == 0) {
+				// Nothing to wait for: sleep until something is scheduled,
+				// then skip the empty ticks that went by
+				LockSupport.park(this);
+				tick = Math.max(tick, (System.nanoTime() - startNanos) / tickNanos);
+			}
+
+			removeCancelled();
+			fileAdded(tick);
+
+			// Sleep until the end of the next tick with something filed,
+			// unless a timeout is scheduled meanwhile, which may be due
+			// sooner
+			long busy = nextBusyTick(tick);
+			long deadline = (busy + 1) * tickNanos;
+			long wait;
+			while ((wait = deadline - (System.nanoTime() - startNanos)) > 0 && added.isEmpty())
+				LockSupport.parkNanos(this, wait);
+			if (wait > 0) {
+				// The buckets up to the busy one are empty, so the ticks
+				// that went by can be skipped
+				tick = Math.min(Math.max(tick, (System.nanoTime() - startNanos) / tickNanos), busy);
+				continue;
+			}
+
+			removeCancelled();
+			fileAdded(busy);
+			expire(busy, deadline);
+			tick = busy + 1;
+		}
+	}
+
+	/**
+	 * @return the first tick from the one given whose bucket holds a
+	 *         timeout, or the last of the turn if none does.
+	 */
+	private long nextBusyTick(long tick) {
+		for (long t = tick; t < tick + heads.length; t++) {
+			if (heads[(int) (t & mask)] != null)
+				return t;
+		}
+		return tick + heads.length - 1;
+	}
+
+	/**
+	 * Removes the cancelled timeouts from their buckets.
+	 */
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket >= 0)
+				unlink(timeout);
+			pending.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Files newly scheduled timeouts in their buckets. A timeout already due
+	 * goes in the current bucket.
+	 */
+	private void fileAdded(long tick) {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.state.get() != Timeout.WAITING)
+				continue; // counted when its cancellation is processed
+
+			long due = Math.max(timeout.deadline / tickNanos, tick);
+			timeout.rounds = (due - tick) / heads.length;
+			timeout.bucket = (int) (due & mask);
+
+			Timeout head = heads[timeout.bucket];
+			timeout.next = head;
+			if (head != null)
+				head.previous = timeout;
+			heads[timeout.bucket] = timeout;
+		}
+	}
+
+	/**
+	 * Runs the timeouts of the current bucket that are due, and brings the
+	 * others one turn closer.
+	 */
+	private void expire(long tick, long deadline) {
+		Timeout timeout = heads[(int) (tick & mask)];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.rounds > 0) {
+				timeout.rounds--;
+			} else if (timeout.deadline <= deadline) {
+				unlink(timeout);
+				if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+					pending.decrementAndGet();
+					try {
+						timeout.task.run();
+					} catch (Throwable exception) {
+						thread.getUncaughtExceptionHandler().uncaughtException(thread, exception);
+					}
+				}
+			}
+			timeout = next;
+		}
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.previous != null)
+			timeout.previous.next = timeout.next;
+		else
+			heads[timeout.bucket] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.previous = timeout.previous;
+		timeout.previous = timeout.next = null;
+		timeout.bucket = -1;
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A task waiting in the wheel.
+	 */
+	public final class Timeout {
+		static final int		WAITING		= 0;
+		static final int		CANCELLED	= 1;
+		static final int		EXPIRED		= 2;
+
+		final Runnable			task;
+
+		/**
+		 * When the task is due, in nanoseconds since the wheel started.
+		 */
+		final long				deadline;
+
+		final AtomicInteger		state		= new AtomicInteger(WAITING);
+
+		/**
+		 * Where the timeout is filed; only used by the wheel's thread.
+		 */
+		long					rounds;
+		int						bucket		= -1;
+		Timeout					previous;
+		Timeout					next;
+
+		Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Keeps the task from running, if it has not started yet.
+		 *
+		 * @return true if the task will not run because of this call.
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(WAITING, CANCELLED))
+				return false;
+			cancelled.add(this);
+			return true;
+		}
+
+		/**
+		 * @return true if the task was run, or is running.
+		 */
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		/**
+		 * @return true if the timeout was cancelled before it fired.
+		 */
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+	}
+
+	/**
+	 * Holds the shared wheel, created when first needed.
+	 */
+	private static final class Shared {
+		static final TimerWheel	INSTANCE	= new TimerWheel("OCSF timer wheel", DEFAULT_TICK_MILLIS,
+				DEFAULT_BUCKETS);
+
+		static final Executor	BLOCKING	= Executors.newCachedThreadPool(task -> {
+			Thread thread = new Thread(task, "OCSF timer task");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+}
+// End of TimerWheel class
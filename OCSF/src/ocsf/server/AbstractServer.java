@@ -5,9 +5,27 @@
 package ocsf.server;
 
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.io.*;
 
+import ocsf.common.Compression;
+import ocsf.common.Counter;
+import ocsf.common.EncodedMessage;
+import ocsf.common.Envelope;
+import ocsf.common.FlushPolicy;
+import ocsf.common.FrameCodec;
+import ocsf.common.LatencyHistogram;
+import ocsf.common.MetricsRegistry;
+import ocsf.common.ResetPolicy;
+import ocsf.common.SocketSettings;
+import ocsf.common.ThreadMode;
+import ocsf.common.TimerWheel;
+
 /**
 * The <code> AbstractServer </code> class maintains a thread that waits
 * for connection attempts from clients. When a connection attempt occurs
@@ -38,6 +56,8 @@ public abstract class AbstractServer implements Runnable
 
   /**
    * The server socket: listens for clients who want to connect.
+   * Opened by <code>listen</code> and closed when the server stops
+   * listening, which wakes the threads waiting in <code>accept</code>.
    */
   private ServerSocket serverSocket = null;
 
@@ -47,18 +67,37 @@ public abstract class AbstractServer implements Runnable
   private Thread connectionListener;
 
   /**
-   * The port number
+   * The number of threads accepting connections, the connection
+   * listener included. Set to 1 by default.
    */
-  private int port;
+  private int acceptorThreads = 1;
+
+  /**
+   * The first failure of a thread accepting connections, which stops
+   * them all.
+   */
+  private final AtomicReference<IOException> acceptFailure =
+    new AtomicReference<IOException>();
+
+  /**
+   * The threads that complete the handshake of accepted clients of the
+   * classic engine, so that a client slow to send its hello never
+   * holds up the next accept. Created when the server starts
+   * listening.
+   */
+  private volatile ExecutorService handshakePool;
+
+  /**
+   * How long an accepted client may take to complete the handshake
+   * before it is disconnected, in milliseconds, or 0 for ever.
+   * Set to 10 seconds by default.
+   */
+  private volatile long handshakeTimeout = 10000;
 
   /**
-   * The server timeout while for accepting connections.
-   * After timing out, the server will check to see if a command to
-   * stop the server has been issued; it not it will resume accepting
-   * connections.
-   * Set to half a second by default.
+   * The port number
    */
-  private int timeout = 500;
+  private int port;
 
   /**
    * The maximum queue length; i.e. the maximum number of clients that
@@ -68,16 +107,192 @@ public abstract class AbstractServer implements Runnable
   private int backlog = 10;
 
   /**
-   * The thread group associated with client threads. Each member of the
-   * thread group is a <code> ConnectionToClient </code>.
+   * The thread group of the threads reading from clients. Only used by
+   * the classic engine with platform threads; each reader sends its
+   * uncaught exceptions to <code>clientException</code> itself.
    */
   private ThreadGroup clientThreadGroup;
 
+  /**
+   * Every open client connection, whatever engine or kind of thread
+   * serves it. Connections add themselves when created and remove
+   * themselves when closed.
+   */
+  private final ConnectionRegistry clientConnections =
+    new ConnectionRegistry();
+
+  /**
+   * The topics clients joined, such as chat rooms. Closed connections
+   * leave their topics when they are removed from the registry.
+   */
+  private final TopicRegistry topics = new TopicRegistry();
+
+  /**
+   * The kind of thread that runs the read loop of each client with the
+   * classic engine.
+   */
+  private final ThreadMode threadMode;
+
   /**
    * Indicates if the listening thread is ready to stop.  Set to
    * false by default.
    */
-  private boolean readyToStop = false;
+  private volatile boolean readyToStop = false;
+
+  /**
+   * The number of event loop threads of the NIO engine, or 0 to
+   * use the classic engine with one thread per client.
+   * Set to 0 by default.
+   */
+  private int nioEventLoops = 0;
+
+  /**
+   * The NIO engine serving the clients, or null when the classic
+   * engine is used.
+   */
+  private NioServerEngine nioEngine;
+
+  /**
+   * The number of worker threads handling client messages.
+   * Set to the number of available processors by default.
+   */
+  private int dispatchThreads = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Indicates if all messages, whatever client sent them, are handled
+   * one at a time in arrival order under this server's monitor.
+   * Set to false by default: messages of different clients are
+   * handled in parallel.
+   */
+  private boolean globalOrdering = false;
+
+  /**
+   * Runs the handling of client messages on worker threads.
+   * Created when the server starts listening.
+   */
+  private volatile MessageDispatcher dispatcher;
+
+  /**
+   * The maximum number of messages waiting to be written to any one
+   * client. Set to 1024 by default.
+   */
+  private int outboundQueueCapacity = 1024;
+
+  /**
+   * What a connection does when its outbound queue is full.
+   * Set to disconnecting the client by default.
+   */
+  private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+
+  /**
+   * The threads that write queued messages to clients of the classic
+   * engine. A thread is only busy while a client has messages waiting.
+   */
+  private volatile ExecutorService writerPool;
+
+  /**
+   * The codecs clients may negotiate. Both built-in codecs by default.
+   */
+  private FrameCodec[] codecs =
+    { FrameCodec.BINARY, FrameCodec.SERIALIZATION };
+
+  /**
+   * The TCP options applied to every accepted socket.
+   */
+  private final SocketSettings socketSettings = new SocketSettings();
+
+  /**
+   * Decides when messages written to a client of the classic engine
+   * leave the socket. Every message is written at once by default.
+   */
+  private volatile FlushPolicy flushPolicy = FlushPolicy.immediate();
+
+  /**
+   * Decides when the object stream to each client is reset, so that
+   * neither end keeps every message ever sent reachable.
+   */
+  private volatile ResetPolicy resetPolicy = ResetPolicy.defaultPolicy();
+
+  /**
+   * The metrics of this server, covering every client.
+   */
+  private final MetricsRegistry metrics = new MetricsRegistry();
+
+  final Counter connects = metrics.counter(
+    "ocsf_server_connects_total", "Client connections opened.");
+  final Counter disconnects = metrics.counter(
+    "ocsf_server_disconnects_total", "Client connections closed.");
+  final Counter messagesReceived = metrics.counter(
+    "ocsf_server_messages_received_total", "Messages received from clients.");
+  final Counter bytesReceived = metrics.counter(
+    "ocsf_server_bytes_received_total", "Bytes received from clients.");
+  final Counter messagesSent = metrics.counter(
+    "ocsf_server_messages_sent_total", "Messages written to clients.");
+  final Counter bytesSent = metrics.counter(
+    "ocsf_server_bytes_sent_total", "Bytes written to clients.");
+  final Counter requestsReceived = metrics.counter(
+    "ocsf_server_requests_received_total",
+    "Messages received from clients that expect a reply.");
+  final Counter repliesSent = metrics.counter(
+    "ocsf_server_replies_sent_total", "Replies to requests sent to clients.");
+  final Counter heartbeatsSent = metrics.counter(
+    "ocsf_server_heartbeats_sent_total",
+    "Heartbeats written to clients to which nothing else was sent.");
+  final Counter heartbeatsReceived = metrics.counter(
+    "ocsf_server_heartbeats_received_total", "Heartbeats received from clients.");
+  final Counter idleEvictions = metrics.counter(
+    "ocsf_server_idle_evictions_total",
+    "Clients disconnected for sending nothing for the idle timeout.");
+  final Counter throttles = metrics.counter(
+    "ocsf_server_throttles_total",
+    "Times a client went over its rate limit and stopped being read.");
+  final Counter backlogPauses = metrics.counter(
+    "ocsf_server_backlog_pauses_total",
+    "Times a client had too many messages waiting to be handled and stopped being read.");
+  final Counter handshakeFailures = metrics.counter(
+    "ocsf_server_handshake_failures_total",
+    "Accepted connections closed before completing the handshake, timeouts included.");
+  final Counter handshakeTimeouts = metrics.counter(
+    "ocsf_server_handshake_timeouts_total",
+    "Accepted connections closed for not completing the handshake in time.");
+  private final AtomicInteger pendingHandshakes = new AtomicInteger();
+  final LatencyHistogram handleLatency = metrics.histogram(
+    "ocsf_server_handle_seconds", "Time spent in handleMessageFromClient.");
+  final LatencyHistogram sendLatency = metrics.histogram(
+    "ocsf_server_send_seconds",
+    "Time spent in sendToClient, encoding and queueing a message.");
+  final LatencyHistogram fanOutLatency = metrics.histogram(
+    "ocsf_server_fan_out_seconds",
+    "Time to hand a broadcast or topic message to every recipient.");
+
+  /**
+   * The work done compressing frames, whatever the compression setting.
+   */
+  private final Compression.Stats compressionStats =
+    new Compression.Stats(metrics, "ocsf_server");
+
+  /**
+   * The compression agreed to with clients that ask for it, or null
+   * if frames are never compressed, the default.
+   */
+  private volatile Compression compression;
+
+  /**
+   * How often a heartbeat goes to a client to which nothing else was
+   * sent, in milliseconds, or 0 for never, the default.
+   */
+  private volatile long heartbeatInterval;
+
+  /**
+   * How long a client may send nothing, not even a heartbeat, before
+   * it is disconnected, in milliseconds, or 0 for ever, the default.
+   */
+  private volatile long idleTimeout;
+
+  /**
+   * How much each client that connects may send. Unlimited by default.
+   */
+  private volatile RateLimit rateLimit = RateLimit.unlimited();
 
 
 // CONSTRUCTOR ******************************************************
@@ -88,20 +303,31 @@ public abstract class AbstractServer implements Runnable
    * @param port the port number on which to listen.
    */
   public AbstractServer(int port)
+  {
+    this(port, ThreadMode.PLATFORM);
+  }
+
+  /**
+   * Constructs a new server whose clients are read by the given kind
+   * of thread. With <code>ThreadMode.VIRTUAL</code>, each client's
+   * blocking read loop runs on a virtual thread, so the classic engine
+   * can hold many thousands of idle connections.
+   *
+   * @param port the port number on which to listen.
+   * @param threadMode the kind of thread that reads each client.
+   */
+  public AbstractServer(int port, ThreadMode threadMode)
   {
     this.port = port;
+    this.threadMode = threadMode;
 
-    this.clientThreadGroup =
-      new ThreadGroup("ConnectionToClient threads")
-      {
-        // All uncaught exceptions in connection threads will
-        // be sent to the clientException callback method.
-        public void uncaughtException(
-          Thread thread, Throwable exception)
-        {
-          clientException((ConnectionToClient)thread, exception);
-        }
-      };
+    metrics.gauge("ocsf_server_clients", "Clients currently connected.",
+      this::getNumberOfClients);
+    metrics.gauge("ocsf_server_handshakes_pending",
+      "Accepted connections still completing the handshake.",
+      pendingHandshakes::get);
+
+    this.clientThreadGroup = new ThreadGroup("ConnectionToClient threads");
   }
 
 
@@ -121,22 +347,73 @@ public abstract class AbstractServer implements Runnable
     {
       if (serverSocket == null)
       {
-        serverSocket = new ServerSocket(getPort(), backlog);
+        if (nioEventLoops > 0)
+        {
+          // The adaptor of a channel accepts like a plain server socket
+          // but hands out sockets backed by selectable channels
+          ServerSocketChannel channel = ServerSocketChannel.open();
+          socketSettings.applyTo(channel.socket());
+          channel.bind(new InetSocketAddress(getPort()), backlog);
+          serverSocket = channel.socket();
+
+          if (nioEngine == null)
+          {
+            nioEngine = new NioServerEngine(this, nioEventLoops);
+            nioEngine.start();
+          }
+        }
+        else
+        {
+          // Sockets backed by channels serialize reads and writes on
+          // older JDKs, so the classic engine keeps plain sockets
+          serverSocket = new ServerSocket();
+          socketSettings.applyTo(serverSocket);
+          serverSocket.bind(new InetSocketAddress(getPort()), backlog);
+        }
+      }
+
+      if (dispatcher == null)
+      {
+        dispatcher = new MessageDispatcher(
+          this, dispatchThreads, globalOrdering);
+      }
+      if (writerPool == null)
+      {
+        writerPool = Executors.newCachedThreadPool(task ->
+        {
+          Thread thread = threadMode.newThread(task, "OCSF writer");
+          thread.setDaemon(true);
+          return thread;
+        });
+      }
+
+      if (handshakePool == null)
+      {
+        handshakePool = Executors.newCachedThreadPool(task ->
+        {
+          Thread thread = threadMode.newThread(task, "OCSF handshake");
+          thread.setDaemon(true);
+          return thread;
+        });
       }
 
-      serverSocket.setSoTimeout(timeout);
       readyToStop = false;
+      acceptFailure.set(null);
       connectionListener = new Thread(this);
       connectionListener.start();
     }
   }
 
   /**
-   * Causes the server to stop accepting new connections.
+   * Causes the server to stop accepting new connections. The server
+   * socket is closed, so clients trying to connect are refused until
+   * the server listens again, and the threads waiting for connections
+   * stop at once. Clients already connected stay connected.
    */
   final public void stopListening()
   {
     readyToStop = true;
+    closeServerSocket();
   }
 
   /**
@@ -153,27 +430,52 @@ public abstract class AbstractServer implements Runnable
    */
   final synchronized public void close() throws IOException
   {
-    if (serverSocket == null)
+    if (serverSocket == null && dispatcher == null)
       return;
-      stopListening();
+    readyToStop = true;
+    ServerSocket listening = serverSocket;
+    serverSocket = null;
     try
     {
-      serverSocket.close();
+      if (listening != null)
+        listening.close();
     }
     finally
     {
+      // Handshakes that complete from now on close their connection,
+      // so none is left out of the connections closed below
+      if (handshakePool != null)
+      {
+        handshakePool.shutdown();
+        handshakePool = null;
+      }
+
       // Close the client sockets of the already connected clients
-      Thread[] clientThreadList = getClientConnections();
-      for (int i=0; i<clientThreadList.length; i++)
+      ConnectionToClient[] clientList = clientConnections.snapshot();
+      for (int i=0; i<clientList.length; i++)
       {
          try
          {
-           ((ConnectionToClient)clientThreadList[i]).close();
+           clientList[i].close();
          }
          // Ignore all exceptions when closing clients.
          catch(Exception ex) {}
       }
-      serverSocket = null;
+      if (nioEngine != null)
+      {
+        nioEngine.shutdown();
+        nioEngine = null;
+      }
+      if (dispatcher != null)
+      {
+        dispatcher.shutdown();
+        dispatcher = null;
+      }
+      if (writerPool != null)
+      {
+        writerPool.shutdown();
+        writerPool = null;
+      }
       serverClosed();
     }
   }
@@ -184,23 +486,94 @@ public abstract class AbstractServer implements Runnable
    * before actually sending messages to all clients.  This method
    * can be overriden, but if so it should still perform the general
    * function of sending to all clients, perhaps after some kind
-   * of filtering is done. Any exception thrown while
-   * sending the message to a particular client is ignored.
+   * of filtering is done. The message is only queued for each
+   * client, so a slow client does not delay the others. Clients
+   * whose queue overflows, or whose connection fails later while
+   * writing, are reported through <code>clientException</code>;
+   * clients that are already closed are skipped.
+   * The message is encoded only once per codec in use, and the same
+   * bytes are written to every client (see <code>EncodedMessage</code>).
    *
    * @param msg   Object The message to be sent
    */
   public void sendToAllClients(Object msg)
   {
-    Thread[] clientThreadList = getClientConnections();
+    EncodedMessage encoded = msg instanceof EncodedMessage ?
+      (EncodedMessage)msg : new EncodedMessage(msg);
+
+    long start = System.nanoTime();
+
+    // The registry's snapshot is shared, so this allocates nothing
+    // per client
+    ConnectionToClient[] clientList = clientConnections.snapshot();
+
+    for (int i=0; i<clientList.length; i++)
+    {
+      try
+      {
+        clientList[i].sendToClient(encoded);
+      }
+      catch (Exception ex) {}
+    }
+    fanOutLatency.recordSince(start);
+  }
+
+
+  /**
+   * Sends a message to every client that joined a topic. Only the
+   * members of the topic are visited, and the message is encoded only
+   * once per codec in use. As with <code>sendToAllClients</code>,
+   * failures are reported through <code>clientException</code>.
+   *
+   * @param topic the name of the topic.
+   * @param msg the message to be sent.
+   */
+  public void sendToTopic(String topic, Object msg)
+  {
+    ConnectionToClient[] members = topics.members(topic);
+    if (members.length == 0)
+      return;
+
+    long start = System.nanoTime();
+    EncodedMessage encoded = msg instanceof EncodedMessage ?
+      (EncodedMessage)msg : new EncodedMessage(msg);
 
-    for (int i=0; i<clientThreadList.length; i++)
+    for (int i=0; i<members.length; i++)
     {
       try
       {
-        ((ConnectionToClient)clientThreadList[i]).sendToClient(msg);
+        members[i].sendToClient(encoded);
       }
       catch (Exception ex) {}
     }
+    fanOutLatency.recordSince(start);
+  }
+
+  /**
+   * Makes a client a member of a topic, which is created if needed.
+   * A closed client joins nothing.
+   *
+   * @param client the client.
+   * @param topic the name of the topic.
+   * @return true if the client joined, false if it was already a
+   * member or is closed.
+   */
+  final public boolean joinTopic(ConnectionToClient client, String topic)
+  {
+    return topics.join(client, topic);
+  }
+
+  /**
+   * Removes a client from a topic. A topic disappears when its last
+   * member leaves.
+   *
+   * @param client the client.
+   * @param topic the name of the topic.
+   * @return true if the client was a member.
+   */
+  final public boolean leaveTopic(ConnectionToClient client, String topic)
+  {
+    return topics.leave(client, topic);
   }
 
 
@@ -224,191 +597,744 @@ public abstract class AbstractServer implements Runnable
    * Remember that after this array is obtained, some clients
    * in this migth disconnect. New clients can also connect,
    * these later will not appear in the array.
+   * The array is a copy the caller may keep; <code>forEachClient</code>
+   * visits the clients without allocating one.
    *
-   * @return an array of <code>Thread</code> containing
-   * <code>ConnectionToClient</code> instances.
+   * @return an array of the <code>ConnectionToClient</code> instances.
    */
-  synchronized final public Thread[] getClientConnections()
+  final public ConnectionToClient[] getClientConnections()
   {
-    Thread[] clientThreadList = new
-      Thread[clientThreadGroup.activeCount()];
-
-    clientThreadGroup.enumerate(clientThreadList);
-
-    return clientThreadList;
+    return clientConnections.snapshot().clone();
   }
 
   /**
-   * Counts the number of clients currently connected.
+   * Performs an action for each client connected when the call
+   * starts. Clients that connect meanwhile are not visited; clients
+   * that disconnect meanwhile may still be. Nothing is allocated
+   * unless clients connected or disconnected since the last visit.
    *
-   * @return the number of clients currently connected.
+   * @param action the action performed for each client.
    */
-  final public int getNumberOfClients()
+  final public void forEachClient(Consumer<? super ConnectionToClient> action)
   {
-    return clientThreadGroup.activeCount();
+    ConnectionToClient[] clientList = clientConnections.snapshot();
+    for (int i=0; i<clientList.length; i++)
+      action.accept(clientList[i]);
   }
 
   /**
-   * Returns the port number.
+   * Indexes the information of the given type that clients save with
+   * <code>ConnectionToClient.setInfo</code>, so that
+   * <code>findClient</code> finds a client by it without looking at
+   * every client. Each value should identify a single client, as a
+   * login ID does; if several clients save the same value, the one
+   * that saved it last is found.
    *
-   * @return the port number.
+   * @param infoType the type of information to index.
    */
-  final public int getPort()
+  final public void indexClientInfo(String infoType)
   {
-    return port;
+    clientConnections.index(infoType);
   }
 
   /**
-   * Sets the port number for the next connection.
-   * The server must be closed and restarted for the port
-   * change to be in effect.
+   * Finds the connected client that saved the given information.
+   * Takes constant time for types indexed with
+   * <code>indexClientInfo</code>, and a search through every client
+   * for other types.
    *
-   * @param port the port number.
+   * @param infoType the type of information.
+   * @param info the value saved by the client.
+   * @return the client, or null if no connected client saved it.
    */
-  final public void setPort(int port)
+  final public ConnectionToClient findClient(String infoType, Object info)
   {
-    this.port = port;
+    return clientConnections.find(infoType, info);
   }
 
   /**
-   * Sets the timeout time when accepting connections.
-   * The default is half a second. This means that stopping the
-   * server may take up to timeout duration to actually stop.
-   * The server must be stopped and restarted for the timeout
-   * change to be effective.
+   * Returns the clients that joined a topic.
    *
-   * @param timeout the timeout time in ms.
+   * @param topic the name of the topic.
+   * @return a copy of the members, possibly empty.
    */
-  final public void setTimeout(int timeout)
+  final public ConnectionToClient[] getTopicMembers(String topic)
   {
-    this.timeout = timeout;
+    return topics.members(topic).clone();
   }
 
   /**
-   * Sets the maximum number of waiting connections accepted by the
-   * operating system. The default is 20.
-   * The server must be closed and restarted for the backlog
-   * change to be in effect.
+   * Returns the names of the topics that have at least one member.
    *
-   * @param backlog the maximum number of connections.
+   * @return a read-only view of the topic names.
    */
-  final public void setBacklog(int backlog)
+  final public Set<String> getTopics()
   {
-    this.backlog = backlog;
+    return topics.names();
   }
 
-// RUN METHOD -------------------------------------------------------
-
   /**
-   * Runs the listening thread that allows clients to connect.
-   * Not to be called.
+   * Counts the number of clients currently connected.
+   *
+   * @return the number of clients currently connected.
    */
-  final public void run()
+  final public int getNumberOfClients()
   {
-    // call the hook method to notify that the server is starting
-    serverStarted();
-
-    try
-    {
-      // Repeatedly waits for a new client connection, accepts it, and
-      // starts a new thread to handle data exchange.
-      while(!readyToStop)
-      {
-        try
-        {
-          // Wait here for new connection attempts, or a timeout
-          Socket clientSocket = serverSocket.accept();
-
-          // When a client is accepted, create a thread to handle
-          // the data exchange, then add it to thread group
-
-          synchronized(this)
-          {
-            ConnectionToClient c = new ConnectionToClient(
-              this.clientThreadGroup, clientSocket, this);
-          }
-        }
-        catch (InterruptedIOException exception)
-        {
-          // This will be thrown when a timeout occurs.
-          // The server will continue to listen if not ready to stop.
-        }
-      }
-
-      // call the hook method to notify that the server has stopped
-      serverStopped();
-    }
-    catch (IOException exception)
-    {
-      if (!readyToStop)
-      {
-        // Closing the socket must have thrown a SocketException
-        listeningException(exception);
-      }
-      else
-      {
-        serverStopped();
-      }
-    }
-    finally
-    {
-      readyToStop = true;
-      connectionListener = null;
-    }
+    return clientConnections.size();
   }
 
-
-// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
-
   /**
-   * Hook method called each time a new client connection is
-   * accepted. The default implementation does nothing.
-   * @param client the connection connected to the client.
+   * Sets the number of worker threads that handle client messages.
+   * The server must be closed and restarted for the change to be
+   * in effect.
+   *
+   * @param threads the number of worker threads.
    */
-  protected void clientConnected(ConnectionToClient client) {}
+  final public void setDispatchThreads(int threads)
+  {
+    if (threads < 1)
+      throw new IllegalArgumentException("threads < 1");
+    this.dispatchThreads = threads;
+  }
 
   /**
-   * Hook method called each time a client disconnects.
-   * The default implementation does nothing. The method
-   * may be overridden by subclasses but should remains synchronized.
+   * Selects how client messages are ordered. By default, the messages
+   * of each client are handled in the order they were sent, but
+   * messages of different clients are handled in parallel. With
+   * global ordering, every message is handled one at a time, in
+   * arrival order, while holding this server's monitor, so handlers
+   * also exclude the synchronized hook methods.
+   * The server must be closed and restarted for the change to be
+   * in effect.
    *
-   * @param client the connection with the client.
+   * @param globalOrdering true for strict global ordering.
    */
-  synchronized protected void clientDisconnected(
-    ConnectionToClient client) {}
+  final public void setGlobalOrdering(boolean globalOrdering)
+  {
+    this.globalOrdering = globalOrdering;
+  }
 
   /**
-   * Hook method called each time an exception is thrown in a
-   * ConnectionToClient thread.
-   * The method may be overridden by subclasses but should remains
-   * synchronized.
+   * Sets the codecs that clients may negotiate when they connect.
+   * A client that offers none of them is disconnected. Clients that
+   * do not negotiate use a classic object stream, which the classic
+   * engine always accepts and the NIO engine never does.
+   * Only affects clients that connect afterwards.
    *
-   * @param client the client that raised the exception.
-   * @param Throwable the exception thrown.
+   * @param codecs the accepted codecs.
    */
-  synchronized protected void clientException(
-    ConnectionToClient client, Throwable exception) {}
+  final public void setCodecs(FrameCodec... codecs)
+  {
+    this.codecs = codecs.clone();
+  }
 
   /**
-   * Hook method called when the server stops accepting
-   * connections because an exception has been raised.
-   * The default implementation does nothing.
-   * This method may be overriden by subclasses.
+   * Agrees to compress the frames of clients that ask for it with the
+   * same dictionary (see <code>AbstractClient.setCompression</code>).
+   * Payloads of at least <code>threshold</code> bytes are deflated,
+   * primed with the dictionary, which should hold the strings the
+   * server's messages repeat most, most frequent last. A message sent
+   * to many clients, by <code>sendToAllClients</code> or to a topic, is
+   * compressed once for all of them.
+   * Only affects clients that connect afterwards.
    *
-   * @param exception the exception raised.
+   * @param threshold the payload size from which payloads are compressed.
+   * @param dictionary the preset dictionary, possibly empty.
    */
-  protected void listeningException(Throwable exception) {}
+  final public void setCompression(int threshold, byte[] dictionary)
+  {
+    compression = new Compression(threshold, dictionary, compressionStats);
+  }
 
   /**
-   * Hook method called when the server starts listening for
-   * connections.  The default implementation does nothing.
-   * The method may be overridden by subclasses.
+   * Stops compressing the frames of clients that connect afterwards.
    */
-  protected void serverStarted() {}
+  final public void disableCompression()
+  {
+    compression = null;
+  }
 
   /**
-   * Hook method called when the server stops accepting
-   * connections.  The default implementation
+   * Has a heartbeat, an empty message that never reaches
+   * <code>handleMessageFromServer</code>, sent to every client to which
+   * nothing else was sent for the interval. Clients use heartbeats to
+   * tell a quiet server from a dead one; routers and firewalls also
+   * keep the connection open. Only affects clients that connect
+   * afterwards.
+   *
+   * @param millis the interval in milliseconds, or 0 to send none.
+   */
+  final public void setHeartbeatInterval(long millis)
+  {
+    if (millis < 0)
+      throw new IllegalArgumentException("negative interval");
+    heartbeatInterval = millis;
+  }
+
+  /**
+   * Has clients that send nothing, neither messages nor heartbeats,
+   * for the timeout disconnected, with a
+   * <code>SocketTimeoutException</code> passed to
+   * <code>clientException</code>. This reclaims the connections of
+   * clients that vanished without closing them, which would otherwise
+   * be kept for ever. Set the timeout to a few times the heartbeat
+   * interval of the clients. Clients are checked every quarter of the
+   * timeout, so they are disconnected up to a quarter late. Only
+   * affects clients that connect afterwards.
+   *
+   * @param millis the timeout in milliseconds, or 0 to keep idle
+   *   clients.
+   */
+  final public void setIdleTimeout(long millis)
+  {
+    if (millis < 0)
+      throw new IllegalArgumentException("negative timeout");
+    idleTimeout = millis;
+  }
+
+  /**
+   * Sets how many messages and bytes per second each client may send.
+   * A client over its budget is not disconnected: its socket is not
+   * read until the budget allows, so that TCP slows the client down
+   * instead of the server queuing work for it, and the
+   * <code>clientThrottled</code> hook is called. Only affects clients
+   * that connect afterwards; see also
+   * <code>ConnectionToClient.setRateLimit</code>.
+   *
+   * @param limit the rate limit of each client.
+   */
+  final public void setRateLimit(RateLimit limit)
+  {
+    if (limit == null)
+      throw new NullPointerException("limit");
+    this.rateLimit = limit;
+  }
+
+  /**
+   * Sets when messages written to a client leave the socket: as soon
+   * as each is written, or held back until enough bytes or enough
+   * time have accumulated, trading latency for fewer system calls and
+   * packets. Only affects clients of the classic engine that connect
+   * afterwards; the NIO engine always writes everything queued for a
+   * client with one gathering write as soon as its event loop can.
+   *
+   * @param policy the flush policy.
+   */
+  final public void setFlushPolicy(FlushPolicy policy)
+  {
+    if (policy == null)
+      throw new NullPointerException("policy");
+    this.flushPolicy = policy;
+  }
+
+  /**
+   * Sets when the object stream to each client is reset: after a
+   * number of messages, a number of bytes, or some time. A reset lets
+   * both ends forget the objects already sent, which otherwise stay
+   * reachable for as long as the connection lasts. Only affects
+   * clients that connect afterwards, and only those using a classic
+   * object stream.
+   *
+   * @param policy the reset policy.
+   */
+  final public void setResetPolicy(ResetPolicy policy)
+  {
+    if (policy == null)
+      throw new NullPointerException("policy");
+    this.resetPolicy = policy;
+  }
+
+  /**
+   * Enables or disables <code>TCP_NODELAY</code> on accepted sockets,
+   * that is, disables or enables Nagle's algorithm. Only affects
+   * clients that connect afterwards.
+   *
+   * @param on true to send small segments without delay.
+   */
+  final public void setTcpNoDelay(boolean on)
+  {
+    socketSettings.setTcpNoDelay(on);
+  }
+
+  /**
+   * Sets the size requested for the send buffer of accepted sockets.
+   * Only affects clients that connect afterwards.
+   *
+   * @param size the size in bytes.
+   */
+  final public void setSendBufferSize(int size)
+  {
+    socketSettings.setSendBufferSize(size);
+  }
+
+  /**
+   * Sets the size requested for the receive buffer of accepted
+   * sockets. Sizes above 64 KB need the server to be closed and
+   * restarted, since the server socket must advertise them before
+   * it is bound.
+   *
+   * @param size the size in bytes.
+   */
+  final public void setReceiveBufferSize(int size)
+  {
+    socketSettings.setReceiveBufferSize(size);
+  }
+
+  /**
+   * Enables or disables <code>SO_KEEPALIVE</code> on accepted sockets.
+   * Only affects clients that connect afterwards.
+   *
+   * @param on true to probe idle connections.
+   */
+  final public void setKeepAlive(boolean on)
+  {
+    socketSettings.setKeepAlive(on);
+  }
+
+  /**
+   * Sets the maximum number of messages that may wait to be written
+   * to a single client. Only affects clients that connect afterwards.
+   *
+   * @param capacity the outbound queue capacity.
+   */
+  final public void setOutboundQueueCapacity(int capacity)
+  {
+    if (capacity < 1)
+      throw new IllegalArgumentException("capacity < 1");
+    this.outboundQueueCapacity = capacity;
+  }
+
+  /**
+   * Sets what happens when a client's outbound queue is full: drop
+   * the oldest queued message, drop the new message, or disconnect
+   * the client. Only affects clients that connect afterwards.
+   *
+   * @param policy the overflow policy.
+   */
+  final public void setOverflowPolicy(OverflowPolicy policy)
+  {
+    if (policy == null)
+      throw new NullPointerException("policy");
+    this.overflowPolicy = policy;
+  }
+
+  /**
+   * Returns the connected clients whose outbound queue holds at least
+   * the given number of messages, deepest queue first. Useful to find
+   * out which clients are not keeping up.
+   *
+   * @param minimumDepth the smallest queue depth reported.
+   * @return the lagging clients.
+   */
+  final public ConnectionToClient[] getLaggingClients(int minimumDepth)
+  {
+    List<ConnectionToClient> lagging = new ArrayList<ConnectionToClient>();
+    for (ConnectionToClient client : clientConnections.snapshot())
+    {
+      if (client.getOutboundQueueDepth() >= minimumDepth)
+        lagging.add(client);
+    }
+    lagging.sort(Comparator.comparingInt(
+      ConnectionToClient::getOutboundQueueDepth).reversed());
+    return lagging.toArray(new ConnectionToClient[0]);
+  }
+
+  /**
+   * Returns the metrics of this server: connections, messages and
+   * bytes in each direction, and the time spent handling, sending and
+   * broadcasting messages. Each <code>ConnectionToClient</code> also
+   * counts its own messages and bytes. The registry can be printed
+   * or exported with a <code>MetricsExporter</code>.
+   *
+   * @return the metrics registry.
+   */
+  final public MetricsRegistry getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * Returns the kind of thread that reads each client.
+   *
+   * @return the thread mode chosen at construction.
+   */
+  final public ThreadMode getThreadMode()
+  {
+    return threadMode;
+  }
+
+  /**
+   * Returns the port number.
+   *
+   * @return the port number.
+   */
+  final public int getPort()
+  {
+    return port;
+  }
+
+  /**
+   * Sets the port number for the next connection.
+   * The server must be stopped or closed, and restarted, for the
+   * port change to be in effect.
+   *
+   * @param port the port number.
+   */
+  final public void setPort(int port)
+  {
+    this.port = port;
+  }
+
+  /**
+   * Formerly set how often the threads accepting connections woke up
+   * to check whether the server had been stopped. They now wait for
+   * connections without polling and stop as soon as the server does,
+   * so the timeout is ignored.
+   *
+   * @param timeout the timeout time in ms.
+   * @deprecated accepting no longer polls; see
+   *   <code>setHandshakeTimeout</code> for slow clients.
+   */
+  @Deprecated
+  final public void setTimeout(int timeout)
+  {
+  }
+
+  /**
+   * Sets how long an accepted client may take to send its hello, or
+   * its object stream header, before it is disconnected. Handshakes
+   * complete apart from the threads accepting connections, so a slow
+   * or silent client never delays the others, and the timeout keeps
+   * such clients from holding a socket for ever. Connections closed
+   * during the handshake were never announced to
+   * <code>clientConnected</code>, so no hook is called for them.
+   * The default is 10 seconds.
+   *
+   * @param millis the timeout in milliseconds, or 0 for none.
+   */
+  final public void setHandshakeTimeout(long millis)
+  {
+    if (millis < 0)
+      throw new IllegalArgumentException("negative timeout");
+    this.handshakeTimeout = millis;
+  }
+
+  /**
+   * Sets the number of threads accepting connections. One is enough
+   * for most servers, since accepting only hands each connection
+   * over; more absorb the bursts of many clients reconnecting at once
+   * after a restart or a network failure. The server must be stopped
+   * and restarted for the change to be in effect.
+   *
+   * @param threads the number of acceptor threads, at least 1.
+   */
+  final public void setAcceptorThreads(int threads)
+  {
+    if (threads < 1)
+      throw new IllegalArgumentException("threads < 1");
+    this.acceptorThreads = threads;
+  }
+
+  /**
+   * Sets the maximum number of waiting connections accepted by the
+   * operating system. The default is 20.
+   * The server must be closed and restarted for the backlog
+   * change to be in effect.
+   *
+   * @param backlog the maximum number of connections.
+   */
+  final public void setBacklog(int backlog)
+  {
+    this.backlog = backlog;
+  }
+
+  /**
+   * Selects the engine used to serve clients. With a positive count,
+   * the server uses a selector-based engine where that many event
+   * loop threads serve every connection, and clients must negotiate
+   * a codec (see <code>AbstractClient.setCodecs</code>). With 0,
+   * the default, each client gets its own <code>ConnectionToClient</code>
+   * thread.
+   * The server must be closed and restarted for the change to be
+   * in effect.
+   *
+   * @param threads the number of event loop threads, or 0.
+   */
+  final public void setNioEventLoops(int threads)
+  {
+    if (threads < 0)
+      throw new IllegalArgumentException("threads < 0");
+    this.nioEventLoops = threads;
+  }
+
+// RUN METHOD -------------------------------------------------------
+
+  /**
+   * Runs the listening thread that allows clients to connect, along
+   * with the other acceptor threads, if any.
+   * Not to be called.
+   */
+  final public void run()
+  {
+    ServerSocket listening = serverSocket;
+
+    // call the hook method to notify that the server is starting
+    serverStarted();
+
+    Thread[] acceptors = new Thread[acceptorThreads - 1];
+    for (int i = 0; i < acceptors.length; i++)
+    {
+      acceptors[i] = new Thread(() -> accept(listening),
+        "OCSF acceptor " + (i + 1));
+      acceptors[i].setDaemon(true);
+      acceptors[i].start();
+    }
+
+    try
+    {
+      accept(listening);
+
+      // The other acceptors stop with the server socket
+      for (Thread acceptor : acceptors)
+      {
+        try
+        {
+          acceptor.join();
+        }
+        catch (InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      IOException failure = acceptFailure.get();
+      if (failure != null)
+      {
+        listeningException(failure);
+      }
+      else
+      {
+        // call the hook method to notify that the server has stopped
+        serverStopped();
+      }
+    }
+    finally
+    {
+      readyToStop = true;
+      connectionListener = null;
+    }
+  }
+
+  /**
+   * Accepts connections and hands each one over, either to the NIO
+   * engine or to a thread completing its handshake, until the server
+   * stops listening. Run by every acceptor thread. A failure, unless
+   * the server socket was closed to stop listening, stops every
+   * acceptor.
+   *
+   * @param listening the server socket.
+   */
+  private void accept(ServerSocket listening)
+  {
+    try
+    {
+      // Wait here for new connection attempts; closing the socket
+      // to stop listening ends the wait
+      while (!readyToStop)
+      {
+        Socket clientSocket = listening.accept();
+        if (readyToStop)
+        {
+          clientSocket.close();
+          break;
+        }
+        try
+        {
+          socketSettings.applyTo(clientSocket);
+        }
+        catch (SocketException ex)
+        {
+          // Keep the defaults rather than refuse the client
+        }
+
+        NioServerEngine engine = nioEngine;
+        ExecutorService pool = handshakePool;
+        if (engine != null)
+        {
+          engine.register(clientSocket.getChannel());
+        }
+        else
+        {
+          try
+          {
+            pool.execute(() -> openConnection(clientSocket, pool));
+          }
+          catch (RuntimeException exception)
+          {
+            clientSocket.close(); // the server was closed meanwhile
+          }
+        }
+      }
+    }
+    catch (IOException exception)
+    {
+      if (!readyToStop)
+      {
+        // Closing the socket must have thrown a SocketException
+        acceptFailure.compareAndSet(null, exception);
+        readyToStop = true;
+      }
+    }
+    finally
+    {
+      closeServerSocket(listening);
+    }
+  }
+
+  /**
+   * Completes the handshake of a client of the classic engine, which
+   * starts its connection thread, within the handshake timeout. Runs
+   * on the handshake pool.
+   *
+   * @param clientSocket the accepted socket.
+   * @param pool the pool running this task.
+   */
+  private void openConnection(Socket clientSocket, ExecutorService pool)
+  {
+    TimerWheel.Timeout deadline = startHandshake(() ->
+      TimerWheel.blockingExecutor().execute(() ->
+      {
+        handshakeTimeouts.increment();
+        try
+        {
+          clientSocket.close();
+        }
+        catch (IOException ex) {}
+      }));
+
+    ConnectionToClient client = null;
+    try
+    {
+      client = new ConnectionToClient(
+        this.clientThreadGroup, clientSocket, this);
+    }
+    catch (IOException exception)
+    {
+      // Never announced, so there is no one to tell
+    }
+    finally
+    {
+      endHandshake(deadline, client != null);
+    }
+
+    if (client != null && pool.isShutdown())
+    {
+      // The server closed during the handshake, possibly without
+      // seeing this connection
+      try
+      {
+        client.close();
+      }
+      catch (IOException ex) {}
+    }
+  }
+
+  /**
+   * Closes the server socket, if it is still the one given, so that a
+   * later <code>listen</code> opens a new one.
+   *
+   * @param listening the server socket to close.
+   */
+  private synchronized void closeServerSocket(ServerSocket listening)
+  {
+    if (serverSocket == listening)
+      closeServerSocket();
+  }
+
+  /**
+   * Closes the server socket, if any, which wakes the threads
+   * accepting connections.
+   */
+  private synchronized void closeServerSocket()
+  {
+    if (serverSocket == null)
+      return;
+    try
+    {
+      serverSocket.close();
+    }
+    catch (IOException ex) {}
+    serverSocket = null;
+  }
+
+
+// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
+
+  /**
+   * Hook method called each time a new client connection is
+   * accepted. The default implementation does nothing.
+   * @param client the connection connected to the client.
+   */
+  protected void clientConnected(ConnectionToClient client) {}
+
+  /**
+   * Hook method called each time a client disconnects.
+   * The default implementation does nothing. The method
+   * may be overridden by subclasses but should remains synchronized.
+   * Unless global ordering is selected, this no longer excludes
+   * the handling of messages.
+   *
+   * @param client the connection with the client.
+   */
+  synchronized protected void clientDisconnected(
+    ConnectionToClient client) {}
+
+  /**
+   * Hook method called each time an exception is thrown in a
+   * ConnectionToClient thread. It is called after every message
+   * already received from that client has been handled.
+   * The method may be overridden by subclasses but should remains
+   * synchronized.
+   *
+   * @param client the client that raised the exception.
+   * @param Throwable the exception thrown.
+   */
+  synchronized protected void clientException(
+    ConnectionToClient client, Throwable exception) {}
+
+  /**
+   * Hook method called each time a client goes over its rate limit,
+   * after the message that took it over has been handled. The server
+   * then stops reading from that client for the pause. The default
+   * implementation does nothing. The method may be overridden by
+   * subclasses, for instance to warn the client.
+   *
+   * @param client the client being throttled.
+   * @param pauseMillis how long its socket is left unread.
+   */
+  protected void clientThrottled(
+    ConnectionToClient client, long pauseMillis) {}
+
+  /**
+   * Hook method called when the server stops accepting
+   * connections because an exception has been raised.
+   * The default implementation does nothing.
+   * This method may be overriden by subclasses.
+   *
+   * @param exception the exception raised.
+   */
+  protected void listeningException(Throwable exception) {}
+
+  /**
+   * Hook method called when the server starts listening for
+   * connections.  The default implementation does nothing.
+   * The method may be overridden by subclasses.
+   */
+  protected void serverStarted() {}
+
+  /**
+   * Hook method called when the server stops accepting
+   * connections.  The default implementation
    * does nothing. This method may be overriden by subclasses.
    */
   protected void serverStopped() {}
@@ -425,8 +1351,10 @@ public abstract class AbstractServer implements Runnable
    * Handles a command sent from one client to the server.
    * This MUST be implemented by subclasses, who should respond to
    * messages.
-   * This method is called by a synchronized method so it is also
-   * implcitly synchronized.
+   * This method is called by a worker thread. Calls for the same client
+   * never overlap and follow the order of the messages, but calls for
+   * different clients may run at the same time, unless global ordering
+   * is selected, in which case it is implicitly synchronized.
    *
    * @param msg   the message sent.
    * @param client the connection connected to the client that
@@ -435,25 +1363,299 @@ public abstract class AbstractServer implements Runnable
   protected abstract void handleMessageFromClient(
     Object msg, ConnectionToClient client);
 
+  /**
+   * Handles a request sent from one client to the server, that is a
+   * message sent with <code>AbstractClient.request</code>. The client
+   * waits for an answer, which is sent by calling
+   * <code>reply(requestId, ...)</code> on the connection, here or
+   * later from any thread. Requests are handled in order with the
+   * other messages of the same client.
+   * The default implementation handles the request as an ordinary
+   * message, so a server that never replies leaves the client to
+   * time out. The method may be overridden by subclasses.
+   *
+   * @param msg   the request sent.
+   * @param client the connection connected to the client that
+   *  sent the request.
+   * @param requestId the identifier to reply to.
+   */
+  protected void handleRequestFromClient(
+    Object msg, ConnectionToClient client, long requestId)
+  {
+    handleMessageFromClient(msg, client);
+  }
+
 
 // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
   /**
    * Receives a command sent from the client to the server.
    * Called by the run method of <code>ConnectionToClient</code>
-   * instances that are watching for messages coming from the server
-   * This method is synchronized to ensure that whatever effects it has
-   * do not conflict with work being done by other threads. The method
-   * simply calls the <code>handleMessageFromClient</code> slot method.
+   * instances that are watching for messages coming from the server,
+   * and by the NIO engine. The method hands the message to the
+   * dispatcher, which calls the <code>handleMessageFromClient</code>
+   * slot method on a worker thread, or the
+   * <code>handleRequestFromClient</code> slot method for a request.
+   * An exception thrown by the handler closes the client, as it did
+   * when messages were handled by the reading thread.
    *
    * @param msg   the message sent.
    * @param client the connection connected to the client that
    *  sent the message.
    */
-  final synchronized void receiveMessageFromClient(
+  final void receiveMessageFromClient(
     Object msg, ConnectionToClient client)
   {
-    this.handleMessageFromClient(msg, client);
+    client.messageDispatched();
+    dispatch(client, () ->
+    {
+      long start = System.nanoTime();
+      try
+      {
+        if (msg instanceof Envelope && !((Envelope)msg).isReply())
+        {
+          Envelope request = (Envelope)msg;
+          requestsReceived.increment();
+          handleRequestFromClient(request.getPayload(), client, request.getId());
+        }
+        else
+        {
+          handleMessageFromClient(msg, client);
+        }
+      }
+      catch (RuntimeException exception)
+      {
+        client.transportFailed(exception);
+      }
+      finally
+      {
+        handleLatency.recordSince(start);
+        client.messageHandled();
+      }
+    });
+  }
+
+  /**
+   * Receives the news that a client went over its rate limit. The
+   * <code>clientThrottled</code> hook is dispatched like a message,
+   * behind the messages of that client still waiting to be handled.
+   *
+   * @param pauseMillis how long the client is not read.
+   * @param client the client being throttled.
+   */
+  final void receiveThrottleFromClient(
+    long pauseMillis, ConnectionToClient client)
+  {
+    throttles.increment();
+    dispatch(client, () -> clientThrottled(client, pauseMillis));
+  }
+
+  /**
+   * Receives the exception that ended a client's connection. The
+   * <code>clientException</code> hook is dispatched behind the
+   * messages of that client that are still waiting to be handled.
+   *
+   * @param exception the exception raised.
+   * @param client the connection that raised it.
+   */
+  final void receiveExceptionFromClient(
+    Throwable exception, ConnectionToClient client)
+  {
+    dispatch(client, () -> clientException(client, exception));
+  }
+
+  /**
+   * Runs a task on behalf of a client, through the dispatcher when
+   * the server has one, or right away under this server's monitor
+   * otherwise.
+   *
+   * @param client the client the task belongs to.
+   * @param task the task.
+   */
+  private void dispatch(ConnectionToClient client, Runnable task)
+  {
+    MessageDispatcher current = dispatcher;
+    if (current != null)
+    {
+      current.dispatch(client, task);
+    }
+    else
+    {
+      synchronized(this)
+      {
+        task.run();
+      }
+    }
+  }
+
+  /**
+   * Creates the outbound queue of a new connection, with the current
+   * capacity and overflow policy.
+   *
+   * @return the new queue.
+   */
+  final OutboundQueue newOutboundQueue()
+  {
+    return new OutboundQueue(outboundQueueCapacity, overflowPolicy);
+  }
+
+  /**
+   * Returns the codecs that clients may negotiate.
+   *
+   * @return the accepted codecs.
+   */
+  final FrameCodec[] getCodecs()
+  {
+    return codecs;
+  }
+
+  /**
+   * Returns the compression agreed to with clients.
+   *
+   * @return the compression, or null if frames are not compressed.
+   */
+  final Compression getCompression()
+  {
+    return compression;
+  }
+
+  /**
+   * Returns how often heartbeats go to quiet clients.
+   *
+   * @return the interval in milliseconds, or 0 for none.
+   */
+  final long getHeartbeatInterval()
+  {
+    return heartbeatInterval;
+  }
+
+  /**
+   * Returns how long a client may send nothing before it is
+   * disconnected.
+   *
+   * @return the timeout in milliseconds, or 0 for none.
+   */
+  final long getIdleTimeout()
+  {
+    return idleTimeout;
+  }
+
+  /**
+   * Returns how much each client that connects may send.
+   *
+   * @return the rate limit.
+   */
+  final RateLimit getRateLimit()
+  {
+    return rateLimit;
+  }
+
+  /**
+   * Records the start of the handshake of an accepted connection and
+   * schedules its deadline on the timer wheel.
+   *
+   * @param onTimeout what to do if the handshake is still going on at
+   *   the deadline; runs on the wheel, so must not block.
+   * @return the deadline, or null if handshakes never time out.
+   */
+  final TimerWheel.Timeout startHandshake(Runnable onTimeout)
+  {
+    pendingHandshakes.incrementAndGet();
+    long millis = handshakeTimeout;
+    return millis > 0
+      ? TimerWheel.shared().schedule(onTimeout, millis, TimeUnit.MILLISECONDS)
+      : null;
+  }
+
+  /**
+   * Records the end of the handshake of an accepted connection.
+   *
+   * @param deadline the deadline returned by <code>startHandshake</code>.
+   * @param completed false if the connection was closed instead.
+   */
+  final void endHandshake(TimerWheel.Timeout deadline, boolean completed)
+  {
+    if (deadline != null)
+      deadline.cancel();
+    pendingHandshakes.decrementAndGet();
+    if (!completed)
+      handshakeFailures.increment();
+  }
+
+  /**
+   * Returns the policy deciding when messages to clients of the
+   * classic engine leave the socket.
+   *
+   * @return the flush policy.
+   */
+  final FlushPolicy getFlushPolicy()
+  {
+    return flushPolicy;
+  }
+
+  /**
+   * Returns the policy deciding when the object stream to a client
+   * is reset.
+   *
+   * @return the reset policy.
+   */
+  final ResetPolicy getResetPolicy()
+  {
+    return resetPolicy;
+  }
+
+  /**
+   * Returns the threads that write to clients of the classic engine.
+   *
+   * @return the writer pool.
+   * @exception RejectedExecutionException if the server is closed.
+   */
+  final Executor getWriterPool()
+  {
+    Executor pool = writerPool;
+    if (pool == null)
+      throw new RejectedExecutionException("server closed");
+    return pool;
+  }
+
+  /**
+   * Records a newly created connection. Called by
+   * <code>ConnectionToClient</code> and the NIO engine.
+   *
+   * @param client the new connection.
+   */
+  final void addClientConnection(ConnectionToClient client)
+  {
+    clientConnections.add(client);
+    connects.increment();
+  }
+
+  /**
+   * Forgets a closed connection and removes it from the topics it
+   * joined. Called by <code>ConnectionToClient</code> when it closes.
+   *
+   * @param client the closed connection.
+   */
+  final void removeClientConnection(ConnectionToClient client)
+  {
+    if (clientConnections.remove(client))
+      disconnects.increment();
+    topics.leaveAll(client);
+  }
+
+  /**
+   * Keeps the indexes of client information up to date. Called by
+   * <code>ConnectionToClient.setInfo</code>.
+   *
+   * @param client the client that saved the information.
+   * @param infoType the type of information.
+   * @param oldInfo the value saved before, or null.
+   * @param info the value saved now, or null.
+   */
+  final void clientInfoChanged(ConnectionToClient client,
+    String infoType, Object oldInfo, Object info)
+  {
+    clientConnections.infoChanged(client, infoType, oldInfo, info);
   }
 }
 // End of AbstractServer Class
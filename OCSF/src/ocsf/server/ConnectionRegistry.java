@@ -0,0 +1,176 @@
+package ocsf.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The open connections of a server. Adding and removing a connection take
+ * constant time: connections sit in an array, each knowing its slot, and a
+ * removed connection is replaced by the last one. Readers never lock: they
+ * get an immutable snapshot of the array, rebuilt only after the set changed,
+ * so broadcasting to an unchanged set of clients allocates nothing.
+ * <p>
+ * Connections can also be found by the value of an information type saved
+ * with <code>ConnectionToClient.setInfo</code>, such as a login ID, once that
+ * type is indexed. Each indexed value maps to one connection; when several
+ * clients save the same value, the one that saved it last is found.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+final class ConnectionRegistry {
+	// CLASS VARIABLES **************************************************
+
+	private static final ConnectionToClient[]	EMPTY		= new ConnectionToClient[0];
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The connections, from 0 to <code>size</code>. Guarded by this.
+	 */
+	private ConnectionToClient[]				slots		= new ConnectionToClient[16];
+
+	private int									size;
+
+	/**
+	 * A copy of the occupied slots handed to readers, or null after a change
+	 * until a reader asks again.
+	 */
+	private volatile ConnectionToClient[]		snapshot	= EMPTY;
+
+	/**
+	 * The indexes, by information type.
+	 */
+	private final Map<String, Map<Object, ConnectionToClient>>	indexes	= new ConcurrentHashMap<String, Map<Object, ConnectionToClient>>();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Records a connection, and indexes the information it already holds.
+	 */
+	synchronized void add(ConnectionToClient client) {
+		if (client.registrySlot >= 0)
+			return;
+
+		if (size == slots.length)
+			slots = Arrays.copyOf(slots, size * 2);
+		slots[size] = client;
+		client.registrySlot = size++;
+		snapshot = null;
+
+		for (Map.Entry<String, Map<Object, ConnectionToClient>> index : indexes.entrySet()) {
+			Object value = client.getInfo(index.getKey());
+			if (value != null)
+				index.getValue().put(value, client);
+		}
+	}
+
+	/**
+	 * Forgets a connection and its index entries. Has no effect if the
+	 * connection is not recorded.
+	 *
+	 * @return true if the connection was recorded.
+	 */
+	synchronized boolean remove(ConnectionToClient client) {
+		int slot = client.registrySlot;
+		if (slot < 0)
+			return false;
+
+		ConnectionToClient last = slots[--size];
+		slots[slot] = last;
+		last.registrySlot = slot;
+		slots[size] = null;
+		client.registrySlot = -1;
+		snapshot = null;
+
+		for (Map.Entry<String, Map<Object, ConnectionToClient>> index : indexes.entrySet()) {
+			Object value = client.getInfo(index.getKey());
+			if (value != null)
+				index.getValue().remove(value, client);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the connections as of the last change. The array must not be
+	 * modified; it is shared by every caller until the next change.
+	 */
+	ConnectionToClient[] snapshot() {
+		ConnectionToClient[] current = snapshot;
+		if (current == null) {
+			synchronized (this) {
+				current = snapshot;
+				if (current == null)
+					snapshot = current = Arrays.copyOf(slots, size);
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * @return the number of connections.
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Starts indexing an information type, including the values already
+	 * saved by the recorded connections.
+	 */
+	synchronized void index(String infoType) {
+		if (indexes.containsKey(infoType))
+			return;
+
+		Map<Object, ConnectionToClient> index = new ConcurrentHashMap<Object, ConnectionToClient>();
+		for (int i = 0; i < size; i++) {
+			Object value = slots[i].getInfo(infoType);
+			if (value != null)
+				index.put(value, slots[i]);
+		}
+		indexes.put(infoType, index);
+	}
+
+	/**
+	 * Finds the connection that saved a value. Indexed types are looked up;
+	 * others are searched for among the connections.
+	 *
+	 * @return the connection, or null if none saved the value.
+	 */
+	ConnectionToClient find(String infoType, Object value) {
+		Map<Object, ConnectionToClient> index = indexes.get(infoType);
+		if (index != null)
+			return index.get(value);
+
+		for (ConnectionToClient client : snapshot()) {
+			if (value.equals(client.getInfo(infoType)))
+				return client;
+		}
+		return null;
+	}
+
+	/**
+	 * Updates the index of a type, if it is indexed, after a connection saved
+	 * a new value.
+	 *
+	 * @param oldValue
+	 *            the value the connection held before, or null.
+	 * @param newValue
+	 *            the value it holds now, or null.
+	 */
+	void infoChanged(ConnectionToClient client, String infoType, Object oldValue, Object newValue) {
+		Map<Object, ConnectionToClient> index = indexes.get(infoType);
+		if (index == null)
+			return;
+
+		synchronized (this) {
+			if (oldValue != null)
+				index.remove(oldValue, client);
+			// A connection that is not recorded yet is indexed when added,
+			// and one already removed must not come back
+			if (newValue != null && client.registrySlot >= 0)
+				index.put(newValue, client);
+		}
+	}
+}
+// End of ConnectionRegistry class
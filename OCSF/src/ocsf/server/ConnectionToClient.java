@@ -6,7 +6,13 @@ package ocsf.server;
 
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ocsf.common.*;
 
 /**
  * An instance of this class is created by the server when a client connects. It
@@ -15,6 +21,10 @@ import java.util.HashMap;
  * contains a set of instances of this class and is responsible for adding and
  * deleting them.
  * <p>
+ * Under the classic engine, each connection runs its read loop on a thread
+ * of its own; under the NIO engine it is only a record of the connection's
+ * state, read by the engine's event loop.
+ * <p>
  * Project Name: OCSF (Object Client-Server Framework)
  * <p>
  * 
@@ -24,7 +34,20 @@ import java.util.HashMap;
  * @author Paul Holden
  * @version 2.12
  */
-public class ConnectionToClient extends Thread {
+public class ConnectionToClient implements Runnable {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * How long <code>close</code> waits for queued messages to be written
+	 * before closing the socket anyway.
+	 */
+	private static final long	CLOSE_LINGER_MILLIS	= 1000;
+
+	/**
+	 * Queued in place of a message to reset the output stream at that point.
+	 */
+	private static final Object	RESET				= new Object();
+
 	// INSTANCE VARIABLES ***********************************************
 
 	/**
@@ -41,28 +64,115 @@ public class ConnectionToClient extends Thread {
 	private Socket				clientSocket;
 
 	/**
-	 * Stream used to read from the client.
+	 * Stream used to exchange messages with the client.
 	 */
-	private ObjectInputStream	input;
+	private MessageStream		stream;
 
 	/**
-	 * Stream used to write to the client.
+	 * The non-blocking state of this connection when it is served by the NIO
+	 * engine, null otherwise.
 	 */
-	private ObjectOutputStream	output;
+	private NioServerEngine.Session	session;
 
 	/**
 	 * Indicates if the thread is ready to stop. Set to true when closing of the
 	 * connection is initiated.
 	 */
-	private boolean				readyToStop;
+	private volatile boolean	readyToStop;
 
 	/**
 	 * Map to save information about the client such as its login ID. The
 	 * initial size of the map is small since it is not expected that concrete
 	 * servers will want to store many different types of information about each
-	 * client. Used by the setInfo and getInfo methods.
+	 * client. Used by the setInfo and getInfo methods. Types indexed by the
+	 * server are also kept in its registry.
+	 */
+	private Map<String, Object>	savedInfo	= new ConcurrentHashMap<String, Object>(10);
+
+	/**
+	 * The queue on which the server's dispatcher handles this client's
+	 * messages, in order. Created by the dispatcher on first use.
 	 */
-	private HashMap				savedInfo	= new HashMap(10);
+	volatile MessageDispatcher.SerialQueue	dispatchQueue;
+
+	/**
+	 * Messages waiting to be written to the client. With the classic engine
+	 * the queue holds messages, written by a task on the server's writer
+	 * pool; with the NIO engine it holds encoded frames, written by the event
+	 * loop.
+	 */
+	final OutboundQueue			outbound;
+
+	/**
+	 * Set while a writer task is draining the outbound queue.
+	 */
+	private final AtomicBoolean	writeScheduled	= new AtomicBoolean();
+
+	/**
+	 * This connection's slot in the server's registry, or -1 when it is not
+	 * recorded. Guarded by the registry.
+	 */
+	int							registrySlot	= -1;
+
+	/**
+	 * The names of the topics this client joined. Also the lock guarding
+	 * them and <code>topicsClosed</code>.
+	 */
+	final Set<String>			joinedTopics	= new HashSet<String>();
+
+	/**
+	 * Set once the connection closed, after which it joins no topic.
+	 */
+	boolean						topicsClosed;
+
+	/**
+	 * Messages and bytes exchanged with this client. The server's metrics
+	 * count the same for all clients together.
+	 */
+	private final Counter		messagesReceived	= new Counter();
+	private final Counter		bytesReceived		= new Counter();
+	private final Counter		messagesSent		= new Counter();
+	private final Counter		bytesSent			= new Counter();
+
+	/**
+	 * Set when something arrives from the client, and cleared by each idle
+	 * check. Only written when clear, so receiving costs a read.
+	 */
+	private volatile boolean	receivedSinceCheck;
+
+	/**
+	 * Set when a message is written to the client, and cleared each time a
+	 * heartbeat is due.
+	 */
+	private volatile boolean	sentSinceHeartbeat;
+
+	/**
+	 * When the last idle check found that something had arrived. Only used
+	 * by the checks.
+	 */
+	private long				lastActiveNanos;
+
+	/**
+	 * The next heartbeat and the next idle check, on the server's timer
+	 * wheel, or null if they are not enabled.
+	 */
+	private volatile TimerWheel.Timeout	heartbeatTimeout;
+	private volatile TimerWheel.Timeout	idleTimeout;
+
+	/**
+	 * The budget left to the client under its rate limit, or null if it is
+	 * unlimited. Replaced, never changed, by <code>setRateLimit</code>.
+	 */
+	private volatile TokenBucket	rateBucket;
+
+	/**
+	 * The number of messages read from the client and not handled yet, and
+	 * whether reading stopped because there were too many. Both guarded by
+	 * backlogLock, on which a classic reader waits.
+	 */
+	private final Object			backlogLock		= new Object();
+	private int						dispatchBacklog;
+	private boolean					readPaused;
 
 	// CONSTRUCTORS *****************************************************
 
@@ -80,17 +190,19 @@ public class ConnectionToClient extends Thread {
 	 *                if an I/O error occur when creating the connection.
 	 */
 	ConnectionToClient(ThreadGroup group, Socket clientSocket, AbstractServer server) throws IOException {
-		super(group, (Runnable) null);
 		// Initialize variables
 		this.clientSocket = clientSocket;
 		this.server = server;
+		this.outbound = server.newOutboundQueue();
 
 		clientSocket.setSoTimeout(0); // make sure timeout is infinite
 
 		// Initialize the objects streams
 		try {
-			input = new ObjectInputStream(clientSocket.getInputStream());
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
+			stream = Handshake.openServerSide(clientSocket.getInputStream(),
+					new CoalescingOutputStream(clientSocket.getOutputStream(), server.getFlushPolicy()),
+					server.getCodecs(), server.getCompression());
+			stream.setResetPolicy(server.getResetPolicy());
 		} catch (IOException ex) {
 			try {
 				closeAll();
@@ -101,43 +213,148 @@ public class ConnectionToClient extends Thread {
 		}
 
 		readyToStop = false;
-		start(); // Start the thread waits for data from the socket
+		setRateLimit(server.getRateLimit());
+		server.addClientConnection(this);
+		startTimers();
+
+		// Start the thread that waits for data from the socket
+		String name = "ConnectionToClient " + clientSocket.getRemoteSocketAddress();
+		Thread reader = server.getThreadMode() == ThreadMode.PLATFORM ? new Thread(group, this, name)
+				: server.getThreadMode().newThread(this, name);
+		reader.setUncaughtExceptionHandler((thread, exception) -> server.clientException(this, exception));
+		reader.start();
+	}
+
+	/**
+	 * Constructs a connection served by the NIO engine. No thread is started;
+	 * the engine's event loop reads the socket and sends every decoded
+	 * message to the server.
+	 * 
+	 * @param session
+	 *            the engine's state for the connection.
+	 * @param server
+	 *            a reference to the server that created this instance
+	 */
+	ConnectionToClient(NioServerEngine.Session session, AbstractServer server) {
+		this.session = session;
+		this.clientSocket = session.channel.socket();
+		this.server = server;
+		this.outbound = server.newOutboundQueue();
+		readyToStop = false;
+		setRateLimit(server.getRateLimit());
+		startTimers();
 	}
 
 	// INSTANCE METHODS *************************************************
 
 	/**
-	 * Sends an object to the client.
+	 * Sends an object to the client. The message is added to this
+	 * connection's outbound queue and written by a separate writer, so a
+	 * client that reads slowly never blocks the caller. Errors that occur
+	 * while writing are reported through the server's
+	 * <code>clientException</code> hook. An <code>EncodedMessage</code> is
+	 * written from the bytes it already holds; the client receives the
+	 * message it wraps.
 	 * 
 	 * @param msg
 	 *            the message to be sent.
+	 * @exception OutboundOverflowException
+	 *                if the queue is full and the overflow policy is to
+	 *                disconnect; the connection has then been closed.
 	 * @exception IOException
 	 *                if an I/O error occur when sending the message.
 	 */
 	final public void sendToClient(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
+		if (clientSocket == null || (stream == null && session == null))
 			throw new SocketException("socket does not exist");
 
-		output.writeObject(msg);
+		long start = System.nanoTime();
+		try {
+			send(msg);
+		} finally {
+			server.sendLatency.recordSince(start);
+		}
+	}
+
+	/**
+	 * Answers a request of the client, received in the server's
+	 * <code>handleRequestFromClient</code> hook. The reply is queued like any
+	 * other message and completes the future the client is waiting on. It
+	 * may be sent from any thread, and requests may be answered in any
+	 * order; a request answered twice, or after the client gave up waiting,
+	 * is ignored by the client.
+	 *
+	 * @param requestId
+	 *            the identifier the request came with.
+	 * @param msg
+	 *            the answer.
+	 * @exception IOException
+	 *                if an I/O error occur when sending the reply.
+	 */
+	final public void reply(long requestId, Object msg) throws IOException {
+		sendToClient(Envelope.reply(requestId, msg));
+		server.repliesSent.increment();
+	}
+
+	/**
+	 * Encodes a message if the engine needs it, and queues it. A reply to a
+	 * request is never dropped by the overflow policy, or the request would
+	 * only end by timing out.
+	 */
+	private void send(Object msg) throws IOException {
+		boolean control = msg instanceof Envelope;
+		if (session == null) {
+			// Encode on the caller's thread, so that a broadcast is encoded
+			// once rather than by every writer that picks it up
+			if (msg instanceof EncodedMessage)
+				((EncodedMessage) msg).getFrame(stream.getCodec());
+			enqueue(msg, control);
+		} else if (msg instanceof EncodedMessage) {
+			enqueue(ByteBuffer.wrap(((EncodedMessage) msg).getFrame(session.codec)), control);
+		} else {
+			enqueue(ByteBuffer.wrap(Frames.encodeFrame(session.codec, msg)), control);
+		}
 	}
 
 	/**
 	 * Reset the output stream so we can use the same
 	 * buffer repeatedly. This would not normally be used, but is necessary
     * in some circumstances when Java refuses to send data that it thinks has been sent.
+    * The reset takes place after the messages already queued are written.
+    * Connections served by the NIO engine keep no such state, so for them
+    * this call has no effect.
 	 */
 	final public void forceResetAfterSend() throws IOException {
-      output.reset();
+      if (stream != null)
+        enqueue(RESET, true);
 	}
 
 	/**
 	 * Closes the client. If the connection is already closed, this call has no
-	 * effect.
+	 * effect. Messages already queued, including those held back by the
+	 * server's flush policy, are given a moment to be written.
 	 * 
 	 * @exception IOException
 	 *                if an error occurs when closing the socket.
 	 */
 	final public void close() throws IOException {
+		// Give the writer a chance to deliver what was sent before closing
+		if (!readyToStop && (session == null || !session.isLoopThread())) {
+			try {
+				outbound.awaitEmpty(CLOSE_LINGER_MILLIS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+
+			MessageStream current = stream;
+			if (current != null) {
+				try {
+					current.flush();
+				} catch (IOException ex) {
+				}
+			}
+		}
+
 		readyToStop = true; // Set the flag that tells the thread to stop
 
 		try {
@@ -149,6 +366,123 @@ public class ConnectionToClient extends Thread {
 
 	// ACCESSING METHODS ------------------------------------------------
 
+	/**
+	 * Returns true while the connection is open. This also works for
+	 * connections served by the NIO engine, which have no reader thread.
+	 * 
+	 * @return true if the client is connected.
+	 */
+	final public boolean isConnected() {
+		return clientSocket != null && !readyToStop;
+	}
+
+	/**
+	 * Returns the number of messages waiting to be written to the client. A
+	 * depth that keeps growing identifies a client that is not keeping up.
+	 * 
+	 * @return the outbound queue depth.
+	 */
+	final public int getOutboundQueueDepth() {
+		return outbound.size();
+	}
+
+	/**
+	 * Returns the largest outbound queue depth seen on this connection.
+	 * 
+	 * @return the outbound queue high-water mark.
+	 */
+	final public int getOutboundQueueHighWaterMark() {
+		return outbound.getHighWaterMark();
+	}
+
+	/**
+	 * Returns the number of messages discarded because the outbound queue was
+	 * full.
+	 * 
+	 * @return the number of dropped messages.
+	 */
+	final public long getOutboundDropCount() {
+		return outbound.getDropCount();
+	}
+
+	/**
+	 * @return the number of messages received from the client.
+	 */
+	final public long getMessagesReceived() {
+		return messagesReceived.get();
+	}
+
+	/**
+	 * @return the number of bytes received from the client.
+	 */
+	final public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * @return the number of messages written to the client, not counting
+	 *         those still queued.
+	 */
+	final public long getMessagesSent() {
+		return messagesSent.get();
+	}
+
+	/**
+	 * @return the number of bytes written to the client.
+	 */
+	final public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Returns the rate limit of this client.
+	 * 
+	 * @return the rate limit.
+	 */
+	final public RateLimit getRateLimit() {
+		TokenBucket bucket = rateBucket;
+		return bucket == null ? RateLimit.unlimited() : bucket.getLimit();
+	}
+
+	/**
+	 * Changes how much this client may send, starting with a full budget; by
+	 * default, a client gets the server's rate limit as it was when it
+	 * connected. Lets a server trust some clients more than others.
+	 * 
+	 * @param limit
+	 *            the rate limit.
+	 */
+	final public void setRateLimit(RateLimit limit) {
+		if (limit == null)
+			throw new NullPointerException("limit");
+		rateBucket = limit.isUnlimited() ? null : new TokenBucket(limit);
+	}
+
+	/**
+	 * Returns the number of objects and class descriptors the stream to the
+	 * client remembers, as of the last message written. A number that keeps
+	 * growing means the connection's reset policy is too lax. Always 0 for
+	 * connections that keep no such table.
+	 * 
+	 * @return the handle table size.
+	 */
+	final public int getHandleTableSize() {
+		MessageStream current = stream;
+		return current == null ? 0 : current.getHandleTableSize();
+	}
+
+	/**
+	 * Returns the names of the topics this client joined with
+	 * <code>AbstractServer.joinTopic</code>.
+	 * 
+	 * @return a copy of the topic names.
+	 */
+	final public Set<String> getTopics() {
+		synchronized (joinedTopics) {
+			return new HashSet<String>(joinedTopics);
+		}
+	}
+
 	/**
 	 * Returns the address of the client.
 	 * 
@@ -170,15 +504,21 @@ public class ConnectionToClient extends Thread {
 
 	/**
 	 * Saves arbitrary information about this client. Designed to be used by
-	 * concrete subclasses of AbstractServer. Based on a hash map.
+	 * concrete subclasses of AbstractServer. Based on a concurrent hash map,
+	 * since the handlers of different clients may run at the same time.
+	 * Information of a type indexed with
+	 * <code>AbstractServer.indexClientInfo</code> can then be used to find
+	 * this client.
 	 * 
 	 * @param infoType
 	 *            identifies the type of information
 	 * @param info
-	 *            the information itself.
+	 *            the information itself, or null to forget it.
 	 */
 	public void setInfo(String infoType, Object info) {
-		savedInfo.put(infoType, info);
+		Object oldInfo = info == null ? savedInfo.remove(infoType) : savedInfo.put(infoType, info);
+		if (oldInfo != info)
+			server.clientInfoChanged(this, infoType, oldInfo, info);
 	}
 
 	/**
@@ -210,8 +550,23 @@ public class ConnectionToClient extends Thread {
 			while (!readyToStop) {
 				// This block waits until it reads a message from the client
 				// and then sends it for handling by the server
-				msg = input.readObject();
+				MessageStream current = stream;
+				long before = current.getBytesRead();
+				msg = current.readMessage();
+				if (msg == Heartbeat.INSTANCE) {
+					heartbeatReceived(current.getBytesRead() - before);
+					continue;
+				}
+				long bytes = current.getBytesRead() - before;
+				messageReceived(bytes);
 				server.receiveMessageFromClient(msg, this);
+				awaitBacklog();
+
+				// Over budget: leave the socket unread, so that TCP holds the
+				// client back
+				long pause = throttle(bytes);
+				if (pause > 0)
+					TimeUnit.NANOSECONDS.sleep(pause);
 			}
 		} catch (Exception exception) {
 			if (!readyToStop) {
@@ -220,13 +575,313 @@ public class ConnectionToClient extends Thread {
 				} catch (Exception ex) {
 				}
 
-				server.clientException(this, exception);
+				server.receiveExceptionFromClient(exception, this);
 			}
 		}
 	}
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Adds an item to the outbound queue and makes sure a writer will drain
+	 * it.
+	 * 
+	 * @param control
+	 *            true if the overflow policy must not drop the item.
+	 * @exception OutboundOverflowException
+	 *                if the queue is full and the policy is to disconnect.
+	 */
+	private void enqueue(Object item, boolean control) throws IOException {
+		if (!outbound.offer(item, control)) {
+			OutboundOverflowException exception = new OutboundOverflowException(outbound.getCapacity());
+			transportFailed(exception);
+			throw exception;
+		}
+
+		if (session != null)
+			session.scheduleFlush();
+		else
+			scheduleDrain();
+	}
+
+	/**
+	 * Starts a writer task unless one is already draining the queue.
+	 */
+	private void scheduleDrain() {
+		if (writeScheduled.compareAndSet(false, true)) {
+			try {
+				server.getWriterPool().execute(this::drainOutbound);
+			} catch (RuntimeException ex) {
+				// The server is closing; the queue dies with the connection
+				writeScheduled.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Writes queued messages until the queue is empty. Runs on the server's
+	 * writer pool, one task at a time per connection.
+	 */
+	private void drainOutbound() {
+		try {
+			Object msg;
+			while ((msg = outbound.poll()) != null) {
+				try {
+					MessageStream current = stream;
+					if (current == null)
+						throw new SocketException("socket does not exist");
+
+					if (msg == RESET) {
+						current.reset();
+					} else if (msg == Heartbeat.INSTANCE) {
+						long before = current.getBytesWritten();
+						current.writeMessage(msg);
+						heartbeatSent(current.getBytesWritten() - before);
+					} else {
+						long before = current.getBytesWritten();
+						current.writeMessage(msg);
+						messageSent(current.getBytesWritten() - before);
+					}
+				} finally {
+					outbound.written();
+				}
+			}
+		} catch (IOException exception) {
+			outbound.clear();
+			transportFailed(exception);
+		} finally {
+			writeScheduled.set(false);
+			// A message may have been queued after the last poll
+			if (!outbound.isEmpty() && stream != null)
+				scheduleDrain();
+		}
+	}
+
+	/**
+	 * Counts a message received, here and in the server's metrics.
+	 */
+	void messageReceived(long bytes) {
+		if (!receivedSinceCheck)
+			receivedSinceCheck = true;
+		messagesReceived.increment();
+		bytesReceived.add(bytes);
+		server.messagesReceived.increment();
+		server.bytesReceived.add(bytes);
+	}
+
+	/**
+	 * Counts a message written, here and in the server's metrics.
+	 */
+	void messageSent(long bytes) {
+		if (!sentSinceHeartbeat)
+			sentSinceHeartbeat = true;
+		messagesSent.increment();
+		bytesSent.add(bytes);
+		server.messagesSent.increment();
+		server.bytesSent.add(bytes);
+	}
+
+	/**
+	 * Counts a heartbeat received. Like a message, it shows that the client
+	 * is still there.
+	 */
+	void heartbeatReceived(long bytes) {
+		if (!receivedSinceCheck)
+			receivedSinceCheck = true;
+		bytesReceived.add(bytes);
+		server.heartbeatsReceived.increment();
+		server.bytesReceived.add(bytes);
+	}
+
+	/**
+	 * Counts a heartbeat written. It is not a message, so it does not put off
+	 * the next heartbeat.
+	 */
+	void heartbeatSent(long bytes) {
+		bytesSent.add(bytes);
+		server.heartbeatsSent.increment();
+		server.bytesSent.add(bytes);
+	}
+
+	/**
+	 * Charges a message received to the client's rate limit. If it goes over
+	 * budget, the throttle is counted and reported to the server's
+	 * <code>clientThrottled</code> hook, and the caller must stop reading
+	 * for the time returned.
+	 * 
+	 * @return how long to stop reading, in nanoseconds, or 0.
+	 */
+	long throttle(long bytes) {
+		TokenBucket bucket = rateBucket;
+		if (bucket == null)
+			return 0;
+
+		long pause = bucket.take(bytes);
+		if (pause > 0)
+			server.receiveThrottleFromClient(TimeUnit.NANOSECONDS.toMillis(pause) + 1, this);
+		return pause;
+	}
+
+	/**
+	 * Counts a message handed to the dispatcher.
+	 */
+	void messageDispatched() {
+		synchronized (backlogLock) {
+			dispatchBacklog++;
+		}
+	}
+
+	/**
+	 * Counts a message handled, and has the connection read again if it
+	 * stopped because too many were waiting and enough are done.
+	 */
+	void messageHandled() {
+		synchronized (backlogLock) {
+			dispatchBacklog--;
+			if (!readPaused || dispatchBacklog > MessageDispatcher.BACKLOG_LOW_WATER)
+				return;
+			readPaused = false;
+			if (session == null)
+				backlogLock.notifyAll();
+		}
+		if (session != null)
+			session.backlogDrained();
+	}
+
+	/**
+	 * Checks whether too many messages of the client are waiting to be
+	 * handled. If so, the caller must stop reading until
+	 * <code>messageHandled</code> says otherwise.
+	 * 
+	 * @return true if reading must stop.
+	 */
+	boolean pauseIfBacklogged() {
+		synchronized (backlogLock) {
+			if (dispatchBacklog < MessageDispatcher.BACKLOG_HIGH_WATER)
+				return false;
+			readPaused = true;
+		}
+		server.backlogPauses.increment();
+		return true;
+	}
+
+	/**
+	 * Blocks the classic reader while too many messages of the client are
+	 * waiting to be handled, so that TCP holds the client back, as it did
+	 * when the reader handled each message itself.
+	 */
+	private void awaitBacklog() throws InterruptedException {
+		if (!pauseIfBacklogged())
+			return;
+		synchronized (backlogLock) {
+			while (readPaused && !readyToStop)
+				backlogLock.wait();
+		}
+	}
+
+	/**
+	 * Schedules the first heartbeat and idle check, if the server asks for
+	 * them.
+	 */
+	private void startTimers() {
+		long heartbeatMillis = server.getHeartbeatInterval();
+		if (heartbeatMillis > 0)
+			heartbeatTimeout = TimerWheel.shared().schedule(() -> heartbeat(heartbeatMillis), heartbeatMillis,
+					TimeUnit.MILLISECONDS);
+
+		long idleMillis = server.getIdleTimeout();
+		if (idleMillis > 0) {
+			lastActiveNanos = System.nanoTime();
+			idleTimeout = TimerWheel.shared().schedule(() -> checkIdle(idleMillis), idleCheckPeriod(idleMillis),
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void cancelTimers() {
+		TimerWheel.Timeout timeout = heartbeatTimeout;
+		if (timeout != null)
+			timeout.cancel();
+		timeout = idleTimeout;
+		if (timeout != null)
+			timeout.cancel();
+	}
+
+	/**
+	 * Queues a heartbeat unless a message went to the client since the last
+	 * one, or is waiting to go, then schedules the next. Runs on the timer
+	 * wheel.
+	 */
+	private void heartbeat(long millis) {
+		if (readyToStop)
+			return;
+
+		if (!sentSinceHeartbeat && outbound.isEmpty()) {
+			try {
+				enqueue(session == null ? Heartbeat.INSTANCE : Heartbeat.frame(), false);
+			} catch (IOException ex) {
+				return; // the connection was closed
+			}
+		}
+		sentSinceHeartbeat = false;
+		heartbeatTimeout = TimerWheel.shared().schedule(() -> heartbeat(millis), millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Closes the connection if nothing arrived from the client for the idle
+	 * timeout, and otherwise schedules the next check. Runs on the timer
+	 * wheel, a fraction of the timeout apart, so that a connection is
+	 * evicted at most that fraction late.
+	 */
+	private void checkIdle(long millis) {
+		if (readyToStop)
+			return;
+
+		long now = System.nanoTime();
+		if (receivedSinceCheck) {
+			receivedSinceCheck = false;
+			lastActiveNanos = now;
+		} else if (now - lastActiveNanos >= TimeUnit.MILLISECONDS.toNanos(millis)) {
+			// Closing calls hooks, which may block
+			TimerWheel.blockingExecutor().execute(() -> evictIdle(millis));
+			return;
+		}
+		idleTimeout = TimerWheel.shared().schedule(() -> checkIdle(millis), idleCheckPeriod(millis),
+				TimeUnit.MILLISECONDS);
+	}
+
+	private void evictIdle(long millis) {
+		if (readyToStop)
+			return;
+		server.idleEvictions.increment();
+		transportFailed(new SocketTimeoutException("nothing received from the client for " + millis + " ms"));
+	}
+
+	private static long idleCheckPeriod(long idleMillis) {
+		return Math.max(idleMillis / 4, 1);
+	}
+
+	/**
+	 * Called by the NIO engine when reading, decoding or writing fails, and by
+	 * the server when a handler throws. Does the same as the end of the
+	 * <code>run</code> method of a classic connection, and makes sure the
+	 * failure is reported only once.
+	 * 
+	 * @param exception
+	 *            the exception raised.
+	 */
+	void transportFailed(Exception exception) {
+		if (!readyToStop) {
+			readyToStop = true;
+			outbound.clear();
+			try {
+				closeAll();
+			} catch (Exception ex) {
+			}
+
+			server.receiveExceptionFromClient(exception, this);
+		}
+	}
+
 	/**
 	 * Closes all connection to the server.
 	 * 
@@ -234,25 +889,30 @@ public class ConnectionToClient extends Thread {
 	 *                if an I/O error occur when closing the connection.
 	 */
 	private void closeAll() throws IOException {
+		server.removeClientConnection(this);
+		cancelTimers();
+		// A reader waiting for the backlog to drain has nothing left to read
+		synchronized (backlogLock) {
+			backlogLock.notifyAll();
+		}
 		try {
+			// Let the engine close the channel
+			if (session != null)
+				session.close();
+
 			// Close the socket
 			if (clientSocket != null)
 				clientSocket.close();
 
-			// Close the output stream
-			if (output != null)
-				output.close();
-
-			// Close the input stream
-			if (input != null)
-				input.close();
+			// Close the message stream
+			if (stream != null)
+				stream.close();
 		} finally {
 			// Set the streams and the sockets to NULL no matter what
 			// Doing so allows, but does not require, any finalizers
 			// of these objects to reclaim system resources if and
 			// when they are garbage collected.
-			output = null;
-			input = null;
+			stream = null;
 			clientSocket = null;
 		}
 	}
@@ -0,0 +1,167 @@
+package ocsf.server;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs the handling of client messages on a pool of worker threads. Each
+ * client has its own serial queue, so its messages are handled one at a time
+ * and in the order they were received, while messages of different clients
+ * are handled in parallel. In global ordering mode every client shares a
+ * single queue and each task runs while holding the server's monitor, which is
+ * what OCSF did before dispatching was introduced.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setDispatchThreads(int)
+ * @see ocsf.server.AbstractServer#setGlobalOrdering(boolean)
+ */
+final class MessageDispatcher {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of tasks a queue runs before giving its worker back to the
+	 * pool, so that one busy client cannot starve the others.
+	 */
+	private static final int	BATCH_SIZE	= 64;
+
+	/**
+	 * How many messages of one client can wait to be handled before its
+	 * connection stops being read, and how few must be left for reading to
+	 * resume. Without this a client sending faster than its handler keeps
+	 * up would fill the heap, since reading no longer waits for handling.
+	 */
+	static final int			BACKLOG_HIGH_WATER	= 1024;
+	static final int			BACKLOG_LOW_WATER	= 256;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The server whose monitor is held in global ordering mode.
+	 */
+	private final AbstractServer	server;
+
+	/**
+	 * The worker threads.
+	 */
+	private final ExecutorService	workers;
+
+	/**
+	 * The queue shared by every client in global ordering mode, null
+	 * otherwise.
+	 */
+	private final SerialQueue		globalQueue;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a dispatcher and starts its workers.
+	 *
+	 * @param server
+	 *            the server whose messages are dispatched.
+	 * @param threads
+	 *            the number of worker threads.
+	 * @param globalOrdering
+	 *            true to handle every message one at a time, in arrival
+	 *            order, under the server's monitor.
+	 */
+	MessageDispatcher(AbstractServer server, int threads, boolean globalOrdering) {
+		this.server = server;
+
+		AtomicInteger count = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(threads, task -> {
+			Thread thread = new Thread(task, "OCSF dispatcher " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.globalQueue = globalOrdering ? new SerialQueue() : null;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Queues a task on behalf of a client. Tasks of the same client run in
+	 * the order they were queued.
+	 *
+	 * @param client
+	 *            the client the task belongs to.
+	 * @param task
+	 *            the task to run.
+	 */
+	void dispatch(ConnectionToClient client, Runnable task) {
+		SerialQueue queue = globalQueue;
+		if (queue == null) {
+			queue = client.dispatchQueue;
+			if (queue == null || queue.getDispatcher() != this) {
+				synchronized (this) {
+					queue = client.dispatchQueue;
+					if (queue == null || queue.getDispatcher() != this) {
+						queue = new SerialQueue();
+						client.dispatchQueue = queue;
+					}
+				}
+			}
+		}
+		queue.execute(task);
+	}
+
+	/**
+	 * Stops the workers once the tasks already queued have run.
+	 */
+	void shutdown() {
+		workers.shutdown();
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A queue of tasks that run one at a time on the dispatcher's workers.
+	 * At most one worker drains a given queue at any moment.
+	 */
+	final class SerialQueue implements Runnable {
+		private final Queue<Runnable>	tasks		= new ConcurrentLinkedQueue<Runnable>();
+		private final AtomicBoolean		scheduled	= new AtomicBoolean();
+
+		MessageDispatcher getDispatcher() {
+			return MessageDispatcher.this;
+		}
+
+		void execute(Runnable task) {
+			tasks.add(task);
+			schedule();
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					workers.execute(this);
+				} catch (RejectedExecutionException ex) {
+					// The server was closed; drop what is left
+					tasks.clear();
+				}
+			}
+		}
+
+		public void run() {
+			try {
+				Runnable task;
+				for (int i = 0; i < BATCH_SIZE && (task = tasks.poll()) != null; i++) {
+					if (globalQueue != null) {
+						synchronized (server) {
+							task.run();
+						}
+					} else {
+						task.run();
+					}
+				}
+			} finally {
+				scheduled.set(false);
+				if (!tasks.isEmpty())
+					schedule();
+			}
+		}
+	}
+}
+// End of MessageDispatcher class
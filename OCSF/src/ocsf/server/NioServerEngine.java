@@ -0,0 +1,563 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import ocsf.common.*;
+
+/**
+ * The selector-based server engine. Instead of one reading thread per
+ * <code>ConnectionToClient</code>, a small fixed set of event loops, each
+ * owning a <code>Selector</code>, reads and writes every connection in
+ * non-blocking mode. Messages travel as frames (see
+ * {@link ocsf.common.Frames}) in a codec negotiated when the connection opens
+ * (see {@link ocsf.common.Handshake}); clients must therefore offer codecs
+ * with <code>AbstractClient.setCodecs</code>. A connection is announced to
+ * <code>clientConnected</code> once its codec is agreed.
+ * <p>
+ * The hook methods of <code>AbstractServer</code> are called exactly as with
+ * the classic engine, but from an event loop thread. A hook that blocks
+ * therefore delays every connection served by the same loop.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setNioEventLoops(int)
+ */
+final class NioServerEngine {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The most frames handed to the socket by one gathering write.
+	 */
+	private static final int				WRITE_BATCH	= 64;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The server whose hooks are called.
+	 */
+	private final AbstractServer			server;
+
+	/**
+	 * The event loops. Connections are spread over them round-robin.
+	 */
+	private final EventLoop[]				loops;
+
+	/**
+	 * Index of the loop that gets the next accepted connection.
+	 */
+	private final AtomicInteger				nextLoop	= new AtomicInteger();
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs the engine and its selectors. The loops do not run until
+	 * {@link #start()} is called.
+	 *
+	 * @param server
+	 *            the server whose hooks are called.
+	 * @param threads
+	 *            the number of event loops.
+	 * @exception IOException
+	 *                if a selector cannot be opened.
+	 */
+	NioServerEngine(AbstractServer server, int threads) throws IOException {
+		this.server = server;
+		this.loops = new EventLoop[threads];
+
+		for (int i = 0; i < threads; i++)
+			loops[i] = new EventLoop(i);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Starts every event loop.
+	 */
+	void start() {
+		for (EventLoop loop : loops)
+			loop.thread.start();
+	}
+
+	/**
+	 * Stops every event loop. Connections should be closed beforehand.
+	 */
+	void shutdown() {
+		for (EventLoop loop : loops)
+			loop.shutdown();
+	}
+
+	/**
+	 * Hands an accepted channel to the next event loop. A channel that cannot
+	 * be made non-blocking is closed.
+	 *
+	 * @param channel
+	 *            the accepted channel.
+	 */
+	void register(SocketChannel channel) {
+		try {
+			channel.configureBlocking(false);
+		} catch (IOException ex) {
+			try {
+				channel.close();
+			} catch (IOException exc) {
+			}
+			return;
+		}
+
+		EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+		loop.execute(() -> loop.open(channel));
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A thread multiplexing many connections over one selector. Other threads
+	 * never touch the selector directly; they submit tasks instead.
+	 */
+	final class EventLoop implements Runnable {
+		private final Selector			selector;
+		private final Thread			thread;
+		private final Queue<Runnable>	tasks	= new ConcurrentLinkedQueue<Runnable>();
+		private volatile boolean		running	= true;
+
+		EventLoop(int index) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, "OCSF event loop " + index);
+			thread.setDaemon(true);
+		}
+
+		/**
+		 * Runs a task on this loop's thread.
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		/**
+		 * Registers an accepted channel, whose hello is then awaited. Runs on
+		 * this loop.
+		 */
+		void open(SocketChannel channel) {
+			Session session = new Session(this, channel);
+			try {
+				session.key = channel.register(selector, SelectionKey.OP_READ, session);
+				session.helloDeadline = server.startHandshake(() -> execute(session::helloTimedOut));
+			} catch (IOException ex) {
+				try {
+					channel.close();
+				} catch (IOException exc) {
+				}
+			}
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+
+					Runnable task;
+					while ((task = tasks.poll()) != null)
+						task.run();
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+
+						Session session = (Session) key.attachment();
+						if (key.isValid() && key.isReadable())
+							session.read();
+						if (key.isValid() && key.isWritable())
+							session.flush();
+					}
+				}
+			} catch (IOException exception) {
+				// The selector itself failed; nothing more can be served here
+				server.listeningException(exception);
+			} finally {
+				// Close what closing the server left open, such as channels
+				// that never completed their handshake
+				for (SelectionKey key : selector.keys()) {
+					try {
+						key.channel().close();
+					} catch (IOException ex) {
+					}
+				}
+				try {
+					selector.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * The non-blocking state of one connection.
+	 */
+	final class Session {
+		final EventLoop					loop;
+		final SocketChannel				channel;
+		SelectionKey					key;
+
+		/**
+		 * The codec agreed with the client, null until the handshake is
+		 * complete.
+		 */
+		FrameCodec						codec;
+
+		/**
+		 * The connection handed to the server's hooks, null until the
+		 * handshake is complete.
+		 */
+		ConnectionToClient				connection;
+
+		/**
+		 * Bytes read but not yet decoded. Always left in write mode.
+		 */
+		private ByteBuffer				readBuffer		= ByteBuffer.allocate(8192);
+
+		/**
+		 * Frames taken from the connection's outbound queue but not yet
+		 * fully accepted by the socket, from <code>batchStart</code> to
+		 * <code>batchEnd</code>.
+		 */
+		private final ByteBuffer[]		batch			= new ByteBuffer[WRITE_BATCH];
+		private int						batchStart;
+		private int						batchEnd;
+
+		/**
+		 * The answer to the client's hello, the first frame written, which
+		 * is not a message.
+		 */
+		private ByteBuffer				handshakeReply;
+
+		/**
+		 * Set while a flush task is pending on the loop, so that a burst of
+		 * sends wakes the selector only once.
+		 */
+		private final AtomicBoolean		flushScheduled	= new AtomicBoolean();
+
+		/**
+		 * True while the client is over its rate limit, during which the
+		 * socket is not read. Only used by the loop.
+		 */
+		private boolean					throttled;
+
+		/**
+		 * True while too many of the client's messages wait to be handled,
+		 * during which the socket is not read either. Only used by the loop.
+		 */
+		private boolean					backlogged;
+
+		/**
+		 * The deadline of the client's hello, on the timer wheel, and
+		 * whether it is still awaited. Only used by the loop.
+		 */
+		private TimerWheel.Timeout		helloDeadline;
+		private boolean					awaitingHello	= true;
+
+		Session(EventLoop loop, SocketChannel channel) {
+			this.loop = loop;
+			this.channel = channel;
+		}
+
+		/**
+		 * Makes sure the loop will write what was added to the connection's
+		 * outbound queue. May be called from any thread.
+		 */
+		void scheduleFlush() {
+			if (flushScheduled.compareAndSet(false, true))
+				loop.execute(this::flush);
+		}
+
+		/**
+		 * @return true if the caller is this session's event loop.
+		 */
+		boolean isLoopThread() {
+			return Thread.currentThread() == loop.thread;
+		}
+
+		/**
+		 * Closes the channel. May be called from any thread; the selector
+		 * drops the cancelled key on its next pass.
+		 */
+		void close() throws IOException {
+			connection.outbound.clear();
+			channel.close();
+		}
+
+		/**
+		 * Reads what is available and dispatches every complete frame. Runs
+		 * on the loop.
+		 */
+		void read() {
+			try {
+				if (channel.read(readBuffer) < 0)
+					throw new EOFException("connection closed by client");
+				readFrames();
+			} catch (Exception exception) {
+				if (connection != null) {
+					connection.transportFailed(exception);
+				} else {
+					// Never announced, so there is no one to tell
+					helloEnded(false);
+					try {
+						channel.close();
+					} catch (IOException ex) {
+					}
+				}
+			}
+		}
+
+		/**
+		 * Records the end of the wait for the hello, once.
+		 */
+		private void helloEnded(boolean completed) {
+			if (awaitingHello) {
+				awaitingHello = false;
+				server.endHandshake(helloDeadline, completed);
+			}
+		}
+
+		/**
+		 * Closes the channel of a client that did not complete its hello in
+		 * time. Runs on the loop.
+		 */
+		private void helloTimedOut() {
+			if (!awaitingHello)
+				return;
+			server.handshakeTimeouts.increment();
+			helloEnded(false);
+			try {
+				channel.close();
+			} catch (IOException ex) {
+			}
+		}
+
+		/**
+		 * Dispatches every complete frame in the read buffer, unless the
+		 * client goes over its rate limit or too many of its messages wait
+		 * to be handled, in which case the remaining frames wait in the
+		 * buffer, the socket is left unread, and reading resumes once the
+		 * client is within budget and its handlers have caught up.
+		 */
+		private void readFrames() throws IOException, ClassNotFoundException {
+			readBuffer.flip();
+			int needed = 0;
+			if (codec == null)
+				needed = readHello();
+
+			while (codec != null && readBuffer.remaining() >= Frames.HEADER_LENGTH) {
+				int length = readBuffer.getInt(readBuffer.position());
+				Frames.checkLength(length);
+				if (readBuffer.remaining() < Frames.HEADER_LENGTH + length) {
+					needed = Frames.HEADER_LENGTH + length;
+					break;
+				}
+
+				int start = readBuffer.position() + Frames.HEADER_LENGTH;
+				readBuffer.position(start + length);
+				if (length == 0) {
+					// An empty frame is a heartbeat, not a message
+					connection.heartbeatReceived(Frames.HEADER_LENGTH);
+					continue;
+				}
+				Object msg = codec.decode(readBuffer.array(), start, length);
+				connection.messageReceived(Frames.HEADER_LENGTH + length);
+				server.receiveMessageFromClient(msg, connection);
+
+				// Handlers run on the dispatcher's workers, one of which may
+				// have closed the connection meanwhile, as may closing the
+				// server or an overflowing outbound queue: stop dispatching
+				if (!channel.isOpen())
+					return;
+
+				long pause = connection.throttle(Frames.HEADER_LENGTH + length);
+				if (pause > 0) {
+					throttle(pause);
+					break;
+				}
+				if (connection.pauseIfBacklogged()) {
+					backlogged = true;
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+					break;
+				}
+			}
+
+			if (needed > readBuffer.capacity()) {
+				ByteBuffer bigger = ByteBuffer.allocate(needed);
+				bigger.put(readBuffer);
+				readBuffer = bigger;
+			} else {
+				readBuffer.compact();
+			}
+		}
+
+		/**
+		 * Stops reading the socket for a while. Runs on the loop.
+		 */
+		private void throttle(long pauseNanos) {
+			throttled = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			TimerWheel.shared().schedule(() -> loop.execute(this::resume), pauseNanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Ends a throttle. Runs on the loop.
+		 */
+		private void resume() {
+			throttled = false;
+			readAgain();
+		}
+
+		/**
+		 * Has the loop read again once the client's handlers have caught
+		 * up. May be called from any thread.
+		 */
+		void backlogDrained() {
+			loop.execute(() -> {
+				backlogged = false;
+				readAgain();
+			});
+		}
+
+		/**
+		 * Dispatches the frames left in the read buffer when reading
+		 * stopped, then reads the socket again unless that stops it anew,
+		 * or it is still stopped for the other reason. Runs on the loop.
+		 */
+		private void readAgain() {
+			if (throttled || backlogged || !key.isValid())
+				return; // still stopped, or closed meanwhile
+			try {
+				readFrames();
+				if (readInterest() != 0 && key.isValid())
+					key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			} catch (CancelledKeyException ex) {
+				// Closed by the handler
+			} catch (Exception exception) {
+				connection.transportFailed(exception);
+			}
+		}
+
+		/**
+		 * @return the read interest of the key, none while reading is
+		 *         stopped.
+		 */
+		private int readInterest() {
+			return throttled || backlogged ? 0 : SelectionKey.OP_READ;
+		}
+
+		/**
+		 * Consumes the client's hello if it is complete, answers it, and
+		 * announces the connection.
+		 *
+		 * @return 0 once done, or the number of bytes the hello needs.
+		 */
+		private int readHello() throws IOException {
+			// The magic comes first: an object stream client sends only its
+			// four byte header, then waits for ours, so it is turned away
+			// before the rest of a hello is waited for
+			if (readBuffer.remaining() < 4)
+				return 4;
+
+			int start = readBuffer.position();
+			int magic = readBuffer.getInt(start);
+			if (magic == Handshake.OBJECT_STREAM_MAGIC)
+				throw new StreamCorruptedException("object stream clients need the classic engine");
+			if (magic != Handshake.MAGIC)
+				throw new StreamCorruptedException("unknown protocol");
+
+			if (readBuffer.remaining() < Handshake.HELLO_HEADER_LENGTH)
+				return Handshake.HELLO_HEADER_LENGTH;
+
+			int flags = readBuffer.get(start + Handshake.HELLO_HEADER_LENGTH - 2) & 0xFF;
+			int count = readBuffer.get(start + Handshake.HELLO_HEADER_LENGTH - 1) & 0xFF;
+			boolean asksCompression = (flags & Handshake.FLAG_COMPRESSION) != 0;
+			int length = Handshake.HELLO_HEADER_LENGTH + count + (asksCompression ? Handshake.DICTIONARY_ID_LENGTH : 0);
+			if (readBuffer.remaining() < length)
+				return length;
+
+			byte[] offered = new byte[count];
+			readBuffer.position(start + Handshake.HELLO_HEADER_LENGTH);
+			readBuffer.get(offered);
+			Compression compression = server.getCompression();
+			boolean compressed = asksCompression && Handshake.agreesOn(compression, readBuffer.getInt());
+
+			codec = Handshake.chooseCodec(offered, server.getCodecs());
+			helloEnded(codec != null);
+			if (codec == null) {
+				channel.write(ByteBuffer.wrap(Handshake.reply(null, false)));
+				throw new IOException("no codec in common with the client");
+			}
+			byte[] reply = Handshake.reply(codec, compressed);
+			if (compressed)
+				codec = compression.wrap(codec);
+
+			// The answer goes first, ahead of anything the hooks send
+			connection = new ConnectionToClient(this, server);
+			handshakeReply = ByteBuffer.wrap(reply);
+			connection.outbound.offer(handshakeReply, true);
+			server.addClientConnection(connection);
+			server.clientConnected(connection);
+			flush();
+			return 0;
+		}
+
+		/**
+		 * Writes queued frames until the queue is empty or the socket buffer
+		 * is full, in which case the loop waits for the channel to become
+		 * writable. Queued frames are handed to the socket together, so a
+		 * burst of small messages costs one system call. Runs on the loop.
+		 */
+		void flush() {
+			flushScheduled.set(false);
+			OutboundQueue outbound = connection.outbound;
+			try {
+				while (true) {
+					if (batchStart == batchEnd) {
+						batchStart = batchEnd = 0;
+						ByteBuffer frame;
+						while (batchEnd < WRITE_BATCH && (frame = (ByteBuffer) outbound.poll()) != null)
+							batch[batchEnd++] = frame;
+						if (batchEnd == 0)
+							break;
+					}
+
+					channel.write(batch, batchStart, batchEnd - batchStart);
+					while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+						ByteBuffer frame = batch[batchStart];
+						batch[batchStart++] = null;
+						if (frame.limit() == Frames.HEADER_LENGTH)
+							connection.heartbeatSent(frame.limit());
+						else if (frame != handshakeReply)
+							connection.messageSent(frame.limit());
+						outbound.written();
+					}
+					if (batchStart < batchEnd) {
+						key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+				key.interestOps(readInterest());
+			} catch (CancelledKeyException ex) {
+				// Closed by another thread; nothing left to write
+			} catch (IOException exception) {
+				connection.transportFailed(exception);
+			}
+		}
+	}
+}
+// End of NioServerEngine class
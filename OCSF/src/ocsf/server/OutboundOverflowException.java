@@ -0,0 +1,27 @@
+package ocsf.server;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a message is sent to a client whose outbound queue is full and
+ * whose overflow policy is {@link OverflowPolicy#DISCONNECT}. The connection
+ * is closed and the same exception is passed to the server's
+ * <code>clientException</code> hook.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class OutboundOverflowException extends IOException {
+	private static final long	serialVersionUID	= 1L;
+
+	/**
+	 * Constructs the exception.
+	 *
+	 * @param capacity
+	 *            the capacity of the queue that overflowed.
+	 */
+	public OutboundOverflowException(int capacity) {
+		super("outbound queue full (" + capacity + " messages); client is not reading");
+	}
+}
+// End of OutboundOverflowException class
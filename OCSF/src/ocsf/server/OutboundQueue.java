@@ -0,0 +1,182 @@
+package ocsf.server;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * The bounded queue of messages waiting to be written to one client. Senders
+ * add to it without blocking; a single writer removes from it. When the queue
+ * is full, its {@link OverflowPolicy} decides what gives, among the plain
+ * messages only: control items, such as the handshake reply, a stream reset
+ * or the reply to a request, are never dropped, since the client would
+ * wait for them forever.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+final class OutboundQueue {
+	// INSTANCE VARIABLES ***********************************************
+
+	private final ArrayDeque<Object>	items		= new ArrayDeque<Object>();
+	private final int					capacity;
+	private final OverflowPolicy		policy;
+
+	/**
+	 * The queued items that must not be dropped, by identity: frames of
+	 * equal bytes can be one plain and one not.
+	 */
+	private final Set<Object>			controls	= Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+	/**
+	 * Items taken by the writer but not yet reported written.
+	 */
+	private int							inFlight;
+
+	/**
+	 * The largest number of items ever queued at once.
+	 */
+	private int							highWaterMark;
+
+	/**
+	 * The number of items discarded because the queue was full.
+	 */
+	private long						dropCount;
+
+	// CONSTRUCTORS *****************************************************
+
+	OutboundQueue(int capacity, OverflowPolicy policy) {
+		this.capacity = capacity;
+		this.policy = policy;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Adds an item, applying the overflow policy if the queue is full. A
+	 * control item is never dropped: it is queued past the capacity if
+	 * nothing else can make room.
+	 *
+	 * @param control
+	 *            true if the item must not be dropped.
+	 * @return false if the queue is full and the policy is
+	 *         <code>DISCONNECT</code>.
+	 */
+	synchronized boolean offer(Object item, boolean control) {
+		if (items.size() >= capacity) {
+			switch (policy) {
+			case DROP_OLDEST:
+				if (dropOldestPlain() || control)
+					break;
+				dropCount++;
+				return true; // only control items queued
+			case DROP_NEWEST:
+				if (control)
+					break;
+				dropCount++;
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		if (control)
+			controls.add(item);
+		items.add(item);
+		if (items.size() > highWaterMark)
+			highWaterMark = items.size();
+		return true;
+	}
+
+	/**
+	 * Discards the oldest queued item that is not a control item.
+	 *
+	 * @return false if there is none.
+	 */
+	private boolean dropOldestPlain() {
+		for (Iterator<Object> it = items.iterator(); it.hasNext();) {
+			if (!controls.contains(it.next())) {
+				it.remove();
+				dropCount++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Takes the next item to write. The writer must call {@link #written()}
+	 * once it is done with it.
+	 *
+	 * @return the item, or null if the queue is empty.
+	 */
+	synchronized Object poll() {
+		Object item = items.poll();
+		if (item != null) {
+			inFlight++;
+			if (!controls.isEmpty())
+				controls.remove(item);
+		}
+		return item;
+	}
+
+	/**
+	 * Reports that an item taken with {@link #poll()} has been written.
+	 */
+	synchronized void written() {
+		if (inFlight > 0)
+			inFlight--;
+		if (inFlight == 0 && items.isEmpty())
+			notifyAll();
+	}
+
+	/**
+	 * Discards every queued item, e.g. when the connection has failed.
+	 */
+	synchronized void clear() {
+		items.clear();
+		controls.clear();
+		inFlight = 0;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until every queued item has been written.
+	 *
+	 * @param millis
+	 *            the longest time to wait.
+	 * @return true if the queue is empty.
+	 */
+	synchronized boolean awaitEmpty(long millis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + millis;
+		long remaining = millis;
+		while ((inFlight > 0 || !items.isEmpty()) && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return inFlight == 0 && items.isEmpty();
+	}
+
+	synchronized boolean isEmpty() {
+		return items.isEmpty();
+	}
+
+	synchronized int size() {
+		return items.size();
+	}
+
+	synchronized int getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	synchronized long getDropCount() {
+		return dropCount;
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+}
+// End of OutboundQueue class
@@ -0,0 +1,32 @@
+package ocsf.server;
+
+/**
+ * What a connection does when its outbound queue is full, i.e. when the
+ * client reads more slowly than the server sends to it. The dropping
+ * policies only drop plain messages: the handshake reply, stream resets
+ * and replies to requests are always kept.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setOverflowPolicy(OverflowPolicy)
+ */
+public enum OverflowPolicy {
+	/**
+	 * Discard the oldest queued plain message to make room for the new one.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Discard the new message.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Close the connection and report an
+	 * {@link OutboundOverflowException} through
+	 * <code>clientException</code>.
+	 */
+	DISCONNECT
+}
+// End of OverflowPolicy enum
@@ -0,0 +1,132 @@
+package ocsf.server;
+
+/**
+ * How much a client may send: a number of messages and a number of bytes per
+ * second, each enforced by a token bucket. A client may send a burst of up to
+ * the budget of the burst period at once, then has to slow down to the rate.
+ * A client that goes over its budget is not disconnected: the server stops
+ * reading from its socket until the budget allows the next message, so that
+ * TCP pushes back on the client instead of the server queuing its messages.
+ * <p>
+ * Limits are immutable and may be shared by any number of connections.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setRateLimit(RateLimit)
+ */
+public final class RateLimit {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The period whose budget a client may send at once, unless told
+	 * otherwise.
+	 */
+	public static final long		DEFAULT_BURST_MILLIS	= 1000;
+
+	/**
+	 * Reads everything a client sends as fast as it arrives. The default.
+	 */
+	private static final RateLimit	UNLIMITED				= new RateLimit(0, 0, 0);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final double			messagesPerSecond;
+	private final long				bytesPerSecond;
+	private final long				burstMillis;
+
+	// CONSTRUCTORS *****************************************************
+
+	private RateLimit(double messagesPerSecond, long bytesPerSecond, long burstMillis) {
+		this.messagesPerSecond = messagesPerSecond;
+		this.bytesPerSecond = bytesPerSecond;
+		this.burstMillis = burstMillis;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns the limit that never holds a client back.
+	 *
+	 * @return the unlimited rate.
+	 */
+	public static RateLimit unlimited() {
+		return UNLIMITED;
+	}
+
+	/**
+	 * Returns a limit with bursts of up to {@link #DEFAULT_BURST_MILLIS} of
+	 * budget.
+	 *
+	 * @param messages
+	 *            the messages allowed per second, or 0 for no limit.
+	 * @param bytes
+	 *            the bytes allowed per second, or 0 for no limit.
+	 * @return the rate limit.
+	 */
+	public static RateLimit perSecond(double messages, long bytes) {
+		return perSecond(messages, bytes, DEFAULT_BURST_MILLIS);
+	}
+
+	/**
+	 * Returns a limit.
+	 *
+	 * @param messages
+	 *            the messages allowed per second, or 0 for no limit.
+	 * @param bytes
+	 *            the bytes allowed per second, or 0 for no limit.
+	 * @param burstMillis
+	 *            the period whose budget may be sent at once, in
+	 *            milliseconds.
+	 * @return the rate limit.
+	 */
+	public static RateLimit perSecond(double messages, long bytes, long burstMillis) {
+		if (!(messages >= 0))
+			throw new IllegalArgumentException("messages < 0");
+		if (bytes < 0)
+			throw new IllegalArgumentException("bytes < 0");
+		if (burstMillis < 1)
+			throw new IllegalArgumentException("burstMillis < 1");
+		if (messages == 0 && bytes == 0)
+			return UNLIMITED;
+		return new RateLimit(messages, bytes, burstMillis);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return true if clients are never held back.
+	 */
+	public boolean isUnlimited() {
+		return messagesPerSecond == 0 && bytesPerSecond == 0;
+	}
+
+	/**
+	 * @return the messages allowed per second, or 0 for no limit.
+	 */
+	public double getMessagesPerSecond() {
+		return messagesPerSecond;
+	}
+
+	/**
+	 * @return the bytes allowed per second, or 0 for no limit.
+	 */
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * @return the period whose budget may be sent at once, in milliseconds.
+	 */
+	public long getBurstMillis() {
+		return burstMillis;
+	}
+
+	public String toString() {
+		if (isUnlimited())
+			return "unlimited";
+		return "perSecond(" + (messagesPerSecond == 0 ? "any" : messagesPerSecond) + " messages, "
+				+ (bytesPerSecond == 0 ? "any" : bytesPerSecond) + " bytes, burst " + burstMillis + " ms)";
+	}
+}
+// End of RateLimit class
@@ -0,0 +1,91 @@
+package ocsf.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The budget left to one client under a {@link RateLimit}: a bucket of
+ * message tokens and a bucket of byte tokens, refilled at the rate of the
+ * limit up to the budget of its burst period. A message is always let in,
+ * since it has already been read; it may take a bucket below zero, and the
+ * client is then paused until the debt is paid back.
+ * <p>
+ * Only used by the thread reading from the client, so not thread-safe.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+final class TokenBucket {
+	// INSTANCE VARIABLES ***********************************************
+
+	private final RateLimit	limit;
+
+	private final double	messageCapacity;
+	private final double	byteCapacity;
+
+	private double			messageTokens;
+	private double			byteTokens;
+
+	/**
+	 * When the buckets were last refilled.
+	 */
+	private long			lastNanos;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs full buckets.
+	 *
+	 * @param limit
+	 *            a limit that is not unlimited.
+	 */
+	TokenBucket(RateLimit limit) {
+		this.limit = limit;
+		double burstSeconds = limit.getBurstMillis() / 1000.0;
+		messageCapacity = Math.max(limit.getMessagesPerSecond() * burstSeconds, 1);
+		byteCapacity = Math.max(limit.getBytesPerSecond() * burstSeconds, 1);
+		messageTokens = messageCapacity;
+		byteTokens = byteCapacity;
+		lastNanos = System.nanoTime();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	RateLimit getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Takes the tokens of a message received.
+	 *
+	 * @param bytes
+	 *            the size of the message.
+	 * @return how long to stop reading before the next message is within
+	 *         budget, in nanoseconds, or 0 if it already is.
+	 */
+	long take(long bytes) {
+		long now = System.nanoTime();
+		double elapsed = (now - lastNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+		lastNanos = now;
+
+		long pause = 0;
+		double messageRate = limit.getMessagesPerSecond();
+		if (messageRate > 0) {
+			messageTokens = Math.min(messageTokens + elapsed * messageRate, messageCapacity) - 1;
+			// The next message needs a whole token
+			if (messageTokens < 0)
+				pause = Math.max(pause, toNanos(-messageTokens / messageRate));
+		}
+		long byteRate = limit.getBytesPerSecond();
+		if (byteRate > 0) {
+			byteTokens = Math.min(byteTokens + elapsed * byteRate, byteCapacity) - bytes;
+			if (byteTokens < 0)
+				pause = Math.max(pause, toNanos(-byteTokens / byteRate));
+		}
+		return pause;
+	}
+
+	private static long toNanos(double seconds) {
+		return (long) Math.ceil(seconds * TimeUnit.SECONDS.toNanos(1));
+	}
+}
+// End of TokenBucket class
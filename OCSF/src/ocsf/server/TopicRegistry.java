@@ -0,0 +1,143 @@
+package ocsf.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The topics clients of a server have joined, such as chat rooms. Each topic
+ * keeps its members in a copy-on-write array, so publishing to a topic visits
+ * its members only, without locking or allocating. Each connection keeps the
+ * names of the topics it joined, so closing it leaves them in time
+ * proportional to their number rather than to the number of topics.
+ * <p>
+ * A topic exists while it has members.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+final class TopicRegistry {
+	// CLASS VARIABLES **************************************************
+
+	private static final ConnectionToClient[]	NO_MEMBERS	= new ConnectionToClient[0];
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final Map<String, Topic>			topics		= new ConcurrentHashMap<String, Topic>();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Adds a client to a topic, creating the topic if needed.
+	 *
+	 * @return true if the client was not already a member.
+	 */
+	boolean join(ConnectionToClient client, String name) {
+		synchronized (client.joinedTopics) {
+			if (client.topicsClosed || !client.joinedTopics.add(name))
+				return false;
+
+			while (true) {
+				Topic topic = topics.computeIfAbsent(name, key -> new Topic());
+				if (topic.add(client))
+					return true;
+				// The topic emptied and was discarded meanwhile
+				topics.remove(name, topic);
+			}
+		}
+	}
+
+	/**
+	 * Removes a client from a topic, discarding the topic once empty.
+	 *
+	 * @return true if the client was a member.
+	 */
+	boolean leave(ConnectionToClient client, String name) {
+		synchronized (client.joinedTopics) {
+			if (!client.joinedTopics.remove(name))
+				return false;
+			removeMember(client, name);
+			return true;
+		}
+	}
+
+	/**
+	 * Removes a closed client from every topic it joined, and keeps it from
+	 * joining others.
+	 */
+	void leaveAll(ConnectionToClient client) {
+		synchronized (client.joinedTopics) {
+			client.topicsClosed = true;
+			for (String name : client.joinedTopics)
+				removeMember(client, name);
+			client.joinedTopics.clear();
+		}
+	}
+
+	/**
+	 * Returns the members of a topic. The array must not be modified.
+	 */
+	ConnectionToClient[] members(String name) {
+		Topic topic = topics.get(name);
+		return topic == null ? NO_MEMBERS : topic.members;
+	}
+
+	/**
+	 * @return the names of the topics that have members.
+	 */
+	Set<String> names() {
+		return Collections.unmodifiableSet(topics.keySet());
+	}
+
+	private void removeMember(ConnectionToClient client, String name) {
+		Topic topic = topics.get(name);
+		if (topic != null && topic.remove(client))
+			topics.remove(name, topic);
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * One topic and its members.
+	 */
+	private static final class Topic {
+		/**
+		 * The members, replaced on every change.
+		 */
+		volatile ConnectionToClient[]	members	= NO_MEMBERS;
+
+		/**
+		 * Set once the last member left; a discarded topic takes no members.
+		 */
+		private boolean					discarded;
+
+		synchronized boolean add(ConnectionToClient client) {
+			if (discarded)
+				return false;
+			ConnectionToClient[] current = members;
+			ConnectionToClient[] bigger = Arrays.copyOf(current, current.length + 1);
+			bigger[current.length] = client;
+			members = bigger;
+			return true;
+		}
+
+		/**
+		 * @return true if the topic is now empty and discarded.
+		 */
+		synchronized boolean remove(ConnectionToClient client) {
+			ConnectionToClient[] current = members;
+			for (int i = 0; i < current.length; i++) {
+				if (current[i] == client) {
+					ConnectionToClient[] smaller = new ConnectionToClient[current.length - 1];
+					System.arraycopy(current, 0, smaller, 0, i);
+					System.arraycopy(current, i + 1, smaller, i, current.length - i - 1);
+					members = smaller;
+					break;
+				}
+			}
+			if (members.length == 0)
+				discarded = true;
+			return discarded;
+		}
+	}
+}
+// End of TopicRegistry class
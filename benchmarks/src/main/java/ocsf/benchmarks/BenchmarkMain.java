@@ -0,0 +1,38 @@
+package ocsf.benchmarks;
+
+import java.util.*;
+
+/**
+ * Runs the benchmarks, writing the results as JSON to
+ * <code>jmh-result.json</code> unless the arguments choose another result
+ * format or file. Any other JMH argument, such as a benchmark name pattern or
+ * <code>-p clients=100</code>, is passed through unchanged.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class BenchmarkMain {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Where the results go by default, in the working directory.
+	 */
+	public static final String	DEFAULT_RESULT_FILE	= "jmh-result.json";
+
+	// CONSTRUCTORS *****************************************************
+
+	private BenchmarkMain() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	public static void main(String[] args) throws Exception {
+		List<String> jmhArgs = new ArrayList<String>(Arrays.asList(args));
+		if (!jmhArgs.contains("-rf"))
+			jmhArgs.addAll(Arrays.asList("-rf", "json"));
+		if (!jmhArgs.contains("-rff"))
+			jmhArgs.addAll(Arrays.asList("-rff", DEFAULT_RESULT_FILE));
+		org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+	}
+}
+// End of BenchmarkMain class
@@ -0,0 +1,120 @@
+package ocsf.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.ThreadMode;
+import ocsf.server.*;
+
+/**
+ * Measures <code>AbstractServer.sendToAllClients</code> with 10, 100 and 1000
+ * connected clients: each operation broadcasts one message and waits until
+ * every client has received it, so the score is the number of complete
+ * broadcasts per second. The clients run in the same process; their readers
+ * are virtual threads where the JDK has them.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+	// PARAMETERS *******************************************************
+
+	@Param({ "10", "100", "1000" })
+	public int			clients;
+
+	@Param({ "classic", "nio" })
+	public String		engine;
+
+	@Param({ "binary" })
+	public String		codec;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private SilentServer					server;
+
+	private final List<CountingClient>		connected	= new ArrayList<CountingClient>();
+
+	/**
+	 * Counted down by every client when the current broadcast arrives.
+	 */
+	private volatile CountDownLatch			arrived;
+
+	private final String					message		= "From bench > a message of ordinary chat length";
+
+	// SETUP ************************************************************
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		int port = Loopback.freePort();
+		server = new SilentServer(port);
+		Loopback.useEngine(server, engine);
+		server.setBacklog(clients);
+		server.listen();
+
+		for (int i = 0; i < clients; i++) {
+			CountingClient client = new CountingClient(port);
+			client.setCodecs(Loopback.codec(codec));
+			client.openConnection();
+			connected.add(client);
+		}
+		Loopback.awaitClients(server, clients);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		for (CountingClient client : connected)
+			Loopback.closeQuietly(client);
+		connected.clear();
+		Loopback.closeQuietly(server);
+	}
+
+	// BENCHMARKS *******************************************************
+
+	@Benchmark
+	public void broadcast() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(clients);
+		arrived = latch;
+		server.sendToAllClients(message);
+		if (!latch.await(30, TimeUnit.SECONDS))
+			throw new IllegalStateException(latch.getCount() + " clients missed a broadcast");
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * Ignores whatever clients send.
+	 */
+	static final class SilentServer extends AbstractServer {
+		SilentServer(int port) {
+			super(port);
+		}
+
+		@Override
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+		}
+	}
+
+	/**
+	 * Reports each broadcast it receives.
+	 */
+	final class CountingClient extends AbstractClient {
+		CountingClient(int port) {
+			super("localhost", port, ThreadMode.VIRTUAL);
+		}
+
+		@Override
+		protected void handleMessageFromServer(Object msg) {
+			arrived.countDown();
+		}
+	}
+}
+// End of BroadcastBenchmark class
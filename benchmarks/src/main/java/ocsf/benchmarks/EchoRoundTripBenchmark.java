@@ -0,0 +1,106 @@
+package ocsf.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.client.AbstractClient;
+import ocsf.server.*;
+
+/**
+ * Measures the round trip of a message from a single client to a server that
+ * sends it straight back, over loopback, on each server engine. The sample
+ * mode reports the latency distribution, not just its mean.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EchoRoundTripBenchmark {
+	// PARAMETERS *******************************************************
+
+	@Param({ "classic", "nio" })
+	public String		engine;
+
+	@Param({ "binary", "serialization" })
+	public String		codec;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private EchoingServer	server;
+
+	private ReplyClient		client;
+
+	private final String	ping	= "ping";
+
+	// SETUP ************************************************************
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		int port = Loopback.freePort();
+		server = new EchoingServer(port);
+		Loopback.useEngine(server, engine);
+		server.listen();
+
+		client = new ReplyClient(port);
+		client.setCodecs(Loopback.codec(codec));
+		client.openConnection();
+		Loopback.awaitClients(server, 1);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Loopback.closeQuietly(client);
+		Loopback.closeQuietly(server);
+	}
+
+	// BENCHMARKS *******************************************************
+
+	@Benchmark
+	public Object roundTrip() throws Exception {
+		client.sendToServer(ping);
+		return client.replies.take();
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * Sends every message back to the client it came from.
+	 */
+	static final class EchoingServer extends AbstractServer {
+		EchoingServer(int port) {
+			super(port);
+		}
+
+		@Override
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+			try {
+				client.sendToClient(msg);
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	/**
+	 * Hands the messages received to the benchmark thread.
+	 */
+	static final class ReplyClient extends AbstractClient {
+		final BlockingQueue<Object>	replies	= new ArrayBlockingQueue<Object>(16);
+
+		ReplyClient(int port) {
+			super("localhost", port);
+		}
+
+		@Override
+		protected void handleMessageFromServer(Object msg) {
+			replies.offer(msg);
+		}
+	}
+}
+// End of EchoRoundTripBenchmark class
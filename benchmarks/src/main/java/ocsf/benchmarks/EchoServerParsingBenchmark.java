@@ -0,0 +1,155 @@
+package ocsf.benchmarks;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.seg2105.client.common.ChatIF;
+import edu.seg2105.edu.server.backend.EchoServer;
+import ocsf.client.AbstractClient;
+import ocsf.common.FrameCodec;
+import ocsf.server.*;
+
+/**
+ * Measures <code>EchoServer.handleMessageFromClient</code> for each kind of
+ * message a logged in client sends: plain chat, which is broadcast, a
+ * <code>#msg</code> private message and a <code>#room</code> message. The
+ * server runs with one connected client, so the score covers parsing the
+ * command and handing the reply to the connection, not the network. The
+ * server's console output is discarded while the benchmark runs.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EchoServerParsingBenchmark {
+	// CLASS VARIABLES **************************************************
+
+	private static final String	LOGIN_ID	= "bench";
+
+	private static final String	ROOM		= "lobby";
+
+	// PARAMETERS *******************************************************
+
+	@Param({ "chat", "msg", "room" })
+	public String	kind;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private CapturingServer		server;
+
+	private DiscardingClient	client;
+
+	private ConnectionToClient	connection;
+
+	private String				message;
+
+	private PrintStream			console;
+
+	// SETUP ************************************************************
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		console = System.out;
+		System.setOut(new PrintStream(new Loopback.NullOutputStream()));
+
+		int port = Loopback.freePort();
+		server = new CapturingServer(port);
+		// The benchmark sends faster than the client reads
+		server.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+		server.listen();
+
+		client = new DiscardingClient(port);
+		client.openConnection();
+		client.sendToServer("#login " + LOGIN_ID);
+		client.sendToServer("#join " + ROOM);
+		connection = server.awaitConnection();
+		long deadline = System.nanoTime() + 10000000000L;
+		while (!connection.getTopics().contains(ROOM)) {
+			if (System.nanoTime() > deadline)
+				throw new IllegalStateException("the client did not log in and join " + ROOM);
+			Thread.sleep(1);
+		}
+
+		switch (kind) {
+		case "chat":
+			message = "hello everyone, how is it going?";
+			break;
+		case "msg":
+			message = "#msg " + LOGIN_ID + " hello me, how is it going?";
+			break;
+		case "room":
+			message = "#room " + ROOM + " hello room, how is it going?";
+			break;
+		default:
+			throw new IllegalArgumentException("unknown kind " + kind);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Loopback.closeQuietly(client);
+		Loopback.closeQuietly(server);
+		System.setOut(console);
+	}
+
+	// BENCHMARKS *******************************************************
+
+	@Benchmark
+	public void handleMessage() {
+		server.handleMessageFromClient(message, connection);
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * The chat server, keeping hold of the connection of its client.
+	 */
+	static final class CapturingServer extends EchoServer {
+		private ConnectionToClient	connection;
+
+		CapturingServer(int port) {
+			super(port, (ChatIF) message -> {
+			});
+		}
+
+		@Override
+		protected synchronized void clientConnected(ConnectionToClient client) {
+			super.clientConnected(client);
+			connection = client;
+			notifyAll();
+		}
+
+		synchronized ConnectionToClient awaitConnection() throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (connection == null) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
+					throw new IllegalStateException("the client did not connect");
+				wait(left);
+			}
+			return connection;
+		}
+	}
+
+	/**
+	 * A chat client that ignores the messages it receives.
+	 */
+	static final class DiscardingClient extends AbstractClient {
+		DiscardingClient(int port) {
+			super("localhost", port);
+			setCodecs(FrameCodec.BINARY, FrameCodec.SERIALIZATION);
+		}
+
+		@Override
+		protected void handleMessageFromServer(Object msg) {
+		}
+	}
+}
+// End of EchoServerParsingBenchmark class
@@ -0,0 +1,121 @@
+package ocsf.benchmarks;
+
+import java.io.*;
+import java.net.ServerSocket;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.Compression;
+import ocsf.common.FrameCodec;
+import ocsf.common.MetricsRegistry;
+import ocsf.server.AbstractServer;
+
+/**
+ * Helpers shared by the benchmarks that run a server and its clients in the
+ * same process, over the loopback interface.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+final class Loopback {
+	// CLASS VARIABLES **************************************************
+
+	private static final String	DEFLATE	= "+deflate";
+
+	// CONSTRUCTORS *****************************************************
+
+	private Loopback() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return a local port that was free a moment ago.
+	 */
+	static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	/**
+	 * Returns the codec with the given name, as used by the
+	 * <code>codec</code> parameters. A name ending with
+	 * <code>+deflate</code> gives the compressed form of the codec, with
+	 * the default threshold and no dictionary.
+	 */
+	static FrameCodec codec(String name) {
+		if (name.endsWith(DEFLATE)) {
+			Compression compression = new Compression(Compression.DEFAULT_THRESHOLD, new byte[0],
+					new Compression.Stats(new MetricsRegistry(), "benchmark"));
+			return compression.wrap(codec(name.substring(0, name.length() - DEFLATE.length())));
+		}
+		for (FrameCodec codec : new FrameCodec[] { FrameCodec.BINARY, FrameCodec.SERIALIZATION }) {
+			if (codec.getName().equalsIgnoreCase(name))
+				return codec;
+		}
+		throw new IllegalArgumentException("unknown codec " + name);
+	}
+
+	/**
+	 * Configures a server for one of the <code>engine</code> parameters:
+	 * <code>classic</code> serves each client from a thread of its own,
+	 * <code>nio</code> from a few event loops.
+	 */
+	static void useEngine(AbstractServer server, String engine) {
+		if ("classic".equals(engine))
+			server.setNioEventLoops(0);
+		else if ("nio".equals(engine))
+			server.setNioEventLoops(Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+		else
+			throw new IllegalArgumentException("unknown engine " + engine);
+	}
+
+	/**
+	 * Waits until a server has accepted a number of clients.
+	 */
+	static void awaitClients(AbstractServer server, int clients) throws InterruptedException {
+		long deadline = System.nanoTime() + 30000000000L;
+		while (server.getNumberOfClients() < clients) {
+			if (System.nanoTime() > deadline)
+				throw new IllegalStateException(server.getNumberOfClients() + " of " + clients + " clients connected");
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Closes a client, ignoring failures.
+	 */
+	static void closeQuietly(AbstractClient client) {
+		try {
+			client.closeConnection();
+		} catch (IOException ex) {
+		}
+	}
+
+	/**
+	 * Closes a server, ignoring failures.
+	 */
+	static void closeQuietly(AbstractServer server) {
+		try {
+			server.close();
+		} catch (IOException ex) {
+		}
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * Throws away everything written to it; used to silence the
+	 * <code>System.out</code> logging of the chat server.
+	 */
+	static final class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
+// End of Loopback class
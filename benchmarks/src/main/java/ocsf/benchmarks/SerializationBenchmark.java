@@ -0,0 +1,81 @@
+package ocsf.benchmarks;
+
+import java.io.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.common.FrameCodec;
+
+/**
+ * Measures what each codec costs to encode and to decode a chat message of a
+ * given size, without any I/O. Encoding writes into a reused buffer, so the
+ * score covers the codec alone. The <code>binary+deflate</code> codec shows
+ * what compression adds; the random letters compress less than chat text would.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+	// PARAMETERS *******************************************************
+
+	/**
+	 * The message length, in characters.
+	 */
+	@Param({ "16", "256", "4096", "65536" })
+	public int		size;
+
+	@Param({ "binary", "serialization", "binary+deflate" })
+	public String	codec;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private FrameCodec					frameCodec;
+
+	private String						message;
+
+	private byte[]						payload;
+
+	/**
+	 * Large enough for every size, so encoding never grows it.
+	 */
+	private final ByteArrayOutputStream	buffer	= new ByteArrayOutputStream(256 * 1024);
+
+	// SETUP ************************************************************
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		frameCodec = Loopback.codec(codec);
+
+		char[] text = new char[size];
+		Random random = new Random(size);
+		for (int i = 0; i < text.length; i++)
+			text[i] = (char) ('a' + random.nextInt(26));
+		message = new String(text);
+
+		frameCodec.encode(message, buffer);
+		payload = buffer.toByteArray();
+	}
+
+	// BENCHMARKS *******************************************************
+
+	@Benchmark
+	public int encode() throws IOException {
+		buffer.reset();
+		frameCodec.encode(message, buffer);
+		return buffer.size();
+	}
+
+	@Benchmark
+	public Object decode() throws Exception {
+		return frameCodec.decode(payload, 0, payload.length);
+	}
+}
+// End of SerializationBenchmark class
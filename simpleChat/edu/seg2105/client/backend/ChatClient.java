@@ -5,8 +5,10 @@
 package edu.seg2105.client.backend;
 
 import ocsf.client.*;
+import ocsf.common.FrameCodec;
 
 import java.io.*;
+import java.util.concurrent.TimeoutException;
 
 import edu.seg2105.client.common.*;
 
@@ -20,6 +22,30 @@ import edu.seg2105.client.common.*;
  */
 public class ChatClient extends AbstractClient
 {
+  //Class variables *************************************************
+  
+  /**
+   * How many times we try to reconnect before giving up.
+   */
+  final public static int RECONNECT_ATTEMPTS = 20;
+  
+  /**
+   * How often we send a heartbeat when we haven't sent anything, so the
+   * server doesn't drop us as idle.
+   */
+  final public static long HEARTBEAT_MILLIS = 15000;
+  
+  /**
+   * How long we wait without hearing from the server (it heartbeats too)
+   * before we decide it's gone and start reconnecting.
+   */
+  final public static long SERVER_TIMEOUT_MILLIS = 45000;
+  
+  /**
+   * How long we wait for the server to answer our #login.
+   */
+  final public static long LOGIN_TIMEOUT_MILLIS = 10000;
+  
   //Instance variables **********************************************
   
   /**
@@ -34,6 +60,17 @@ public class ChatClient extends AbstractClient
    */
   String loginID;
   
+  /**
+   * The sequence number of the last broadcast we got, so that after a
+   * reconnect the server can send just what we missed. 0 until we get one.
+   */
+  private volatile long lastSequence;
+  
+  /**
+   * The commands the user can type, built once.
+   */
+  private final CommandTable<Void> commands = buildCommands();
+  
   
   //Constructors ****************************************************
   
@@ -51,6 +88,18 @@ public class ChatClient extends AbstractClient
     super(host, port); //Call the superclass constructor
     this.clientUI = clientUI;
     this.loginID = loginID;
+    // the server runs the NIO engine, which expects us to negotiate a codec
+    // our messages are all strings, so the binary codec's fast path suits us best
+    setCodecs(FrameCodec.BINARY, FrameCodec.SERIALIZATION);
+    // long messages get compressed, if the server uses the same dictionary we do
+    setCompression(ChatDictionary.THRESHOLD, ChatDictionary.get());
+    // if the server goes down, keep trying to get back in instead of quitting
+    // the random waits mean everyone doesn't come back at the exact same moment
+    setReconnectPolicy(ReconnectPolicy.exponentialBackoff(
+      ReconnectPolicy.DEFAULT_INITIAL_MILLIS, ReconnectPolicy.DEFAULT_MAX_MILLIS, RECONNECT_ATTEMPTS));
+    // heartbeat while the user is quiet, and notice a server that died without closing
+    setHeartbeatInterval(HEARTBEAT_MILLIS);
+    setServerTimeout(SERVER_TIMEOUT_MILLIS);
   
     openConnection();
   }
@@ -65,9 +114,33 @@ public class ChatClient extends AbstractClient
    */
   public void handleMessageFromServer(Object msg) 
   {
-    clientUI.display(msg.toString());
-    
-    
+    String message = msg.toString();
+    // the end of a batch of messages from while we were away, the server
+    // keeps them until we say we got them
+    if(message.startsWith("#inboxend ")) {
+      try {
+        sendToServer("#inboxack " + message.substring("#inboxend ".length()));
+      } catch(IOException e) {
+        // they stay on the server, we get them again next time we log in
+      }
+      return;
+    }
+    // broadcasts come as "#<sequence> <message>", remember where we are and
+    // show just the message
+    int space = message.indexOf(' ');
+    if(message.startsWith("#") && space > 1) {
+      try {
+        long sequence = Long.parseLong(message.substring(1, space));
+        if(sequence <= lastSequence) {
+          return; // already seen, the server sent it again when we resumed
+        }
+        lastSequence = sequence;
+        message = message.substring(space + 1);
+      } catch(NumberFormatException e) {
+        // not a sequence number, just show it as it is
+      }
+    }
+    clientUI.display(message);
   }
 
   /**
@@ -81,7 +154,10 @@ public class ChatClient extends AbstractClient
     {
      
      if(message.startsWith("#")) {
-    	 handleCommand(message);
+    	 if(!commands.dispatch(message, null)) {
+    		 // we do not recognize the command! give them another change, but don't kick them over it
+    		 System.out.println("Could not recognize command. Please try again.");
+    	 }
       }
       else {
     	  sendToServer(message);
@@ -89,101 +165,117 @@ public class ChatClient extends AbstractClient
     }
     catch(IOException e)
     {
+      if(isReconnecting()) {
+        // the message couldn't wait, too many are already waiting
+        clientUI.display("Still reconnecting, the message could not be sent.");
+        return;
+      }
       clientUI.display
         ("Could not send message to server.  Terminating client.");
       quit();
     }
   }
   
-  private void handleCommand(String message) {
-	  try {
-		  // split the message to process to account for other parameters
-		  String[] partsOfMessage = message.split(" ");
-		  // any issues with out of bounds at any point in this function will be handled by the catch block 
-		  // no need to check if they exist / how long this array is
-		  
-		  // check this first part against possible commands
-		  switch (partsOfMessage[0]) {
-		  	case "#quit": {
-		  		// close the client all together
-		  		System.out.println("Terminating chat client...");
-		  		quit();
-		  		break;
-		  	}
-		  	case "#logoff": {
-		  		//if they're not connected there is nothing to log off from
-		  		if(!isConnected()) {
-		  			System.out.println("There is no connection to terminate.");
-		  		} else {
-		  			// otherwise terminate the connection
-		  			closeConnection();
-		  			while(isConnected()) {
-		  				// in case it takes a second to terminated, so we don't do anything while it does
-		  				// could login too quickly if this isn't here
-		  			}
-		  			// it's actually disconnected now, inform the user they are no longer connected
-		  			if(!isConnected()) {
-		  				System.out.println("Successfully disconnected from the server.");
-		  			}
-		  		}
-		  		break;
-		  	}
-		  	case "#sethost": {
-		  		// has other parameters
-		  		if(isConnected()) {
-		  			System.out.println("Cannot set host while connected.");
-		  		} else {
-		  			// change the host the client wants to connect to
-		  			setHost(partsOfMessage[1]);
-		  		}
-		  		break;
-		  	}
-		  	case "#setport": {
-		  		// has other parameters
-		  		if(isConnected()) {
-		  			System.out.println("Cannot set port while connected.");
-		  		} else {
-		  			// change the port client wants to connect to
-		  			setPort(Integer.parseInt(partsOfMessage[1]));
-		  		}
-		  		break; 
-		  	}
-		  	
-		  	case "#login": {
-		  		if(!isConnected()) {
-		  			// we will open the connection, since #login is handled by the server
-		  			openConnection();
-		  			// if the connection goes through, inform the user
-			  		System.out.println("Successfully connected to the server.");	
-		  		} else {
-		  			// otherwise we are already logged in! can't login again!
-		  			System.out.println("Cannot login while connected.");
-		  			quit(); // exit since they tried to login again
-		  			// this might be supposed to be handled by the server... so might need to adjust
-		  		}
-		  		break;
-		  	}
-		  	case "#gethost": {
-		  		// print the host name
-		  		System.out.println("The host name is " + getHost());
-		  		break;
-		  	}
-		  	case "#getport": {
-		  		// print the port number
-		  		System.out.println("The port number is " +getPort());
-		  		break;
-		  	}
-		  	default: {
-		  		// we do not recognize the command! give them another change, but don't kick them over it
-		  		System.out.println("Could not recognize command. Please try again.");
-		  		break;
-		  	}
-		}
-	  } catch(IOException e) {
-		  System.out.println("Could not send message to server. Terminating client.");
-		  quit();
-	  } catch(IndexOutOfBoundsException i) {
-		  System.out.println("Please provide required parameters");
+  /**
+   * Builds the table of the commands the user can type. Each command says
+   * how many arguments it needs, so they are checked before it runs.
+   */
+  private CommandTable<Void> buildCommands() {
+	  // wrong number of arguments, show how the command is used
+	  return new CommandTable<Void>((none, problem) -> System.out.println(problem))
+		  .add("#quit", 0, 0, "#quit", (none, args) -> {
+			  // close the client all together
+			  System.out.println("Terminating chat client...");
+			  quit();
+		  })
+		  .add("#logoff", 0, 0, "#logoff", (none, args) -> {
+			  //if they're not connected there is nothing to log off from
+			  if(isReconnecting()) {
+				  // stop trying to get back in
+				  closeConnection();
+				  System.out.println("Stopped reconnecting.");
+			  } else if(!isConnected()) {
+				  System.out.println("There is no connection to terminate.");
+			  } else {
+				  // otherwise terminate the connection
+				  closeConnection();
+				  while(isConnected()) {
+					  // in case it takes a second to terminated, so we don't do anything while it does
+					  // could login too quickly if this isn't here
+				  }
+				  // it's actually disconnected now, inform the user they are no longer connected
+				  if(!isConnected()) {
+					  System.out.println("Successfully disconnected from the server.");
+				  }
+			  }
+		  })
+		  .add("#sethost", 1, 1, "#sethost <host>", (none, args) -> {
+			  if(isConnected()) {
+				  System.out.println("Cannot set host while connected.");
+			  } else {
+				  // change the host the client wants to connect to
+				  setHost(args.get(0));
+			  }
+		  })
+		  .add("#setport", 1, 1, "#setport <port>", (none, args) -> {
+			  if(isConnected()) {
+				  System.out.println("Cannot set port while connected.");
+			  } else {
+				  // change the port client wants to connect to
+				  try {
+					  setPort(args.getInt(0));
+				  } catch(NumberFormatException e) {
+					  System.out.println("The port must be a number.");
+				  }
+			  }
+		  })
+		  .add("#login", 0, 0, "#login", (none, args) -> {
+			  if(!isConnected()) {
+				  // we will open the connection, since #login is handled by the server
+				  openConnection();
+				  // if the connection goes through, inform the user
+				  System.out.println("Successfully connected to the server.");	
+			  } else {
+				  // otherwise we are already logged in! can't login again!
+				  System.out.println("Cannot login while connected.");
+				  quit(); // exit since they tried to login again
+				  // this might be supposed to be handled by the server... so might need to adjust
+			  }
+		  })
+		  // private message, the server delivers it to just that user
+		  .addWithText("#msg", 1, "#msg <loginID> <message>", (none, args) -> sendWhenConnected(
+			  args.line(), "Cannot send a private message while disconnected."))
+		  // rooms live on the server, it keeps track of who is in which room
+		  .add("#join", 1, 1, "#join <room>", (none, args) -> sendWhenConnected(
+			  args.line(), "Cannot use rooms while disconnected."))
+		  .add("#leave", 1, 1, "#leave <room>", (none, args) -> sendWhenConnected(
+			  args.line(), "Cannot use rooms while disconnected."))
+		  // a message for everyone in one room, and nobody else
+		  .addWithText("#room", 1, "#room <room> <message>", (none, args) -> sendWhenConnected(
+			  args.line(), "Cannot use rooms while disconnected."))
+		  // ask the server for the messages we missed
+		  .add("#history", 1, 1, "#history <n>", (none, args) -> sendWhenConnected(
+			  args.line(), "Cannot get the history while disconnected."))
+		  // print the host name
+		  .add("#gethost", 0, 0, "#gethost", (none, args) ->
+		  	  System.out.println("The host name is " + getHost()))
+		  // print the port number
+		  .add("#getport", 0, 0, "#getport", (none, args) ->
+		  	  System.out.println("The port number is " +getPort()));
+  }
+  
+  /**
+   * Passes a command on to the server, which is the one that handles it.
+   *
+   * @param command The whole command.
+   * @param notConnected What to tell the user if there is no connection.
+   */
+  private void sendWhenConnected(String command, String notConnected) throws IOException {
+	  // while reconnecting it waits and goes out once we're back
+	  if(!isConnected() && !isReconnecting()) {
+		  System.out.println(notConnected);
+	  } else {
+		  sendToServer(command);
 	  }
   }
   
@@ -224,11 +316,28 @@ public class ChatClient extends AbstractClient
   		// want to display a useful message to the user, example: "the server went down" or "the connection was closed"
   		// to display to the user we have to use the UI class
   		
+  		if(isReconnecting()) {
+  			// the server might just be restarting, we'll try to get back in
+  			clientUI.display("The connection was lost. Trying to reconnect...");
+  			return;
+  		}
   		clientUI.display("The connection has been shut down.");
   		// once the user has been informed, we can quit
   		quit();
 	}
   	
+  	/**
+  	 * Called when we've tried to reconnect RECONNECT_ATTEMPTS times and
+  	 * the server still isn't there.
+  	 *
+  	 * @param exception why the last attempt failed.
+  	 */
+  	@Override
+  	protected void reconnectFailed(Exception exception) {
+  		clientUI.display("Could not reconnect to the server. Terminating client.");
+  		quit();
+  	}
+  	
   	/**
 	 * Implementing the hook method called after a connection has been established. The default
 	 * implementation does nothing. It may be overridden by subclasses to do
@@ -238,14 +347,33 @@ public class ChatClient extends AbstractClient
 		// need to send "#login " + loginID to the server
 		System.out.println("Connected. Attempting to login..."); // telling the client there is a login attempt
 		try {
-			sendToServer("#login " + loginID);
+			// only after we lost the connection, not after a #logoff
+			if(isReconnecting() && lastSequence > 0) {
+				// ask for what we missed first, so it comes before anything new; the
+				// server keeps the question until our login works, then answers it
+				sendToServer("#resume " + lastSequence);
+			}
 		} catch (IOException e) {
 			// if for some reason there is an issue, tell the client and terminate
 			System.out.println("Error logging in. \nTerminating client...");
 			quit();
 		}
-		// inform the client they have logged in, welcome them
-		System.out.println("Login success! Welcome, " + loginID);
+		// the server answers the login, null means we're in, anything else is why not
+		// this runs on the thread that reads from the server, so we can't wait for
+		// the answer here, we say what happened once it comes
+		request("#login " + loginID, LOGIN_TIMEOUT_MILLIS).whenComplete((refusal, failure) -> {
+			if(failure instanceof TimeoutException) {
+				System.out.println("The server did not answer the login. \nTerminating client...");
+				quit();
+			} else if(failure != null) {
+				// the connection went down, connectionException already said so
+			} else if(refusal != null) {
+				clientUI.display(refusal.toString());
+			} else {
+				// inform the client they have logged in, welcome them
+				System.out.println("Login success! Welcome, " + loginID);
+			}
+		});
 	}
 }
 //End of ChatClient class
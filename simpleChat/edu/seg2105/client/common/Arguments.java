@@ -0,0 +1,154 @@
+// This file contains material supporting section 3.7 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com 
+
+package edu.seg2105.client.common;
+
+import java.util.Arrays;
+
+/**
+ * The arguments of a command, found in place in the line that was typed.
+ * Only the positions of the arguments are kept, so nothing is copied unless
+ * a handler asks for an argument as a string. An instance is reused for
+ * every command handled by the same thread, so a handler must not keep it
+ * after it returns.
+ *
+ * @see CommandTable
+ */
+public final class Arguments
+{
+  //Instance variables **********************************************
+
+  /**
+   * The whole line.
+   */
+  private String line;
+
+  /**
+   * Where each argument starts and ends in the line.
+   */
+  private int[] starts = new int[4];
+  private int[] ends = new int[4];
+
+  private int count;
+
+  //Instance methods ************************************************
+
+  /**
+   * @return the number of arguments after the command name.
+   */
+  public int count()
+  {
+    return count;
+  }
+
+  /**
+   * @return an argument, as a new string.
+   */
+  public String get(int index)
+  {
+    check(index);
+    return line.substring(starts[index], ends[index]);
+  }
+
+  /**
+   * @return true if an argument is the given text.
+   */
+  public boolean is(int index, String text)
+  {
+    check(index);
+    return ends[index] - starts[index] == text.length()
+      && line.regionMatches(starts[index], text, 0, text.length());
+  }
+
+  /**
+   * Reads an argument as a decimal number, without making a string of it.
+   *
+   * @exception NumberFormatException if it isn't one.
+   */
+  public int getInt(int index)
+  {
+    check(index);
+    int i = starts[index];
+    int end = ends[index];
+    boolean negative = line.charAt(i) == '-';
+    if(negative || line.charAt(i) == '+') {
+      i++;
+    }
+    if(i == end || end - i > 10) {
+      throw new NumberFormatException("Not a number: " + get(index));
+    }
+    long value = 0;
+    for(; i < end; i++) {
+      char c = line.charAt(i);
+      if(c < '0' || c > '9') {
+        throw new NumberFormatException("Not a number: " + get(index));
+      }
+      value = value * 10 + (c - '0');
+    }
+    value = negative ? -value : value;
+    if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      throw new NumberFormatException("Not a number: " + get(index));
+    }
+    return (int) value;
+  }
+
+  /**
+   * @return the whole line the arguments come from.
+   */
+  public String line()
+  {
+    return line;
+  }
+
+  /**
+   * Finds the arguments of a command. The command name, which ends at the
+   * first space, is skipped; arguments are separated by one or more spaces.
+   *
+   * @param line The line, starting with the command name.
+   * @param nameEnd Where the command name ends.
+   * @param max The most arguments the command takes.
+   * @param lastIsText Whether the last argument is the rest of the line,
+   *   spaces included, like the text of a message.
+   * @return false if there are more than max arguments.
+   */
+  boolean parse(String line, int nameEnd, int max, boolean lastIsText)
+  {
+    this.line = line;
+    count = 0;
+    int length = line.length();
+    int i = nameEnd;
+    while(true) {
+      while(i < length && line.charAt(i) == ' ') {
+        i++;
+      }
+      if(i == length) {
+        return true;
+      }
+      if(count == max) {
+        return false;
+      }
+      if(count == starts.length) {
+        starts = Arrays.copyOf(starts, count * 2);
+        ends = Arrays.copyOf(ends, count * 2);
+      }
+      starts[count] = i;
+      if(lastIsText && count == max - 1) {
+        i = length;
+      } else {
+        while(i < length && line.charAt(i) != ' ') {
+          i++;
+        }
+      }
+      ends[count++] = i;
+    }
+  }
+
+  private void check(int index)
+  {
+    if(index < 0 || index >= count) {
+      throw new IndexOutOfBoundsException("No argument " + index);
+    }
+  }
+}
+//End of Arguments class
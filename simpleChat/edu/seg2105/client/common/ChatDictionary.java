@@ -0,0 +1,55 @@
+package edu.seg2105.client.common;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The words our messages repeat the most, given to the compressor of both
+ * the client and the server before any message, so that even a short
+ * message can point back to them instead of sending them again.
+ * The client and the server have to use exactly the same dictionary,
+ * otherwise they just don't compress (the handshake checks it).
+ *
+ * @author Paul Holden
+ */
+public final class ChatDictionary
+{
+  //Class variables *************************************************
+
+  /**
+   * The dictionary text. The compressor finds the end of the dictionary
+   * the cheapest, so the most common strings go last. Changing this
+   * means old clients won't get compression from new servers, so only
+   * add to it when the messages really change.
+   */
+  private static final String WORDS =
+      "You have  messages from while you were away. "
+    + " is not logged in, they will get the message when they log in. "
+    + "History, up to the last  messages: "
+    + "Join  first with #join You left You are not in You are already in "
+    + " has left.  has joined. "
+    + "#login #logoff #quit #join #leave #room #history #msg "
+    + "Private to Private from  (while you were away) > "
+    + " has logged in. the and that you have this with for what "
+    + "History #] From SERVER MSG > From ";
+
+  /**
+   * How big a message has to be before it is compressed. Short messages
+   * aren't worth the time, but pasted paragraphs are.
+   */
+  public static final int THRESHOLD = 96;
+
+  //Constructors ****************************************************
+
+  private ChatDictionary() {}
+
+  //Class methods ***************************************************
+
+  /**
+   * @return the dictionary bytes, a new copy every time.
+   */
+  public static byte[] get()
+  {
+    return WORDS.getBytes(StandardCharsets.UTF_8);
+  }
+}
+//End of ChatDictionary class
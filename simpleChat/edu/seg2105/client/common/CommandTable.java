@@ -0,0 +1,256 @@
+// This file contains material supporting section 3.7 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com 
+
+package edu.seg2105.client.common;
+
+import java.io.IOException;
+
+/**
+ * The #-commands understood by the client or the server, and the code that
+ * runs each one. The table is filled once, when the client or server is
+ * built; after that, handling a line finds the command name in place (no
+ * split, no substring), looks it up in a hash table, checks the number of
+ * arguments and calls the handler.
+ * <p>
+ * A line that doesn't start with '#' is not a command, and dispatching it
+ * costs a single character check, so normal chat messages go straight
+ * through without allocating anything.
+ * <p>
+ * Lines from different threads can be dispatched at the same time, as the
+ * server does for different clients.
+ *
+ * @param <C> What the handlers are given besides the arguments, such as the
+ *   connection a command came from.
+ */
+public final class CommandTable<C>
+{
+  //Class variables *************************************************
+
+  /**
+   * The character every command starts with.
+   */
+  public static final char PREFIX = '#';
+
+  //Instance variables **********************************************
+
+  /**
+   * The commands, by hash of their name, with open addressing. Replaced
+   * whole when a command is added.
+   */
+  private volatile Command<C>[] slots = newSlots(16);
+
+  private int size;
+
+  /**
+   * Told when a command gets the wrong number of arguments.
+   */
+  private final Reporter<C> reporter;
+
+  /**
+   * The parsed arguments, one set per thread so that threads don't share.
+   */
+  private final ThreadLocal<Arguments> arguments = ThreadLocal.withInitial(Arguments::new);
+
+  //Constructors ****************************************************
+
+  /**
+   * @param reporter Told about commands given the wrong number of
+   *   arguments, with the usage of the command.
+   */
+  public CommandTable(Reporter<C> reporter)
+  {
+    this.reporter = reporter;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Adds a command whose arguments are single words.
+   *
+   * @param name The name, like "#sethost".
+   * @param min The fewest arguments it takes.
+   * @param max The most arguments it takes.
+   * @param usage How to use it, like "#sethost <host>".
+   * @param handler What it does.
+   * @return this table, to add more.
+   */
+  public CommandTable<C> add(String name, int min, int max, String usage, Handler<C> handler)
+  {
+    return add(new Command<C>(name, min, max, false, usage, handler));
+  }
+
+  /**
+   * Adds a command whose last argument is the rest of the line, spaces
+   * included, like the text of "#msg <loginID> <message>".
+   *
+   * @param name The name, like "#msg".
+   * @param words The number of one word arguments before the text.
+   * @param usage How to use it.
+   * @param handler What it does.
+   * @return this table, to add more.
+   */
+  public CommandTable<C> addWithText(String name, int words, String usage, Handler<C> handler)
+  {
+    return add(new Command<C>(name, words + 1, words + 1, true, usage, handler));
+  }
+
+  /**
+   * Runs the command on a line, if the line is one this table knows.
+   *
+   * @param line The line typed or received.
+   * @param context Passed on to the handler.
+   * @return true if the line was a known command, whether or not it had the
+   *   right number of arguments. False for anything else, including normal
+   *   chat messages and unknown commands, so the caller can deal with those.
+   * @exception IOException if the handler or the reporter throws it.
+   */
+  public boolean dispatch(String line, C context) throws IOException
+  {
+    if(line.isEmpty() || line.charAt(0) != PREFIX) {
+      return false;
+    }
+
+    // the name runs up to the first space, hash it the way String does
+    int nameEnd = 0;
+    int hash = 0;
+    int length = line.length();
+    while(nameEnd < length && line.charAt(nameEnd) != ' ') {
+      hash = 31 * hash + line.charAt(nameEnd++);
+    }
+
+    Command<C> command = find(line, nameEnd, hash);
+    if(command == null) {
+      return false;
+    }
+
+    Arguments args = arguments.get();
+    if(!args.parse(line, nameEnd, command.max, command.lastIsText) || args.count() < command.min) {
+      reporter.report(context, "Usage: " + command.usage);
+      return true;
+    }
+    command.handler.handle(context, args);
+    return true;
+  }
+
+  private Command<C> find(String line, int nameEnd, int hash)
+  {
+    Command<C>[] current = slots;
+    int mask = current.length - 1;
+    for(int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+      Command<C> command = current[i];
+      if(command == null) {
+        return null;
+      }
+      if(command.hash == hash && command.name.length() == nameEnd
+        && line.regionMatches(0, command.name, 0, nameEnd)) {
+        return command;
+      }
+    }
+  }
+
+  private synchronized CommandTable<C> add(Command<C> command)
+  {
+    if(command.name.isEmpty() || command.name.charAt(0) != PREFIX || command.name.indexOf(' ') >= 0) {
+      throw new IllegalArgumentException("Bad command name: " + command.name);
+    }
+    if(find(command.name, command.name.length(), command.hash) != null) {
+      throw new IllegalArgumentException("Duplicate command: " + command.name);
+    }
+
+    // keep the table at most half full, so lookups stay short
+    Command<C>[] bigger = slots;
+    if((size + 1) * 2 > bigger.length) {
+      bigger = newSlots(bigger.length * 2);
+      for(Command<C> old : slots) {
+        if(old != null) {
+          insert(bigger, old);
+        }
+      }
+    } else {
+      bigger = slots.clone();
+    }
+    insert(bigger, command);
+    size++;
+    slots = bigger; // published whole, so lookups never see a half-built table
+    return this;
+  }
+
+  private static <C> void insert(Command<C>[] table, Command<C> command)
+  {
+    int mask = table.length - 1;
+    int i = spread(command.hash) & mask;
+    while(table[i] != null) {
+      i = (i + 1) & mask;
+    }
+    table[i] = command;
+  }
+
+  //Class methods ***************************************************
+
+  private static int spread(int hash)
+  {
+    return hash ^ (hash >>> 16);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <C> Command<C>[] newSlots(int length)
+  {
+    return (Command<C>[]) new Command<?>[length];
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * The code run for a command.
+   */
+  public interface Handler<C>
+  {
+    /**
+     * @param context What was given to dispatch.
+     * @param args The arguments, only valid until this method returns.
+     */
+    void handle(C context, Arguments args) throws IOException;
+  }
+
+  /**
+   * Tells the user a command was used wrongly.
+   */
+  public interface Reporter<C>
+  {
+    /**
+     * @param context What was given to dispatch.
+     * @param problem What went wrong, like "Usage: #msg <loginID> <message>".
+     */
+    void report(C context, String problem) throws IOException;
+  }
+
+  /**
+   * One command of the table.
+   */
+  private static final class Command<C>
+  {
+    final String name;
+    final int hash;
+    final int min;
+    final int max;
+    final boolean lastIsText;
+    final String usage;
+    final Handler<C> handler;
+
+    Command(String name, int min, int max, boolean lastIsText, String usage, Handler<C> handler)
+    {
+      if(min < 0 || max < min) {
+        throw new IllegalArgumentException("Bad number of arguments for " + name);
+      }
+      this.name = name;
+      this.hash = name.hashCode();
+      this.min = min;
+      this.max = max;
+      this.lastIsText = lastIsText;
+      this.usage = usage;
+      this.handler = handler;
+    }
+  }
+}
+//End of CommandTable class
@@ -0,0 +1,132 @@
+package edu.seg2105.client.load;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Records delivery latencies for the load generator. It works like the
+ * framework's LatencyHistogram but splits every power of two into 16
+ * buckets, so the percentiles it reports are within about 6% of the real
+ * ones instead of a factor of two. That is precise enough to compare one
+ * release against the next. Recording never allocates or locks, so all the
+ * sessions can share one recorder.
+ */
+class LatencyRecorder
+{
+  //Class variables *************************************************
+
+  /**
+   * Each power of two is split in 2^SUB_BITS buckets.
+   */
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  /**
+   * Enough buckets for any positive long.
+   */
+  private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+  //Instance variables **********************************************
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  //Instance methods ************************************************
+
+  /**
+   * Records one latency.
+   *
+   * @param nanos The latency in nanoseconds, negative ones count as 0.
+   */
+  void record(long nanos)
+  {
+    if(nanos < 0) {
+      nanos = 0;
+    }
+    buckets.incrementAndGet(bucketOf(nanos));
+    count.increment();
+    sum.add(nanos);
+    max.accumulate(nanos);
+  }
+
+  long getCount()
+  {
+    return count.sum();
+  }
+
+  long getMax()
+  {
+    return max.get();
+  }
+
+  /**
+   * @return the mean latency in nanoseconds, or 0 if none was recorded.
+   */
+  long getMean()
+  {
+    long n = count.sum();
+    return n == 0 ? 0 : sum.sum() / n;
+  }
+
+  /**
+   * Returns the latency that a fraction of the recorded ones do not exceed.
+   *
+   * @param fraction The percentile as a fraction, like 0.999.
+   * @return the upper end of the bucket holding that percentile, in
+   *   nanoseconds, or 0 if nothing was recorded.
+   */
+  long getPercentile(double fraction)
+  {
+    long total = 0;
+    long[] counts = new long[BUCKETS];
+    for(int i = 0; i < BUCKETS; i++) {
+      total += counts[i] = buckets.get(i);
+    }
+    if(total == 0) {
+      return 0;
+    }
+
+    long rank = (long) Math.ceil(fraction * total);
+    long seen = 0;
+    for(int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if(seen >= rank) {
+        // never report more than what was actually seen
+        return Math.min(upperBound(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Values below SUB_BUCKETS get a bucket each; above that, the bucket is
+   * picked by the highest bit and the SUB_BITS bits right after it.
+   */
+  private static int bucketOf(long nanos)
+  {
+    if(nanos < SUB_BUCKETS) {
+      return (int) nanos;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * @return the largest value that falls in a bucket.
+   */
+  private static long upperBound(int bucket)
+  {
+    if(bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    return lower + (1L << (exponent - SUB_BITS)) - 1;
+  }
+}
+//End of LatencyRecorder class
@@ -0,0 +1,416 @@
+package edu.seg2105.client.load;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A headless load generator for the chat server. It opens many sessions
+ * against a running EchoServer (see ServerConsole), logs each one in with
+ * #login and has them chat at a steady rate for a while. Every payload
+ * starts with the time it was meant to be sent at, so the sessions that
+ * receive it can tell how long delivery took. At the end it prints a summary
+ * of throughput and latency percentiles and writes it to a file that can be
+ * kept with each release.
+ * <p>
+ * Messages are sent on a fixed schedule and timed from their scheduled send
+ * time, not from when they actually left: if the server stalls, the messages
+ * queued up behind the stall count as late, like they would for real users.
+ * <p>
+ * Usage: <code>java edu.seg2105.client.load.LoadGenerator [options]</code>
+ * where the options are
+ * <pre>
+ *   --host &lt;host&gt;        server host (localhost)
+ *   --port &lt;port&gt;        server port (5555)
+ *   --sessions &lt;n&gt;       number of simulated users (100)
+ *   --rate &lt;n&gt;           messages sent per second, over all sessions (1000)
+ *   --size &lt;n&gt;           payload length in characters (64)
+ *   --mode &lt;mode&gt;        private: #msg to another session (the default)
+ *                        room: #room to a room of --room-size sessions
+ *                        broadcast: plain chat, delivered to everyone
+ *   --room-size &lt;n&gt;      sessions per room in room mode (10)
+ *   --warmup &lt;seconds&gt;   sending before measuring starts (5)
+ *   --duration &lt;seconds&gt; measured sending time (30)
+ *   --senders &lt;n&gt;        threads sending messages (4)
+ *   --label &lt;text&gt;       a name for the run, like a release number
+ *   --out &lt;file&gt;         where the summary goes (load-summary.txt)
+ * </pre>
+ */
+public class LoadGenerator
+{
+  //Class variables *************************************************
+
+  /**
+   * Marks the send time at the start of every payload.
+   */
+  static final char STAMP = '@';
+
+  /**
+   * How long to wait for the last messages to arrive once sending stops.
+   */
+  static final long DRAIN_MILLIS = 5000;
+
+  //Instance variables **********************************************
+
+  String host = "localhost";
+  int port = 5555;
+  int sessionCount = 100;
+  int rate = 1000;
+  int size = 64;
+  String mode = "private";
+  int roomSize = 10;
+  int warmupSeconds = 5;
+  int durationSeconds = 30;
+  int senders = 4;
+  String label = "";
+  String out = "load-summary.txt";
+
+  /**
+   * The sessions, in login ID order.
+   */
+  private final List<LoadSession> sessions = new ArrayList<LoadSession>();
+
+  /**
+   * Messages that carry a send time in this window are counted and timed.
+   */
+  private volatile long measureFrom = Long.MAX_VALUE;
+  private volatile long measureTo = Long.MAX_VALUE;
+
+  private final LatencyRecorder latencies = new LatencyRecorder();
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder expected = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder delivered = new LongAdder();
+  private final LongAdder lostSessions = new LongAdder();
+
+  /**
+   * Set while closing the sessions at the end, when losing them is expected.
+   */
+  private volatile boolean stopping;
+
+  //Instance methods ************************************************
+
+  /**
+   * Runs the whole test and returns the summary.
+   */
+  Properties run() throws Exception
+  {
+    long connectStart = System.nanoTime();
+    openSessions();
+    long connectNanos = System.nanoTime() - connectStart;
+    System.out.println(sessions.size() + " sessions logged in.");
+
+    // one thread per slice of the sessions, each sending its share of the rate
+    int threads = Math.max(1, Math.min(senders, sessions.size()));
+    long start = System.nanoTime() + 500_000_000L; // give the logins a moment to land
+    measureFrom = start + warmupSeconds * 1_000_000_000L;
+    measureTo = measureFrom + durationSeconds * 1_000_000_000L;
+
+    List<Thread> senderThreads = new ArrayList<Thread>();
+    for(int t = 0; t < threads; t++) {
+      final int slice = t;
+      Thread thread = new Thread(() -> sendLoop(slice, threads, start), "load sender " + t);
+      thread.start();
+      senderThreads.add(thread);
+    }
+    System.out.println("Warming up for " + warmupSeconds + "s, then measuring for " + durationSeconds + "s...");
+    for(Thread thread : senderThreads) {
+      thread.join();
+    }
+
+    // wait for whatever is still on its way, up to a limit
+    long drainEnd = System.currentTimeMillis() + DRAIN_MILLIS;
+    while(delivered.sum() < expected.sum() && System.currentTimeMillis() < drainEnd) {
+      Thread.sleep(10);
+    }
+
+    stopping = true;
+    for(LoadSession session : sessions) {
+      try {
+        session.closeConnection();
+      } catch(IOException e) {}
+    }
+    return summary(connectNanos);
+  }
+
+  /**
+   * Opens and logs in every session, and puts them in rooms in room mode.
+   */
+  private void openSessions() throws IOException
+  {
+    for(int i = 0; i < sessionCount; i++) {
+      LoadSession session = new LoadSession(this, "load-" + i, host, port);
+      session.openConnection();
+      session.send("#login " + session.loginID);
+      sessions.add(session);
+    }
+
+    // work out how many sessions get each message, that is how many deliveries to expect
+    for(int i = 0; i < sessionCount; i++) {
+      LoadSession session = sessions.get(i);
+      switch(mode) {
+        case "private": {
+          session.fanOut = 1;
+          break;
+        }
+        case "broadcast": {
+          session.fanOut = sessionCount;
+          break;
+        }
+        case "room": {
+          // sessions 0 to roomSize-1 share the first room, and so on
+          session.send("#join " + roomOf(i));
+          session.fanOut = Math.min(roomSize, sessionCount - i / roomSize * roomSize);
+          break;
+        }
+        default:
+          throw new IllegalArgumentException("Unknown mode " + mode);
+      }
+    }
+  }
+
+  /**
+   * @return the room of the session with the given index, in room mode.
+   */
+  private String roomOf(int index)
+  {
+    return "room-" + (index / roomSize);
+  }
+
+  /**
+   * Sends the messages of one slice of the sessions on schedule, until the
+   * end of the measured window.
+   */
+  private void sendLoop(int slice, int slices, long start)
+  {
+    List<LoadSession> mine = new ArrayList<LoadSession>();
+    List<String> prefixes = new ArrayList<String>();
+    for(int i = slice; i < sessions.size(); i += slices) {
+      LoadSession session = sessions.get(i);
+      mine.add(session);
+      prefixes.add(prefixFor(i));
+    }
+    if(mine.isEmpty()) {
+      return;
+    }
+
+    StringBuilder padding = new StringBuilder();
+    while(padding.length() < size) {
+      padding.append('x');
+    }
+
+    double interval = 1e9 * slices / rate;
+    StringBuilder message = new StringBuilder();
+    for(long k = 0; ; k++) {
+      long due = start + (long) (k * interval);
+      if(due >= measureTo) {
+        return;
+      }
+      long wait = due - System.nanoTime();
+      if(wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+
+      int which = (int) (k % mine.size());
+      LoadSession session = mine.get(which);
+
+      // "<command> @<due> xxxx", the padding makes up the rest of the payload
+      message.setLength(0);
+      message.append(prefixes.get(which)).append(STAMP).append(due).append(' ');
+      int payload = message.length() - prefixes.get(which).length();
+      message.append(padding, 0, Math.max(0, size - payload));
+
+      boolean counted = due >= measureFrom;
+      if(session.send(message.toString())) {
+        if(counted) {
+          sent.increment();
+          expected.add(session.fanOut);
+        }
+      } else if(counted) {
+        failed.increment();
+      }
+    }
+  }
+
+  /**
+   * @return what goes before the payload of the messages a session sends.
+   */
+  private String prefixFor(int index)
+  {
+    switch(mode) {
+      case "private":
+        // to the next session along, so every session gets as much as it sends
+        return "#msg " + sessions.get((index + 1) % sessions.size()).loginID + " ";
+      case "room":
+        return "#room " + roomOf(index) + " ";
+      default:
+        return "";
+    }
+  }
+
+  /**
+   * Called by a session for every message it receives. Messages whose
+   * payload was sent in the measured window are timed; the rest, like
+   * warm up messages and the server's own announcements, are ignored.
+   */
+  void delivered(String message)
+  {
+    long now = System.nanoTime();
+
+    // the payload comes after the last "> " the server put in front of it,
+    // except for "Private to" copies, which only the sender gets
+    int at = message.lastIndexOf("> " + STAMP);
+    if(at < 0 || message.startsWith("Private to ")) {
+      return;
+    }
+    long sentAt = 0;
+    int i = at + 3;
+    for(; i < message.length(); i++) {
+      char c = message.charAt(i);
+      if(c < '0' || c > '9') {
+        break;
+      }
+      sentAt = sentAt * 10 + (c - '0');
+    }
+    if(i == at + 3 || sentAt < measureFrom || sentAt >= measureTo) {
+      return;
+    }
+    delivered.increment();
+    latencies.record(now - sentAt);
+  }
+
+  /**
+   * Called by a session when its connection goes away.
+   */
+  void sessionLost(LoadSession session)
+  {
+    if(!stopping) {
+      lostSessions.increment();
+      System.out.println(session.loginID + " lost its connection.");
+    }
+  }
+
+  /**
+   * Puts the results of the run together.
+   */
+  private Properties summary(long connectNanos)
+  {
+    Properties summary = new Properties();
+    summary.setProperty("label", label);
+    summary.setProperty("date", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date()));
+    summary.setProperty("java.version", System.getProperty("java.version"));
+    summary.setProperty("server", host + ":" + port);
+    summary.setProperty("mode", mode);
+    summary.setProperty("sessions", Integer.toString(sessionCount));
+    if("room".equals(mode)) {
+      summary.setProperty("room.size", Integer.toString(roomSize));
+    }
+    summary.setProperty("rate.target", Integer.toString(rate));
+    summary.setProperty("message.size", Integer.toString(size));
+    summary.setProperty("duration.seconds", Integer.toString(durationSeconds));
+    summary.setProperty("connect.millis", Long.toString(connectNanos / 1_000_000));
+
+    long deliveredCount = delivered.sum();
+    summary.setProperty("sent", Long.toString(sent.sum()));
+    summary.setProperty("send.failed", Long.toString(failed.sum()));
+    summary.setProperty("delivered", Long.toString(deliveredCount));
+    summary.setProperty("delivered.missing", Long.toString(Math.max(0, expected.sum() - deliveredCount)));
+    summary.setProperty("sessions.lost", Long.toString(lostSessions.sum()));
+    summary.setProperty("throughput.sent.per.second", Long.toString(sent.sum() / durationSeconds));
+    summary.setProperty("throughput.delivered.per.second", Long.toString(deliveredCount / durationSeconds));
+
+    summary.setProperty("latency.p50.micros", micros(latencies.getPercentile(0.5)));
+    summary.setProperty("latency.p99.micros", micros(latencies.getPercentile(0.99)));
+    summary.setProperty("latency.p999.micros", micros(latencies.getPercentile(0.999)));
+    summary.setProperty("latency.max.micros", micros(latencies.getMax()));
+    summary.setProperty("latency.mean.micros", micros(latencies.getMean()));
+    return summary;
+  }
+
+  private static String micros(long nanos)
+  {
+    return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+  }
+
+  /**
+   * Reads the options, see the class comment.
+   */
+  private void parseOptions(String[] args)
+  {
+    for(int i = 0; i < args.length; i++) {
+      String option = args[i];
+      // every option takes a value
+      if(i + 1 >= args.length) {
+        throw new IllegalArgumentException("Missing value for " + option);
+      }
+      String value = args[++i];
+      switch(option) {
+        case "--host": host = value; break;
+        case "--port": port = Integer.parseInt(value); break;
+        case "--sessions": sessionCount = Integer.parseInt(value); break;
+        case "--rate": rate = Integer.parseInt(value); break;
+        case "--size": size = Integer.parseInt(value); break;
+        case "--mode": mode = value; break;
+        case "--room-size": roomSize = Integer.parseInt(value); break;
+        case "--warmup": warmupSeconds = Integer.parseInt(value); break;
+        case "--duration": durationSeconds = Integer.parseInt(value); break;
+        case "--senders": senders = Integer.parseInt(value); break;
+        case "--label": label = value; break;
+        case "--out": out = value; break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + option);
+      }
+    }
+    if(sessionCount < 1 || rate < 1 || size < 0 || roomSize < 1 || warmupSeconds < 0 || durationSeconds < 1 || senders < 1) {
+      throw new IllegalArgumentException("Sessions, rate, room size, duration and senders must be positive");
+    }
+    if(!mode.equals("private") && !mode.equals("room") && !mode.equals("broadcast")) {
+      throw new IllegalArgumentException("Unknown mode " + mode);
+    }
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Runs a load test against a chat server that is already running.
+   *
+   * @param args The options, see the class comment.
+   */
+  public static void main(String[] args)
+  {
+    LoadGenerator generator = new LoadGenerator();
+    try {
+      generator.parseOptions(args);
+    } catch(IllegalArgumentException e) {
+      System.out.println("ERROR - " + e.getMessage());
+      System.exit(1);
+    }
+
+    Properties summary;
+    try {
+      summary = generator.run();
+    } catch(Exception e) {
+      System.out.println("ERROR - Load test failed: " + e);
+      System.exit(1);
+      return;
+    }
+
+    // print it in a stable order, and save the same thing to keep with the release
+    StringBuilder text = new StringBuilder();
+    for(String key : new TreeSet<String>(summary.stringPropertyNames())) {
+      text.append(key).append('=').append(summary.getProperty(key)).append('\n');
+    }
+    System.out.print(text);
+    try(Writer writer = new OutputStreamWriter(new FileOutputStream(generator.out), "UTF-8")) {
+      writer.write("# OCSF chat load test summary\n");
+      writer.write(text.toString());
+      System.out.println("Summary written to " + generator.out);
+    } catch(IOException e) {
+      System.out.println("Could not write the summary to " + generator.out + ": " + e.getMessage());
+    }
+    System.exit(0);
+  }
+}
+//End of LoadGenerator class
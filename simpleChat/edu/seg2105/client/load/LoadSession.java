@@ -0,0 +1,106 @@
+package edu.seg2105.client.load;
+
+import java.io.IOException;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.FrameCodec;
+import ocsf.common.ThreadMode;
+
+/**
+ * One simulated chat user of the load generator. Unlike ChatClient it has no
+ * UI and never exits the program: it logs in, sends what the generator tells
+ * it to, and hands every timestamped message it receives back to the
+ * generator to be timed.
+ */
+class LoadSession extends AbstractClient
+{
+  //Instance variables **********************************************
+
+  /**
+   * The generator running this session.
+   */
+  private final LoadGenerator generator;
+
+  /**
+   * The login ID this session uses.
+   */
+  final String loginID;
+
+  /**
+   * How many sessions receive each message this one sends.
+   */
+  int fanOut = 1;
+
+  /**
+   * Set once the connection is lost, so nothing more is sent on it.
+   */
+  volatile boolean lost;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param generator The generator running this session.
+   * @param loginID The login ID to use.
+   * @param host The server to connect to.
+   * @param port The port number to connect on.
+   */
+  LoadSession(LoadGenerator generator, String loginID, String host, int port)
+  {
+    // the readers spend their time blocked on a socket, virtual threads let us have thousands
+    super(host, port, ThreadMode.VIRTUAL);
+    this.generator = generator;
+    this.loginID = loginID;
+    setCodecs(FrameCodec.BINARY, FrameCodec.SERIALIZATION);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Sends a message, unless the connection was lost.
+   *
+   * @return true if the message was sent.
+   */
+  boolean send(String message)
+  {
+    if(lost) {
+      return false;
+    }
+    try {
+      sendToServer(message);
+      return true;
+    } catch(IOException e) {
+      lost();
+      return false;
+    }
+  }
+
+  /**
+   * Every chat message we get ends with the payload some session sent, which
+   * starts with the time it was meant to be sent at.
+   *
+   * @param msg The message from the server.
+   */
+  protected void handleMessageFromServer(Object msg)
+  {
+    generator.delivered(msg.toString());
+  }
+
+  protected void connectionClosed()
+  {
+    lost();
+  }
+
+  protected void connectionException(Exception exception)
+  {
+    lost();
+  }
+
+  private synchronized void lost()
+  {
+    if(!lost) {
+      lost = true;
+      generator.sessionLost(this);
+    }
+  }
+}
+//End of LoadSession class
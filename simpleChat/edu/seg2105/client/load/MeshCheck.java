@@ -0,0 +1,221 @@
+package edu.seg2105.client.load;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.seg2105.edu.server.backend.EchoServer;
+import edu.seg2105.edu.server.backend.PeerLink;
+import ocsf.client.AbstractClient;
+import ocsf.common.AsyncLogger;
+import ocsf.common.FrameCodec;
+import ocsf.common.LogLevel;
+
+/**
+ * Checks a mesh of EchoServers on loopback, all in this process. It starts
+ * a few servers on free ports, links each to the next in a ring (so every
+ * broadcast also comes back around a loop, which the servers must notice),
+ * logs one user in on each server and has every user say something. Every
+ * user must get every message exactly once: missing ones mean the relaying
+ * is broken, extra ones that a loop wasn't caught.
+ * <p>
+ * Usage: <code>java edu.seg2105.client.load.MeshCheck [servers]</code>,
+ * with 3 servers unless told otherwise. It prints what each user got and
+ * exits with 0 if the mesh is right, 1 if not.
+ */
+public class MeshCheck
+{
+  //Class variables *************************************************
+
+  /**
+   * How long the links and the messages get to arrive.
+   */
+  static final long TIMEOUT_MILLIS = 15000;
+
+  /**
+   * How long to keep listening once everything arrived, for copies that
+   * come around a loop late.
+   */
+  static final long SETTLE_MILLIS = 1000;
+
+  //Instance variables **********************************************
+
+  private final List<EchoServer> servers = new ArrayList<EchoServer>();
+  private final List<PeerLink> links = new ArrayList<PeerLink>();
+  private final List<User> users = new ArrayList<User>();
+
+  //Instance methods ************************************************
+
+  /**
+   * Runs the check.
+   *
+   * @param count How many servers.
+   * @return true if every user got every message exactly once.
+   */
+  boolean run(int count) throws Exception
+  {
+    String secret = Long.toHexString(new Random().nextLong());
+    for(int i = 0; i < count; i++) {
+      EchoServer server = new EchoServer(freePort(), message -> {});
+      server.setLogger(AsyncLogger.toConsole(LogLevel.WARN));
+      server.setMeshSecret(secret);
+      server.listen();
+      servers.add(server);
+    }
+    for(int i = 0; i < count; i++) {
+      links.add(servers.get(i).linkTo("localhost", servers.get((i + 1) % count).getPort()));
+    }
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    for(PeerLink link : links) {
+      while(!link.isLinked()) {
+        if(System.currentTimeMillis() > deadline) {
+          System.out.println("The link to " + link + " was never accepted.");
+          return false;
+        }
+        Thread.sleep(20);
+      }
+    }
+    System.out.println(count + " servers linked in a ring.");
+
+    for(int i = 0; i < count; i++) {
+      User user = new User("user" + i, servers.get(i).getPort());
+      user.openConnection();
+      Object refusal = user.request("#login " + user.loginID).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      if(refusal != null) {
+        System.out.println(user.loginID + " could not log in: " + refusal);
+        return false;
+      }
+      users.add(user);
+    }
+    for(User user : users) {
+      user.sendToServer("mesh check from " + user.loginID);
+    }
+
+    // wait for every message to be everywhere, then a little more for duplicates
+    while(!allArrived() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    Thread.sleep(SETTLE_MILLIS);
+
+    boolean right = true;
+    for(User user : users) {
+      StringBuilder line = new StringBuilder(user.loginID + " on port " + user.getPort() + " got:");
+      for(User sender : users) {
+        int copies = user.copiesOf(sender);
+        line.append(" ").append(sender.loginID).append(" x").append(copies);
+        right &= copies == 1;
+      }
+      System.out.println(line);
+    }
+    System.out.println(right ? "Every message arrived exactly once." : "The mesh lost or repeated messages.");
+    return right;
+  }
+
+  private boolean allArrived()
+  {
+    for(User user : users) {
+      for(User sender : users) {
+        if(user.copiesOf(sender) == 0) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Closes the links, the users and the servers.
+   */
+  void close()
+  {
+    // the servers would warn about every link going down
+    for(EchoServer server : servers) {
+      server.setLogger(AsyncLogger.toConsole(LogLevel.ERROR));
+    }
+    for(PeerLink link : links) {
+      link.close();
+    }
+    for(User user : users) {
+      try {
+        user.closeConnection();
+      } catch(IOException e) {
+        // going away either way
+      }
+    }
+    for(EchoServer server : servers) {
+      try {
+        server.close();
+      } catch(IOException e) {
+        // going away either way
+      }
+    }
+  }
+
+  /**
+   * @return a local port that was free a moment ago.
+   */
+  private static int freePort() throws IOException
+  {
+    try(ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+    MeshCheck check = new MeshCheck();
+    boolean right;
+    try {
+      right = check.run(count);
+    } finally {
+      check.close();
+    }
+    System.exit(right ? 0 : 1);
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * A user on one of the servers, counting the copies it gets of what
+   * every user said.
+   */
+  private static final class User extends AbstractClient
+  {
+    final String loginID;
+
+    /**
+     * Copies received, by what was said.
+     */
+    private final Map<String, AtomicInteger> received = new ConcurrentHashMap<String, AtomicInteger>();
+
+    User(String loginID, int port)
+    {
+      super("localhost", port);
+      this.loginID = loginID;
+      setCodecs(FrameCodec.BINARY, FrameCodec.SERIALIZATION);
+    }
+
+    int copiesOf(User sender)
+    {
+      AtomicInteger copies = received.get("mesh check from " + sender.loginID);
+      return copies == null ? 0 : copies.get();
+    }
+
+    /**
+     * Chat arrives as "From &lt;loginID&gt; &gt; &lt;message&gt;".
+     */
+    protected void handleMessageFromServer(Object msg)
+    {
+      String message = msg.toString();
+      int start = message.indexOf(" > ");
+      if(message.startsWith("From ") && start >= 0) {
+        received.computeIfAbsent(message.substring(start + 3), key -> new AtomicInteger()).incrementAndGet();
+      }
+    }
+  }
+}
+//End of MeshCheck class
@@ -1,9 +1,18 @@
 package edu.seg2105.client.ui;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 import edu.seg2105.client.common.ChatIF;
 import edu.seg2105.edu.server.backend.EchoServer;
+import edu.seg2105.edu.server.backend.HistoryLog;
+import edu.seg2105.edu.server.backend.OfflineInbox;
+import ocsf.common.AsyncLogger;
+import ocsf.common.LogLevel;
+import ocsf.common.MetricsExporter;
 
 public class ServerConsole implements ChatIF {
 	//Class variables *************************************************
@@ -13,6 +22,21 @@ public class ServerConsole implements ChatIF {
 	   */
 	  final public static int DEFAULT_PORT = 5555;
 	  
+	  /**
+	   * The default local port Prometheus can read the server's metrics from.
+	   */
+	  final public static int DEFAULT_METRICS_PORT = 9555;
+	  
+	  /**
+	   * The default directory the chat history is kept in.
+	   */
+	  final public static String DEFAULT_HISTORY_DIRECTORY = "chat-history";
+	  
+	  /**
+	   * The default directory private messages for logged off users are kept in.
+	   */
+	  final public static String DEFAULT_INBOX_DIRECTORY = "chat-inbox";
+	  
 	  //Instance variables **********************************************
 	  
 	  /**
@@ -90,6 +114,19 @@ public class ServerConsole implements ChatIF {
 	  
 	  public static void main(String[] args) 
 	  {
+	    // "--peer host:port", as many as needed and anywhere on the line, links to
+	    // other servers; everything else is the usual arguments in order
+	    List<String> peers = new ArrayList<String>();
+	    List<String> rest = new ArrayList<String>();
+	    for(int i = 0; i < args.length; i++) {
+	      if(args[i].equals("--peer") && i + 1 < args.length) {
+	        peers.add(args[++i]);
+	      } else {
+	        rest.add(args[i]);
+	      }
+	    }
+	    args = rest.toArray(new String[0]);
+	    
 	    int port = 0; //Port to listen on
 
 	    try
@@ -101,8 +138,83 @@ public class ServerConsole implements ChatIF {
 	      port = DEFAULT_PORT; //Set port to 5555
 	    }
 		
+	    int metricsPort = 0; //Port to serve metrics on, 0 for none
+	    
+	    try
+	    {
+	      metricsPort = Integer.parseInt(args[1]); //Get metrics port from command line
+	    }
+	    catch(Throwable t)
+	    {
+	      metricsPort = DEFAULT_METRICS_PORT; //Set port to 9555
+	    }
+		
 	    ServerConsole sc = new ServerConsole(port);
 	    
+	    // the log goes to the console unless a file is given as the third argument
+	    if(args.length > 2) {
+	      try
+	      {
+	        sc.echoServer.setLogger(AsyncLogger.toFile(new File(args[2]), LogLevel.INFO));
+	        System.out.println("Logging to " + args[2]);
+	      }
+	      catch(IOException e)
+	      {
+	        System.out.println("Could not open log file " + args[2] + ", logging to the console.");
+	      }
+	    }
+	    
+	    // keep what is broadcast for #history, unless the fourth argument is "none"
+	    String historyDirectory = args.length > 3 ? args[3] : DEFAULT_HISTORY_DIRECTORY;
+	    if(!historyDirectory.equals("none")) {
+	      try
+	      {
+	        sc.echoServer.setHistory(new HistoryLog(new File(historyDirectory), HistoryLog.DEFAULT_SEGMENT_BYTES,
+	          HistoryLog.DEFAULT_RETAIN_BYTES, HistoryLog.DEFAULT_RETAIN_MILLIS));
+	      }
+	      catch(IOException e)
+	      {
+	        System.out.println("Could not open the history in " + historyDirectory + ", continuing without it.");
+	      }
+	    }
+	    
+	    // keep private messages for people who are logged off, unless the fifth argument is "none"
+	    String inboxDirectory = args.length > 4 ? args[4] : DEFAULT_INBOX_DIRECTORY;
+	    if(!inboxDirectory.equals("none")) {
+	      try
+	      {
+	        sc.echoServer.setInbox(new OfflineInbox(new File(inboxDirectory), OfflineInbox.DEFAULT_MAX_MESSAGES,
+	          OfflineInbox.DEFAULT_MAX_BYTES, OfflineInbox.DEFAULT_SEGMENT_BYTES));
+	      }
+	      catch(IOException e)
+	      {
+	        System.out.println("Could not open the offline inboxes in " + inboxDirectory + ", continuing without them.");
+	      }
+	    }
+	    
+	    // let Prometheus (or curl) read the metrics at http://127.0.0.1:<metricsPort>/metrics
+	    if(metricsPort > 0) {
+	      try
+	      {
+	        new MetricsExporter(sc.echoServer.getMetrics()).start(metricsPort);
+	        System.out.println("Metrics available at http://127.0.0.1:" + metricsPort + "/metrics");
+	      }
+	      catch(IOException e)
+	      {
+	        System.out.println("Could not serve metrics on port " + metricsPort + ", continuing without them.");
+	      }
+	    }
+	    
+	    // servers link only with those that share the secret, taken from the
+	    // environment so it doesn't show up in the process list
+	    String meshSecret = System.getenv("CHAT_MESH_SECRET");
+	    if(meshSecret != null && !meshSecret.isEmpty()) {
+	      sc.echoServer.setMeshSecret(meshSecret);
+	    } else if(!peers.isEmpty()) {
+	      System.out.println("Set CHAT_MESH_SECRET to link to other servers, ignoring --peer.");
+	      peers.clear();
+	    }
+	    
 	    try 
 	    {
 	      sc.echoServer.listen(); //Start listening for connections
@@ -112,6 +224,19 @@ public class ServerConsole implements ChatIF {
 	      System.out.println("ERROR - Could not listen for clients!");
 	    }
 	    
+	    // link to the other servers of the mesh, they keep trying until those are up
+	    for(String peer : peers) {
+	      int colon = peer.lastIndexOf(':');
+	      try
+	      {
+	        sc.echoServer.linkTo(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+	      }
+	      catch(RuntimeException e)
+	      {
+	        System.out.println("Ignoring --peer " + peer + ", it should be host:port.");
+	      }
+	    }
+	    
 	    sc.lookForInput();
 
 	  }
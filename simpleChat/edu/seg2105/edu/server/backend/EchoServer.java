@@ -5,8 +5,21 @@ package edu.seg2105.edu.server.backend;
 
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import edu.seg2105.client.common.ChatDictionary;
 import edu.seg2105.client.common.ChatIF;
-import ocsf.client.AbstractClient;
+import edu.seg2105.client.common.CommandTable;
+import ocsf.common.AsyncLogger;
+import ocsf.common.Counter;
+import ocsf.common.EncodedMessage;
+import ocsf.common.LogLevel;
 import ocsf.server.*;
 
 /**
@@ -27,13 +40,145 @@ public class EchoServer extends AbstractServer
    */
   final public static int DEFAULT_PORT = 5555;
   
+  /**
+   * The number of event loop threads serving all the clients.
+   */
+  final public static int EVENT_LOOP_THREADS = 
+    Math.max(2, Runtime.getRuntime().availableProcessors());
+  
+  /**
+   * The most messages #history sends back at once, so a client can't
+   * fill up its own outbound queue.
+   */
+  final public static int MAX_HISTORY = 500;
+  
+  /**
+   * How many offline messages are sent at a time when someone logs in.
+   */
+  final public static int OFFLINE_BATCH = 64;
+  
+  /**
+   * How often we send a heartbeat to a client we haven't sent anything
+   * to, so its client can tell we're still here.
+   */
+  final public static long HEARTBEAT_MILLIS = 15000;
+  
+  /**
+   * How long a client can go without sending anything (its heartbeats
+   * count) before we drop it. Four missed heartbeats means it's gone.
+   */
+  final public static long IDLE_TIMEOUT_MILLIS = 60000;
+  
+  /**
+   * How fast one client can send. Every message can turn into a broadcast
+   * to everyone, so nobody gets to flood the server. Typing is nowhere
+   * near this, but pasting a file is.
+   */
+  final public static double MESSAGES_PER_SECOND = 20;
+  final public static long BYTES_PER_SECOND = 64 * 1024;
+  
+  /**
+   * How fast a linked server can send. It relays for all its users, so
+   * it gets far more than one of them, but still not everything.
+   */
+  final public static double PEER_MESSAGES_PER_SECOND = 5000;
+  final public static long PEER_BYTES_PER_SECOND = 8 * 1024 * 1024;
+  
+  /**
+   * How often we tell a client it's being slowed down, at most.
+   */
+  final public static long THROTTLE_NOTICE_MILLIS = 5000;
+  
+  /**
+   * How many threads accept connections. When the server restarts every
+   * client reconnects at about the same time, so one isn't quite enough.
+   */
+  final public static int ACCEPTOR_THREADS = 2;
+  
+  /**
+   * How long a new connection gets to say hello before we hang up on it.
+   */
+  final public static long HANDSHAKE_TIMEOUT_MILLIS = 5000;
+  
   //Instance variables ***************************************
   /**
    * The interface type variable.  It allows the implementation of 
    * the display method in the client.
    */
   ChatIF serverUI; 
-  AbstractClient client;
+  
+  /**
+   * Where the server logs what happens. Logging is done by a background
+   * thread, so printing every message doesn't slow down handling them.
+   */
+  private volatile AsyncLogger log = AsyncLogger.toConsole(LogLevel.INFO);
+  
+  /**
+   * The commands clients can send, and the ones typed at the server console.
+   */
+  private final CommandTable<ConnectionToClient> clientCommands = buildClientCommands();
+  private final CommandTable<Void> consoleCommands = buildConsoleCommands();
+  
+  /**
+   * Everything broadcast, for #history. Null if the server keeps no history.
+   */
+  private volatile HistoryLog history;
+  
+  /**
+   * Held while a broadcast is numbered and queued to every client, and
+   * while a #resume is answered. Clients drop any number not above the
+   * last they got, so numbers must reach each client in order, and
+   * handlers for different clients (and relays) run in parallel.
+   */
+  private final Object broadcastLock = new Object();
+  
+  /**
+   * Private messages for people who are logged off. Null if they are not
+   * kept.
+   */
+  private volatile OfflineInbox inbox;
+  
+  /**
+   * Who this server is to the other servers of the mesh. Random, so a
+   * server that restarts isn't mistaken for its old self, whose broadcast
+   * numbers the others remember.
+   */
+  private final String serverID;
+  
+  /**
+   * The number of the last broadcast this server started.
+   */
+  private final AtomicLong relaySequence = new AtomicLong();
+  
+  /**
+   * Which relayed broadcasts we've already seen.
+   */
+  private final RelayFilter relayFilter = new RelayFilter();
+  
+  /**
+   * The links we opened to other servers, and the connections other
+   * servers opened to us (they said #peer instead of #login). Broadcasts
+   * are relayed to both.
+   */
+  private final CopyOnWriteArrayList<PeerLink> links = new CopyOnWriteArrayList<PeerLink>();
+  private final CopyOnWriteArrayList<ConnectionToClient> peers = new CopyOnWriteArrayList<ConnectionToClient>();
+  
+  /**
+   * What other servers must prove they know to link to this one, and
+   * this one to link to them. Null if this server takes no part in a
+   * mesh.
+   */
+  private volatile String meshSecret;
+  
+  /**
+   * Where the nonces other servers prove themselves with come from.
+   */
+  private final SecureRandom nonces = new SecureRandom();
+  
+  private final Counter relaysReceived = getMetrics().counter("chat_relays_received_total",
+    "Broadcasts relayed by other servers and delivered here.");
+  private final Counter relayDuplicates = getMetrics().counter("chat_relay_duplicates_total",
+    "Copies of relayed broadcasts dropped because they were already delivered.");
   
   //Constructors ****************************************************
   
@@ -47,11 +192,253 @@ public class EchoServer extends AbstractServer
   {
     super(port);
     this.serverUI = serverUI;
+    this.serverID = port + "-" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+    // serve every client from a few event loops instead of a thread each
+    setNioEventLoops(EVENT_LOOP_THREADS);
+    // accept reconnect storms quickly, and don't let silent connections hang around
+    setAcceptorThreads(ACCEPTOR_THREADS);
+    setHandshakeTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+    // keep clients indexed by login ID so we can find one without looping over everyone
+    indexClientInfo("loginIDKey");
+    // compress long messages for clients that ask, with the words we send the most preloaded
+    setCompression(ChatDictionary.THRESHOLD, ChatDictionary.get());
+    // heartbeat quiet clients, and drop the ones that vanished without saying goodbye
+    setHeartbeatInterval(HEARTBEAT_MILLIS);
+    setIdleTimeout(IDLE_TIMEOUT_MILLIS);
+    // stop reading from anyone sending too fast, so TCP slows them down for us
+    setRateLimit(RateLimit.perSecond(MESSAGES_PER_SECOND, BYTES_PER_SECOND));
+    // show in #stats (and Prometheus) whether the log is keeping up
+    getMetrics().gauge("chat_log_records_written", "Log records written.",
+      () -> log.getWrittenCount());
+    getMetrics().gauge("chat_log_records_dropped", "Log records dropped because the log fell behind.",
+      () -> log.getDroppedCount());
+    getMetrics().gauge("chat_peers", "Servers linked to this one, both ways.",
+      () -> links.size() + peers.size());
   }
 
   
   //Instance methods ************************************************
   
+  /**
+   * Replaces the logger, for example to log to a file instead of the
+   * console. The old logger is closed once what it had is written.
+   *
+   * @param log The new logger.
+   */
+  public void setLogger(AsyncLogger log)
+  {
+    AsyncLogger old = this.log;
+    this.log = log;
+    old.close();
+  }
+  
+  /**
+   * Starts keeping what is broadcast in a history log, so clients can
+   * get it back with #history.
+   *
+   * @param history The history, or null to stop keeping one.
+   */
+  public void setHistory(HistoryLog history)
+  {
+    this.history = history;
+  }
+  
+  /**
+   * Starts keeping private messages for people who are logged off, to
+   * give them when they log in.
+   *
+   * @param inbox The inboxes, or null to stop keeping messages.
+   */
+  public void setInbox(OfflineInbox inbox)
+  {
+    this.inbox = inbox;
+  }
+  
+  /**
+   * Sets the secret every server of the mesh shares. Other servers have
+   * to prove they know it to link to this one, so nobody else can relay
+   * broadcasts in someone else's name.
+   *
+   * @param meshSecret The secret, or null to accept no links.
+   */
+  public void setMeshSecret(String meshSecret)
+  {
+    this.meshSecret = meshSecret;
+  }
+  
+  /**
+   * @return the mesh secret, for our own links.
+   */
+  String getMeshSecret()
+  {
+    return meshSecret;
+  }
+  
+  /**
+   * @return who this server is to the other servers of the mesh.
+   */
+  public String getServerID()
+  {
+    return serverID;
+  }
+  
+  /**
+   * Links this server to another one, so each gets the other's
+   * broadcasts, and through it those of every server it is linked to.
+   * Linking one way is enough; the link keeps trying until the other
+   * server is up. Both servers need the same mesh secret.
+   *
+   * @param host The other server's host.
+   * @param port The other server's port.
+   * @return the link.
+   * @throws IllegalStateException if no mesh secret is set.
+   */
+  public PeerLink linkTo(String host, int port)
+  {
+    if(meshSecret == null) {
+      throw new IllegalStateException("no mesh secret");
+    }
+    PeerLink link = new PeerLink(this, host, port);
+    links.add(link);
+    link.start();
+    return link;
+  }
+  
+  /**
+   * Closes the links to a server opened with linkTo.
+   *
+   * @param host The other server's host.
+   * @param port The other server's port.
+   * @return true if there was one.
+   */
+  public boolean unlink(String host, int port)
+  {
+    boolean found = false;
+    for(PeerLink link : links) {
+      if(link.getHost().equals(host) && link.getPort() == port) {
+        links.remove(link);
+        link.close();
+        found = true;
+      }
+    }
+    return found;
+  }
+  
+  /**
+   * Broadcasts a message to our users, and relays it to the other servers
+   * of the mesh for theirs.
+   *
+   * @param msg The message to send to everyone.
+   */
+  public void sendToAllClients(Object msg)
+  {
+    deliverLocally(msg);
+    if(msg instanceof String && (!links.isEmpty() || !peers.isEmpty())) {
+      relay("#relay " + serverID + " " + relaySequence.incrementAndGet() + " " + msg, null);
+    }
+  }
+  
+  /**
+   * Handles a broadcast relayed by another server: the first copy goes to
+   * our users and on to every other server we're linked to, later copies
+   * (which came around a loop in the mesh) are dropped.
+   *
+   * @param origin The ID of the server that started the broadcast.
+   * @param sequence Its number there.
+   * @param message The broadcast.
+   * @param from The link or connection it came in on, so it isn't sent back.
+   */
+  void receiveRelay(String origin, String sequence, String message, Object from)
+  {
+    long number;
+    try {
+      number = Long.parseLong(sequence);
+    } catch(NumberFormatException e) {
+      log.warn("Bad relay sequence {} from {}.", sequence, from);
+      return;
+    }
+    if(origin.equals(serverID) || !relayFilter.firstTime(origin, number)) {
+      relayDuplicates.increment();
+      return;
+    }
+    relaysReceived.increment();
+    deliverLocally(message);
+    relay("#relay " + origin + " " + number + " " + message, from);
+  }
+  
+  /**
+   * Sends a relay line to every server we're linked to, except the one it
+   * came from.
+   */
+  private void relay(String line, Object from)
+  {
+    for(PeerLink link : links) {
+      if(link != from) {
+        link.relay(line);
+      }
+    }
+    if(!peers.isEmpty()) {
+      // encoded once for all the peers that connected to us
+      EncodedMessage encoded = new EncodedMessage(line);
+      for(ConnectionToClient peer : peers) {
+        if(peer != from) {
+          try {
+            peer.sendToClient(encoded);
+          } catch(IOException e) {
+            // clientException tells us when the peer is gone
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * Sends a broadcast to the users connected here, and adds it to the
+   * history if there is one. Messages in the history go out as
+   * "#<sequence> <message>", so a client knows where to #resume from if it
+   * gets disconnected.
+   *
+   * @param msg The message.
+   */
+  private void deliverLocally(Object msg)
+  {
+    synchronized(broadcastLock) {
+      HistoryLog current = history;
+      boolean numbered = false;
+      if(current != null && msg instanceof String) {
+        try {
+          long sequence = current.append((String) msg);
+          msg = "#" + sequence + " " + msg;
+          numbered = true;
+        } catch(IOException | IllegalArgumentException e) {
+          // still send it, it just won't be in the history
+          log.warn("Could not add to the history: {}", e);
+        }
+      }
+      // servers that connected to us get relays, not what our users see, and
+      // a client waiting to resume gets this with the rest of what it missed
+      EncodedMessage encoded = new EncodedMessage(msg);
+      boolean skipResuming = numbered;
+      forEachClient(c -> {
+        if(c.getInfo("peerIDKey") == null && !(skipResuming && c.getInfo("resumeAfterKey") != null)) {
+          try {
+            c.sendToClient(encoded);
+          } catch(IOException e) {
+            // clientException tells us when the client is gone
+          }
+        }
+      });
+    }
+  }
+  
+  /**
+   * @return the logger the server uses.
+   */
+  public AsyncLogger getLogger()
+  {
+    return log;
+  }
+  
   /**
    * This method handles any messages received from the client.
    *
@@ -62,40 +449,572 @@ public class EchoServer extends AbstractServer
     (Object msg, ConnectionToClient client)
   {
 	String message = (String) msg;
-    System.out.println("Message received: " + msg + " from " + client.getInfo("loginIDKey"));
-    
-    if(message.startsWith("#login")) {
-    	// we know that it specifies the login ID
-		String[] partsOfMessage = message.split(" ");
-		// login id will be partsOfMessage[0]
-		if(client.getInfo("loginIDKey") == null ) { // if the client has not logged in, create their loginID
-			client.setInfo("loginIDKey", partsOfMessage[1]);
-			this.serverUI.display(partsOfMessage[1] + " has logged in.");
-		} else if(!client.isAlive()) { // if this client is not active, but we want it to be active again set the login ID
-			client.setInfo("loginIDKey", partsOfMessage[1]);
-			this.serverUI.display(partsOfMessage[1] + " has logged in.");
-		}else { // they're already logged in, terminate?
+	// the logger formats this later on its own thread, so no string is built here
+	if(client.getInfo("peerIDKey") != null) {
+		log.debug("Relay received: {} from {}", msg, client.getInfo("peerIDKey"));
+	} else {
+		log.info("Message received: {} from {}", msg, client.getInfo("loginIDKey"));
+	}
+	
+	try {
+		// commands are looked up in a table, anything else (including commands
+		// we don't know) is chat for everyone
+		if(!clientCommands.dispatch(message, client)) {
+			sendToAllClients("From "+ client.getInfo("loginIDKey")+ " > " + msg);
+		}
+	} catch (IOException e) {
+		log.warn("Could not answer {} from {}.", message, client.getInfo("loginIDKey"));
+	}
+  }
+
+  /**
+   * Handles the messages a client sends with request(), which wait for an
+   * answer. The client sends #login that way, so it knows whether it got
+   * in instead of just assuming it did, and another server's PeerLink
+   * sends #peerhello and #peer that way. Anything else is handled like any
+   * other message and answered once it has been.
+   *
+   * @param msg The request.
+   * @param client The connection it came from.
+   * @param requestId What to answer it with.
+   */
+  protected void handleRequestFromClient
+    (Object msg, ConnectionToClient client, long requestId)
+  {
+	String message = (String) msg;
+	try {
+		if(message.startsWith("#login ")) {
+			log.info("Request received: {} from {}", msg, client.getInfo("loginIDKey"));
+			String loginID = message.substring("#login ".length()).trim();
+			if(loginID.isEmpty() || loginID.indexOf(' ') >= 0) {
+				client.reply(requestId, "Usage: #login <loginID>");
+			} else {
+				login(client, loginID, requestId);
+			}
+		} else if(message.equals("#peerhello")) {
+			peerHello(client, requestId);
+		} else if(message.startsWith("#peer ")) {
+			String[] args = message.split(" ");
+			if(args.length != 3) {
+				client.reply(requestId, "Usage: #peer <serverID> <proof>");
+			} else {
+				acceptPeer(client, args[1], args[2], requestId);
+			}
+		} else {
+			handleMessageFromClient(msg, client);
+			client.reply(requestId, null);
+		}
+	} catch (IOException e) {
+		log.warn("Could not answer {} from {}.", message, client.getInfo("loginIDKey"));
+	}
+  }
+
+  /**
+   * Builds the table of commands clients can send: #login, #msg and the
+   * room commands. Done once, so handling a message just looks it up.
+   */
+  private CommandTable<ConnectionToClient> buildClientCommands()
+  {
+	// a command with the wrong number of arguments gets the usage sent back
+	return new CommandTable<ConnectionToClient>((client, problem) -> client.sendToClient(problem))
+		.add("#login", 1, 1, "#login <loginID>", (client, args) -> login(client, args.get(0), null))
+		.addWithText("#msg", 1, "#msg <loginID> <message>",
+			(client, args) -> sendPrivateMessage(client, args.get(0), args.get(1)))
+		.add("#join", 1, 1, "#join <room>", (client, args) -> joinRoom(client, args.get(0)))
+		.add("#leave", 1, 1, "#leave <room>", (client, args) -> leaveRoom(client, args.get(0)))
+		.addWithText("#room", 1, "#room <room> <message>",
+			(client, args) -> sendToRoom(client, args.get(0), args.get(1)))
+		.add("#history", 1, 1, "#history <n>", (client, args) -> {
+			try {
+				sendHistory(client, args.getInt(0));
+			} catch(NumberFormatException e) {
+				client.sendToClient("Usage: #history <n>");
+			}
+		})
+		// the client got a batch of offline messages
+		.add("#inboxack", 1, 1, "#inboxack <sequence>", (client, args) -> {
+			try {
+				acknowledgeOfflineMessages(client, Long.parseLong(args.get(0)));
+			} catch(NumberFormatException e) {
+				client.sendToClient("Usage: #inboxack <sequence>");
+			}
+		})
+		// a client that reconnects asks for what was broadcast while it was gone
+		.add("#resume", 1, 1, "#resume <sequence>", (client, args) -> {
 			try {
-				client.sendToClient("Cannot login once already logged in. Terminating connection.");
-				client.close();
-			} catch (IOException e) {
-				System.out.println("Error closing connection.");
+				resume(client, Long.parseLong(args.get(0)));
+			} catch(NumberFormatException e) {
+				client.sendToClient("Usage: #resume <sequence>");
+			}
+		})
+		// another server linking to us, and then the broadcasts it relays
+		.add("#peer", 2, 2, "#peer <serverID> <proof>",
+			(client, args) -> acceptPeer(client, args.get(0), args.get(1), null))
+		.addWithText("#relay", 2, "#relay <origin> <sequence> <message>", (client, args) -> {
+			if(client.getInfo("peerIDKey") == null) {
+				client.sendToClient("Only linked servers can relay.");
+			} else {
+				receiveRelay(args.get(0), args.get(1), args.get(2), client);
+			}
+		});
+  }
+  
+  /**
+   * Handles "#peerhello", which another server's PeerLink sends first
+   * instead of logging in. It is answered with "#nonce <nonce>", for the
+   * link to prove it knows the mesh secret with, or why it can't link.
+   *
+   * @param client The connection from the other server.
+   * @param requestId The request to answer.
+   */
+  private void peerHello(ConnectionToClient client, long requestId) throws IOException
+  {
+	String refusal = peerRefusal(client);
+	if(refusal != null) {
+		client.reply(requestId, refusal);
+		return;
+	}
+	byte[] bytes = new byte[16];
+	nonces.nextBytes(bytes);
+	String nonce = PeerLink.hex(bytes);
+	client.setInfo("peerNonceKey", nonce);
+	client.reply(requestId, "#nonce " + nonce);
+  }
+  
+  /**
+   * Handles "#peer <serverID> <proof>", which another server's PeerLink
+   * sends after "#peerhello". If the proof shows it knows the mesh secret,
+   * from then on we relay our broadcasts to it, and it can relay its own
+   * to us. Servers relay for all their users, so they get their own rate
+   * limit instead of one user's. A wrong proof ends the connection.
+   *
+   * @param client The connection from the other server.
+   * @param peerID The other server's ID.
+   * @param proof PeerLink.proof of the secret, our nonce and peerID.
+   * @param requestId The request to answer, or null for a plain message.
+   */
+  private void acceptPeer(ConnectionToClient client, String peerID, String proof, Long requestId)
+    throws IOException
+  {
+	String refusal = peerRefusal(client);
+	boolean terminate = false;
+	// a nonce is good for one try
+	String nonce = (String) client.getInfo("peerNonceKey");
+	client.setInfo("peerNonceKey", null);
+	if(refusal == null) {
+		if(nonce == null) {
+			refusal = "Send #peerhello first.";
+		} else if(!MessageDigest.isEqual(
+				PeerLink.proof(meshSecret, nonce, peerID).getBytes(StandardCharsets.UTF_8),
+				proof.getBytes(StandardCharsets.UTF_8))) {
+			log.warn("Refused a link from {} claiming to be server {}: wrong proof.", client, peerID);
+			refusal = "Wrong mesh secret. Terminating connection.";
+			terminate = true;
+		} else {
+			client.setInfo("peerIDKey", peerID);
+			client.setRateLimit(RateLimit.perSecond(PEER_MESSAGES_PER_SECOND, PEER_BYTES_PER_SECOND));
+			peers.add(client);
+			log.info("Server {} linked to us.", peerID);
+		}
+	}
+	
+	if(requestId != null) {
+		client.reply(requestId, refusal);
+	} else if(refusal != null) {
+		client.sendToClient(refusal);
+	}
+	if(terminate) {
+		client.close();
+	}
+  }
+  
+  /**
+   * @param client A connection asking to link.
+   * @return why it can't, or null if it can try.
+   */
+  private String peerRefusal(ConnectionToClient client)
+  {
+	if(meshSecret == null) {
+		return "This server does not accept links.";
+	}
+	if(client.getInfo("loginIDKey") != null || client.getInfo("peerIDKey") != null) {
+		return "Cannot become a peer once logged in.";
+	}
+	return null;
+  }
+  
+  /**
+   * Handles "#login <loginID>", which every client sends once connected.
+   * When it comes as a request, the answer is null if they got in and
+   * why not otherwise; as a plain message, only a refusal is answered.
+   *
+   * @param client The connection logging in.
+   * @param loginID The login ID they want.
+   * @param requestId The request to answer, or null for a plain message.
+   */
+  private void login(ConnectionToClient client, String loginID, Long requestId) throws IOException
+  {
+	String refusal = null;
+	boolean terminate = false;
+	if(client.getInfo("peerIDKey") != null) { // servers don't log in
+		refusal = "Linked servers cannot log in.";
+	} else if(client.getInfo("loginIDKey") == null ) { // if the client has not logged in, create their loginID
+		loggedIn(client, loginID);
+	} else if(!client.isConnected()) { // if this client is not active, but we want it to be active again set the login ID
+		loggedIn(client, loginID);
+	}else { // they're already logged in, terminate?
+		refusal = "Cannot login once already logged in. Terminating connection.";
+		terminate = true;
+	}
+	
+	// answer first, so they know they're in before their offline messages arrive
+	if(requestId != null) {
+		client.reply(requestId, refusal);
+	} else if(refusal != null) {
+		client.sendToClient(refusal);
+	}
+	
+	if(terminate) {
+		client.close();
+	} else if(refusal == null) {
+		deliverOfflineMessages(client, loginID);
+	}
+  }
+
+  /**
+   * Records a login that worked, and shows it on the server UI. The
+   * ServerConsole broadcasts what it displays, so that is how everyone
+   * hears of it.
+   *
+   * @param client The connection logging in.
+   * @param loginID Their login ID.
+   */
+  private void loggedIn(ConnectionToClient client, String loginID) throws IOException
+  {
+	client.setInfo("inboxDeliveryKey", new InboxDelivery(loginID)); // before they can be found by login ID
+	client.setInfo("loginIDKey", loginID);
+	// a #resume sent before logging in is answered now that they're in, and
+	// before the login is displayed: when the UI broadcasts it, its newer
+	// number would make the client take what it missed for something it
+	// already has. Broadcasts skip the client until then (see deliverLocally),
+	// and the lock keeps one from slipping in between.
+	synchronized(broadcastLock) {
+		Long after = (Long) client.getInfo("resumeAfterKey");
+		if(after != null) {
+			client.setInfo("resumeAfterKey", null);
+			resume(client, after);
+		}
+	}
+	this.serverUI.display(loginID + " has logged in.");
+  }
+
+  /**
+   * Handles "#history <n>": sends the client the last n messages that were
+   * broadcast, oldest first. They are read one at a time from the history
+   * files and passed on to the connection.
+   *
+   * @param client The connection asking.
+   * @param count How many messages they want.
+   */
+  private void sendHistory(ConnectionToClient client, int count) throws IOException
+  {
+	if(client.getInfo("loginIDKey") == null) {
+		client.sendToClient("You must be logged in to see the history.");
+		return;
+	}
+	HistoryLog current = history;
+	if(current == null) {
+		client.sendToClient("History is not kept on this server.");
+		return;
+	}
+	if(count <= 0) {
+		client.sendToClient("Usage: #history <n>");
+		return;
+	}
+	count = Math.min(count, MAX_HISTORY);
+	client.sendToClient("History, up to the last " + count + " messages:");
+	current.readLast(count, (sequence, time, message) ->
+		client.sendToClient("History #" + sequence + " > " + message));
+  }
+
+  /**
+   * Handles "#resume <sequence>": sends the client what was broadcast after
+   * the last message it got, stamped the same way as when it was first
+   * sent, so the client sees it as if it had never left. At most
+   * MAX_HISTORY messages are sent, the oldest of them if more were missed.
+   *
+   * A client that reconnects sends this just before its #login, so the
+   * history isn't sent until the login works: until then the sequence is
+   * kept, and the login answers it.
+   *
+   * @param client The connection asking, usually one that just reconnected.
+   * @param after The sequence number of the last message the client got.
+   */
+  private void resume(ConnectionToClient client, long after) throws IOException
+  {
+	if(client.getInfo("loginIDKey") == null) {
+		if(client.getInfo("peerIDKey") == null) {
+			// from now on broadcasts wait for the answer, see deliverLocally
+			synchronized(broadcastLock) {
+				client.setInfo("resumeAfterKey", after);
 			}
+		} else {
+			client.sendToClient("Linked servers cannot resume.");
+		}
+		return;
+	}
+	HistoryLog current = history;
+	if(current == null) {
+		client.sendToClient("History is not kept on this server.");
+		return;
+	}
+	// no newer broadcast can get to them ahead of what they missed
+	synchronized(broadcastLock) {
+		long missed = current.getLastSequence() - after;
+		if(missed <= 0) {
+			return; // nothing happened while they were gone
 		}
-		
-	}else {
-		 sendToAllClients("From "+ client.getInfo("loginIDKey")+ " > " + msg);
+		if(missed > MAX_HISTORY) {
+			client.sendToClient(missed + " messages were sent while you were away, here are the first " + MAX_HISTORY + ":");
+		}
+		current.read(after + 1, MAX_HISTORY, (sequence, time, message) ->
+			client.sendToClient("#" + sequence + " " + message));
+	}
+  }
+
+  /**
+   * Delivers a "#msg <loginID> <text>" message to the one client logged in
+   * with that ID. The login ID index finds them directly, so only one
+   * connection gets written to instead of everyone.
+   *
+   * @param client The connection the message came from.
+   * @param receiverID Who the message is for.
+   * @param text The message itself.
+   */
+  private void sendPrivateMessage(ConnectionToClient client, String receiverID, String text) throws IOException
+  {
+	Object sender = client.getInfo("loginIDKey");
+	if(sender == null) {
+		client.sendToClient("You must be logged in to send private messages.");
+		return;
+	}
+	ConnectionToClient receiver = findClient("loginIDKey", receiverID);
+	if(receiver == null) {
+		keepForLater(client, receiverID, "Private from " + sender + " (while you were away) > " + text);
+		return;
+	}
+	receiver.sendToClient("Private from " + sender + " > " + text);
+	// let the sender see what they sent, unless they messaged themselves
+	if(receiver != client) {
+		client.sendToClient("Private to " + receiverID + " > " + text);
 	}
   }
     
+  /**
+   * Stores a private message for someone who is logged off. The sender is
+   * told once it is safely on disk, or that it couldn't be kept.
+   *
+   * @param client The connection the message came from.
+   * @param receiverID Who the message is for.
+   * @param message The message, as they will get it.
+   */
+  private void keepForLater(ConnectionToClient client, String receiverID, String message) throws IOException
+  {
+	OfflineInbox current = inbox;
+	if(current == null) {
+		client.sendToClient(receiverID + " is not logged in.");
+		return;
+	}
+	try {
+		// the inbox writes messages in groups, we hear back when this one's group is written
+		current.store(receiverID, message).whenCompleteAsync((done, failure) -> {
+			try {
+				if(failure != null) {
+					log.warn("Could not keep a message for {}: {}", receiverID, failure);
+					client.sendToClient(receiverID + " is not logged in, and the message could not be kept.");
+					return;
+				}
+				client.sendToClient(receiverID + " is not logged in, they will get the message when they log in.");
+				// they might have logged in while it was being written
+				ConnectionToClient receiver = findClient("loginIDKey", receiverID);
+				if(receiver != null) {
+					deliverOfflineMessages(receiver, receiverID);
+				}
+			} catch(IOException e) {
+				log.warn("Could not tell {} about their offline message.", client.getInfo("loginIDKey"));
+			}
+		});
+	} catch(OfflineInbox.FullException e) {
+		client.sendToClient(receiverID + " is not logged in and their inbox is full.");
+	}
+  }
+  
+  /**
+   * Sends someone who just logged in the private messages they got while
+   * logged off, a batch at a time. sendToClient only queues a message, so
+   * a batch is marked as delivered once the client acknowledges it, and
+   * the next batch goes then; if the connection ends first, what wasn't
+   * acknowledged stays for next time.
+   *
+   * @param client Their connection.
+   * @param loginID Their login ID.
+   */
+  private void deliverOfflineMessages(ConnectionToClient client, String loginID)
+  {
+	OfflineInbox current = inbox;
+	InboxDelivery delivery = (InboxDelivery) client.getInfo("inboxDeliveryKey");
+	if(current == null || delivery == null || current.count(loginID) == 0 || !delivery.start()) {
+		return; // nothing waiting, or a delivery is already going
+	}
+	try {
+		client.sendToClient("You have " + current.count(loginID) + " messages from while you were away.");
+	} catch(IOException e) {
+		// the messages themselves will fail the same way, and go back in the inbox
+	}
+	sendOfflineBatch(client, delivery, current);
+  }
+  
+  /**
+   * Sends the next batch of offline messages, followed by "#inboxend
+   * <sequence>" for the client to acknowledge.
+   */
+  private void sendOfflineBatch(ConnectionToClient client, InboxDelivery delivery, OfflineInbox current)
+  {
+	String loginID = delivery.getLoginID();
+	List<OfflineInbox.Message> batch;
+	try {
+		while((batch = current.take(loginID, OFFLINE_BATCH)).isEmpty()) {
+			if(delivery.finish(current)) {
+				return; // all delivered
+			}
+		}
+	} catch(IOException e) {
+		delivery.abort();
+		log.warn("Could not read offline messages for {}: {}", loginID, e);
+		return;
+	}
+	if(!delivery.sending(batch)) {
+		current.putBack(loginID, batch); // they left meanwhile
+		return;
+	}
+	try {
+		for(OfflineInbox.Message message : batch) {
+			client.sendToClient(message.getText());
+		}
+		client.sendToClient("#inboxend " + batch.get(batch.size() - 1).getSequence());
+	} catch(IOException e) {
+		// the connection is going, the batch goes back in the inbox when it's gone
+		log.warn("Could not deliver offline messages to {}: {}", loginID, e);
+	}
+  }
+  
+  /**
+   * Handles "#inboxack <sequence>": the client got the batch of offline
+   * messages ending with that sequence number, so they're delivered for
+   * good, and the next batch can go.
+   *
+   * @param client The connection acknowledging.
+   * @param sequence The sequence number from the "#inboxend".
+   */
+  private void acknowledgeOfflineMessages(ConnectionToClient client, long sequence)
+  {
+	OfflineInbox current = inbox;
+	InboxDelivery delivery = (InboxDelivery) client.getInfo("inboxDeliveryKey");
+	if(current == null || delivery == null) {
+		return;
+	}
+	List<OfflineInbox.Message> batch = delivery.acknowledge(sequence);
+	if(batch == null) {
+		return; // not the batch that's out, maybe a late copy
+	}
+	current.delivered(delivery.getLoginID(), batch);
+	sendOfflineBatch(client, delivery, current);
+  }
+  
+  /**
+   * Puts the offline messages a client didn't acknowledge back in the
+   * inbox, when its connection ends.
+   *
+   * @param client The connection that ended.
+   */
+  private void returnOfflineMessages(ConnectionToClient client)
+  {
+	InboxDelivery delivery = (InboxDelivery) client.getInfo("inboxDeliveryKey");
+	if(delivery == null) {
+		return;
+	}
+	List<OfflineInbox.Message> batch = delivery.end();
+	OfflineInbox current = inbox;
+	if(current != null && !batch.isEmpty()) {
+		current.putBack(delivery.getLoginID(), batch);
+	}
+  }
+
+  /**
+   * Handles "#join <room>". Rooms are topics of the server, so a message
+   * to a room only goes to the people in it, and someone who disconnects
+   * is taken out of their rooms automatically.
+   *
+   * @param client The connection joining.
+   * @param room The room to join.
+   */
+  private void joinRoom(ConnectionToClient client, String room) throws IOException
+  {
+	Object sender = client.getInfo("loginIDKey");
+	if(sender == null) {
+		client.sendToClient("You must be logged in to use rooms.");
+	} else if(joinTopic(client, room)) {
+		sendToTopic(room, "[" + room + "] " + sender + " has joined.");
+	} else {
+		client.sendToClient("You are already in " + room + ".");
+	}
+  }
+
+  /**
+   * Handles "#leave <room>".
+   *
+   * @param client The connection leaving.
+   * @param room The room to leave.
+   */
+  private void leaveRoom(ConnectionToClient client, String room) throws IOException
+  {
+	Object sender = client.getInfo("loginIDKey");
+	if(sender == null) {
+		client.sendToClient("You must be logged in to use rooms.");
+	} else if(leaveTopic(client, room)) {
+		client.sendToClient("You left " + room + ".");
+		sendToTopic(room, "[" + room + "] " + sender + " has left.");
+	} else {
+		client.sendToClient("You are not in " + room + ".");
+	}
+  }
+
+  /**
+   * Handles "#room <room> <text>", only people in the room can talk in it.
+   *
+   * @param client The connection the message came from.
+   * @param room The room to talk in.
+   * @param text The message itself.
+   */
+  private void sendToRoom(ConnectionToClient client, String room, String text) throws IOException
+  {
+	Object sender = client.getInfo("loginIDKey");
+	if(sender == null) {
+		client.sendToClient("You must be logged in to use rooms.");
+	} else if(!client.getTopics().contains(room)) {
+		client.sendToClient("Join " + room + " first with #join " + room + ".");
+	} else {
+		sendToTopic(room, "[" + room + "] From " + sender + " > " + text);
+	}
+  }
+
   /**
    * This method overrides the one in the superclass.  Called
    * when the server starts listening for connections.
    */
   protected void serverStarted()
   {
-    System.out.println
-      ("Server listening for connections on port " + getPort());
+    log.info("Server listening for connections on port {}", getPort());
   }
   
   /**
@@ -104,8 +1023,7 @@ public class EchoServer extends AbstractServer
    */
   protected void serverStopped()
   {
-    System.out.println
-      ("Server has stopped listening for connections.");
+    log.info("Server has stopped listening for connections.");
   }
   
   
@@ -118,7 +1036,7 @@ public class EchoServer extends AbstractServer
    * @param client the connection connected to the client.
    */
   protected void clientConnected(ConnectionToClient client) {
-	  System.out.println("A client has connected.");
+	  log.info("A client has connected.");
   }
 
   /**
@@ -129,28 +1047,62 @@ public class EchoServer extends AbstractServer
    * @param client the connection with the client.
    */
   synchronized protected void clientDisconnected(ConnectionToClient client) {
+	  returnOfflineMessages(client);
 	  // tell the server UI that a client disconnected, and who
-	  System.out.println(client.getInfo("loginIDKey") + " has disconnected.");
+	  if (peers.remove(client)) {
+		  log.info("Server {} unlinked.", client.getInfo("peerIDKey"));
+		  return;
+	  }
+	  log.info("{} has disconnected.", client.getInfo("loginIDKey"));
+  }
+  /**
+   * Called when a client sends faster than the rate limit. We stop reading
+   * from them for a bit either way, but we also tell them, just not every
+   * single time.
+   *
+   * @param client the client sending too fast.
+   * @param pauseMillis how long we stop reading from them.
+   */
+  protected void clientThrottled(ConnectionToClient client, long pauseMillis) {
+	  long now = System.currentTimeMillis();
+	  Long noticeAt = (Long) client.getInfo("throttleNoticeAt");
+	  if (noticeAt != null && now - noticeAt < THROTTLE_NOTICE_MILLIS) {
+		  return;
+	  }
+	  client.setInfo("throttleNoticeAt", now);
+	  log.info("{} is sending too fast, slowed down.", client.getInfo("loginIDKey"));
+	  try {
+		  client.sendToClient("You are sending too fast, your messages are being slowed down.");
+	  } catch (IOException e) {
+		  // they'll find out from the delay anyway
+	  }
   }
+  
   synchronized protected void clientException(ConnectionToClient client, Throwable exception) {
+	  returnOfflineMessages(client);
 	// tell the server UI that a client disconnected, and who
-	  System.out.println(client.getInfo("loginIDKey") + " has disconnected.");
+	  if (peers.remove(client)) {
+		  log.warn("Lost the link from server {}: {}", client.getInfo("peerIDKey"), exception);
+	  } else if (exception instanceof SocketTimeoutException) {
+		  log.info("{} timed out.", client.getInfo("loginIDKey"));
+	  } else {
+		  log.info("{} has disconnected.", client.getInfo("loginIDKey"));
+	  }
   }
   
   public void handleMessageFromServerUI(String message)
   {
 	  try
 	    {
-		  // check what the message starts with
+		  // commands are looked up in the table, everything else is a message
 	      if(message.startsWith("#")) {
-	    	 handleCommand(message);
+	    	  if(!consoleCommands.dispatch(message, null)) {
+	    		  // unknown command sent, try again
+	    		  System.out.println("Could not recognize command. Please try again.");
+	    	  }
 	      }
 	      else {
-	    	  // if it's not a command and the client exists, send the message to be processed
-	    	  if(this.client != null) {
-	    		  client.sendToServer(message);
-	    	  }
-	    	  // also display in server
+	    	  // display in server, which broadcasts it here and to the linked servers
 	    	  serverUI.display(message);
 	      }
 	    }
@@ -162,67 +1114,105 @@ public class EchoServer extends AbstractServer
     
   }
   
-  private void handleCommand(String message) {
-	  try {
-		  // split the message to process to account for other parameters
-		  String[] partsOfMessage = message.split(" ");
-		  
-		  // the first part should be the command we need to check for
-		  String firstPartOfMessage = partsOfMessage[0];
-		  
-		  // check this first part against possible commands
-		  switch (firstPartOfMessage) {
-		  	case "#quit": {
-		  		// close the server all together
-		  		System.out.println("Terminating server...");
-		  		System.exit(0);
-		  		break;
-		  	}
-		  	case "#stop": {
-		  		// if its not listening, nothing to stop
-		  		if(!isListening()) {
-		  			System.out.println("Cannot stop when the server is already stopped");
-		  			break;
-		  		}
-		  		// otherwise we can just stop listening, allowing current clients to remain connected
-		  		stopListening();
-		  		break;
-		  	}
-		  	case "#close": {
-		  		// need to disconnect all clients
-		  		// close the server and stop listening but DON'T terminate!
-		  		close();
-		  		break;
-		  	}
-		  	case "#setport": {
-		  		// has other parameters
-		  		setPort(Integer.parseInt(partsOfMessage[1]));
-		  		System.out.println("The port has been set to " + getPort());
-		  		break;
-		  	}
-		  	case "#start": {
-		  		if(!isListening()) {
-		  			listen();
-		  		} else { // if already listening, we cant start listening again
-		  			System.out.println("Cannot start listening for clients when the server is already listening");
-		  		}
-		  		break;
-		  	}
-		  	case "#getport": {
-		  		System.out.println("The port number is " + getPort());
-		  		break;
-		  	}
-		  	default: {
-		  		// unknown command sent, try again
-		  		System.out.println("Could not recognize command. Please try again.");
-		  		break;
-		  	}
-		}
-	  } catch(IOException e) {
-		  System.out.println("Could not send message to server. Terminating client.");
-	  } catch(IndexOutOfBoundsException i) {
-		  System.out.println("Please provide required parameters");
-	  }
+  /**
+   * Builds the table of commands typed at the server console.
+   */
+  private CommandTable<Void> buildConsoleCommands()
+  {
+	  // wrong number of arguments, show how the command is used
+	  return new CommandTable<Void>((none, problem) -> System.out.println(problem))
+		  .add("#quit", 0, 0, "#quit", (none, args) -> {
+			  // close the server all together
+			  System.out.println("Terminating server...");
+			  System.exit(0);
+		  })
+		  .add("#stop", 0, 0, "#stop", (none, args) -> {
+			  // if its not listening, nothing to stop
+			  if(!isListening()) {
+				  System.out.println("Cannot stop when the server is already stopped");
+				  return;
+			  }
+			  // otherwise we can just stop listening, allowing current clients to remain connected
+			  stopListening();
+		  })
+		  // need to disconnect all clients
+		  // close the server and stop listening but DON'T terminate!
+		  .add("#close", 0, 0, "#close", (none, args) -> close())
+		  .add("#setport", 1, 1, "#setport <port>", (none, args) -> {
+			  try {
+				  setPort(args.getInt(0));
+				  System.out.println("The port has been set to " + getPort());
+			  } catch(NumberFormatException e) {
+				  System.out.println("The port must be a number.");
+			  }
+		  })
+		  .add("#start", 0, 0, "#start", (none, args) -> {
+			  if(!isListening()) {
+				  listen();
+			  } else { // if already listening, we cant start listening again
+				  System.out.println("Cannot start listening for clients when the server is already listening");
+			  }
+		  })
+		  .add("#link", 2, 2, "#link <host> <port>", (none, args) -> {
+			  // join another server's mesh, or add it to ours
+			  try {
+				  System.out.println("Linking to " + linkTo(args.get(0), args.getInt(1)) + "...");
+			  } catch(NumberFormatException e) {
+				  System.out.println("The port must be a number.");
+			  }
+		  })
+		  .add("#unlink", 2, 2, "#unlink <host> <port>", (none, args) -> {
+			  try {
+				  if(!unlink(args.get(0), args.getInt(1))) {
+					  System.out.println("Not linked to " + args.get(0) + ":" + args.get(1) + ".");
+				  }
+			  } catch(NumberFormatException e) {
+				  System.out.println("The port must be a number.");
+			  }
+		  })
+		  .add("#peers", 0, 0, "#peers", (none, args) -> {
+			  // who we're linked to, both the links we opened and the ones opened to us
+			  System.out.println("This server is " + serverID + ".");
+			  for(PeerLink link : links) {
+				  System.out.println("Link to " + link + (link.isConnected() ? "" : " (connecting)"));
+			  }
+			  for(ConnectionToClient peer : peers) {
+				  System.out.println("Link from server " + peer.getInfo("peerIDKey") + " at " + peer);
+			  }
+		  })
+		  .add("#getport", 0, 0, "#getport", (none, args) ->
+		  	  System.out.println("The port number is " + getPort()))
+		  .add("#queues", 0, 0, "#queues", (none, args) -> {
+			  // show which clients are falling behind on the messages we send them
+			  ConnectionToClient[] lagging = getLaggingClients(1);
+			  if(lagging.length == 0) {
+				  System.out.println("No client has messages waiting.");
+			  }
+			  for(ConnectionToClient c : lagging) {
+				  System.out.println(c.getInfo("loginIDKey") + ": " + c.getOutboundQueueDepth()
+					  + " queued, peak " + c.getOutboundQueueHighWaterMark()
+					  + ", " + c.getOutboundDropCount() + " dropped");
+			  }
+		  })
+		  .add("#stats", 0, 0, "#stats", (none, args) -> {
+			  // totals for the whole server first, then what each client sent and received
+			  System.out.print(getMetrics().format());
+			  forEachClient(c -> System.out.println(c.getInfo("loginIDKey") + ": "
+				  + c.getMessagesReceived() + " messages (" + c.getBytesReceived() + " bytes) in, "
+				  + c.getMessagesSent() + " messages (" + c.getBytesSent() + " bytes) out"));
+		  })
+		  .add("#loglevel", 0, 1, "#loglevel [DEBUG|INFO|WARN|ERROR|OFF]", (none, args) -> {
+			  // show less (or more) in the log, e.g. #loglevel WARN hides every message received
+			  if(args.count() > 0) {
+				  try {
+					  log.setLevel(LogLevel.valueOf(args.get(0).toUpperCase()));
+				  } catch(IllegalArgumentException e) {
+					  System.out.println("Unknown log level. Use DEBUG, INFO, WARN, ERROR or OFF");
+				  }
+			  }
+			  System.out.println("The log level is " + log.getLevel() + ", "
+				  + log.getDroppedCount() + " log records dropped so far");
+		  });
   }
   
 }
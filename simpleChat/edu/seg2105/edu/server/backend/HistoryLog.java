@@ -0,0 +1,466 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Keeps what the server broadcasts, so clients can ask for what they missed
+ * with #history. Messages are appended to segment files in a directory and
+ * numbered with a sequence number that keeps going up across segments and
+ * restarts.
+ * <p>
+ * Each segment is two memory-mapped files: the messages themselves
+ * ("&lt;first sequence&gt;.log") and an index giving where each message
+ * starts ("&lt;first sequence&gt;.idx"). Appending is a few puts into the
+ * mapped files, and reading a message only copies that message, never the
+ * whole segment, onto the heap. When the active segment is full a new one is
+ * started; old segments are deleted once the history is over its size limit
+ * or their messages are older than its age limit. The age limit is checked
+ * on every append and read, so a quiet server forgets old messages too: an
+ * active segment whose messages are all too old is replaced by a new one,
+ * and messages too old are never read back.
+ * <p>
+ * Every record in a .log file is the message length (4 bytes), its sequence
+ * number (8), the time it was sent in milliseconds (8) and the message in
+ * UTF-8. The length is written last, so a record cut short by a crash reads
+ * as the end of the segment and is dropped when the history is reopened.
+ */
+public class HistoryLog implements Closeable
+{
+  //Class variables *************************************************
+  
+  /**
+   * The default size of a segment's .log file.
+   */
+  public static final int DEFAULT_SEGMENT_BYTES = 8 * 1024 * 1024;
+  
+  /**
+   * The default limit on the space all the segments take up.
+   */
+  public static final long DEFAULT_RETAIN_BYTES = 256L * 1024 * 1024;
+  
+  /**
+   * The default age after which messages are deleted: a week.
+   */
+  public static final long DEFAULT_RETAIN_MILLIS = 7L * 24 * 60 * 60 * 1000;
+  
+  /**
+   * Length, sequence number and time.
+   */
+  static final int HEADER_BYTES = 4 + 8 + 8;
+  
+  /**
+   * Segments are sized for messages of about this length on average; the
+   * index has room for one entry per that many bytes of segment.
+   */
+  private static final int AVERAGE_RECORD_BYTES = 64;
+  
+  //Instance variables **********************************************
+  
+  private final File directory;
+  private final int segmentBytes;
+  private final long retainBytes;
+  private final long retainMillis;
+  
+  /**
+   * The segments from oldest to newest, the last one being written to.
+   * Guarded by this.
+   */
+  private final ArrayList<Segment> segments = new ArrayList<Segment>();
+  
+  /**
+   * The sequence number the next message gets. Guarded by this.
+   */
+  private long nextSequence = 1;
+  
+  private boolean closed;
+  
+  //Constructors ****************************************************
+  
+  /**
+   * Opens the history kept in a directory, or starts one.
+   *
+   * @param directory Where the segments are, created if needed.
+   * @param segmentBytes The size of each segment's .log file.
+   * @param retainBytes How much space the segments may take before the
+   *   oldest ones are deleted.
+   * @param retainMillis How long messages are kept.
+   * @exception IOException if the directory or a segment can't be opened.
+   */
+  public HistoryLog(File directory, int segmentBytes, long retainBytes, long retainMillis)
+    throws IOException
+  {
+    if(segmentBytes < HEADER_BYTES + AVERAGE_RECORD_BYTES) {
+      throw new IllegalArgumentException("Segments of " + segmentBytes + " bytes are too small");
+    }
+    if(!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.retainBytes = retainBytes;
+    this.retainMillis = retainMillis;
+    
+    // the segments are named after their first sequence number, so sorting the names sorts them
+    String[] names = directory.list((dir, name) -> name.endsWith(".log"));
+    Arrays.sort(names);
+    for(String name : names) {
+      long first = Long.parseLong(name.substring(0, name.length() - 4));
+      Segment segment = Segment.open(directory, first);
+      if(segment.count == 0 && segments.size() > 0) {
+        // empty leftover from a crash right after rolling, start afresh at its place
+        segment.delete();
+        continue;
+      }
+      segments.add(segment);
+      nextSequence = first + segment.count;
+    }
+    if(segments.isEmpty()) {
+      segments.add(Segment.create(directory, nextSequence, segmentBytes));
+    }
+    expire();
+  }
+  
+  //Instance methods ************************************************
+  
+  /**
+   * Appends a message.
+   *
+   * @param message The message, as it was broadcast.
+   * @return its sequence number.
+   * @exception IOException if a new segment can't be started.
+   */
+  public long append(String message) throws IOException
+  {
+    byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+    if(HEADER_BYTES + bytes.length > segmentBytes) {
+      throw new IllegalArgumentException("A message of " + bytes.length + " bytes doesn't fit in a segment");
+    }
+    
+    synchronized(this) {
+      if(closed) {
+        throw new IOException("The history is closed");
+      }
+      expire();
+      Segment active = segments.get(segments.size() - 1);
+      if(!active.fits(bytes.length)) {
+        // this one is full, start the next one and see if old ones can go
+        roll();
+        active = segments.get(segments.size() - 1);
+      }
+      active.append(nextSequence, System.currentTimeMillis(), bytes);
+      return nextSequence++;
+    }
+  }
+  
+  /**
+   * @return the sequence number of the last message, or 0 if there is none.
+   */
+  public synchronized long getLastSequence()
+  {
+    return nextSequence - 1;
+  }
+  
+  /**
+   * @return the sequence number of the oldest message still kept.
+   */
+  public synchronized long getFirstSequence()
+  {
+    return segments.get(0).first;
+  }
+  
+  /**
+   * Reads messages in order, starting from a sequence number. Messages
+   * appended while reading are left out. Only one message at a time is
+   * copied out of the mapped segments.
+   *
+   * @param from The first sequence number wanted; messages already deleted
+   *   or older than the age limit are skipped.
+   * @param max The most messages read.
+   * @param visitor Given each message.
+   * @exception IOException if the visitor throws it, or if a new segment
+   *   can't be started in place of one whose messages are all too old.
+   */
+  public void read(long from, int max, Visitor visitor) throws IOException
+  {
+    Segment[] current;
+    long last;
+    synchronized(this) {
+      if(!closed) {
+        expire();
+      }
+      // the buffers of deleted segments stay readable, so there's no need to hold the lock
+      current = segments.toArray(new Segment[0]);
+      last = nextSequence - 1;
+    }
+    
+    long oldest = System.currentTimeMillis() - retainMillis;
+    long sequence = Math.max(from, current[0].first);
+    int read = 0;
+    for(int i = 0; i < current.length && read < max && sequence <= last; i++) {
+      Segment segment = current[i];
+      long end = i + 1 < current.length ? current[i + 1].first : last + 1;
+      if(segment.lastTime < oldest) {
+        sequence = Math.max(sequence, end); // too old to be kept, even if it still is
+        continue;
+      }
+      for(; sequence < end && read < max; sequence++) {
+        if(segment.time(sequence) >= oldest) {
+          segment.read(sequence, visitor);
+          read++;
+        }
+      }
+    }
+  }
+  
+  /**
+   * Reads the most recent messages, oldest first.
+   *
+   * @param count How many messages.
+   * @param visitor Given each message.
+   * @exception IOException as for read.
+   */
+  public void readLast(int count, Visitor visitor) throws IOException
+  {
+    read(getLastSequence() - count + 1, count, visitor);
+  }
+  
+  /**
+   * Writes what is mapped to disk and stops appending.
+   */
+  public synchronized void close()
+  {
+    if(!closed) {
+      closed = true;
+      segments.get(segments.size() - 1).finish();
+    }
+  }
+  
+  /**
+   * Starts a new active segment, and deletes old ones if the history is
+   * now too big. Called holding the lock.
+   */
+  private void roll() throws IOException
+  {
+    segments.get(segments.size() - 1).finish();
+    segments.add(Segment.create(directory, nextSequence, segmentBytes));
+    retain();
+  }
+  
+  /**
+   * Applies the age limit to the active segment too: if every message in
+   * it is too old, it is replaced by an empty one so it can be deleted.
+   * Called holding the lock.
+   */
+  private void expire() throws IOException
+  {
+    Segment active = segments.get(segments.size() - 1);
+    if(active.count > 0 && active.lastTime < System.currentTimeMillis() - retainMillis) {
+      roll();
+    } else if(segments.size() > 1) {
+      retain();
+    }
+  }
+  
+  /**
+   * Deletes the oldest segments while the history is too big or their
+   * messages too old. The active segment is always kept.
+   */
+  private void retain()
+  {
+    long total = 0;
+    for(Segment segment : segments) {
+      total += segment.size();
+    }
+    long oldest = System.currentTimeMillis() - retainMillis;
+    while(segments.size() > 1) {
+      Segment segment = segments.get(0);
+      if(total <= retainBytes && segment.lastTime >= oldest) {
+        break;
+      }
+      segments.remove(0);
+      total -= segment.size();
+      segment.delete();
+    }
+  }
+  
+  //Inner classes ***************************************************
+  
+  /**
+   * Given the messages read from the history.
+   */
+  public interface Visitor
+  {
+    /**
+     * @param sequence The message's sequence number.
+     * @param time When it was sent, in milliseconds since 1970.
+     * @param message The message.
+     */
+    void visit(long sequence, long time, String message) throws IOException;
+  }
+  
+  /**
+   * One pair of mapped files.
+   */
+  private static final class Segment
+  {
+    final long first;
+    final File dataFile;
+    final File indexFile;
+    final MappedByteBuffer data;
+    final MappedByteBuffer index;
+    
+    /**
+     * How many messages it holds, and where the next one goes. Only
+     * changed under the lock of the history.
+     */
+    int count;
+    int position;
+    
+    /**
+     * When its newest message was sent.
+     */
+    long lastTime;
+    
+    private Segment(long first, File dataFile, File indexFile, MappedByteBuffer data, MappedByteBuffer index)
+    {
+      this.first = first;
+      this.dataFile = dataFile;
+      this.indexFile = indexFile;
+      this.data = data;
+      this.index = index;
+    }
+    
+    /**
+     * Starts a new segment.
+     */
+    static Segment create(File directory, long first, int segmentBytes) throws IOException
+    {
+      int maxRecords = segmentBytes / AVERAGE_RECORD_BYTES;
+      File dataFile = new File(directory, String.format("%020d.log", first));
+      File indexFile = new File(directory, String.format("%020d.idx", first));
+      return new Segment(first, dataFile, indexFile, map(dataFile, segmentBytes), map(indexFile, maxRecords * 4));
+    }
+    
+    /**
+     * Opens a segment left by an earlier run, and finds where it ends by
+     * reading it through. The index is rewritten on the way, in case the
+     * crash came between the two files.
+     */
+    static Segment open(File directory, long first) throws IOException
+    {
+      File dataFile = new File(directory, String.format("%020d.log", first));
+      File indexFile = new File(directory, String.format("%020d.idx", first));
+      int dataBytes = (int) dataFile.length();
+      Segment segment = new Segment(first, dataFile, indexFile, map(dataFile, dataBytes),
+        map(indexFile, dataBytes / AVERAGE_RECORD_BYTES * 4));
+      
+      int position = 0;
+      while(position + HEADER_BYTES <= dataBytes && segment.count * 4 < segment.index.capacity()) {
+        int length = segment.data.getInt(position);
+        long sequence = segment.data.getLong(position + 4);
+        if(length <= 0 || position + HEADER_BYTES + length > dataBytes
+          || sequence != first + segment.count) {
+          break;
+        }
+        segment.index.putInt(segment.count * 4, position);
+        segment.lastTime = segment.data.getLong(position + 12);
+        segment.count++;
+        position += HEADER_BYTES + length;
+      }
+      segment.position = position;
+      // anything after the last good record is garbage from a crash, make sure it reads as the end
+      if(position + 4 <= dataBytes) {
+        segment.data.putInt(position, 0);
+      }
+      return segment;
+    }
+    
+    private static MappedByteBuffer map(File file, int size) throws IOException
+    {
+      try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        if(raf.length() < size) {
+          raf.setLength(size);
+        }
+        // the mapping stays valid after the file is closed
+        return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    }
+    
+    boolean fits(int length)
+    {
+      return position + HEADER_BYTES + length <= data.capacity() && (count + 1) * 4 <= index.capacity();
+    }
+    
+    void append(long sequence, long time, byte[] message)
+    {
+      data.putLong(position + 4, sequence);
+      data.putLong(position + 12, time);
+      ByteBuffer view = data.duplicate();
+      view.position(position + HEADER_BYTES);
+      view.put(message);
+      // the length goes last, until then the record reads as the end of the segment
+      data.putInt(position, message.length);
+      index.putInt(count * 4, position);
+      
+      count++;
+      lastTime = time;
+      position += HEADER_BYTES + message.length;
+    }
+    
+    /**
+     * @return when a message was sent, without reading the message.
+     */
+    long time(long sequence)
+    {
+      return data.getLong(index.getInt((int) (sequence - first) * 4) + 12);
+    }
+    
+    /**
+     * Reads one message, copying just that message out of the mapping.
+     */
+    void read(long sequence, Visitor visitor) throws IOException
+    {
+      int offset = index.getInt((int) (sequence - first) * 4);
+      int length = data.getInt(offset);
+      long time = data.getLong(offset + 12);
+      byte[] bytes = new byte[length];
+      ByteBuffer view = data.duplicate();
+      view.position(offset + HEADER_BYTES);
+      view.get(bytes);
+      visitor.visit(sequence, time, new String(bytes, StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * @return the space its files take.
+     */
+    long size()
+    {
+      return data.capacity() + index.capacity();
+    }
+    
+    /**
+     * Writes it to disk, once it won't be appended to any more.
+     */
+    void finish()
+    {
+      data.force();
+      index.force();
+    }
+    
+    /**
+     * Deletes its files. The mapping itself goes away when it is garbage
+     * collected, so readers still holding it can finish.
+     */
+    void delete()
+    {
+      dataFile.delete();
+      indexFile.delete();
+    }
+  }
+}
+//End of HistoryLog class
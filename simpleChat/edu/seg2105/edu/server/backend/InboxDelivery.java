@@ -0,0 +1,138 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps track of the offline messages sent to one connection. Sending a
+ * message only puts it in the connection's outbound queue, so a message
+ * isn't marked delivered in the inbox until the client says it got it: the
+ * messages go a batch at a time, each batch ends with "#inboxend <sequence>",
+ * and the client answers "#inboxack <sequence>". When the connection ends,
+ * whatever wasn't acknowledged goes back in the inbox for the next login.
+ * <p>
+ * Only one batch is out at a time, and only one delivery runs at a time
+ * even when a message stored meanwhile asks for another.
+ */
+public class InboxDelivery
+{
+  //Instance variables **********************************************
+
+  private final String loginID;
+
+  /**
+   * The batch sent and not acknowledged yet. Guarded by this.
+   */
+  private List<OfflineInbox.Message> unacknowledged = Collections.emptyList();
+
+  /**
+   * Set from the start of a delivery until the inbox is found empty.
+   */
+  private boolean running;
+
+  /**
+   * Set once the connection has ended.
+   */
+  private boolean ended;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param loginID Who the messages are for.
+   */
+  public InboxDelivery(String loginID)
+  {
+    this.loginID = loginID;
+  }
+
+  //Instance methods ************************************************
+
+  public String getLoginID()
+  {
+    return loginID;
+  }
+
+  /**
+   * @return true if a delivery can start, false if one is already running
+   *   or the connection ended.
+   */
+  public synchronized boolean start()
+  {
+    if(ended || running) {
+      return false;
+    }
+    running = true;
+    return true;
+  }
+
+  /**
+   * Records a batch about to be sent.
+   *
+   * @return false if the connection ended, and the batch should go back
+   *   in the inbox instead.
+   */
+  public synchronized boolean sending(List<OfflineInbox.Message> batch)
+  {
+    if(ended) {
+      return false;
+    }
+    unacknowledged = batch;
+    return true;
+  }
+
+  /**
+   * Ends the delivery if nothing is left to send. Checked under this lock,
+   * so a message stored meanwhile either is seen here or starts a new
+   * delivery itself.
+   *
+   * @param inbox The inbox the messages come from.
+   * @return true if the delivery is over.
+   */
+  public synchronized boolean finish(OfflineInbox inbox)
+  {
+    if(inbox.count(loginID) > 0) {
+      return false;
+    }
+    running = false;
+    return true;
+  }
+
+  /**
+   * Ends a delivery that failed before a batch was sent.
+   */
+  public synchronized void abort()
+  {
+    running = false;
+  }
+
+  /**
+   * Takes the batch the client acknowledged.
+   *
+   * @param sequence The sequence number from the batch's "#inboxend".
+   * @return the batch, or null if it isn't the one out.
+   */
+  public synchronized List<OfflineInbox.Message> acknowledge(long sequence)
+  {
+    if(ended || unacknowledged.isEmpty()
+      || unacknowledged.get(unacknowledged.size() - 1).getSequence() != sequence) {
+      return null;
+    }
+    List<OfflineInbox.Message> batch = unacknowledged;
+    unacknowledged = Collections.emptyList();
+    return batch;
+  }
+
+  /**
+   * Called when the connection ends.
+   *
+   * @return what was sent but not acknowledged, to put back in the inbox.
+   */
+  public synchronized List<OfflineInbox.Message> end()
+  {
+    ended = true;
+    List<OfflineInbox.Message> batch = unacknowledged;
+    unacknowledged = Collections.emptyList();
+    return batch;
+  }
+}
+//End of InboxDelivery class
@@ -0,0 +1,749 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the private messages sent to users who are logged off, until they
+ * log in again. Every user (login ID) has an inbox, limited to a number of
+ * messages and of bytes so one inactive account can't fill the disk.
+ * <p>
+ * The inboxes are kept in segment files in a directory, which are only ever
+ * appended to: a record for each message stored, and a record for each
+ * message delivered. Writes go through one writer thread that takes all the
+ * records waiting, writes them and forces them to disk together, so a burst
+ * of messages costs one fsync rather than one each (group commit). A message
+ * counts as stored once its record is on disk.
+ * <p>
+ * Only where each waiting message is on disk is kept in memory; the text
+ * itself is read back when it is delivered. When the server starts, the
+ * segments are read through to find the messages not delivered yet. Old
+ * segments are deleted once every message in them, and in the ones before
+ * them, has been delivered.
+ */
+public class OfflineInbox implements Closeable
+{
+  //Class variables *************************************************
+  
+  /**
+   * The default quota of each inbox, in messages.
+   */
+  public static final int DEFAULT_MAX_MESSAGES = 500;
+  
+  /**
+   * The default quota of each inbox, in bytes of message text.
+   */
+  public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+  
+  /**
+   * The default size at which a new segment is started.
+   */
+  public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+  
+  /**
+   * The kinds of record.
+   */
+  private static final byte STORED = 1;
+  private static final byte DELIVERED = 2;
+  
+  /**
+   * Length and checksum, before the body of each record.
+   */
+  private static final int FRAME_BYTES = 4 + 4;
+  
+  /**
+   * Kind, sequence number, time and login ID length, at the start of each body.
+   */
+  private static final int BODY_HEADER_BYTES = 1 + 8 + 8 + 2;
+  
+  /**
+   * The most records the writer puts in one group commit.
+   */
+  private static final int MAX_GROUP = 1024;
+  
+  /**
+   * Put behind everything else by close(), so the writer finishes what is
+   * queued and stops. The writer is never interrupted, since that would
+   * close the segment it is writing to.
+   */
+  private static final Write END = new Write((byte) 0, 0, 0, "", null);
+  
+  //Instance variables **********************************************
+  
+  private final File directory;
+  private final int maxMessages;
+  private final long maxBytes;
+  private final int segmentBytes;
+  
+  /**
+   * The inboxes by login ID, and the open segments by number, oldest
+   * first. Both guarded by this.
+   */
+  private final Map<String, Box> boxes = new HashMap<String, Box>();
+  private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+  
+  /**
+   * The segment being appended to. Only used by the writer thread, once
+   * the inbox is open.
+   */
+  private Segment active;
+  
+  private final AtomicLong nextSequence = new AtomicLong(1);
+  
+  /**
+   * Records waiting for the writer.
+   */
+  private final BlockingQueue<Write> writes = new LinkedBlockingQueue<Write>();
+  
+  private final Thread writer;
+  
+  private volatile boolean closed;
+  
+  //Constructors ****************************************************
+  
+  /**
+   * Opens the inboxes kept in a directory, or starts them.
+   *
+   * @param directory Where the segments are, created if needed.
+   * @param maxMessages The most messages an inbox holds.
+   * @param maxBytes The most bytes of message text an inbox holds.
+   * @param segmentBytes The size at which a new segment is started.
+   * @exception IOException if the directory or a segment can't be read.
+   */
+  public OfflineInbox(File directory, int maxMessages, long maxBytes, int segmentBytes) throws IOException
+  {
+    if(!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    this.directory = directory;
+    this.maxMessages = maxMessages;
+    this.maxBytes = maxBytes;
+    this.segmentBytes = segmentBytes;
+    
+    recover();
+    
+    writer = new Thread(this::writeLoop, "Offline inbox writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+  
+  //Instance methods ************************************************
+  
+  /**
+   * Stores a message for a user.
+   *
+   * @param loginID Who it is for.
+   * @param message The message, as it will be sent to them.
+   * @return completed once the message is on disk.
+   * @exception FullException if their inbox is full; nothing is stored.
+   * @exception IOException if the inbox is closed.
+   */
+  public CompletableFuture<Void> store(String loginID, String message) throws IOException
+  {
+    byte[] text = message.getBytes(StandardCharsets.UTF_8);
+    synchronized(this) {
+      if(closed) {
+        throw new IOException("The offline inbox is closed");
+      }
+      // the quota counts messages still on their way to disk too
+      Box box = box(loginID);
+      if(box.messages + 1 > maxMessages || box.bytes + text.length > maxBytes) {
+        throw new FullException(loginID + "'s inbox is full.");
+      }
+      box.messages++;
+      box.bytes += text.length;
+      
+      // queued while holding the lock, so nothing gets behind the END of close()
+      Write write = new Write(STORED, nextSequence.getAndIncrement(), System.currentTimeMillis(), loginID, text);
+      writes.add(write);
+      return write.done;
+    }
+  }
+  
+  /**
+   * @return how many messages are waiting for a user.
+   */
+  public synchronized int count(String loginID)
+  {
+    Box box = boxes.get(loginID);
+    return box == null ? 0 : box.entries.size();
+  }
+  
+  /**
+   * Takes the oldest messages waiting for a user, to deliver them. They
+   * stay on disk until {@link #delivered} is called, or go back in the
+   * inbox with {@link #putBack}.
+   *
+   * @param loginID Whose messages.
+   * @param max The most messages taken.
+   * @return the messages, oldest first; empty if there are none.
+   * @exception IOException if a message can't be read back.
+   */
+  public List<Message> take(String loginID, int max) throws IOException
+  {
+    List<Entry> taken = new ArrayList<Entry>();
+    synchronized(this) {
+      Box box = boxes.get(loginID);
+      while(box != null && taken.size() < max && !box.entries.isEmpty()) {
+        taken.add(box.entries.pollFirst());
+      }
+    }
+    
+    List<Message> messages = new ArrayList<Message>(taken.size());
+    try {
+      for(Entry entry : taken) {
+        messages.add(new Message(entry, readText(entry)));
+      }
+    } catch(IOException e) {
+      putBackEntries(loginID, taken);
+      throw e;
+    }
+    return messages;
+  }
+  
+  /**
+   * Puts messages that could not be delivered back at the front of the
+   * inbox.
+   */
+  public void putBack(String loginID, List<Message> messages)
+  {
+    List<Entry> entries = new ArrayList<Entry>(messages.size());
+    for(Message message : messages) {
+      entries.add(message.entry);
+    }
+    putBackEntries(loginID, entries);
+  }
+  
+  /**
+   * Marks messages as delivered, so they are no longer kept. They are
+   * written as delivered with the next group commit. Once the inbox is
+   * closed this does nothing, and the messages are delivered again after
+   * it is reopened.
+   */
+  public synchronized void delivered(String loginID, List<Message> messages)
+  {
+    if(closed) {
+      return;
+    }
+    for(Message message : messages) {
+      Write write = new Write(DELIVERED, message.getSequence(), System.currentTimeMillis(), loginID, null);
+      write.entry = message.entry;
+      writes.add(write);
+    }
+  }
+  
+  /**
+   * Writes what is waiting and closes the segments. Storing afterwards
+   * fails.
+   */
+  public void close()
+  {
+    synchronized(this) {
+      if(closed) {
+        return;
+      }
+      closed = true;
+      writes.add(END);
+    }
+    // everything queued was promised to be written, so wait for all of it
+    boolean interrupted = false;
+    while(writer.isAlive()) {
+      try {
+        writer.join();
+      } catch(InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if(interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized(this) {
+      for(Segment segment : segments.values()) {
+        segment.close();
+      }
+    }
+  }
+  
+  private synchronized void putBackEntries(String loginID, List<Entry> entries)
+  {
+    Box box = box(loginID);
+    for(int i = entries.size() - 1; i >= 0; i--) {
+      box.entries.addFirst(entries.get(i));
+    }
+  }
+  
+  private Box box(String loginID)
+  {
+    Box box = boxes.get(loginID);
+    if(box == null) {
+      box = new Box();
+      boxes.put(loginID, box);
+    }
+    return box;
+  }
+  
+  /**
+   * Reads the text of a stored message back from its segment.
+   */
+  private String readText(Entry entry) throws IOException
+  {
+    Segment segment;
+    synchronized(this) {
+      segment = segments.get(entry.segment);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(entry.textLength);
+    long position = entry.textOffset;
+    while(buffer.hasRemaining()) {
+      int read = segment.channel.read(buffer, position);
+      if(read < 0) {
+        throw new EOFException("Offline message " + entry.sequence + " is cut short");
+      }
+      position += read;
+    }
+    return new String(buffer.array(), StandardCharsets.UTF_8);
+  }
+  
+  //Writer thread ***************************************************
+  
+  /**
+   * Writes records in groups, one force to disk per group, until it gets
+   * to the END queued by close().
+   */
+  private void writeLoop()
+  {
+    List<Write> group = new ArrayList<Write>();
+    boolean ended = false;
+    while(!ended) {
+      Write first;
+      try {
+        first = writes.take();
+      } catch(InterruptedException e) {
+        continue;
+      }
+      group.clear();
+      group.add(first);
+      // whatever else came in meanwhile goes in the same commit
+      writes.drainTo(group, MAX_GROUP - 1);
+      // END is always last, nothing is queued after it
+      if(group.get(group.size() - 1) == END) {
+        group.remove(group.size() - 1);
+        ended = true;
+        if(group.isEmpty()) {
+          return;
+        }
+      }
+      
+      // where the group starts, to take it back off the disk if it fails
+      int startSegment = active.number;
+      long startSize = active.size;
+      IOException failure = null;
+      boolean undone = true;
+      try {
+        for(Write write : group) {
+          ByteBuffer record = encode(write);
+          if(active.size + record.remaining() > segmentBytes && active.size > 0) {
+            roll();
+          }
+          write.segment = active.number;
+          write.offset = active.size;
+          while(record.hasRemaining()) {
+            active.size += active.channel.write(record, active.size);
+          }
+        }
+        active.channel.force(false);
+      } catch(IOException e) {
+        failure = e;
+        undone = undo(startSegment, startSize);
+      }
+      applyGroup(group, failure, undone);
+    }
+  }
+  
+  /**
+   * Takes a group that failed back off the disk: the segments it rolled
+   * over to are deleted, and the one it started in is cut back to where
+   * it started, so none of its records come back after a restart.
+   *
+   * @return false if that failed too, and some records may be on disk.
+   */
+  private boolean undo(int startSegment, long startSize)
+  {
+    try {
+      synchronized(this) {
+        active = segments.get(startSegment);
+        while(segments.lastKey() > startSegment) {
+          Segment rolled = segments.pollLastEntry().getValue();
+          rolled.close();
+          if(!rolled.file.delete()) {
+            throw new IOException("Cannot delete " + rolled.file);
+          }
+        }
+      }
+      active.channel.truncate(startSize);
+      active.channel.force(false);
+      active.size = startSize;
+      return true;
+    } catch(IOException e) {
+      return false;
+    }
+  }
+  
+  /**
+   * Starts a new segment, once the active one is on disk.
+   */
+  private void roll() throws IOException
+  {
+    active.channel.force(false);
+    Segment next = Segment.open(directory, active.number + 1);
+    synchronized(this) {
+      segments.put(next.number, next);
+    }
+    active = next;
+  }
+  
+  /**
+   * Brings the inboxes up to date once a group is on disk, and lets the
+   * callers know. A failed group was taken back off the disk unless
+   * undone is false; then its messages may come back after a restart, so
+   * they keep their place in the quota until then.
+   */
+  private void applyGroup(List<Write> group, IOException failure, boolean undone)
+  {
+    synchronized(this) {
+      for(Write write : group) {
+        Box box = box(write.loginID);
+        if(write.kind == STORED) {
+          if(failure == null) {
+            Entry entry = new Entry(write.sequence, write.time, write.segment,
+              write.offset + FRAME_BYTES + BODY_HEADER_BYTES + utf8Length(write.loginID), write.text.length);
+            box.entries.addLast(entry);
+            segments.get(write.segment).live++;
+          } else if(undone) {
+            box.messages--;
+            box.bytes -= write.text.length;
+          }
+        } else if(failure == null) {
+          box.messages--;
+          box.bytes -= write.entry.textLength;
+          segments.get(write.entry.segment).live--;
+        } else {
+          // not recorded as delivered, so it would come back after a restart; keep it for now
+          box.entries.addFirst(write.entry);
+        }
+        if(box.messages == 0 && box.entries.isEmpty()) {
+          boxes.remove(write.loginID);
+        }
+      }
+      deleteDeliveredSegments();
+    }
+    for(Write write : group) {
+      if(failure == null) {
+        write.done.complete(null);
+      } else {
+        write.done.completeExceptionally(failure);
+      }
+    }
+  }
+  
+  /**
+   * Deletes the oldest segments as long as everything in them was
+   * delivered. A segment must not go before the ones older than it, which
+   * may hold messages it records as delivered.
+   */
+  private void deleteDeliveredSegments()
+  {
+    while(segments.size() > 1) {
+      Segment oldest = segments.firstEntry().getValue();
+      if(oldest.live > 0 || oldest == active) {
+        break;
+      }
+      segments.remove(oldest.number);
+      oldest.close();
+      oldest.file.delete();
+    }
+  }
+  
+  private static ByteBuffer encode(Write write)
+  {
+    byte[] id = write.loginID.getBytes(StandardCharsets.UTF_8);
+    int textLength = write.text == null ? 0 : write.text.length;
+    int bodyLength = BODY_HEADER_BYTES + id.length + textLength;
+    ByteBuffer record = ByteBuffer.allocate(FRAME_BYTES + bodyLength);
+    record.putInt(bodyLength).putInt(0);
+    record.put(write.kind).putLong(write.sequence).putLong(write.time).putShort((short) id.length).put(id);
+    if(write.text != null) {
+      record.put(write.text);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), FRAME_BYTES, bodyLength);
+    record.putInt(4, (int) crc.getValue());
+    record.flip();
+    return record;
+  }
+  
+  private static int utf8Length(String text)
+  {
+    return text.getBytes(StandardCharsets.UTF_8).length;
+  }
+  
+  //Recovery ********************************************************
+  
+  /**
+   * Reads every segment through, rebuilding the inboxes from what was
+   * stored and what was delivered. A record cut short by a crash ends the
+   * last segment; the file is cut back to the last good record.
+   */
+  private void recover() throws IOException
+  {
+    String[] names = directory.list((dir, name) -> name.startsWith("inbox-") && name.endsWith(".seg"));
+    List<Integer> numbers = new ArrayList<Integer>();
+    for(String name : names) {
+      numbers.add(Integer.parseInt(name.substring(6, name.length() - 4)));
+    }
+    Collections.sort(numbers);
+    
+    Map<Long, Entry> waiting = new HashMap<Long, Entry>();
+    Map<Long, String> owners = new HashMap<Long, String>();
+    long lastSequence = 0;
+    for(int number : numbers) {
+      Segment segment = Segment.open(directory, number);
+      segments.put(number, segment);
+      
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+      long offset = 0;
+      try {
+        while(true) {
+          int bodyLength = in.readInt();
+          int checksum = in.readInt();
+          if(bodyLength < BODY_HEADER_BYTES || offset + FRAME_BYTES + bodyLength > segment.file.length()) {
+            break;
+          }
+          byte[] body = new byte[bodyLength];
+          in.readFully(body);
+          CRC32 crc = new CRC32();
+          crc.update(body, 0, bodyLength);
+          if((int) crc.getValue() != checksum) {
+            break;
+          }
+          
+          ByteBuffer fields = ByteBuffer.wrap(body);
+          byte kind = fields.get();
+          long sequence = fields.getLong();
+          long time = fields.getLong();
+          int idLength = fields.getShort() & 0xffff;
+          String loginID = new String(body, BODY_HEADER_BYTES, idLength, StandardCharsets.UTF_8);
+          int textOffset = BODY_HEADER_BYTES + idLength;
+          
+          if(kind == STORED) {
+            waiting.put(sequence, new Entry(sequence, time, number,
+              offset + FRAME_BYTES + textOffset, bodyLength - textOffset));
+            owners.put(sequence, loginID);
+            segment.live++;
+          } else if(kind == DELIVERED) {
+            Entry entry = waiting.remove(sequence);
+            if(entry != null) {
+              owners.remove(sequence);
+              segments.get(entry.segment).live--;
+            }
+          }
+          lastSequence = Math.max(lastSequence, sequence);
+          offset += FRAME_BYTES + bodyLength;
+        }
+      } catch(EOFException e) {
+        // the end of the segment
+      } finally {
+        in.close();
+      }
+      segment.size = offset;
+      if(offset < segment.file.length()) {
+        segment.channel.truncate(offset);
+      }
+    }
+    
+    // put the waiting messages back in their inboxes, in the order they were sent
+    List<Long> sequences = new ArrayList<Long>(waiting.keySet());
+    Collections.sort(sequences);
+    for(long sequence : sequences) {
+      Entry entry = waiting.get(sequence);
+      Box box = box(owners.get(sequence));
+      box.entries.addLast(entry);
+      box.messages++;
+      box.bytes += entry.textLength;
+    }
+    nextSequence.set(lastSequence + 1);
+    
+    if(segments.isEmpty()) {
+      Segment first = Segment.open(directory, 1);
+      segments.put(first.number, first);
+    }
+    active = segments.lastEntry().getValue();
+    deleteDeliveredSegments();
+  }
+  
+  //Inner classes ***************************************************
+  
+  /**
+   * Thrown when a message doesn't fit in an inbox's quota.
+   */
+  public static class FullException extends IOException
+  {
+    private static final long serialVersionUID = 1L;
+    
+    public FullException(String message)
+    {
+      super(message);
+    }
+  }
+  
+  /**
+   * A message taken from an inbox.
+   */
+  public static final class Message
+  {
+    private final Entry entry;
+    private final String text;
+    
+    Message(Entry entry, String text)
+    {
+      this.entry = entry;
+      this.text = text;
+    }
+    
+    public long getSequence()
+    {
+      return entry.sequence;
+    }
+    
+    /**
+     * @return when it was stored, in milliseconds since 1970.
+     */
+    public long getTime()
+    {
+      return entry.time;
+    }
+    
+    public String getText()
+    {
+      return text;
+    }
+  }
+  
+  /**
+   * One user's inbox: where the waiting messages are, and how much of the
+   * quota is used, counting messages not on disk yet and messages taken
+   * but not yet recorded as delivered.
+   */
+  private static final class Box
+  {
+    final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+    int messages;
+    long bytes;
+  }
+  
+  /**
+   * Where a stored message is.
+   */
+  private static final class Entry
+  {
+    final long sequence;
+    final long time;
+    final int segment;
+    final long textOffset;
+    final int textLength;
+    
+    Entry(long sequence, long time, int segment, long textOffset, int textLength)
+    {
+      this.sequence = sequence;
+      this.time = time;
+      this.segment = segment;
+      this.textOffset = textOffset;
+      this.textLength = textLength;
+    }
+  }
+  
+  /**
+   * A record waiting for the writer.
+   */
+  private static final class Write
+  {
+    final byte kind;
+    final long sequence;
+    final long time;
+    final String loginID;
+    final byte[] text;
+    final CompletableFuture<Void> done = new CompletableFuture<Void>();
+    
+    /**
+     * For a delivered record, the message delivered.
+     */
+    Entry entry;
+    
+    /**
+     * Where the writer put it.
+     */
+    int segment;
+    long offset;
+    
+    Write(byte kind, long sequence, long time, String loginID, byte[] text)
+    {
+      this.kind = kind;
+      this.sequence = sequence;
+      this.time = time;
+      this.loginID = loginID;
+      this.text = text;
+    }
+  }
+  
+  /**
+   * One segment file.
+   */
+  private static final class Segment
+  {
+    final int number;
+    final File file;
+    final FileChannel channel;
+    
+    /**
+     * How many bytes it holds. Only changed by the writer thread, or
+     * before it starts.
+     */
+    long size;
+    
+    /**
+     * How many of its messages are not delivered yet. Guarded by the inbox.
+     */
+    int live;
+    
+    private Segment(int number, File file, FileChannel channel)
+    {
+      this.number = number;
+      this.file = file;
+      this.channel = channel;
+    }
+    
+    static Segment open(File directory, int number) throws IOException
+    {
+      File file = new File(directory, String.format("inbox-%010d.seg", number));
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+      Segment segment = new Segment(number, file, channel);
+      segment.size = channel.size();
+      return segment;
+    }
+    
+    void close()
+    {
+      try {
+        channel.close();
+      } catch(IOException e) {}
+    }
+  }
+}
+//End of OfflineInbox class
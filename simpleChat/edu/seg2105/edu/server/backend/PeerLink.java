@@ -0,0 +1,274 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import edu.seg2105.client.common.ChatDictionary;
+import ocsf.client.AbstractClient;
+import ocsf.client.ReconnectPolicy;
+import ocsf.common.FrameCodec;
+
+/**
+ * A link from this server to another EchoServer, so that what is broadcast
+ * on one reaches the users of both. The link connects like a chat client,
+ * then proves it knows the mesh secret instead of logging in: it asks for
+ * "#peerhello", gets back "#nonce <nonce>", and answers
+ * "#peer <serverID> <proof>", the proof being proof(secret, nonce, serverID).
+ * From then on both servers send each other their broadcasts as
+ * "#relay <origin> <sequence> <message>": this server over the link, the
+ * other one back over the connection the link opened.
+ * <p>
+ * A link keeps trying to connect until it is closed, whether the other
+ * server is not up yet or goes down later, so servers can be started in any
+ * order. Both are the client's reconnect policy at work.
+ */
+public class PeerLink extends AbstractClient
+{
+  //Class variables *************************************************
+  
+  /**
+   * How many broadcasts wait for the other server to accept the link,
+   * at most. The oldest go first.
+   */
+  final public static int MAX_HELD_RELAYS = DEFAULT_SEND_QUEUE_CAPACITY;
+  
+  //Instance variables **********************************************
+  
+  /**
+   * The server this link belongs to.
+   */
+  private final EchoServer server;
+  
+  /**
+   * Set when the link is closed on purpose, so it stops reconnecting.
+   */
+  private volatile boolean closed;
+  
+  /**
+   * The broadcasts to relay once the other server accepts the link, and
+   * whether it has. Both guarded by held.
+   */
+  private final ArrayDeque<String> held = new ArrayDeque<String>();
+  private boolean accepted;
+  
+  //Constructors ****************************************************
+  
+  /**
+   * Constructs a link. It is not connected until start() is called.
+   *
+   * @param server The server this link belongs to.
+   * @param host The other server's host.
+   * @param port The other server's port.
+   */
+  public PeerLink(EchoServer server, String host, int port)
+  {
+    super(host, port);
+    this.server = server;
+    // the same settings as a chat client, so any server accepts the link
+    setCodecs(FrameCodec.BINARY, FrameCodec.SERIALIZATION);
+    setCompression(ChatDictionary.THRESHOLD, ChatDictionary.get());
+    setHeartbeatInterval(EchoServer.HEARTBEAT_MILLIS);
+    setServerTimeout(3 * EchoServer.HEARTBEAT_MILLIS);
+    // a link that goes down comes back by itself, for as long as it takes
+    setReconnectPolicy(ReconnectPolicy.defaultBackoff());
+  }
+  
+  //Class methods ***************************************************
+  
+  /**
+   * Computes what a server sends to prove it knows the mesh secret: an
+   * HMAC-SHA256 of the nonce the other server gave it and its own ID, so
+   * the secret itself never goes over the wire and a proof can't be used
+   * again.
+   *
+   * @param secret The mesh secret.
+   * @param nonce The nonce from "#nonce".
+   * @param serverID The ID of the server linking.
+   * @return the proof, in hex.
+   */
+  public static String proof(String secret, String nonce, String serverID)
+  {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+      return hex(mac.doFinal((nonce + " " + serverID).getBytes(StandardCharsets.UTF_8)));
+    } catch(GeneralSecurityException e) {
+      // every Java has HmacSHA256
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  /**
+   * @param bytes Some bytes.
+   * @return them in lowercase hex.
+   */
+  static String hex(byte[] bytes)
+  {
+    StringBuilder hex = new StringBuilder(2 * bytes.length);
+    for(byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+  
+  //Instance methods ************************************************
+  
+  /**
+   * Connects in the background, trying again with the reconnect policy's
+   * waits until it works or the link is closed.
+   */
+  public void start()
+  {
+    server.getLogger().info("Linking to {}.", this);
+    openConnectionInBackground();
+  }
+  
+  /**
+   * @return true if the other server has accepted the link, so that
+   *   broadcasts flow both ways.
+   */
+  public boolean isLinked()
+  {
+    synchronized(held) {
+      return accepted;
+    }
+  }
+  
+  /**
+   * Closes the link for good.
+   */
+  public void close()
+  {
+    closed = true;
+    try {
+      closeConnection();
+    } catch(IOException e) {
+      // it's going away either way
+    }
+  }
+  
+  /**
+   * Sends a relayed broadcast to the other server. Until the other server
+   * has accepted the link (again, after a reconnect), broadcasts wait for
+   * it, up to MAX_HELD_RELAYS.
+   *
+   * @param relay The "#relay ..." line.
+   */
+  public void relay(String relay)
+  {
+    synchronized(held) {
+      if(!accepted) {
+        if(held.size() >= MAX_HELD_RELAYS) {
+          held.poll();
+        }
+        held.add(relay);
+        return;
+      }
+      send(relay);
+    }
+  }
+  
+  /**
+   * Sends one relay. Called holding held, so relays go out in order.
+   */
+  private void send(String relay)
+  {
+    try {
+      sendToServer(relay);
+    } catch(IOException e) {
+      server.getLogger().warn("Could not relay to {}: {}", this, e);
+    }
+  }
+  
+  /**
+   * Introduces this server, each time the link connects. The other server
+   * answers "#peerhello" with a nonce, and "#peer" with null if it took
+   * the proof, or why not.
+   */
+  protected void connectionEstablished()
+  {
+    request("#peerhello").thenCompose(hello -> {
+      String nonce = String.valueOf(hello);
+      if(!nonce.startsWith("#nonce ")) {
+        return CompletableFuture.completedFuture(hello);
+      }
+      nonce = nonce.substring("#nonce ".length());
+      String serverID = server.getServerID();
+      return request("#peer " + serverID + " " + proof(server.getMeshSecret(), nonce, serverID));
+    }).whenComplete((refusal, failure) -> {
+      if(failure != null) {
+        // the reader finds out the connection is gone and reconnects
+        server.getLogger().warn("Could not link to {}: {}", this, failure);
+      } else if(refusal != null) {
+        // trying again won't change the other server's mind
+        server.getLogger().warn("{} refused the link: {}", this, refusal);
+        server.unlink(getHost(), getPort());
+      } else {
+        server.getLogger().info("Linked to {}.", this);
+        synchronized(held) {
+          accepted = true;
+          while(!held.isEmpty()) {
+            send(held.poll());
+          }
+        }
+      }
+    });
+  }
+  
+  /**
+   * Relays from the other server go to our users and our other links;
+   * anything else it sends us (like errors) only goes in the log.
+   *
+   * @param msg The message from the other server.
+   */
+  protected void handleMessageFromServer(Object msg)
+  {
+    String message = String.valueOf(msg);
+    if(message.startsWith("#relay ")) {
+      String[] parts = message.split(" ", 4);
+      if(parts.length == 4) {
+        server.receiveRelay(parts[1], parts[2], parts[3], this);
+        return;
+      }
+    }
+    server.getLogger().info("{} says: {}", this, message);
+  }
+  
+  protected void connectionClosed()
+  {
+    notAccepted();
+  }
+  
+  protected void connectionException(Exception exception)
+  {
+    notAccepted();
+    if(!closed) {
+      server.getLogger().warn("Lost the link to {}, reconnecting: {}", this, exception);
+    }
+  }
+  
+  /**
+   * Holds the relays again until the next connection is accepted.
+   */
+  private void notAccepted()
+  {
+    synchronized(held) {
+      accepted = false;
+    }
+  }
+  
+  /**
+   * @return "host:port" of the other server.
+   */
+  public String toString()
+  {
+    return getHost() + ":" + getPort();
+  }
+}
+//End of PeerLink class
@@ -0,0 +1,118 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides whether a broadcast relayed by another server is new. Every
+ * server numbers the broadcasts it starts, and the mesh of linked servers
+ * passes each one on to every link but the one it came in on, so a
+ * broadcast can reach a server more than once when the links make a loop,
+ * and not always in order when there are several ways around. Each server
+ * delivers and passes on only the first copy.
+ * <p>
+ * For each origin the filter remembers the highest sequence number seen and
+ * which of the WINDOW numbers below it were seen. A broadcast older than the
+ * window is taken as a duplicate: it is that late only if a link was down
+ * for a long time, and the other links have delivered it by then. Only the
+ * most recently heard MAX_ORIGINS servers are remembered, since a restarted
+ * server comes back with a new ID.
+ */
+public class RelayFilter
+{
+  //Class variables *************************************************
+  
+  /**
+   * How far behind the newest broadcast of an origin a broadcast can arrive
+   * and still be delivered. A multiple of 64.
+   */
+  public static final int WINDOW = 1024;
+  
+  /**
+   * How many origins are remembered.
+   */
+  public static final int MAX_ORIGINS = 1024;
+  
+  //Instance variables **********************************************
+  
+  /**
+   * The window of each origin, least recently heard first. Guarded by this.
+   */
+  private final LinkedHashMap<String, Window> origins =
+    new LinkedHashMap<String, Window>(16, 0.75f, true)
+    {
+      protected boolean removeEldestEntry(Map.Entry<String, Window> eldest)
+      {
+        return size() > MAX_ORIGINS;
+      }
+    };
+  
+  //Instance methods ************************************************
+  
+  /**
+   * Records a broadcast.
+   *
+   * @param origin The ID of the server that started it.
+   * @param sequence Its number at that server, from 1 up.
+   * @return true the first time it is seen, false for a copy.
+   */
+  public synchronized boolean firstTime(String origin, long sequence)
+  {
+    Window window = origins.get(origin);
+    if(window == null) {
+      window = new Window();
+      origins.put(origin, window);
+    }
+    return window.add(sequence);
+  }
+  
+  //Inner classes ***************************************************
+  
+  /**
+   * The sequence numbers seen from one origin, as a ring of bits with one
+   * bit per number, the highest number seen at the front.
+   */
+  private static final class Window
+  {
+    private final long[] bits = new long[WINDOW / 64];
+    private long highest;
+    
+    boolean add(long sequence)
+    {
+      if(sequence <= highest - WINDOW || sequence < 1) {
+        return false; // too old to tell, or not a number we give out
+      }
+      if(sequence > highest) {
+        // clear the numbers the window moves over, all of them if it jumps
+        long from = Math.max(highest + 1, sequence - WINDOW + 1);
+        for(long n = from; n <= sequence; n++) {
+          clear(n);
+        }
+        highest = sequence;
+      } else if(isSet(sequence)) {
+        return false;
+      }
+      set(sequence);
+      return true;
+    }
+    
+    private boolean isSet(long n)
+    {
+      int bit = (int) (n % WINDOW);
+      return (bits[bit >>> 6] & (1L << bit)) != 0;
+    }
+    
+    private void set(long n)
+    {
+      int bit = (int) (n % WINDOW);
+      bits[bit >>> 6] |= 1L << bit;
+    }
+    
+    private void clear(long n)
+    {
+      int bit = (int) (n % WINDOW);
+      bits[bit >>> 6] &= ~(1L << bit);
+    }
+  }
+}
+//End of RelayFilter class